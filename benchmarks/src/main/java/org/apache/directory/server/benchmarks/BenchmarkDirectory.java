@@ -0,0 +1,301 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.server.core.DefaultDirectoryService;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.factory.AvlPartitionFactory;
+import org.apache.directory.server.core.factory.DefaultDirectoryServiceFactory;
+import org.apache.directory.server.core.factory.JdbmPartitionFactory;
+import org.apache.directory.server.core.factory.LmdbPartitionFactory;
+import org.apache.directory.server.core.factory.MavibotPartitionFactory;
+import org.apache.directory.server.core.factory.PartitionFactory;
+
+
+/**
+ * The directory used by the benchmarks : a DirectoryService with an example partition,
+ * stored in the chosen backend, containing a flat list of users. The users are named
+ * uid=user&lt;N&gt;,ou=people,dc=example,dc=com, and their password is {@link #PASSWORD}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BenchmarkDirectory
+{
+    /** The suffix of the example partition */
+    public static final String SUFFIX = "dc=example,dc=com";
+
+    /** The parent of the users */
+    public static final String PEOPLE = "ou=people," + SUFFIX;
+
+    /** The users password */
+    public static final String PASSWORD = "secret";
+
+    /** The ACI granting the read access to all the users */
+    private static final String ALL_USERS_READ_ACI =
+        "{ identificationTag \"allUsersRead\", precedence 14, authenticationLevel none, "
+            + "itemOrUserFirst userFirst: { userClasses { allUsers }, userPermissions { { "
+            + "protectedItems { entry, allUserAttributeTypesAndValues }, "
+            + "grantsAndDenials { grantRead, grantReturnDN, grantBrowse } } } } }";
+
+    /** The JDBM backend */
+    public static final String JDBM = "jdbm";
+
+    /** The Mavibot backend */
+    public static final String MAVIBOT = "mavibot";
+
+    /** The LMDB backend */
+    public static final String LMDB = "lmdb";
+
+    /** The in-memory backend */
+    public static final String AVL = "avl";
+
+    /** The started DirectoryService */
+    private final DirectoryService directoryService;
+
+    /** The factory used to create the partitions */
+    private final PartitionFactory partitionFactory;
+
+    /** The example partition */
+    private Partition partition;
+
+    /** The number of users in the example partition */
+    private int nbUsers;
+
+
+    /**
+     * Creates and starts a DirectoryService, storing its partitions in the given backend.
+     *
+     * @param name The DirectoryService instance name, used to name its working directory
+     * @param backend The backend, one of {@link #JDBM}, {@link #MAVIBOT}, {@link #LMDB} or {@link #AVL}
+     * @param accessControlEnabled If the access control subsystem is enabled
+     * @throws Exception If the DirectoryService can't be started
+     */
+    public BenchmarkDirectory( String name, String backend, boolean accessControlEnabled ) throws Exception
+    {
+        partitionFactory = getPartitionFactory( backend );
+
+        DirectoryService service = new DefaultDirectoryService();
+        service.setShutdownHookEnabled( false );
+        service.setAccessControlEnabled( accessControlEnabled );
+
+        DefaultDirectoryServiceFactory factory = new DefaultDirectoryServiceFactory( service, partitionFactory );
+        factory.init( name + "-" + backend );
+        directoryService = factory.getDirectoryService();
+    }
+
+
+    private static PartitionFactory getPartitionFactory( String backend )
+    {
+        switch ( backend )
+        {
+            case JDBM:
+                return new JdbmPartitionFactory();
+
+            case MAVIBOT:
+                return new MavibotPartitionFactory();
+
+            case LMDB:
+                return new LmdbPartitionFactory();
+
+            case AVL:
+                return new AvlPartitionFactory();
+
+            default:
+                throw new IllegalArgumentException( "Unknown backend : " + backend );
+        }
+    }
+
+
+    /**
+     * Creates the example partition, and loads it with the given number of users. The
+     * entries are added through the admin session, so they get all their operational
+     * attributes.
+     *
+     * @param nbUsers The number of users to create
+     * @throws Exception If the partition can't be created
+     */
+    public void createExamplePartition( int nbUsers ) throws Exception
+    {
+        SchemaManager schemaManager = directoryService.getSchemaManager();
+
+        partition = partitionFactory.createPartition( schemaManager, directoryService.getDnFactory(), "example",
+            SUFFIX, 1000, new File( directoryService.getInstanceLayout().getPartitionsDirectory(), "example" ) );
+
+        for ( String attributeId : new String[]
+            { SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.OU_AT, SchemaConstants.CN_AT, SchemaConstants.SN_AT,
+                SchemaConstants.UID_AT } )
+        {
+            partitionFactory.addIndex( partition, attributeId, 1000 );
+        }
+
+        directoryService.addPartition( partition );
+
+        CoreSession session = directoryService.getAdminSession();
+
+        session.add( new DefaultEntry( schemaManager, SUFFIX,
+            "objectClass: top",
+            "objectClass: domain",
+            "dc: example" ) );
+
+        session.add( new DefaultEntry( schemaManager, PEOPLE,
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: people" ) );
+
+        for ( int i = 0; i < nbUsers; i++ )
+        {
+            session.add( createUser( i ) );
+        }
+
+        this.nbUsers = nbUsers;
+    }
+
+
+    /**
+     * Lets all the users read the example partition, with a prescriptiveACI stored
+     * in an access control subentry of the suffix.
+     *
+     * @throws Exception If the ACI can't be added
+     */
+    public void addAllUsersReadAci() throws Exception
+    {
+        SchemaManager schemaManager = directoryService.getSchemaManager();
+        CoreSession session = directoryService.getAdminSession();
+
+        session.modify( new Dn( schemaManager, SUFFIX ), new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            SchemaConstants.ADMINISTRATIVE_ROLE_AT, SchemaConstants.ACCESS_CONTROL_SPECIFIC_AREA ) );
+        session.add( new DefaultEntry( schemaManager, "cn=allUsersRead," + SUFFIX,
+            "objectClass: top",
+            "objectClass: subentry",
+            "objectClass: accessControlSubentry",
+            "cn: allUsersRead",
+            "subtreeSpecification: {}",
+            "prescriptiveACI: " + ALL_USERS_READ_ACI ) );
+    }
+
+
+    /**
+     * Creates a user entry, which is not added in the partition.
+     *
+     * @param number The user number
+     * @return The user entry
+     * @throws Exception If the entry can't be created
+     */
+    public Entry createUser( int number ) throws Exception
+    {
+        return new DefaultEntry( directoryService.getSchemaManager(), getUserDn( number ),
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "objectClass: inetOrgPerson",
+            "uid: user" + number,
+            "cn: User " + number,
+            "sn: " + number,
+            "userPassword: " + PASSWORD );
+    }
+
+
+    /**
+     * @param number The user number
+     * @return The Dn of a user
+     */
+    public static String getUserDn( int number )
+    {
+        return "uid=user" + number + "," + PEOPLE;
+    }
+
+
+    /**
+     * @return The DirectoryService
+     */
+    public DirectoryService getDirectoryService()
+    {
+        return directoryService;
+    }
+
+
+    /**
+     * @return The SchemaManager
+     */
+    public SchemaManager getSchemaManager()
+    {
+        return directoryService.getSchemaManager();
+    }
+
+
+    /**
+     * @return The example partition
+     */
+    public Partition getPartition()
+    {
+        return partition;
+    }
+
+
+    /**
+     * @return The number of users created in the example partition
+     */
+    public int getNbUsers()
+    {
+        return nbUsers;
+    }
+
+
+    /**
+     * @return The schema aware Dns of the users, indexed by their number
+     * @throws Exception If a Dn is invalid
+     */
+    public Dn[] getUserDns() throws Exception
+    {
+        Dn[] dns = new Dn[nbUsers];
+
+        for ( int i = 0; i < nbUsers; i++ )
+        {
+            dns[i] = new Dn( directoryService.getSchemaManager(), getUserDn( i ) );
+        }
+
+        return dns;
+    }
+
+
+    /**
+     * Stops the DirectoryService, and removes its working directory.
+     *
+     * @throws Exception If the DirectoryService can't be stopped
+     */
+    public void shutdown() throws Exception
+    {
+        directoryService.shutdown();
+        FileUtils.deleteDirectory( directoryService.getInstanceLayout().getInstanceDirectory() );
+    }
+}
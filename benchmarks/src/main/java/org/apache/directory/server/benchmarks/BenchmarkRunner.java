@@ -0,0 +1,79 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks. It accepts the standard JMH command line options, for instance
+ * a regular expression selecting the benchmarks to run, or -p backend=avl to use a
+ * single backend. Unless another format or file is requested, the results are written
+ * in JSON in jmh-result.json, so they can be compared between two releases.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class BenchmarkRunner
+{
+    /** The default results file */
+    public static final String RESULT_FILE = "jmh-result.json";
+
+
+    private BenchmarkRunner()
+    {
+    }
+
+
+    /**
+     * Runs the benchmarks
+     *
+     * @param args The JMH command line options
+     * @throws Exception If the benchmarks can't be run
+     */
+    public static void main( String[] args ) throws Exception
+    {
+        CommandLineOptions commandLineOptions = new CommandLineOptions( args );
+        OptionsBuilder builder = new OptionsBuilder();
+
+        if ( !commandLineOptions.getResultFormat().hasValue() )
+        {
+            builder.resultFormat( ResultFormatType.JSON );
+        }
+
+        if ( !commandLineOptions.getResult().hasValue() )
+        {
+            builder.result( RESULT_FILE );
+        }
+
+        if ( commandLineOptions.getIncludes().isEmpty() )
+        {
+            builder.include( BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark\\..*" );
+        }
+
+        Options options = builder.parent( commandLineOptions ).build();
+
+        new Runner( options ).run();
+    }
+}
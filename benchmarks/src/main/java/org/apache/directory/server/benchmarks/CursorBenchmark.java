@@ -0,0 +1,183 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.UuidSet;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
+import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
+import org.apache.directory.server.xdbm.search.impl.EvaluatorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the selection of the search candidates by the {@link CursorBuilder}, either
+ * gathered in a set before being returned, or streamed. The filter is annotated once, so
+ * the planning is not measured, and neither is the final evaluation of the candidates.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CursorBenchmark
+{
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM, BenchmarkDirectory.MAVIBOT, BenchmarkDirectory.AVL })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    /** The filter selecting the candidates */
+    @Param({ "(cn=User 42)", "(cn=User 1*)", "(&(objectClass=inetOrgPerson)(cn=User 1*))",
+        "(|(cn=User 1)(uid=user2))", "(!(cn=User 1))" })
+    public String filter;
+
+    private BenchmarkDirectory directory;
+    private Partition partition;
+    private CursorBuilder cursorBuilder;
+
+    /** The normalized and annotated filter */
+    private ExprNode node;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "cursor-benchmark", backend, false );
+        directory.createExamplePartition( nbUsers );
+
+        partition = directory.getPartition();
+        Store store = ( Store ) partition;
+        cursorBuilder = new CursorBuilder( store, new EvaluatorBuilder( store, directory.getSchemaManager() ) );
+
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(
+            new ConcreteNameComponentNormalizer( directory.getSchemaManager() ), directory.getSchemaManager() );
+        node = ( ExprNode ) FilterParser.parse( directory.getSchemaManager(), filter ).accept( visitor );
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            new DefaultOptimizer( store, 0 ).annotate( txn, node );
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    private PartitionSearchResult createSearchResult()
+    {
+        PartitionSearchResult searchResult = new PartitionSearchResult( directory.getSchemaManager() );
+        searchResult.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+
+        return searchResult;
+    }
+
+
+    /**
+     * Gathers the candidates in a set, as done when the partition can't read from a snapshot.
+     *
+     * @return The number of candidates, or Long.MAX_VALUE when the whole partition must be scanned
+     */
+    @Benchmark
+    public long gather() throws Exception
+    {
+        PartitionSearchResult searchResult = createSearchResult();
+        UuidSet candidates = new UuidSet();
+        searchResult.setCandidateSet( candidates );
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            long count = cursorBuilder.build( txn, node, searchResult );
+
+            return ( count == Long.MAX_VALUE ) ? count : candidates.size();
+        }
+    }
+
+
+    /**
+     * Browses the candidates as they are streamed by the index cursors.
+     *
+     * @return The number of candidates, or -1 if the filter can't be streamed
+     */
+    @Benchmark
+    public long stream() throws Exception
+    {
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            Cursor<IndexEntry<String, String>> cursor = cursorBuilder.buildCursor( txn, node, createSearchResult() );
+
+            if ( cursor == null )
+            {
+                return -1L;
+            }
+
+            long count = 0L;
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    cursor.get();
+                    count++;
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the NormalizationInterceptor and the AciAuthorizationInterceptor. Each
+ * interceptor is called alone : the operation goes from it straight to the partitions
+ * nexus. The nexus benchmarks measure the same operations without any interceptor, so
+ * the cost of an interceptor is the difference with the matching nexus benchmark. The
+ * chain benchmarks measure the operations going through the whole interceptors chain,
+ * which includes the cost of the dispatching from an interceptor to the next one.
+ * <p>
+ * The access control is enabled, and the users are allowed to read all the entries by
+ * a prescriptive ACI. The operations checked by the AciAuthorizationInterceptor are
+ * done by a user, the other ones by the administrator.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InterceptorBenchmark
+{
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    private BenchmarkDirectory directory;
+    private DirectoryService directoryService;
+    private Partition partition;
+    private CoreSession adminSession;
+    private CoreSession userSession;
+    private Interceptor normalizationInterceptor;
+    private Interceptor aciAuthorizationInterceptor;
+    private Dn peopleDn;
+
+    /** The users Dns, as received from the network */
+    private Dn[] rawUserDns;
+
+    /** The normalized users Dns */
+    private Dn[] userDns;
+
+    /** The normalized filters */
+    private ExprNode[] filters;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "interceptor-benchmark", backend, true );
+        directory.createExamplePartition( nbUsers );
+
+        directoryService = directory.getDirectoryService();
+        partition = directory.getPartition();
+        adminSession = directoryService.getAdminSession();
+        peopleDn = new Dn( directory.getSchemaManager(), BenchmarkDirectory.PEOPLE );
+
+        // Let all the users read the partition
+        directory.addAllUsersReadAci();
+
+        userSession = directoryService.getSession( new Dn( directory.getSchemaManager(),
+            BenchmarkDirectory.getUserDn( 0 ) ), Strings.getBytesUtf8( BenchmarkDirectory.PASSWORD ) );
+
+        normalizationInterceptor = directoryService.getInterceptor( InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName() );
+        aciAuthorizationInterceptor = directoryService.getInterceptor(
+            InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR.getName() );
+
+        userDns = directory.getUserDns();
+        rawUserDns = new Dn[nbUsers];
+        filters = new ExprNode[nbUsers];
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(
+            new ConcreteNameComponentNormalizer( directory.getSchemaManager() ), directory.getSchemaManager() );
+
+        for ( int i = 0; i < nbUsers; i++ )
+        {
+            rawUserDns[i] = new Dn( BenchmarkDirectory.getUserDn( i ) );
+            filters[i] = ( ExprNode ) FilterParser.parse( directory.getSchemaManager(), getFilter( i ) ).accept( visitor );
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    private static String getFilter( int number )
+    {
+        return "(cn=User " + number + ")";
+    }
+
+
+    private Entry lookup( Interceptor interceptor, CoreSession session, Dn dn ) throws Exception
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( session, dn );
+        lookupContext.setInterceptors( Collections.emptyList() );
+        lookupContext.setPartition( partition );
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            lookupContext.setTransaction( txn );
+
+            if ( interceptor == null )
+            {
+                return directoryService.getPartitionNexus().lookup( lookupContext );
+            }
+
+            return interceptor.lookup( lookupContext );
+        }
+    }
+
+
+    private int search( Interceptor interceptor, CoreSession session, ExprNode filter ) throws Exception
+    {
+        SearchOperationContext searchContext = new SearchOperationContext( session, peopleDn, SearchScope.ONELEVEL,
+            filter, SchemaConstants.ALL_USER_ATTRIBUTES );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchContext.setInterceptors( Collections.emptyList() );
+        searchContext.setPartition( partition );
+        int nbEntries = 0;
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            searchContext.setTransaction( txn );
+
+            EntryFilteringCursor cursor;
+
+            if ( interceptor == null )
+            {
+                cursor = directoryService.getPartitionNexus().search( searchContext );
+            }
+            else
+            {
+                cursor = interceptor.search( searchContext );
+            }
+
+            try
+            {
+                while ( cursor.next() )
+                {
+                    cursor.get();
+                    nbEntries++;
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+
+        return nbEntries;
+    }
+
+
+    /**
+     * Looks up a user with a schema aware Dn, without any interceptor.
+     */
+    @Benchmark
+    public Entry nexusLookup() throws Exception
+    {
+        return lookup( null, adminSession, userDns[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Searches a user with a normalized filter, without any interceptor.
+     */
+    @Benchmark
+    public int nexusSearch() throws Exception
+    {
+        return search( null, adminSession, filters[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Looks up a user with a Dn which has to be normalized.
+     */
+    @Benchmark
+    public Entry normalizationLookup() throws Exception
+    {
+        return lookup( normalizationInterceptor, adminSession, rawUserDns[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Searches a user with a filter which has to be normalized. The filter is parsed as
+     * the LDAP decoder does, and the parsing is part of the measure.
+     */
+    @Benchmark
+    public int normalizationSearch() throws Exception
+    {
+        ExprNode filter = FilterParser.parse( getFilter( ThreadLocalRandom.current().nextInt( nbUsers ) ) );
+
+        return search( normalizationInterceptor, adminSession, filter );
+    }
+
+
+    /**
+     * Looks up a user as another user, the ACIs being evaluated on the returned entry.
+     */
+    @Benchmark
+    public Entry aciLookup() throws Exception
+    {
+        return lookup( aciAuthorizationInterceptor, userSession, userDns[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Searches a user as another user, the ACIs being evaluated on each candidate.
+     */
+    @Benchmark
+    public int aciSearch() throws Exception
+    {
+        return search( aciAuthorizationInterceptor, userSession, filters[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Looks up a user through the whole interceptors chain.
+     */
+    @Benchmark
+    public Entry chainLookup() throws Exception
+    {
+        return adminSession.lookup( userDns[ThreadLocalRandom.current().nextInt( nbUsers )] );
+    }
+
+
+    /**
+     * Searches a user through the whole interceptors chain.
+     */
+    @Benchmark
+    public int chainSearch() throws Exception
+    {
+        int nbEntries = 0;
+
+        try ( Cursor<Entry> cursor = adminSession.search( peopleDn, SearchScope.ONELEVEL,
+            filters[ThreadLocalRandom.current().nextInt( nbUsers )], AliasDerefMode.NEVER_DEREF_ALIASES,
+            SchemaConstants.ALL_USER_ATTRIBUTES ) )
+        {
+            while ( cursor.next() )
+            {
+                cursor.get();
+                nbEntries++;
+            }
+        }
+
+        return nbEntries;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.apache.mina.util.AvailablePortFinder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the bind and search operations end to end : they are sent by a client
+ * to an LdapServer over the loopback interface, through the whole interceptors chain.
+ * Each benchmark thread has its own connection. The searches are measured with and
+ * without access control, the ACIs letting all the users read the partition. The mixed group measures the latency
+ * of lookups sent while slow searches are running.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LdapServerBenchmark
+{
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    /** Tells if the requests of a session are run in order, on an elastic pool of threads */
+    @Param({ "false", "true" })
+    public boolean orderedRequestExecution;
+
+    /** Tells if the ACIs are evaluated : all the users can read the partition */
+    @Param({ "false", "true" })
+    public boolean accessControlEnabled;
+
+    private BenchmarkDirectory directory;
+    private LdapServer ldapServer;
+    private int port;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "ldap-server-benchmark", backend, accessControlEnabled );
+        directory.createExamplePartition( nbUsers );
+
+        if ( accessControlEnabled )
+        {
+            directory.addAllUsersReadAci();
+        }
+
+        port = AvailablePortFinder.getNextAvailable( 1024 );
+        ldapServer = new LdapServer();
+        ldapServer.setTransports( new TcpTransport( "localhost", port ) );
+        ldapServer.setDirectoryService( directory.getDirectoryService() );
+        ldapServer.setOrderedRequestExecution( orderedRequestExecution );
+        ldapServer.start();
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        ldapServer.stop();
+        directory.shutdown();
+    }
+
+
+    /**
+     * The connection of a benchmark thread, bound as a user.
+     */
+    @State(Scope.Thread)
+    public static class Client
+    {
+        private LdapNetworkConnection connection;
+
+
+        @Setup
+        public void connect( LdapServerBenchmark benchmark ) throws Exception
+        {
+            connection = new LdapNetworkConnection( "localhost", benchmark.port );
+            connection.bind( BenchmarkDirectory.getUserDn( 0 ), BenchmarkDirectory.PASSWORD );
+        }
+
+
+        @TearDown
+        public void disconnect() throws Exception
+        {
+            connection.unBind();
+            connection.close();
+        }
+    }
+
+
+    /**
+     * Binds as a random user on an opened connection.
+     */
+    @Benchmark
+    public void bind( Client client ) throws Exception
+    {
+        client.connection.bind( BenchmarkDirectory.getUserDn( ThreadLocalRandom.current().nextInt( nbUsers ) ),
+            BenchmarkDirectory.PASSWORD );
+    }
+
+
+    /**
+     * Searches a random user by its cn.
+     */
+    @Benchmark
+    public int search( Client client ) throws Exception
+    {
+        int nbEntries = 0;
+
+        try ( EntryCursor cursor = client.connection.search( BenchmarkDirectory.PEOPLE,
+            "(cn=User " + ThreadLocalRandom.current().nextInt( nbUsers ) + ")", SearchScope.ONELEVEL, "*" ) )
+        {
+            while ( cursor.next() )
+            {
+                cursor.get();
+                nbEntries++;
+            }
+        }
+
+        return nbEntries;
+    }
+
+
+    /**
+     * Reads a page of 100 users : the cost of each returned entry, and of its access
+     * control when the ACIs are enabled, dominates.
+     */
+    @Benchmark
+    public int searchPage( Client client ) throws Exception
+    {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setBase( new Dn( BenchmarkDirectory.PEOPLE ) );
+        searchRequest.setFilter( "(objectClass=*)" );
+        searchRequest.setScope( SearchScope.ONELEVEL );
+        searchRequest.addAttributes( "*" );
+        searchRequest.setSizeLimit( 100 );
+        int nbEntries = 0;
+
+        try ( SearchCursor cursor = client.connection.search( searchRequest ) )
+        {
+            while ( cursor.next() )
+            {
+                if ( cursor.isEntry() )
+                {
+                    cursor.getEntry();
+                    nbEntries++;
+                }
+            }
+        }
+
+        return nbEntries;
+    }
+
+
+    /**
+     * Looks up a random user, while other clients run slow searches : the latency of
+     * the lookups tells if the slow searches starve the other clients.
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Entry mixedLookup( Client client ) throws Exception
+    {
+        return client.connection.lookup( BenchmarkDirectory.getUserDn( ThreadLocalRandom.current().nextInt( nbUsers ) ) );
+    }
+
+
+    /**
+     * Reads all the users, as the slow part of the mixed workload.
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int mixedSlowSearch( Client client ) throws Exception
+    {
+        int nbEntries = 0;
+
+        try ( EntryCursor cursor = client.connection.search( BenchmarkDirectory.PEOPLE, "(objectClass=*)",
+            SearchScope.ONELEVEL, "*" ) )
+        {
+            while ( cursor.next() )
+            {
+                cursor.get();
+                nbEntries++;
+            }
+        }
+
+        return nbEntries;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the planning of a search by the {@link DefaultOptimizer}, which annotates
+ * the filter with the number of candidates of each node. The filters all have the same
+ * shape, so the plan cache can be compared to a planning done from scratch.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OptimizerBenchmark
+{
+    /** The number of filters prepared */
+    private static final int NB_FILTERS = 1000;
+
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    /** The plan cache size, 0 to disable it */
+    @Param({ "0", "1000" })
+    public int planCacheSize;
+
+    private BenchmarkDirectory directory;
+    private Partition partition;
+    private DefaultOptimizer optimizer;
+
+    /** The normalized filters */
+    private ExprNode[] filters;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "optimizer-benchmark", backend, false );
+        directory.createExamplePartition( nbUsers );
+
+        partition = directory.getPartition();
+        optimizer = new DefaultOptimizer( ( Store ) partition, planCacheSize );
+
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(
+            new ConcreteNameComponentNormalizer( directory.getSchemaManager() ), directory.getSchemaManager() );
+        filters = new ExprNode[NB_FILTERS];
+
+        for ( int i = 0; i < NB_FILTERS; i++ )
+        {
+            int user = i * nbUsers / NB_FILTERS;
+            ExprNode filter = FilterParser.parse( directory.getSchemaManager(),
+                "(&(objectClass=inetOrgPerson)(|(cn=User " + user + ")(uid=user" + user + "*))(sn=" + user + "))" );
+            filters[i] = ( ExprNode ) filter.accept( visitor );
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    /**
+     * Annotates a random filter.
+     */
+    @Benchmark
+    public Long annotate() throws Exception
+    {
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            return optimizer.annotate( txn, filters[ThreadLocalRandom.current().nextInt( NB_FILTERS )] );
+        }
+    }
+}
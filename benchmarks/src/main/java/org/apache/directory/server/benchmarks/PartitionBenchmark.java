@@ -0,0 +1,199 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the lookup, search and add operations of a partition, called directly,
+ * without going through the interceptors chain. The partition is loaded with
+ * {@link #nbUsers} users before the measurements.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PartitionBenchmark
+{
+    /** The number of filters prepared for the search benchmark */
+    private static final int NB_FILTERS = 1000;
+
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM, BenchmarkDirectory.MAVIBOT, BenchmarkDirectory.LMDB, BenchmarkDirectory.AVL })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    private BenchmarkDirectory directory;
+    private Partition partition;
+    private CoreSession session;
+    private Dn[] userDns;
+    private Dn peopleDn;
+
+    /** The normalized filters, as the partition receives them */
+    private ExprNode[] filters;
+
+    /** The number of the next user to add */
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "partition-benchmark", backend, false );
+        directory.createExamplePartition( nbUsers );
+
+        partition = directory.getPartition();
+        session = directory.getDirectoryService().getAdminSession();
+        userDns = directory.getUserDns();
+        peopleDn = new Dn( directory.getSchemaManager(), BenchmarkDirectory.PEOPLE );
+        nextUser.set( nbUsers );
+
+        // The filters are shared by the threads : the optimizer annotates them with the same counts
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(
+            new ConcreteNameComponentNormalizer( directory.getSchemaManager() ), directory.getSchemaManager() );
+        filters = new ExprNode[NB_FILTERS];
+
+        for ( int i = 0; i < NB_FILTERS; i++ )
+        {
+            ExprNode filter = FilterParser.parse( directory.getSchemaManager(), "(cn=User " + ( i * nbUsers / NB_FILTERS ) + ")" );
+            filters[i] = ( ExprNode ) filter.accept( visitor );
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        directory.shutdown();
+    }
+
+
+    /**
+     * Fetches a random user by its Dn.
+     */
+    @Benchmark
+    public Entry lookup() throws Exception
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( session,
+            userDns[ThreadLocalRandom.current().nextInt( userDns.length )] );
+        lookupContext.setPartition( partition );
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            lookupContext.setTransaction( txn );
+
+            return partition.lookup( lookupContext );
+        }
+    }
+
+
+    /**
+     * Searches a random user by its cn, which is indexed.
+     */
+    @Benchmark
+    public int search() throws Exception
+    {
+        SearchOperationContext searchContext = new SearchOperationContext( session, peopleDn,
+            SearchScope.ONELEVEL, filters[ThreadLocalRandom.current().nextInt( NB_FILTERS )],
+            SchemaConstants.ALL_USER_ATTRIBUTES );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+        searchContext.setPartition( partition );
+        int nbEntries = 0;
+
+        try ( PartitionTxn txn = partition.beginReadTransaction() )
+        {
+            searchContext.setTransaction( txn );
+
+            try ( EntryFilteringCursor cursor = partition.search( searchContext ) )
+            {
+                while ( cursor.next() )
+                {
+                    cursor.get();
+                    nbEntries++;
+                }
+            }
+        }
+
+        return nbEntries;
+    }
+
+
+    /**
+     * Adds a new user, in its own transaction.
+     */
+    @Benchmark
+    public void add() throws Exception
+    {
+        Entry entry = directory.createUser( nextUser.getAndIncrement() );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, directory.getDirectoryService().getCSN().toString() );
+
+        AddOperationContext addContext = new AddOperationContext( session, entry );
+        addContext.setPartition( partition );
+
+        try ( PartitionTxn txn = partition.beginWriteTransaction() )
+        {
+            addContext.setTransaction( txn );
+            partition.add( addContext );
+            txn.commit();
+        }
+    }
+}
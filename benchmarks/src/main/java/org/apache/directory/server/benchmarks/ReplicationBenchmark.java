@@ -0,0 +1,306 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.benchmarks;
+
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.extras.controls.SynchronizationModeEnum;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRequestValue;
+import org.apache.directory.api.ldap.extras.controls.syncrepl.syncRequest.SyncRequestValueImpl;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.apache.directory.ldap.client.api.future.SearchFuture;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.replication.ReplicaStreamEncoder;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.apache.mina.util.AvailablePortFinder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the replication of the modifications from a provider to a consumer, over
+ * the loopback interface. A modification is done on the provider, and the benchmark waits
+ * for the consumer to receive it. The consumer is a refreshAndPersist SyncRepl search,
+ * which changes are counted but not applied.
+ * <p>
+ * The changes are either sent as SearchResultEntries (plain), compressed, or compressed
+ * with only the modified attributes (delta). The bytes written by the provider to the
+ * consumer are reported in the bytesOnWire counter, to be divided by the modifications
+ * counter.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReplicationBenchmark
+{
+    /** The changes sent as SearchResultEntries */
+    public static final String PLAIN = "plain";
+
+    /** The changes compressed */
+    public static final String COMPRESSED = "compressed";
+
+    /** The changes compressed, with the modified attributes only */
+    public static final String DELTA = "delta";
+
+    /** The backend storing the partition */
+    @Param({ BenchmarkDirectory.JDBM })
+    public String backend;
+
+    /** The number of users in the partition */
+    @Param({ "10000" })
+    public int nbUsers;
+
+    /** How the changes are sent to the consumer */
+    @Param({ PLAIN, COMPRESSED, DELTA })
+    public String stream;
+
+    private BenchmarkDirectory directory;
+    private LdapServer ldapServer;
+    private CoreSession adminSession;
+    private Dn[] userDns;
+
+    /** The consumer connection */
+    private LdapNetworkConnection connection;
+
+    /** The thread reading the changes received by the consumer */
+    private Thread reader;
+
+    /** Released each time the consumer receives a change */
+    private final Semaphore received = new Semaphore( 0 );
+
+    /** Released when the initial content has been received */
+    private final Semaphore refreshed = new Semaphore( 0 );
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        directory = new BenchmarkDirectory( "replication-benchmark-" + stream, backend, false );
+        directory.createExamplePartition( nbUsers );
+        adminSession = directory.getDirectoryService().getAdminSession();
+        userDns = directory.getUserDns();
+
+        int port = AvailablePortFinder.getNextAvailable( 1024 );
+        ldapServer = new LdapServer();
+        ldapServer.setTransports( new TcpTransport( "localhost", port ) );
+        ldapServer.setDirectoryService( directory.getDirectoryService() );
+        ldapServer.setReplicationReqHandler( new SyncReplRequestHandler() );
+        ldapServer.start();
+
+        connection = new LdapNetworkConnection( "localhost", port );
+        connection.setTimeOut( 0L );
+        connection.bind( ServerDNConstants.ADMIN_SYSTEM_DN, "secret" );
+
+        SearchFuture searchFuture = connection.searchAsync( createSyncRequest() );
+
+        reader = new Thread( () -> readChanges( searchFuture ), "replication-benchmark-consumer" );
+        reader.setDaemon( true );
+        reader.start();
+
+        // The whole content is sent first
+        refreshed.acquire();
+        received.drainPermits();
+    }
+
+
+    /**
+     * Creates the refreshAndPersist search of the consumer, asking for the compact
+     * stream if needed
+     */
+    private SearchRequest createSyncRequest() throws Exception
+    {
+        SearchRequest request = new SearchRequestImpl();
+        request.setBase( new Dn( BenchmarkDirectory.SUFFIX ) );
+        request.setFilter( "(objectClass=*)" );
+        request.setScope( SearchScope.SUBTREE );
+        request.addAttributes( "*", "+" );
+
+        SyncRequestValue syncRequest = new SyncRequestValueImpl();
+        syncRequest.setMode( SynchronizationModeEnum.REFRESH_AND_PERSIST );
+        request.addControl( syncRequest );
+
+        int flags = 0;
+
+        if ( COMPRESSED.equals( stream ) )
+        {
+            flags = ReplicaStreamEncoder.COMPRESS;
+        }
+        else if ( DELTA.equals( stream ) )
+        {
+            flags = ReplicaStreamEncoder.COMPRESS | ReplicaStreamEncoder.DELTA;
+        }
+
+        if ( flags != 0 )
+        {
+            OpaqueControl streamControl = new OpaqueControl( ReplicaStreamEncoder.CONTROL_OID );
+            streamControl.setEncodedValue( new byte[]
+                { ( byte ) flags } );
+            request.addControl( streamControl );
+        }
+
+        return request;
+    }
+
+
+    /**
+     * Counts the changes received by the consumer, until the search ends
+     */
+    private void readChanges( SearchFuture searchFuture )
+    {
+        try
+        {
+            Response response = searchFuture.get();
+
+            while ( ( response != null ) && !( response instanceof SearchResultDone ) )
+            {
+                if ( response instanceof SearchResultEntry )
+                {
+                    received.release();
+                }
+                else if ( response instanceof IntermediateResponse )
+                {
+                    if ( ReplicaStreamEncoder.RESPONSE_OID.equals(
+                        ( ( IntermediateResponse ) response ).getResponseName() ) )
+                    {
+                        received.release();
+                    }
+                    else
+                    {
+                        // The new cookie, sent after the initial content
+                        refreshed.release();
+                    }
+                }
+
+                response = searchFuture.get();
+            }
+        }
+        catch ( Exception e )
+        {
+            // The connection has been closed
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        connection.close();
+        reader.join( 10000L );
+        ldapServer.stop();
+        directory.shutdown();
+    }
+
+
+    /**
+     * The bytes sent to the consumer during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireCounters
+    {
+        /** The bytes written by the provider */
+        public long bytesOnWire;
+
+        /** The replicated modifications */
+        public long modifications;
+
+        /** The bytes written by the provider before the iteration */
+        private long start;
+
+
+        @Setup(Level.Iteration)
+        public void reset( ReplicationBenchmark benchmark )
+        {
+            start = benchmark.getWrittenBytes();
+            bytesOnWire = 0L;
+            modifications = 0L;
+        }
+    }
+
+
+    /**
+     * @return The bytes written by the LdapServer since it has been started
+     */
+    private long getWrittenBytes()
+    {
+        long writtenBytes = 0L;
+
+        for ( LdapSession session : ldapServer.getLdapSessionManager().getSessions() )
+        {
+            writtenBytes += session.getIoSession().getWrittenBytes();
+        }
+
+        return writtenBytes;
+    }
+
+
+    /**
+     * Modifies the description of a random user on the provider, and waits for the consumer
+     * to receive the change.
+     */
+    @Benchmark
+    public void replicateModify( WireCounters counters ) throws Exception
+    {
+        int number = ThreadLocalRandom.current().nextInt( nbUsers );
+
+        adminSession.modify( userDns[number], new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            "description", "Description " + System.nanoTime() ) );
+
+        received.acquire();
+
+        counters.modifications++;
+        counters.bytesOnWire = getWrittenBytes() - counters.start;
+    }
+}
@@ -792,6 +792,24 @@ public interface CoreSession
     Cursor<Entry> search( SearchRequest searchRequest ) throws LdapException;
 
 
+    /**
+     * Searches the directory, returning the entries in the order of their ID, after
+     * a given one. The search can then be resumed by a later call, after the last
+     * entry it has returned, without keeping its cursor opened in between.
+     * <p>
+     * The search can't be resumed when it uses the server side sort control, when
+     * its base is the RootDSE, or when the partition can't order the entries by ID :
+     * null is then returned.
+     *
+     * @param searchRequest The search request
+     * @param resumeAfter The entryUUID of the last entry returned by the previous call,
+     * null for the first one
+     * @return A cursor to browse the search results, or null if the search can't be resumed
+     * @throws LdapException If the search failed
+     */
+    Cursor<Entry> resumableSearch( SearchRequest searchRequest, String resumeAfter ) throws LdapException;
+
+
     /**
      * Unbind from the current LdapSession.
      * 
@@ -341,7 +341,9 @@ public interface DirectoryService extends ServerEntryFactory
 
 
     /**
-     * Returns interceptors in the server.
+     * Returns interceptors in the server. The returned list is an immutable snapshot,
+     * which is replaced, not updated, when an interceptor is added or removed : it has
+     * to be copied before being modified.
      *
      * @param operation The operation that the interceptors must implement
      * @return the interceptors in the server.
@@ -530,6 +532,22 @@ public interface DirectoryService extends ServerEntryFactory
     void setMaxPDUSize( int maxPDUSize );
 
 
+    /**
+     * @return The memory a sorted search can use to sort its entries, in bytes. The
+     * entries are sorted on disk beyond it
+     */
+    long getSortMemoryBudget();
+
+
+    /**
+     * Set the memory a sorted search can use to sort its entries.
+     * @param sortMemoryBudget A positive number of bytes. A negative or
+     * null value will be transformed to {@link Long#MAX_VALUE} : the entries are
+     * always sorted in memory
+     */
+    void setSortMemoryBudget( long sortMemoryBudget );
+
+
     /**
      * Get an Interceptor instance from its name
      * @param interceptorName The interceptor's name for which we want the instance
@@ -655,4 +673,20 @@ public interface DirectoryService extends ServerEntryFactory
      * @param timeProvider the time provider
      */
     void setTimeProvider( TimeProvider timeProvider );
+
+
+    /**
+     * @return The executor hashing and checking the passwords, null if they are hashed by
+     * the threads running the operations
+     */
+    PasswordHashingExecutor getPasswordHashingExecutor();
+
+
+    /**
+     * Sets the executor hashing and checking the passwords. They are hashed by the threads
+     * running the operations by default.
+     *
+     * @param passwordHashingExecutor The executor, or null
+     */
+    void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor );
 }
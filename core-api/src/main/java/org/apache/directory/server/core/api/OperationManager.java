@@ -38,6 +38,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
 
 
 /**
@@ -198,4 +199,17 @@ public interface OperationManager
      * @return the OperationManager R/W lock
      */
     ReadWriteLock getRWLock();
+
+
+    /**
+     * Gets the lock protecting a partition against concurrent operations. The writes on
+     * distinct partitions don't exclude each other, they only exclude the operations on
+     * the same partition. The lock is a
+     * {@link org.apache.directory.server.core.api.partition.PartitionReadWriteLock}, which nested
+     * acquisitions are done in the order of the partition suffixes.
+     *
+     * @param partition The partition
+     * @return the partition R/W lock
+     */
+    ReadWriteLock getRWLock( Partition partition );
 }
@@ -0,0 +1,473 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api;
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs the passwords hashing and verification, which use costly functions (PKCS5S2,
+ * crypt, bcrypt...), on a pool of threads of their own. The number of threads bounds
+ * the CPU used to hash the passwords, so that a storm of binds with bad passwords can't
+ * starve the other requests : with N threads, at most N cores are hashing passwords.
+ * <p>
+ * The tasks wait for a thread in a bounded queue. When it's full, the tasks are
+ * rejected with a busy error instead of piling up. A task submitted by a thread of
+ * the pool is run immediately : a whole operation can then be run on the pool, and
+ * hash the passwords on the way without waiting for another thread.
+ * <p>
+ * The threads are created when needed and stopped when idle, so an instance which
+ * isn't used anymore doesn't have to be shut down.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordHashingExecutor
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordHashingExecutor.class );
+
+    /** The default number of tasks waiting for a thread */
+    public static final int DEFAULT_MAX_QUEUED_TASKS = 1000;
+
+    /** How long an idle thread is kept, in seconds */
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    /** The executor the current thread belongs to, if any */
+    private static final ThreadLocal<PasswordHashingExecutor> CURRENT = new ThreadLocal<>();
+
+    /** The threads hashing the passwords */
+    private final ThreadPoolExecutor pool;
+
+    /** The number of tasks waiting for a thread */
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+
+    /** The number of tasks being run */
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    /** The number of tasks done */
+    private final AtomicLong completedTasks = new AtomicLong();
+
+    /** The number of tasks rejected because the queue was full */
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    /** The time the done tasks have waited for a thread, in nanoseconds */
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    /** The longest time a task has waited for a thread, in nanoseconds */
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /** The time spent running the done tasks, in nanoseconds */
+    private final AtomicLong totalRunTime = new AtomicLong();
+
+
+    /**
+     * Creates a new instance of PasswordHashingExecutor, with one thread per core
+     * but one, and {@link #DEFAULT_MAX_QUEUED_TASKS} waiting tasks.
+     */
+    public PasswordHashingExecutor()
+    {
+        this( "password-hashing", Runtime.getRuntime().availableProcessors() - 1, DEFAULT_MAX_QUEUED_TASKS );
+    }
+
+
+    /**
+     * Creates a new instance of PasswordHashingExecutor.
+     *
+     * @param name The prefix of the threads name
+     * @param nbThreads The number of threads, which is the number of cores the hashing can use
+     * @param maxQueuedTasks The number of tasks which can wait for a thread
+     */
+    public PasswordHashingExecutor( final String name, int nbThreads, int maxQueuedTasks )
+    {
+        int maxThreads = Math.max( 1, nbThreads );
+
+        pool = new ThreadPoolExecutor( maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>( Math.max( 1, maxQueuedTasks ) ), new ThreadFactory()
+            {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+
+                @Override
+                public Thread newThread( final Runnable runnable )
+                {
+                    Thread thread = new Thread( new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            CURRENT.set( PasswordHashingExecutor.this );
+                            runnable.run();
+                        }
+                    }, name + "-" + threadNumber.incrementAndGet() );
+
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+        // The threads are only created when needed, and stopped when idle
+        pool.allowCoreThreadTimeOut( true );
+    }
+
+
+    /**
+     * Runs a task on the pool, and waits for its result. The task is run immediately
+     * if the current thread belongs to the pool.
+     *
+     * @param task The task to run
+     * @return The task result
+     * @throws LdapException If the task has failed, or has been rejected because the
+     * queue is full
+     */
+    public <T> T call( Callable<T> task ) throws LdapException
+    {
+        if ( isPoolThread() )
+        {
+            return run( task );
+        }
+
+        TimedTask<T> timedTask = new TimedTask<>( task );
+        Future<T> future;
+
+        try
+        {
+            future = pool.submit( timedTask );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            queuedTasks.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+
+            throw new LdapServiceUnavailableException( ResultCodeEnum.BUSY,
+                "Too many passwords are being hashed, try again later" );
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            future.cancel( false );
+
+            // The task won't be run if it was still waiting : it doesn't need its place in the queue
+            if ( timedTask.dequeue() )
+            {
+                pool.remove( ( Runnable ) future );
+            }
+
+            throw new LdapOtherException( ie.getMessage(), ie );
+        }
+        catch ( ExecutionException ee )
+        {
+            Throwable cause = ee.getCause();
+
+            if ( cause instanceof LdapException )
+            {
+                throw ( LdapException ) cause;
+            }
+            else if ( cause instanceof RuntimeException )
+            {
+                throw ( RuntimeException ) cause;
+            }
+            else if ( cause instanceof Error )
+            {
+                throw ( Error ) cause;
+            }
+
+            throw new LdapOtherException( cause.getMessage(), cause );
+        }
+    }
+
+
+    /**
+     * Runs a task on the pool, without waiting for it. The task is not run if the
+     * queue is full.
+     *
+     * @param task The task to run
+     * @return <tt>false</tt> if the task has been rejected
+     */
+    public boolean execute( final Runnable task )
+    {
+        final TimedTask<Void> timedTask = new TimedTask<>( new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                task.run();
+
+                return null;
+            }
+        } );
+
+        try
+        {
+            pool.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        timedTask.call();
+                    }
+                    catch ( Exception e )
+                    {
+                        LOG.error( "The task {} has failed", task, e );
+                    }
+                }
+            } );
+
+            return true;
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            queuedTasks.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Runs a task on the current thread
+     */
+    private <T> T run( Callable<T> task ) throws LdapException
+    {
+        try
+        {
+            return task.call();
+        }
+        catch ( LdapException | RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * @return <tt>true</tt> if the current thread belongs to this pool
+     */
+    public boolean isPoolThread()
+    {
+        return CURRENT.get() == this;
+    }
+
+
+    /**
+     * @return The number of tasks waiting for a thread
+     */
+    public int getQueuedTasks()
+    {
+        return queuedTasks.get();
+    }
+
+
+    /**
+     * @return The number of tasks being run
+     */
+    public int getActiveTasks()
+    {
+        return activeTasks.get();
+    }
+
+
+    /**
+     * @return The number of tasks done
+     */
+    public long getCompletedTasks()
+    {
+        return completedTasks.get();
+    }
+
+
+    /**
+     * @return The number of tasks rejected because the queue was full
+     */
+    public long getRejectedTasks()
+    {
+        return rejectedTasks.get();
+    }
+
+
+    /**
+     * @return The mean time the done tasks have waited for a thread, in nanoseconds
+     */
+    public long getMeanWaitTime()
+    {
+        long completed = completedTasks.get();
+
+        return ( completed == 0L ) ? 0L : totalWaitTime.get() / completed;
+    }
+
+
+    /**
+     * @return The longest time a task has waited for a thread, in nanoseconds
+     */
+    public long getMaxWaitTime()
+    {
+        return maxWaitTime.get();
+    }
+
+
+    /**
+     * @return The mean time spent running the done tasks, in nanoseconds
+     */
+    public long getMeanRunTime()
+    {
+        long completed = completedTasks.get();
+
+        return ( completed == 0L ) ? 0L : totalRunTime.get() / completed;
+    }
+
+
+    /**
+     * @return The number of threads of the pool
+     */
+    public int getNbThreads()
+    {
+        return pool.getMaximumPoolSize();
+    }
+
+
+    /**
+     * Stops the threads once the running and queued tasks are done. The new tasks are
+     * rejected.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+
+    /**
+     * Waits for the threads to be stopped, after a shutdown.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return <tt>true</tt> if the threads are stopped, <tt>false</tt> if the timeout has elapsed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        return pool.awaitTermination( timeout, unit );
+    }
+
+
+    /**
+     * A task which measures how long it waits for a thread, and how long it runs.
+     */
+    private final class TimedTask<T> implements Callable<T>
+    {
+        /** The task to run */
+        private final Callable<T> task;
+
+        /** When the task has been submitted */
+        private final long submitted = System.nanoTime();
+
+        /** Tells if the task has left the queue, either to run or because it's cancelled */
+        private final AtomicBoolean dequeued = new AtomicBoolean();
+
+
+        private TimedTask( Callable<T> task )
+        {
+            this.task = task;
+            queuedTasks.incrementAndGet();
+        }
+
+
+        /**
+         * Removes the task from the waiting tasks count, only once.
+         *
+         * @return <tt>true</tt> if the task was still counted as waiting
+         */
+        private boolean dequeue()
+        {
+            if ( dequeued.compareAndSet( false, true ) )
+            {
+                queuedTasks.decrementAndGet();
+
+                return true;
+            }
+
+            return false;
+        }
+
+
+        @Override
+        public T call() throws Exception
+        {
+            long started = System.nanoTime();
+            long waited = started - submitted;
+
+            dequeue();
+            activeTasks.incrementAndGet();
+            totalWaitTime.addAndGet( waited );
+            maxWaitTime.accumulateAndGet( waited, Math::max );
+
+            try
+            {
+                return task.call();
+            }
+            finally
+            {
+                activeTasks.decrementAndGet();
+                totalRunTime.addAndGet( System.nanoTime() - started );
+                completedTasks.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "PasswordHashingExecutor [active: " + activeTasks.get() + ", queued: " + queuedTasks.get()
+            + ", rejected: " + rejectedTasks.get() + ", threads: " + pool.getPoolSize() + "]";
+    }
+}
@@ -305,6 +305,23 @@ public abstract class BaseInterceptor implements Interceptor
      */
     protected Interceptor getNextInterceptor( OperationContext operationContext )
     {
+        InterceptorChain interceptorChain = operationContext.getInterceptorChain();
+
+        if ( interceptorChain != null )
+        {
+            // The chain is compiled : no need to lookup the interceptor by its name
+            int position = operationContext.getCurrentInterceptor();
+
+            if ( position == interceptorChain.size() )
+            {
+                return finalInterceptor;
+            }
+
+            operationContext.setCurrentInterceptor( position + 1 );
+
+            return interceptorChain.getInterceptor( position );
+        }
+
         String currentInterceptor = operationContext.getNextInterceptor();
 
         if ( currentInterceptor.equals( "FINAL" ) )
@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.api.interceptor;
+
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+/**
+ * The immutable list of the interceptors to call for an operation. It is a list of
+ * the interceptors names, which also holds the interceptors themselves, so that the
+ * next interceptor is found by its position, without any lookup by name.
+ * <p>
+ * The DirectoryService compiles a chain for each operation, and replaces it when an
+ * interceptor is added or removed. An operation which has started with a chain keeps
+ * using it until its end.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class InterceptorChain extends AbstractList<String> implements RandomAccess
+{
+    /** The interceptors names */
+    private final String[] names;
+
+    /** The interceptors, in the same order */
+    private final Interceptor[] interceptors;
+
+
+    /**
+     * Creates a new instance of InterceptorChain.
+     *
+     * @param interceptors The interceptors to call, in order
+     */
+    public InterceptorChain( List<Interceptor> interceptors )
+    {
+        this.interceptors = interceptors.toArray( new Interceptor[0] );
+        names = new String[this.interceptors.length];
+
+        for ( int i = 0; i < names.length; i++ )
+        {
+            names[i] = this.interceptors[i].getName();
+        }
+    }
+
+
+    /**
+     * Gets the interceptor at a given position in the chain.
+     *
+     * @param position The position of the interceptor
+     * @return The interceptor
+     */
+    public Interceptor getInterceptor( int position )
+    {
+        return interceptors[position];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String get( int position )
+    {
+        return names[position];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return names.length;
+    }
+}
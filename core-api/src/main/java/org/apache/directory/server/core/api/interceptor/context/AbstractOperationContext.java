@@ -31,6 +31,7 @@ import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.interceptor.InterceptorChain;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 
@@ -66,6 +67,9 @@ public abstract class AbstractOperationContext implements OperationContext
     /** The interceptors to call for this operation */
     protected List<String> interceptors;
 
+    /** The interceptors to call for this operation, if they have been compiled in a chain */
+    protected InterceptorChain interceptorChain;
+
     /** The current interceptor position */
     protected int currentInterceptor;
 
@@ -315,6 +319,25 @@ public abstract class AbstractOperationContext implements OperationContext
     public final void setInterceptors( List<String> interceptors )
     {
         this.interceptors = interceptors;
+
+        if ( interceptors instanceof InterceptorChain )
+        {
+            interceptorChain = ( InterceptorChain ) interceptors;
+        }
+        else
+        {
+            interceptorChain = null;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final InterceptorChain getInterceptorChain()
+    {
+        return interceptorChain;
     }
 
 
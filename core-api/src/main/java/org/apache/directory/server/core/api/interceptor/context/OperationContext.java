@@ -29,6 +29,7 @@ import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.interceptor.InterceptorChain;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 
@@ -233,6 +234,13 @@ public interface OperationContext
     void setInterceptors( List<String> interceptors );
 
 
+    /**
+     * @return The compiled chain of interceptors to go through for this operation, or null
+     * if the interceptors have been given as a plain list of names
+     */
+    InterceptorChain getInterceptorChain();
+
+
     /**
      * Gets the session associated with this operation.
      *
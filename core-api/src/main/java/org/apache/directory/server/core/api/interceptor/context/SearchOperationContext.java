@@ -65,7 +65,19 @@ public class SearchOperationContext extends FilteringOperationContext
 
     /** flag to indicate if this search is done for replication */
     private boolean syncreplSearch;
-    
+
+    /** flag set by the partition when the entries are returned in the order of the sort control */
+    private boolean sorted;
+
+    /** flag to indicate the entries have to be returned in the order of their entryUUID */
+    private boolean resumable;
+
+    /** The entryUUID of the last entry returned by a previous page of a resumable search */
+    private String resumeAfter;
+
+    /** flag set by the partition when the entries are returned in the order of their entryUUID */
+    private boolean idOrdered;
+
     /**
      * Creates a new instance of SearchOperationContext.
      * 
@@ -221,6 +233,95 @@ public class SearchOperationContext extends FilteringOperationContext
     }
 
 
+    /**
+     * @return true if the entries are already returned in the order requested by the
+     * server side sort control, and don't have to be sorted again
+     */
+    public boolean isSorted()
+    {
+        return sorted;
+    }
+
+
+    /**
+     * Sets the flag to indicate if the entries are returned in the order requested by
+     * the server side sort control. It's set by the partition when it reads the
+     * candidates from an index on the sort key.
+     * 
+     * @param sorted The flag indicating the entries are sorted
+     */
+    public void setSorted( boolean sorted )
+    {
+        this.sorted = sorted;
+    }
+
+
+    /**
+     * @return true if the entries have to be returned in the order of their entryUUID,
+     * so that the search can be resumed after a given entry
+     */
+    public boolean isResumable()
+    {
+        return resumable;
+    }
+
+
+    /**
+     * Sets the flag to indicate the entries have to be returned in the order of their
+     * entryUUID, so that the search can be resumed after a given entry by a later request.
+     * 
+     * @param resumable The flag indicating the search is resumable
+     */
+    public void setResumable( boolean resumable )
+    {
+        this.resumable = resumable;
+    }
+
+
+    /**
+     * @return The entryUUID of the entry the search is resumed after, null if the search
+     * starts from the first entry
+     */
+    public String getResumeAfter()
+    {
+        return resumeAfter;
+    }
+
+
+    /**
+     * Sets the entryUUID of the last entry returned by a previous page of a resumable
+     * search : only the entries after it will be returned.
+     * 
+     * @param resumeAfter The entryUUID of the entry to resume the search after
+     */
+    public void setResumeAfter( String resumeAfter )
+    {
+        this.resumeAfter = resumeAfter;
+    }
+
+
+    /**
+     * @return true if the entries are returned in the order of their entryUUID, starting
+     * after the requested one
+     */
+    public boolean isIdOrdered()
+    {
+        return idOrdered;
+    }
+
+
+    /**
+     * Sets the flag to indicate the entries are returned in the order of their entryUUID.
+     * It's set by the partition when it honors a resumable search.
+     * 
+     * @param idOrdered The flag indicating the entries are ordered by entryUUID
+     */
+    public void setIdOrdered( boolean idOrdered )
+    {
+        this.idOrdered = idOrdered;
+    }
+
+
     /**
      * @return The alias dereferencing mode
      */
@@ -318,4 +318,15 @@ public abstract class AbstractPartition implements Partition
     {
         // Do nothing by default
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSnapshotReadSupported()
+    {
+        // The reads have to be protected by a lock by default
+        return false;
+    }
 }
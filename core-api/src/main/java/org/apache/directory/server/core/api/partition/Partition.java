@@ -336,4 +336,14 @@ public interface Partition
      * @throws LdapException If we had an issue while processing the request
      */
     Subordinates getSubordinates( PartitionTxn partitionTxn, Entry entry ) throws LdapException;
+
+
+    /**
+     * Tells if the read transactions of this partition see a stable snapshot of the data.
+     * When they do, the reads don't have to be protected from the concurrent writes by
+     * a lock, only the writes have to be serialized.
+     *
+     * @return <code>true</code> if the reads are snapshot isolated
+     */
+    boolean isSnapshotReadSupported();
 }
@@ -0,0 +1,162 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.api.partition;
+
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * The lock protecting a partition against concurrent operations. An operation holding
+ * the lock of a partition may have to read or update another one, like an interceptor
+ * reading the system partition while an entry is added. To avoid deadlocks, these
+ * nested locks are taken in the order of the partition suffixes :
+ * <ul>
+ *   <li>a thread holding no lock, or only locks which come before this one, waits for it</li>
+ *   <li>a thread holding a lock which comes after this one only waits for it for a bounded
+ *   time, then fails with a {@link PartitionLockException}. The operation releases its
+ *   locks, and can be retried</li>
+ * </ul>
+ * The partitions never read or write without the lock : the reads of the JDBM and Mavibot
+ * backends are not safe while they are written.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PartitionReadWriteLock extends ReentrantReadWriteLock
+{
+    /** The serial version UUID */
+    private static final long serialVersionUID = 1L;
+
+    /** The key of the lock, the normalized suffix of its partition */
+    private final String key;
+
+    /** The locks of all the partitions, to know the ones held by the current thread */
+    private final transient Collection<PartitionReadWriteLock> locks;
+
+    /** How long a lock taken out of order is waited for, in milliseconds */
+    private final long timeoutMillis;
+
+
+    /**
+     * Creates a new instance of PartitionReadWriteLock.
+     *
+     * @param key The normalized suffix of the partition
+     * @param locks The locks of all the partitions, this one included
+     * @param timeoutMillis How long a lock taken out of order is waited for, in milliseconds
+     */
+    public PartitionReadWriteLock( String key, Collection<PartitionReadWriteLock> locks, long timeoutMillis )
+    {
+        super( true );
+        this.key = key;
+        this.locks = locks;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+
+    /**
+     * @return The key of the lock, the normalized suffix of its partition
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+
+    /**
+     * Acquires the read lock, in the order of the partition suffixes.
+     *
+     * @throws PartitionLockException If the lock comes before a lock held by the current
+     * thread, and is not released in time
+     */
+    public void lockRead() throws PartitionLockException
+    {
+        acquire( readLock() );
+    }
+
+
+    /**
+     * Acquires the write lock, in the order of the partition suffixes.
+     *
+     * @throws PartitionLockException If the lock comes before a lock held by the current
+     * thread, and is not released in time
+     */
+    public void lockWrite() throws PartitionLockException
+    {
+        acquire( writeLock() );
+    }
+
+
+    /**
+     * @return <code>true</code> if the current thread holds the read or the write lock
+     */
+    public boolean isHeldByCurrentThread()
+    {
+        return isWriteLockedByCurrentThread() || ( getReadHoldCount() > 0 );
+    }
+
+
+    /**
+     * Acquires a lock, waiting for it only if it can't deadlock
+     */
+    private void acquire( Lock lock ) throws PartitionLockException
+    {
+        if ( isHeldByCurrentThread() || isInLockOrder() )
+        {
+            lock.lock();
+
+            return;
+        }
+
+        try
+        {
+            if ( lock.tryLock( timeoutMillis, TimeUnit.MILLISECONDS ) )
+            {
+                return;
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        throw new PartitionLockException( "The partition " + key
+            + " is locked by another operation, while this one holds the lock of another partition" );
+    }
+
+
+    /**
+     * Tells if the locks held by the current thread all come before this one
+     */
+    private boolean isInLockOrder()
+    {
+        for ( PartitionReadWriteLock lock : locks )
+        {
+            if ( ( lock != this ) && ( lock.key.compareTo( key ) > 0 ) && lock.isHeldByCurrentThread() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -942,6 +942,16 @@ public class MockCoreSession implements CoreSession
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Entry> resumableSearch( SearchRequest searchRequest, String resumeAfter ) throws LdapException
+    {
+        return null;
+    }
+
+
     public void unbind() throws LdapException
     {
         OperationManager operationManager = directoryService.getOperationManager();
@@ -438,6 +438,18 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    public long getSortMemoryBudget()
+    {
+        return Long.MAX_VALUE;
+    }
+
+
+    public void setSortMemoryBudget( long sortMemoryBudget )
+    {
+        // Do nothing
+    }
+
+
     public Interceptor getInterceptor( String interceptorName )
     {
         return null;
@@ -636,4 +648,17 @@ public class MockDirectoryService implements DirectoryService
     {
         // TODO Auto-generated method stub
     }
+
+
+    @Override
+    public PasswordHashingExecutor getPasswordHashingExecutor()
+    {
+        return null;
+    }
+
+
+    @Override
+    public void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor )
+    {
+    }
 }
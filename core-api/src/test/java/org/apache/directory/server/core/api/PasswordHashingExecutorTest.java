@@ -0,0 +1,289 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
+ */
+package org.apache.directory.server.core.api;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the PasswordHashingExecutor.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordHashingExecutorTest
+{
+    /** An executor with one thread, and one waiting task */
+    private PasswordHashingExecutor executor;
+
+
+    @BeforeEach
+    public void createExecutor()
+    {
+        executor = new PasswordHashingExecutor( "test-hashing", 1, 1 );
+    }
+
+
+    @AfterEach
+    public void shutdownExecutor()
+    {
+        executor.shutdown();
+    }
+
+
+    /**
+     * A task blocking the thread of the pool until it's released
+     */
+    private Runnable block( final CountDownLatch started, final CountDownLatch released )
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+
+                try
+                {
+                    released.await();
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+
+    @Test
+    public void testCall() throws Exception
+    {
+        final Thread caller = Thread.currentThread();
+
+        String result = executor.call( new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                return ( Thread.currentThread() != caller ) && executor.isPoolThread() ? "pool" : "caller";
+            }
+        } );
+
+        assertEquals( "pool", result );
+        assertFalse( executor.isPoolThread() );
+        assertEquals( 1L, executor.getCompletedTasks() );
+        assertEquals( 0, executor.getQueuedTasks() );
+        assertEquals( 0, executor.getActiveTasks() );
+    }
+
+
+    @Test
+    public void testNestedCallRunsOnTheSameThread() throws Exception
+    {
+        // With a single thread, the nested call would wait forever if it was queued
+        Integer result = executor.call( new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws LdapException
+            {
+                return executor.call( new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call()
+                    {
+                        return 42;
+                    }
+                } );
+            }
+        } );
+
+        assertEquals( 42, result.intValue() );
+        assertEquals( 1L, executor.getCompletedTasks() );
+    }
+
+
+    @Test
+    public void testExceptions() throws Exception
+    {
+        try
+        {
+            executor.call( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws LdapException
+                {
+                    throw new LdapOtherException( "failed" );
+                }
+            } );
+
+            fail();
+        }
+        catch ( LdapOtherException loe )
+        {
+            assertEquals( "failed", loe.getMessage() );
+        }
+
+        try
+        {
+            executor.call( new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    throw new IllegalStateException( "failed" );
+                }
+            } );
+
+            fail();
+        }
+        catch ( IllegalStateException ise )
+        {
+            assertEquals( "failed", ise.getMessage() );
+        }
+    }
+
+
+    @Test
+    public void testRejectedWhenQueueIsFull() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch released = new CountDownLatch( 1 );
+        final CountDownLatch queuedDone = new CountDownLatch( 1 );
+
+        // The thread is busy, and the queue is then full
+        assertTrue( executor.execute( block( started, released ) ) );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+        assertTrue( executor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queuedDone.countDown();
+            }
+        } ) );
+
+        assertEquals( 1, executor.getActiveTasks() );
+        assertEquals( 1, executor.getQueuedTasks() );
+
+        assertFalse( executor.execute( block( started, released ) ) );
+
+        try
+        {
+            executor.call( new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    return null;
+                }
+            } );
+
+            fail();
+        }
+        catch ( LdapServiceUnavailableException lsue )
+        {
+            assertEquals( ResultCodeEnum.BUSY, lsue.getResultCode() );
+        }
+
+        assertEquals( 2L, executor.getRejectedTasks() );
+
+        released.countDown();
+        assertTrue( queuedDone.await( 10, TimeUnit.SECONDS ) );
+        executor.shutdown();
+        assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+
+        assertEquals( 2L, executor.getCompletedTasks() );
+        assertEquals( 0, executor.getQueuedTasks() );
+        assertTrue( executor.getMaxWaitTime() > 0L );
+    }
+
+
+    @Test
+    public void testInterruptedCallLeavesTheQueue() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch released = new CountDownLatch( 1 );
+        final CountDownLatch failed = new CountDownLatch( 1 );
+
+        // The thread is busy : the next task waits in the queue
+        assertTrue( executor.execute( block( started, released ) ) );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        Thread caller = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    executor.call( new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            return null;
+                        }
+                    } );
+                }
+                catch ( LdapException le )
+                {
+                    failed.countDown();
+                }
+            }
+        } );
+
+        caller.start();
+
+        while ( executor.getQueuedTasks() == 0 )
+        {
+            Thread.sleep( 10L );
+        }
+
+        caller.interrupt();
+        assertTrue( failed.await( 10, TimeUnit.SECONDS ) );
+
+        // The cancelled task doesn't wait anymore, and leaves room for another one
+        assertEquals( 0, executor.getQueuedTasks() );
+        assertTrue( executor.execute( block( started, released ) ) );
+
+        released.countDown();
+        executor.shutdown();
+        assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+
+        assertEquals( 0, executor.getQueuedTasks() );
+        assertEquals( 2L, executor.getCompletedTasks() );
+    }
+}
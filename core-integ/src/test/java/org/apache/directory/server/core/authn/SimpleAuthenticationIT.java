@@ -29,12 +29,15 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 import java.util.Objects;
 
+import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.message.ModifyRequest;
 import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.server.core.annotations.CreateDS;
@@ -610,4 +613,142 @@ public class SimpleAuthenticationIT extends AbstractLdapTestUnit
             assertTrue( true );
         }
     }
+
+
+    /**
+     * Check that the password already verified for a user is still checked against
+     * the other ones, and that it's not accepted anymore once changed.
+     */
+    @Test
+    public void testRepeatedBindsWithHashedPassword() throws Exception
+    {
+        apply( getService(), getUserAddLdif() );
+        String userDn = "uid=akarasulu,ou=users,ou=system";
+        LdapConnection connection = getConnectionAs( getService(), userDn, "test" );
+
+        // now modify the password for akarasulu : 'secret', hashed using PKCS5S2
+        ModifyRequest modReq = new ModifyRequestImpl();
+        modReq.setName( new Dn( getService().getSchemaManager(), userDn ) );
+        modReq.replace( "userPassword", PasswordUtil.createStoragePassword( "secret",
+            LdapSecurityConstants.HASH_METHOD_PKCS5S2 ) );
+        connection.modify( modReq );
+        connection.close();
+
+        // The second and third binds use the cached password
+        for ( int i = 0; i < 3; i++ )
+        {
+            connection.bind( userDn, "secret" );
+            assertTrue( connection.isAuthenticated() );
+            connection.close();
+
+            try
+            {
+                connection.bind( userDn, "secre" );
+                fail();
+            }
+            catch ( LdapAuthenticationException lae )
+            {
+                assertTrue( true );
+            }
+        }
+
+        // Change the password as the admin
+        connection.bind( "uid=admin,ou=system", "secret" );
+        modReq = new ModifyRequestImpl();
+        modReq.setName( new Dn( getService().getSchemaManager(), userDn ) );
+        modReq.replace( "userPassword", "newpwd" );
+        connection.modify( modReq );
+        connection.close();
+
+        try
+        {
+            connection.bind( userDn, "secret" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertTrue( true );
+        }
+
+        connection.bind( userDn, "newpwd" );
+        assertTrue( connection.isAuthenticated() );
+    }
+
+
+    /**
+     * Check that the cached password of a user is not used anymore once its parent has
+     * been renamed or moved, even if another user is created with the same Dn.
+     */
+    @Test
+    public void testBindAfterParentRenameAndMove() throws Exception
+    {
+        LdapConnection connection = getConnectionAs( getService(), "uid=admin,ou=system", "secret" );
+        connection.add( new DefaultEntry( getService().getSchemaManager(), "ou=team,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: team" ) );
+        connection.add( new DefaultEntry( getService().getSchemaManager(), "uid=jdoe,ou=team,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "objectClass: inetOrgPerson",
+            "uid: jdoe",
+            "cn: John Doe",
+            "sn: Doe",
+            "userPassword: first" ) );
+
+        // Cache the password
+        connection.bind( "uid=jdoe,ou=team,ou=system", "first" );
+        assertTrue( connection.isAuthenticated() );
+
+        // Rename the parent, and create another user with the same Dn
+        connection.bind( "uid=admin,ou=system", "secret" );
+        connection.rename( "ou=team,ou=system", "ou=crew" );
+        connection.add( new DefaultEntry( getService().getSchemaManager(), "ou=team,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: team" ) );
+        connection.add( new DefaultEntry( getService().getSchemaManager(), "uid=jdoe,ou=team,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "objectClass: inetOrgPerson",
+            "uid: jdoe",
+            "cn: John Doe",
+            "sn: Doe",
+            "userPassword: second" ) );
+
+        try
+        {
+            connection.bind( "uid=jdoe,ou=team,ou=system", "first" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertTrue( true );
+        }
+
+        connection.bind( "uid=jdoe,ou=team,ou=system", "second" );
+        assertTrue( connection.isAuthenticated() );
+        connection.bind( "uid=jdoe,ou=crew,ou=system", "first" );
+        assertTrue( connection.isAuthenticated() );
+
+        // Move the renamed parent below the new one : its user can't bind with its old Dn
+        connection.bind( "uid=admin,ou=system", "secret" );
+        connection.move( "ou=crew,ou=system", "ou=team,ou=system" );
+
+        try
+        {
+            connection.bind( "uid=jdoe,ou=crew,ou=system", "first" );
+            fail();
+        }
+        catch ( LdapAuthenticationException lae )
+        {
+            assertTrue( true );
+        }
+
+        connection.bind( "uid=jdoe,ou=crew,ou=team,ou=system", "first" );
+        assertTrue( connection.isAuthenticated() );
+        connection.close();
+    }
 }
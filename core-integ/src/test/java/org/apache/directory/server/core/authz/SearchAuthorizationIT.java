@@ -24,12 +24,15 @@ import static org.apache.directory.server.core.authz.AutzIntegUtils.addEntryACI;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.addPrescriptiveACI;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.addSubentryACI;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.addUserToGroup;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.changePresciptiveACI;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.createGroup;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.createAccessControlSubentry;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.createUser;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.deleteAccessControlSubentry;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.getAdminConnection;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.getConnectionAs;
 import static org.apache.directory.server.core.authz.AutzIntegUtils.removeEntryACI;
+import static org.apache.directory.server.core.authz.AutzIntegUtils.removeUserFromGroup;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -54,6 +57,7 @@ import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.server.core.annotations.ApplyLdifs;
 import org.apache.directory.server.core.annotations.CreateDS;
 import org.apache.directory.server.core.annotations.LoadSchema;
+import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.apache.directory.server.core.integ.ApacheDSTestExtension;
 import org.apache.directory.server.core.integ.IntegrationUtils;
@@ -519,6 +523,118 @@ public class SearchAuthorizationIT extends AbstractLdapTestUnit
     }
     
     
+    /**
+     * Checks that the memoized decisions follow the changes of the groups and of
+     * the ACIs.
+     *
+     * @throws Exception if the test encounters an error
+     */
+    @Test
+    public void testMemoizedDecisionsInvalidation() throws Exception
+    {
+        String groupAci = "{ " +
+            "  identificationTag \"searchAci\", " +
+            "  precedence 14, " +
+            "  authenticationLevel none, " +
+            "  itemOrUserFirst userFirst: " +
+            "  { " +
+            "    userClasses " +
+            "    { " +
+            "      userGroup { \"cn=searchers,ou=groups,ou=system\" } " +
+            "    }, " +
+            "    userPermissions " +
+            "    { " +
+            "      { " +
+            "        protectedItems {entry, allUserAttributeTypesAndValues}, " +
+            "        grantsAndDenials { grantRead, grantReturnDN, grantBrowse } " +
+            "      } " +
+            "    } " +
+            "  } " +
+            "}";
+
+        createUser( "billyd", "billyd" );
+        createGroup( "searchers" );
+        createAccessControlSubentry( "searchersSearch", groupAci );
+
+        // billyd is not in the group yet
+        assertFalse( checkCanSearchAs( "billyd", "billyd" ) );
+
+        addUserToGroup( "billyd", "searchers" );
+        assertTrue( checkCanSearchAs( "billyd", "billyd" ) );
+
+        removeUserFromGroup( "billyd", "searchers" );
+        assertFalse( checkCanSearchAs( "billyd", "billyd" ) );
+
+        addUserToGroup( "billyd", "searchers" );
+        assertTrue( checkCanSearchAs( "billyd", "billyd" ) );
+
+        // Now only the attributes are granted, not the entries
+        changePresciptiveACI( "searchersSearch", groupAci.replace( "entry, ", "" ) );
+        assertFalse( checkCanSearchAs( "billyd", "billyd" ) );
+
+        changePresciptiveACI( "searchersSearch", groupAci );
+        assertTrue( checkCanSearchAs( "billyd", "billyd" ) );
+    }
+
+
+    /**
+     * Checks that the members of a group member of a group are granted the access
+     * when the nested groups are enabled.
+     *
+     * @throws Exception if the test encounters an error
+     */
+    @Test
+    public void testNestedGroups() throws Exception
+    {
+        AciAuthorizationInterceptor interceptor = ( AciAuthorizationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR.getName() );
+
+        createUser( "billyd", "billyd" );
+        createGroup( "searchers" );
+        createGroup( "team" );
+        addUserToGroup( "billyd", "team" );
+        getAdminConnection().modify( "cn=searchers,ou=groups,ou=system",
+            new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "uniqueMember",
+                "cn=team,ou=groups,ou=system" ) );
+
+        createAccessControlSubentry( "searchersSearch", "{ " +
+            "  identificationTag \"searchAci\", " +
+            "  precedence 14, " +
+            "  authenticationLevel none, " +
+            "  itemOrUserFirst userFirst: " +
+            "  { " +
+            "    userClasses " +
+            "    { " +
+            "      userGroup { \"cn=searchers,ou=groups,ou=system\" } " +
+            "    }, " +
+            "    userPermissions " +
+            "    { " +
+            "      { " +
+            "        protectedItems {entry, allUserAttributeTypesAndValues}, " +
+            "        grantsAndDenials { grantRead, grantReturnDN, grantBrowse } " +
+            "      } " +
+            "    } " +
+            "  } " +
+            "}" );
+
+        try
+        {
+            // billyd is only a member of team
+            assertFalse( checkCanSearchAs( "billyd", "billyd" ) );
+
+            interceptor.setNestedGroups( true );
+            assertTrue( checkCanSearchAs( "billyd", "billyd" ) );
+
+            removeUserFromGroup( "billyd", "team" );
+            assertFalse( checkCanSearchAs( "billyd", "billyd" ) );
+        }
+        finally
+        {
+            interceptor.setNestedGroups( false );
+        }
+    }
+
+
     // -----------------------------------------------------------------------
     //
     // -----------------------------------------------------------------------
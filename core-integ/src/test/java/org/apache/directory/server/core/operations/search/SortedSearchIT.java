@@ -417,4 +417,84 @@ public class SortedSearchIT extends AbstractLdapTestUnit
         }
     }
 
+
+    /**
+     * Test that the entries sorted on disk, when they don't fit in the sort memory budget,
+     * come in the same order as the entries sorted in memory
+     */
+    @Test
+    public void testSortBySnOnDisk() throws Exception
+    {
+        sk.setAttributeTypeDesc( "sn" );
+
+        List<String> expectedOrder = readOrder();
+        sk.setReverseOrder( true );
+        List<String> expectedReverseOrder = readOrder();
+        long budget = getService().getSortMemoryBudget();
+
+        try
+        {
+            // Each entry is written in its own run
+            getService().setSortMemoryBudget( 1L );
+
+            List<String> actualReverseOrder = readOrder();
+            sk.setReverseOrder( false );
+            List<String> actualOrder = readOrder();
+
+            // The 3 entries without any "sn" attribute come last, in no guaranteed order
+            assertEquals( expectedOrder.subList( 0, 11 ), actualOrder.subList( 0, 11 ) );
+            assertEquals( expectedReverseOrder.subList( 3, 14 ), actualReverseOrder.subList( 3, 14 ) );
+        }
+        finally
+        {
+            getService().setSortMemoryBudget( budget );
+        }
+    }
+
+
+    /**
+     * Test that only the first entries are returned when a size limit is set
+     */
+    @Test
+    public void testSortBySnWithSizeLimit() throws Exception
+    {
+        sk.setAttributeTypeDesc( "sn" );
+        req.setSizeLimit( 3 );
+
+        SearchCursor cursor = connection.search( req );
+        List<String> actualOrder = new ArrayList<String>();
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        cursor.close();
+
+        SearchResultDone sd = cursor.getSearchResultDone();
+        assertEquals( ResultCodeEnum.SIZE_LIMIT_EXCEEDED, sd.getLdapResult().getResultCode() );
+
+        assertEquals( 3, actualOrder.size() );
+        assertEquals( "uid=person1,ou=parent,ou=system", actualOrder.get( 0 ) );
+        assertEquals( "uid=person2,ou=parent,ou=system", actualOrder.get( 1 ) );
+        assertEquals( "uid=person3,ou=parent,ou=system", actualOrder.get( 2 ) );
+    }
+
+
+    private List<String> readOrder() throws Exception
+    {
+        List<String> order = new ArrayList<String>();
+
+        try ( SearchCursor cursor = connection.search( req ) )
+        {
+            while ( cursor.next() )
+            {
+                SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+                order.add( se.getEntry().getDn().getName() );
+            }
+        }
+
+        return order;
+    }
 }
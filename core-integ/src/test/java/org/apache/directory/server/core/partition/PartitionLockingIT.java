@@ -0,0 +1,311 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapServiceUnavailableException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.ApacheDSTestExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+
+/**
+ * Test the locks protecting the partitions against concurrent operations, when
+ * an operation on a partition reads another one. One of the operations may fail
+ * with a busy error, and is then retried.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@ExtendWith( ApacheDSTestExtension.class )
+@CreateDS(name = "PartitionLockingIT-class",
+    partitions =
+        {
+            @CreatePartition(
+                name = "foo",
+                suffix = "dc=foo,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=foo,dc=com\n" +
+                        "dc: foo\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n")),
+            @CreatePartition(
+                name = "bar",
+                suffix = "dc=bar,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=bar,dc=com\n" +
+                        "dc: bar\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"))
+    })
+public class PartitionLockingIT extends AbstractLdapTestUnit
+{
+    private static final String FOO_DN = "dc=foo,dc=com";
+    private static final String BAR_DN = "dc=bar,dc=com";
+
+    /** The number of times a modification failing with a busy error is tried */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private CrossReadInterceptor crossReadInterceptor;
+
+
+    /**
+     * An interceptor which, while an entry of a partition is being modified, reads an
+     * entry of the other partition. The first attempts of the two modifications meet on
+     * a barrier, so that both partitions are locked when the reads are done.
+     */
+    private static class CrossReadInterceptor extends BaseInterceptor
+    {
+        private final CyclicBarrier barrier = new CyclicBarrier( 2 );
+
+        /** The entries which modification has already met the other one */
+        private final Set<String> met = ConcurrentHashMap.newKeySet();
+
+        /** The Rdn of the entry read in the other partition, null to read its context entry */
+        private volatile String readRdn;
+
+        /** Tells if the entry is read from the partition, without the cache */
+        private volatile boolean uncached;
+
+
+        CrossReadInterceptor()
+        {
+            super( "CrossReadInterceptor" );
+        }
+
+
+        @Override
+        public void modify( ModifyOperationContext modifyContext ) throws LdapException
+        {
+            CoreSession session = modifyContext.getSession();
+            String dn = modifyContext.getDn().getName();
+            String otherDn = dn.endsWith( FOO_DN ) ? BAR_DN : FOO_DN;
+
+            if ( readRdn != null )
+            {
+                otherDn = readRdn + "," + otherDn;
+            }
+
+            if ( met.add( dn ) )
+            {
+                try
+                {
+                    barrier.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException | BrokenBarrierException | TimeoutException e )
+                {
+                    throw new LdapOtherException( e.getMessage(), e );
+                }
+            }
+
+            if ( uncached )
+            {
+                // The index lookups are never served by the entry cache
+                Dn other = new Dn( session.getDirectoryService().getSchemaManager(), otherDn );
+                Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( other );
+
+                try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+                {
+                    HasEntryOperationContext hasEntryContext = new HasEntryOperationContext( session, other );
+                    hasEntryContext.setPartition( partition );
+                    hasEntryContext.setTransaction( partitionTxn );
+
+                    assertTrue( partition.hasEntry( hasEntryContext ) );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new LdapOtherException( ioe.getMessage(), ioe );
+                }
+            }
+            else
+            {
+                Entry otherEntry = session.lookup( new Dn( otherDn ) );
+                assertNotNull( otherEntry );
+            }
+
+            next( modifyContext );
+        }
+    }
+
+
+    @BeforeEach
+    public void setUp() throws Exception
+    {
+        crossReadInterceptor = new CrossReadInterceptor();
+        getService().addFirst( crossReadInterceptor );
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+    {
+        getService().remove( crossReadInterceptor.getName() );
+    }
+
+
+    /**
+     * Modifies an entry of each partition concurrently, each modification reading the
+     * other partition while its own is locked : they must not deadlock.
+     */
+    @Test
+    public void testConcurrentModificationsReadingTheOtherPartition() throws Exception
+    {
+        modifyConcurrently( FOO_DN, BAR_DN, "lookup" );
+
+        CoreSession session = getService().getAdminSession();
+
+        assertTrue( session.lookup( new Dn( FOO_DN ) ).contains( "description", "lookup" ) );
+        assertTrue( session.lookup( new Dn( BAR_DN ) ).contains( "description", "lookup" ) );
+    }
+
+
+    /**
+     * Modifies an entry of each partition concurrently, each modification reading an entry
+     * of the other partition through its indexes, which are not cached : the reads wait for
+     * the partition locks, and must not deadlock.
+     */
+    @Test
+    public void testConcurrentModificationsReadingUncachedEntries() throws Exception
+    {
+        CoreSession session = getService().getAdminSession();
+
+        for ( String suffix : new String[] { FOO_DN, BAR_DN } )
+        {
+            for ( String ou : new String[] { "modified", "read" } )
+            {
+                session.add( new DefaultEntry( getService().getSchemaManager(), "ou=" + ou + "," + suffix,
+                    "objectClass: top",
+                    "objectClass: organizationalUnit",
+                    "ou", ou ) );
+            }
+        }
+
+        crossReadInterceptor.readRdn = "ou=read";
+        crossReadInterceptor.uncached = true;
+
+        modifyConcurrently( "ou=modified," + FOO_DN, "ou=modified," + BAR_DN, "uncached" );
+
+        assertTrue( session.lookup( new Dn( "ou=modified," + FOO_DN ) ).contains( "description", "uncached" ) );
+        assertTrue( session.lookup( new Dn( "ou=modified," + BAR_DN ) ).contains( "description", "uncached" ) );
+    }
+
+
+    /**
+     * Adds a description to two entries concurrently
+     */
+    private void modifyConcurrently( String dn1, String dn2, String description ) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+
+        try
+        {
+            Future<Void> modification1 = executor.submit( new AddDescription( dn1, description ) );
+            Future<Void> modification2 = executor.submit( new AddDescription( dn2, description ) );
+
+            modification1.get( 60, TimeUnit.SECONDS );
+            modification2.get( 60, TimeUnit.SECONDS );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Adds a description to an entry, using the admin session. The modification is
+     * retried when it fails with a busy error, as the client would do.
+     */
+    private class AddDescription implements Callable<Void>
+    {
+        private final String dn;
+
+        private final String description;
+
+
+        AddDescription( String dn, String description )
+        {
+            this.dn = dn;
+            this.description = description;
+        }
+
+
+        @Override
+        public Void call() throws Exception
+        {
+            for ( int attempt = 1;; attempt++ )
+            {
+                try
+                {
+                    getService().getAdminSession().modify( new Dn( dn ),
+                        new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "description", description ) );
+
+                    return null;
+                }
+                catch ( LdapServiceUnavailableException lsue )
+                {
+                    assertEquals( ResultCodeEnum.BUSY, lsue.getResultCode() );
+
+                    if ( attempt == MAX_ATTEMPTS )
+                    {
+                        throw lsue;
+                    }
+                }
+            }
+        }
+    }
+}
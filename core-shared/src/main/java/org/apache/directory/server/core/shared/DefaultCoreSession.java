@@ -20,10 +20,8 @@
 package org.apache.directory.server.core.shared;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.file.Files;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +43,7 @@ import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidSearchFilterException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.FilterParser;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
@@ -98,7 +97,6 @@ import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import jdbm.recman.BaseRecordManager;
 
 
 /**
@@ -1218,9 +1216,12 @@ public class DefaultCoreSession implements CoreSession
         {
             cursor = operationManager.search( searchContext );
 
-            if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
+            // The partition may have read the entries in the right order from an index
+            if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS )
+                && !searchContext.isSorted() )
             {
-                cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
+                cursor = sortResults( cursor, sortControl, searchContext.getSizeLimit(),
+                    getDirectoryService().getSchemaManager() );
             }
 
             // the below condition is to satisfy the scenario 6 in section 2 of rfc2891
@@ -1266,6 +1267,45 @@ public class DefaultCoreSession implements CoreSession
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Entry> resumableSearch( SearchRequest searchRequest, String resumeAfter ) throws LdapException
+    {
+        if ( searchRequest.getControls().containsKey( SortRequest.OID ) || searchRequest.getBase().isRootDse() )
+        {
+            return null;
+        }
+
+        SearchOperationContext searchContext = new SearchOperationContext( this, searchRequest );
+        searchContext.setResumable( true );
+        searchContext.setResumeAfter( resumeAfter );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        Cursor<Entry> cursor = operationManager.search( searchContext );
+
+        // The partition has not been able to return the entries in the order of their ID
+        if ( !searchContext.isIdOrdered() )
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( IOException ioe )
+            {
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+
+            return null;
+        }
+
+        searchRequest.getResultResponse().addAllControls( searchContext.getResponseControls() );
+
+        return cursor;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -1390,36 +1430,23 @@ public class DefaultCoreSession implements CoreSession
 
 
     /**
-     * Sorts the entries based on the given sortkey and returns the cursor
+     * Sorts the entries based on the given sortkey and returns the cursor. Only the first
+     * entries are kept when the number of entries to return is limited, otherwise the
+     * entries are sorted in memory, or on disk if they don't fit in the directory service
+     * sort memory budget.
      * 
      * @param unsortedEntries the cursor containing un-sorted entries
      * @param control the sort control
+     * @param sizeLimit the maximum number of entries to return, 0 if there is no limit
      * @param schemaManager schema manager
      * @return a cursor containing sorted entries
      * @throws CursorException
      * @throws LdapException
      * @throws IOException
-     * @throws KeyNotFoundException 
      */
-    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, SchemaManager schemaManager )
-        throws CursorException, LdapException, IOException
+    private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, long sizeLimit,
+        SchemaManager schemaManager ) throws CursorException, LdapException, IOException
     {
-        unsortedEntries.beforeFirst();
-
-        Entry first = null;
-
-        if ( unsortedEntries.next() )
-        {
-            first = unsortedEntries.get();
-        }
-
-        if ( !unsortedEntries.next() )
-        {
-            unsortedEntries.beforeFirst();
-
-            return unsortedEntries;
-        }
-
         SortKey sk = control.getSortKeys().get( 0 );
 
         AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
@@ -1427,42 +1454,23 @@ public class DefaultCoreSession implements CoreSession
         SortedEntryComparator comparator = new SortedEntryComparator( at, sk.getMatchingRuleId(), sk.isReverseOrder(),
             schemaManager );
 
-        SortedEntrySerializer keySerializer = new SortedEntrySerializer();
-        SortedEntrySerializer.setSchemaManager( schemaManager );
-        
-        File file = null;
-        
-        try 
+        // One more entry than the size limit is kept, so that the limit is known to be exceeded
+        long limit = ( sizeLimit > 0 ) ? sizeLimit + 1 : 0L;
+
+        EntrySorter sorter = new EntrySorter( comparator, schemaManager, directoryService.getSortMemoryBudget(),
+            limit );
+
+        try
         {
-            file = Files.createTempFile( "replica", ".sorted-data" ).toFile();    // see DIRSERVER-2007
-        } 
-        catch ( IOException e ) 
+            return sorter.sort( unsortedEntries );
+        }
+        catch ( IOException e )
         {
             // see DIRSERVER-2091
-            LOG.error( "Error creating temp file in directory {} for sorting: {}",  
-                System.getProperty( "java.io.tmpdir" ),  e.getMessage(), e );
+            LOG.error( "Error writing the sorted entries in directory {}: {}",
+                System.getProperty( "java.io.tmpdir" ), e.getMessage(), e );
             throw e;
         }
-
-        BaseRecordManager recMan = new BaseRecordManager( file.getAbsolutePath() );
-
-        jdbm.btree.BTree<Entry, String> btree = new jdbm.btree.BTree<>( recMan, comparator, keySerializer, NullStringSerializer.INSTANCE );
-        
-
-        btree.insert( first, "", false );
-
-        // at this stage the cursor will be _on_ the next element, so read it
-        btree.insert( unsortedEntries.get(), "", false );
-
-        while ( unsortedEntries.next() )
-        {
-            Entry entry = unsortedEntries.get();
-            btree.insert( entry, "", false );
-        }
-
-        unsortedEntries.close();
-
-        return new SortedEntryCursor( btree, recMan, file );
     }
 
 
@@ -1529,6 +1537,8 @@ public class DefaultCoreSession implements CoreSession
             }
         }
         
+        // The next session transaction will start new partition transactions
+        transactionMap.clear();
         hasSessionTransaction = false;
     }
 
@@ -0,0 +1,588 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.core.shared;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sorts the entries returned by a search, for the server side sort control (RFC 2891).
+ * The sort key of each entry is extracted once, then :
+ * <ul>
+ * <li>if only the first entries are needed, because of a size limit, they are selected
+ * with a bounded heap, the other entries being discarded as soon as they are read;</li>
+ * <li>otherwise the entries are sorted in memory, up to a memory budget. Beyond it, the
+ * sorted entries are written in a run file, and the runs are merged when the sorted
+ * entries are read.</li>
+ * </ul>
+ * The sort is stable : the entries with the same key are returned in the order they
+ * have been read.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EntrySorter
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EntrySorter.class );
+
+    /** The maximum number of entries selected with a heap, beyond it the whole result is sorted */
+    static final int MAX_TOP_K = 10000;
+
+    /** The maximum number of runs merged at once */
+    static final int MAX_MERGE_WIDTH = 64;
+
+    /** The buffer size used to read and write the runs */
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    /** The estimated memory used by an entry, without its values */
+    private static final long ENTRY_OVERHEAD = 200L;
+
+    /** The estimated memory used by an attribute or a value, without its content */
+    private static final long VALUE_OVERHEAD = 64L;
+
+    /** The comparator of the sort keys */
+    private final SortedEntryComparator comparator;
+
+    /** The serializer used to write the runs */
+    private final SortedEntrySerializer serializer;
+
+    /** The memory the entries sorted in memory can use, in bytes */
+    private final long memoryBudget;
+
+    /** The number of entries to return, 0 if all of them are returned */
+    private final long limit;
+
+
+    /**
+     * An entry being sorted, with its sort key and its position in the input, so that
+     * the entries with the same key keep their order.
+     */
+    private static final class SortRecord
+    {
+        private final Object key;
+        private final long sequence;
+        private final Entry entry;
+
+
+        private SortRecord( Object key, long sequence, Entry entry )
+        {
+            this.key = key;
+            this.sequence = sequence;
+            this.entry = entry;
+        }
+    }
+
+
+    /**
+     * Reads a run file, one entry at a time.
+     */
+    static final class RunReader implements Closeable
+    {
+        /** The position of the run, used to keep the order of the entries with the same key */
+        private final int index;
+
+        private final DataInputStream in;
+
+        private final SortedEntrySerializer serializer;
+
+        private final SortedEntryComparator comparator;
+
+        /** The current entry and its key */
+        private Entry entry;
+        private Object key;
+
+
+        private RunReader( int index, File run, SortedEntrySerializer serializer, SortedEntryComparator comparator )
+            throws IOException
+        {
+            this.index = index;
+            this.serializer = serializer;
+            this.comparator = comparator;
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( run ), RUN_BUFFER_SIZE ) );
+        }
+
+
+        /**
+         * Reads the next entry of the run.
+         *
+         * @return false if the run has been entirely read
+         */
+        private boolean advance() throws IOException
+        {
+            int length;
+
+            try
+            {
+                length = in.readInt();
+            }
+            catch ( EOFException eofe )
+            {
+                entry = null;
+                key = null;
+
+                return false;
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully( bytes );
+            entry = ( Entry ) serializer.deserialize( bytes );
+            key = comparator.getKey( entry );
+
+            return true;
+        }
+
+
+        /**
+         * @return The current entry
+         */
+        Entry getEntry()
+        {
+            return entry;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EntrySorter.
+     *
+     * @param comparator The comparator for the sorted attribute
+     * @param schemaManager The SchemaManager
+     * @param memoryBudget The memory the entries sorted in memory can use, in bytes
+     * @param limit The number of entries to return, 0 if all the entries are returned
+     */
+    EntrySorter( SortedEntryComparator comparator, SchemaManager schemaManager, long memoryBudget, long limit )
+    {
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.limit = limit;
+
+        SortedEntrySerializer.setSchemaManager( schemaManager );
+        serializer = new SortedEntrySerializer();
+    }
+
+
+    /**
+     * Sorts the entries. The given cursor is entirely read, and closed.
+     *
+     * @param unsortedEntries The entries to sort
+     * @return A cursor on the sorted entries
+     * @throws LdapException If the entries can't be read
+     * @throws CursorException If the entries can't be read
+     * @throws IOException If a run can't be written
+     */
+    Cursor<Entry> sort( Cursor<Entry> unsortedEntries ) throws LdapException, CursorException, IOException
+    {
+        unsortedEntries.beforeFirst();
+
+        try
+        {
+            if ( ( limit > 0 ) && ( limit <= MAX_TOP_K ) )
+            {
+                return selectFirst( unsortedEntries );
+            }
+
+            return sortAll( unsortedEntries );
+        }
+        finally
+        {
+            unsortedEntries.close();
+        }
+    }
+
+
+    /**
+     * @return the comparator of the records : by key, then in the input order
+     */
+    private Comparator<SortRecord> recordComparator()
+    {
+        return ( record1, record2 ) ->
+        {
+            int c = comparator.compareKeys( record1.key, record2.key );
+
+            return ( c != 0 ) ? c : Long.compare( record1.sequence, record2.sequence );
+        };
+    }
+
+
+    /**
+     * Selects the first entries with a heap which root is the last selected entry.
+     */
+    private Cursor<Entry> selectFirst( Cursor<Entry> unsortedEntries ) throws LdapException, CursorException
+    {
+        Comparator<SortRecord> recordComparator = recordComparator();
+        PriorityQueue<SortRecord> heap = new PriorityQueue<>( ( int ) limit + 1,
+            Collections.reverseOrder( recordComparator ) );
+        long sequence = 0L;
+
+        while ( unsortedEntries.next() )
+        {
+            Entry entry = unsortedEntries.get();
+            Object key = comparator.getKey( entry );
+
+            if ( heap.size() < limit )
+            {
+                heap.add( new SortRecord( key, sequence, entry ) );
+            }
+            else if ( comparator.compareKeys( key, heap.peek().key ) < 0 )
+            {
+                // The entry comes before the last selected one, which is dropped
+                heap.poll();
+                heap.add( new SortRecord( key, sequence, entry ) );
+            }
+
+            sequence++;
+        }
+
+        List<SortRecord> records = new ArrayList<>( heap );
+        records.sort( recordComparator );
+
+        return new ListCursor<>( toEntries( records ) );
+    }
+
+
+    /**
+     * Sorts all the entries, in memory while they fit in the memory budget, with sorted
+     * runs written on disk otherwise.
+     */
+    private Cursor<Entry> sortAll( Cursor<Entry> unsortedEntries ) throws LdapException, CursorException, IOException
+    {
+        Comparator<SortRecord> recordComparator = recordComparator();
+        List<SortRecord> records = new ArrayList<>();
+        List<File> runs = new ArrayList<>();
+        long used = 0L;
+        long sequence = 0L;
+
+        try
+        {
+            while ( unsortedEntries.next() )
+            {
+                Entry entry = unsortedEntries.get();
+                records.add( new SortRecord( comparator.getKey( entry ), sequence++, entry ) );
+                used += estimateSize( entry );
+
+                if ( used > memoryBudget )
+                {
+                    records.sort( recordComparator );
+                    runs.add( writeRun( records ) );
+                    records.clear();
+                    used = 0L;
+                }
+            }
+
+            records.sort( recordComparator );
+
+            if ( runs.isEmpty() )
+            {
+                return new ListCursor<>( toEntries( records ) );
+            }
+
+            if ( !records.isEmpty() )
+            {
+                runs.add( writeRun( records ) );
+                records.clear();
+            }
+
+            LOG.debug( "Sorted {} entries in {} runs", sequence, runs.size() );
+
+            // Merge the runs until they can all be read at once
+            while ( runs.size() > MAX_MERGE_WIDTH )
+            {
+                List<File> merged = new ArrayList<>();
+
+                for ( int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH )
+                {
+                    merged.add( mergeRuns( runs.subList( i, Math.min( i + MAX_MERGE_WIDTH, runs.size() ) ) ) );
+                }
+
+                runs = merged;
+            }
+
+            return new SortedEntryCursor( this, runs );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            deleteRuns( runs );
+
+            throw e;
+        }
+    }
+
+
+    private List<Entry> toEntries( List<SortRecord> records )
+    {
+        List<Entry> entries = new ArrayList<>( records.size() );
+
+        for ( SortRecord record : records )
+        {
+            entries.add( record.entry );
+        }
+
+        return entries;
+    }
+
+
+    /**
+     * Estimates the memory used by an entry
+     */
+    private static long estimateSize( Entry entry )
+    {
+        long size = ENTRY_OVERHEAD;
+
+        for ( Attribute attribute : entry )
+        {
+            size += VALUE_OVERHEAD;
+
+            for ( Value value : attribute )
+            {
+                // The human readable values are stored as Strings and as bytes
+                size += VALUE_OVERHEAD + ( value.isHumanReadable() ? 3L : 1L ) * value.length();
+            }
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Writes the sorted entries in a new run file
+     */
+    private File writeRun( List<SortRecord> records ) throws IOException
+    {
+        File run = Files.createTempFile( "sort", ".run" ).toFile();
+
+        try ( DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream( new FileOutputStream( run ), RUN_BUFFER_SIZE ) ) )
+        {
+            for ( SortRecord record : records )
+            {
+                write( out, record.entry );
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            deleteRun( run );
+
+            throw e;
+        }
+
+        return run;
+    }
+
+
+    private void write( DataOutputStream out, Entry entry ) throws IOException
+    {
+        byte[] bytes = serializer.serialize( entry );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+
+    /**
+     * Merges some runs in a new run, and deletes them
+     */
+    private File mergeRuns( List<File> runs ) throws IOException
+    {
+        File merged = Files.createTempFile( "sort", ".run" ).toFile();
+        PriorityQueue<RunReader> readers = openRuns( runs );
+
+        try ( DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream( new FileOutputStream( merged ), RUN_BUFFER_SIZE ) ) )
+        {
+            Entry entry = nextEntry( readers );
+
+            while ( entry != null )
+            {
+                write( out, entry );
+                entry = nextEntry( readers );
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            deleteRun( merged );
+
+            throw e;
+        }
+        finally
+        {
+            closeRuns( readers );
+        }
+
+        deleteRuns( runs );
+
+        return merged;
+    }
+
+
+    /**
+     * Opens the runs, and reads their first entry.
+     *
+     * @param runs The runs, in the order of the input
+     * @return The readers of the non empty runs, the one with the least entry first
+     * @throws IOException If a run can't be read
+     */
+    PriorityQueue<RunReader> openRuns( List<File> runs ) throws IOException
+    {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>( Math.max( 1, runs.size() ), ( reader1, reader2 ) ->
+        {
+            int c = comparator.compareKeys( reader1.key, reader2.key );
+
+            return ( c != 0 ) ? c : Integer.compare( reader1.index, reader2.index );
+        } );
+
+        try
+        {
+            for ( int i = 0; i < runs.size(); i++ )
+            {
+                RunReader reader = new RunReader( i, runs.get( i ), serializer, comparator );
+
+                if ( reader.advance() )
+                {
+                    readers.add( reader );
+                }
+                else
+                {
+                    reader.close();
+                }
+            }
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            closeRuns( readers );
+
+            throw e;
+        }
+
+        return readers;
+    }
+
+
+    /**
+     * Reads the next entry of the merged runs.
+     *
+     * @param readers The readers of the runs
+     * @return The least entry of the runs, or null if they have all been read
+     * @throws IOException If a run can't be read
+     */
+    Entry nextEntry( PriorityQueue<RunReader> readers ) throws IOException
+    {
+        RunReader reader = readers.poll();
+
+        if ( reader == null )
+        {
+            return null;
+        }
+
+        Entry entry = reader.getEntry();
+
+        if ( reader.advance() )
+        {
+            readers.add( reader );
+        }
+        else
+        {
+            reader.close();
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Closes the readers of the runs
+     *
+     * @param readers The readers
+     */
+    void closeRuns( PriorityQueue<RunReader> readers )
+    {
+        for ( RunReader reader : readers )
+        {
+            try
+            {
+                reader.close();
+            }
+            catch ( IOException ioe )
+            {
+                LOG.warn( "Failed to close a sorted run", ioe );
+            }
+        }
+
+        readers.clear();
+    }
+
+
+    /**
+     * Deletes the run files
+     *
+     * @param runs The runs
+     */
+    void deleteRuns( List<File> runs )
+    {
+        for ( File run : runs )
+        {
+            deleteRun( run );
+        }
+    }
+
+
+    private void deleteRun( File run )
+    {
+        if ( !run.delete() )
+        {
+            LOG.warn( "Failed to delete the sorted run {}", run );
+        }
+    }
+}
@@ -22,7 +22,6 @@ package org.apache.directory.server.core.shared;
 
 import java.io.Serializable;
 import java.util.Comparator;
-import java.util.TreeSet;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -110,100 +109,104 @@ class SortedEntryComparator implements Comparator<Entry>, Serializable
     }
 
 
-    @Override
-    public int compare( Entry entry1, Entry entry2 )
+    /**
+     * Extracts the sort key of an entry : the normalized value of the sorted attribute, or
+     * its least value if it's multivalued. The key is extracted once per entry, and then
+     * compared with {@link #compareKeys(Object, Object)}.
+     *
+     * @param entry The entry
+     * @return The sort key, or null if the entry does not have the sorted attribute
+     */
+    Object getKey( Entry entry )
     {
-        Attribute at1 = entry1.get( type );
-
-        Attribute at2 = entry2.get( type );
+        Attribute attribute = entry.get( type );
 
-        // as per section 2.2 of the spec null values are considered larger
-        if ( at1 == null )
+        if ( ( attribute == null ) || ( attribute.size() == 0 ) )
         {
-            return reverse ? -1 : 1;
+            return null;
         }
-        else if ( at2 == null )
-        {
-            return reverse ? 1 : -1;
-        }
-
-        Object o1;
-        Object o2;
 
-        if ( multivalued )
+        if ( !multivalued )
         {
-            TreeSet ts = new TreeSet( comparator );
+            return getKey( attribute.get() );
+        }
 
-            o1 = sortAndGetFirst( at1, ts );
+        Object least = null;
 
-            ts.clear();
-            o2 = sortAndGetFirst( at2, ts );
-        }
-        else
+        for ( Value value : attribute )
         {
-            Value v1 = at1.get();
-            Value v2 = at2.get();
+            Object key = getKey( value );
 
-            if ( hr )
+            if ( ( least == null ) || ( comparator.compare( key, least ) < 0 ) )
             {
-                o1 = v1.getString();
-                o2 = v2.getString();
-            }
-            else
-            {
-                o1 = v1.getBytes();
-                o2 = v2.getBytes();
+                least = key;
             }
         }
 
-        int c;
+        return least;
+    }
 
-        try
+
+    /**
+     * @return the key of a value : its normalized form if it's human readable, its bytes otherwise
+     */
+    private Object getKey( Value value )
+    {
+        if ( !hr )
         {
-            if ( reverse )
-            {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o2 ), o1 );
-            }
-            else
-            {
-                c = comparator.compare( comparator.getNormalizer().normalize( ( String ) o1 ), o2 );
-            }
-    
-            if ( c == 0 )
-            {
-                return 1;
-            }
+            return value.getBytes();
+        }
 
-            return c;
+        try
+        {
+            return comparator.getNormalizer().normalize( value.getString() );
         }
         catch ( LdapException le )
         {
-            return 0;
+            return value.getNormalized();
         }
     }
 
 
     /**
-     * sorts the values of an attribute and picks the least value
-     * 
-     * @param at the attribute
-     * @param ts the TreeSet for sorting 
-     * @return the least value among the values of the attribute
+     * Compares two sort keys.
+     *
+     * @param key1 The first key, null if the entry does not have the sorted attribute
+     * @param key2 The second key, null if the entry does not have the sorted attribute
+     * @return a negative number if the first key is sorted first, 0 if they are equal, a
+     * positive number otherwise
      */
-    private Object sortAndGetFirst( Attribute at, TreeSet ts )
+    int compareKeys( Object key1, Object key2 )
     {
-        for ( Value v : at )
+        // as per section 2.2 of the spec null values are considered larger
+        if ( key1 == null )
         {
-            if ( hr )
+            if ( key2 == null )
             {
-                ts.add( v.getNormalized() );
-            }
-            else
-            {
-                ts.add( v.getBytes() );
+                return 0;
             }
+
+            return reverse ? -1 : 1;
         }
+        else if ( key2 == null )
+        {
+            return reverse ? 1 : -1;
+        }
+
+        if ( reverse )
+        {
+            return comparator.compare( key2, key1 );
+        }
+        else
+        {
+            return comparator.compare( key1, key2 );
+        }
+    }
+
 
-        return ts.first();
+    @Override
+    public int compare( Entry entry1, Entry entry2 )
+    {
+        return compareKeys( getKey( entry1 ), getKey( entry2 ) );
     }
 }
\ No newline at end of file
@@ -23,12 +23,7 @@ package org.apache.directory.server.core.shared;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.NoSuchElementException;
-
-import jdbm.RecordManager;
-import jdbm.btree.BTree;
-import jdbm.helper.Tuple;
-import jdbm.helper.TupleBrowser;
+import java.util.PriorityQueue;
 
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
@@ -38,47 +33,61 @@ import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 
 /**
- * Cursor for sorted entries.
- * 
- * Note: This currently uses JDBM, but will be migrated to use Mavibot
- *       when ready.
+ * Cursor for sorted entries which did not fit in memory : the sorted runs written by
+ * the {@link EntrySorter} are merged while the cursor is read.
+ * <p>
+ * The cursor is meant to be read forward. Moving one entry backward, as done by the
+ * search handlers to check if there are more entries, is cheap. Moving further backward
+ * restarts the merge from the first entry.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFilteringCursor
 {
+    /** The sorter which has written the runs */
+    private final EntrySorter sorter;
+
+    /** The sorted runs */
+    private final List<File> runs;
+
+    /** The readers of the runs being merged */
+    private PriorityQueue<EntrySorter.RunReader> readers;
+
+    /** The current entry, null if the cursor is before the first or after the last entry */
+    private Entry current;
 
-    private static final Logger LOG = LoggerFactory.getLogger( SortedEntryCursor.class );
-    
-    private TupleBrowser browser;
+    /** The entry before the current one, if known */
+    private Entry previousEntry;
 
-    private final Tuple tuple = new Tuple();
+    /** The entry after the current one, when the cursor has moved backward */
+    private Entry pushedBack;
 
-    private RecordManager recMan;
+    /** The position of the current entry, -1 before the first entry */
+    private long position = -1L;
 
-    private File dataFile;
-    
-    private BTree<Entry, String> btree;
-    
 
-    public SortedEntryCursor( BTree<Entry, String> btree, RecordManager recMan, File dataFile ) throws IOException
+    /**
+     * Creates a new instance of SortedEntryCursor.
+     *
+     * @param sorter The sorter which has written the runs
+     * @param runs The sorted runs, deleted when the cursor is closed
+     * @throws IOException If the runs can't be read
+     */
+    SortedEntryCursor( EntrySorter sorter, List<File> runs ) throws IOException
     {
-        this.recMan = recMan;
-        this.dataFile = dataFile;
-        this.btree = btree;
-        browser = btree.browse();
+        this.sorter = sorter;
+        this.runs = runs;
+        readers = sorter.openRuns( runs );
     }
 
 
     @Override
     public boolean available()
     {
-        return tuple.getKey() != null;
+        return current != null;
     }
 
 
@@ -99,31 +108,33 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void beforeFirst() throws LdapException, CursorException
     {
+        checkNotClosed();
+
+        sorter.closeRuns( readers );
+
         try
         {
-            clearValue();
-            browser = btree.browse();
+            readers = sorter.openRuns( runs );
         }
         catch ( IOException e )
         {
             throw new CursorException( e );
         }
+
+        current = null;
+        previousEntry = null;
+        pushedBack = null;
+        position = -1L;
     }
 
 
     @Override
     public void afterLast() throws LdapException, CursorException
     {
-        try
+        while ( next() )
         {
-            clearValue();
-            browser = btree.browse( null );
+            // Read all the entries
         }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-
     }
 
 
@@ -131,6 +142,7 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     public boolean first() throws LdapException, CursorException
     {
         beforeFirst();
+
         return next();
     }
 
@@ -139,6 +151,7 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     public boolean last() throws LdapException, CursorException
     {
         afterLast();
+
         return previous();
     }
 
@@ -146,80 +159,104 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public boolean previous() throws LdapException, CursorException
     {
-        try
+        checkNotClosed();
+
+        if ( position < 0L )
         {
+            return false;
+        }
 
-            if ( browser == null )
-            {
-                browser = btree.browse( null );
-            }
-            
-            if ( browser.getPrevious( tuple ) )
-            {
-                return true;
-            }
+        if ( ( position == 0L ) && ( pushedBack == null ) )
+        {
+            // Back before the first entry
+            pushedBack = current;
+            current = null;
+            previousEntry = null;
+            position = -1L;
+
+            return false;
         }
-        catch ( IOException e )
+
+        if ( ( previousEntry != null ) && ( pushedBack == null ) )
         {
-            throw new CursorException( e );
+            pushedBack = current;
+            current = previousEntry;
+            previousEntry = null;
+            position--;
+
+            return true;
         }
-        catch ( NoSuchElementException e )
+
+        // We don't know the previous entry : restart the merge
+        long target = position - 1L;
+        beforeFirst();
+
+        for ( long i = 0L; i <= target; i++ )
         {
-            // ignore this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasPrev())
+            next();
         }
 
-        clearValue();
-        return false;
+        return target >= 0L;
     }
 
 
     @Override
     public boolean next() throws LdapException, CursorException
     {
-        try
+        checkNotClosed();
+
+        Entry next = pushedBack;
+        pushedBack = null;
+
+        if ( next == null )
         {
-            if ( browser == null )
+            try
             {
-                browser = btree.browse();
+                next = sorter.nextEntry( readers );
             }
-            
-            if ( browser.getNext( tuple ) )
+            catch ( IOException e )
             {
-                return true;
+                throw new CursorException( e );
             }
         }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
+
+        if ( next == null )
         {
-            // ignore, this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasNext())
+            if ( current != null )
+            {
+                // After the last entry
+                previousEntry = current;
+                current = null;
+                position++;
+            }
+
+            return false;
         }
 
-        clearValue();
-        return false;
+        previousEntry = current;
+        current = next;
+        position++;
+
+        return true;
     }
 
 
     @Override
     public Entry get() throws CursorException
     {
-        if ( tuple.getKey() == null )
+        if ( current == null )
         {
             throw new InvalidCursorPositionException();
         }
 
-        return ( Entry ) tuple.getKey();
+        return current;
     }
 
 
     @Override
     public void close() throws IOException
     {
-        deleteFile();
+        deleteRuns();
         super.close();
     }
 
@@ -227,7 +264,7 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void close( Exception cause ) throws IOException
     {
-        deleteFile();
+        deleteRuns();
         super.close( cause );
     }
 
@@ -252,29 +289,16 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
         return null;
     }
 
-    
-    private void clearValue()
-    {
-        tuple.setKey( null );
-        tuple.setValue( null );
-    }
 
-    
-    private void deleteFile()
+    private void deleteRuns()
     {
-        if ( recMan == null )
+        if ( readers == null )
         {
             return;
         }
 
-        try
-        {
-            recMan.close();
-            dataFile.delete();
-        }
-        catch ( IOException e )
-        {
-            LOG.warn( "Failed to delete the sorted entry data file {}", dataFile, e );
-        }
+        sorter.closeRuns( readers );
+        sorter.deleteRuns( runs );
+        readers = null;
     }
 }
@@ -773,6 +773,15 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
             }
             else
             {
+                // Each partition may have sorted its own entries, but not the whole list
+                if ( cursors.size() > 1 )
+                {
+                    searchContext.setSorted( false );
+                }
+
+                // The position of a resumable search is only meaningful in one partition
+                searchContext.setIdOrdered( false );
+
                 return new CursorList( cursors, searchContext );
             }
         }
@@ -31,6 +31,7 @@ import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -82,6 +83,7 @@ import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.ObjectClassProvider;
 import org.apache.directory.server.core.api.OperationEnum;
 import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.ReferralManager;
 import org.apache.directory.server.core.api.administrative.AccessControlAdministrativePoint;
 import org.apache.directory.server.core.api.administrative.CollectiveAttributeAdministrativePoint;
@@ -94,6 +96,7 @@ import org.apache.directory.server.core.api.changelog.TaggableSearchableChangeLo
 import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
+import org.apache.directory.server.core.api.interceptor.InterceptorChain;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
@@ -246,6 +249,9 @@ public class DefaultDirectoryService implements DirectoryService
     /** A map associating a list of interceptor to each operation */
     private Map<OperationEnum, List<String>> operationInterceptors;
 
+    /** The compiled interceptor chain of each operation, replaced when the interceptors are changed */
+    private volatile Map<OperationEnum, InterceptorChain> interceptorChains;
+
     /** The System partition */
     private Partition systemPartition;
 
@@ -261,6 +267,12 @@ public class DefaultDirectoryService implements DirectoryService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The default memory a sorted search can use, 16MB */
+    public static final long DEFAULT_SORT_MEMORY_BUDGET = 16L * 1024L * 1024L;
+
+    /** The memory a sorted search can use to sort its entries */
+    private long sortMemoryBudget = DEFAULT_SORT_MEMORY_BUDGET;
+
     /** lock file for directory service's working directory */
     private RandomAccessFile lockFile = null;
 
@@ -295,6 +307,9 @@ public class DefaultDirectoryService implements DirectoryService
     
     private TimeProvider timeProvider;
 
+    /** The executor hashing the passwords, null if they are hashed by the operations threads */
+    private PasswordHashingExecutor passwordHashingExecutor;
+
 
     // ------------------------------------------------------------------------
     // Constructor
@@ -447,27 +462,42 @@ public class DefaultDirectoryService implements DirectoryService
 
 
     /**
-     * Returns interceptors in the server for a given operation.
+     * Returns interceptors in the server for a given operation. The returned list is an
+     * immutable {@link InterceptorChain} : any attempt to modify it throws an
+     * UnsupportedOperationException. It is not modified when an interceptor is added or
+     * removed, a new chain is compiled and returned by the next calls instead. A caller
+     * needing to modify the list must copy it first.
      *
      * @return the interceptors in the server for the given operation.
      */
     public List<String> getInterceptors( OperationEnum operation )
     {
-        List<String> cloned = new ArrayList<>();
+        return interceptorChains.get( operation );
+    }
 
-        readLock.lock();
 
-        try
-        {
-            cloned.addAll( operationInterceptors.get( operation ) );
+    /**
+     * Compiles the interceptor chain of each operation, and publishes them at once. This
+     * method must be called with the write lock held, after the operations lists have
+     * been modified.
+     */
+    private void compileInterceptorChains()
+    {
+        Map<OperationEnum, InterceptorChain> chains = new EnumMap<>( OperationEnum.class );
 
-            return cloned;
-        }
-        finally
+        for ( Map.Entry<OperationEnum, List<String>> operationList : operationInterceptors.entrySet() )
         {
-            readLock.unlock();
+            List<Interceptor> chain = new ArrayList<>( operationList.getValue().size() );
+
+            for ( String interceptorName : operationList.getValue() )
+            {
+                chain.add( interceptorNames.get( interceptorName ) );
+            }
+
+            chains.put( operationList.getKey(), new InterceptorChain( chain ) );
         }
 
+        interceptorChains = chains;
     }
 
 
@@ -493,6 +523,8 @@ public class DefaultDirectoryService implements DirectoryService
 
                 operationInterceptors.put( operation, operationList );
             }
+
+            compileInterceptorChains();
         }
         finally
         {
@@ -592,6 +624,8 @@ public class DefaultDirectoryService implements DirectoryService
             {
                 interceptors.add( position, interceptor );
             }
+
+            compileInterceptorChains();
         }
         finally
         {
@@ -630,6 +664,8 @@ public class DefaultDirectoryService implements DirectoryService
 
             interceptorNames.remove( interceptorName );
             interceptors.remove( interceptor );
+
+            compileInterceptorChains();
         }
         finally
         {
@@ -2193,6 +2229,31 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSortMemoryBudget()
+    {
+        return sortMemoryBudget;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSortMemoryBudget( long sortMemoryBudget )
+    {
+        if ( sortMemoryBudget <= 0 )
+        {
+            sortMemoryBudget = Long.MAX_VALUE;
+        }
+
+        this.sortMemoryBudget = sortMemoryBudget;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -2250,6 +2311,12 @@ public class DefaultDirectoryService implements DirectoryService
             {
                 interceptors.add( position + 1, interceptor );
             }
+
+            interceptorNames.put( interceptor.getName(), interceptor );
+
+            // Recompute the operations lists, so that a new chain including the
+            // added interceptor is compiled for each operation
+            initOperationsList();
         }
         finally
         {
@@ -2494,4 +2561,24 @@ public class DefaultDirectoryService implements DirectoryService
     {
         this.timeProvider = timeProvider;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PasswordHashingExecutor getPasswordHashingExecutor()
+    {
+        return passwordHashingExecutor;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPasswordHashingExecutor( PasswordHashingExecutor passwordHashingExecutor )
+    {
+        this.passwordHashingExecutor = passwordHashingExecutor;
+    }
 }
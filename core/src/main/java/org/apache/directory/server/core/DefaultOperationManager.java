@@ -23,6 +23,8 @@ package org.apache.directory.server.core;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -71,6 +73,8 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionLockException;
+import org.apache.directory.server.core.api.partition.PartitionReadWriteLock;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
@@ -101,9 +105,25 @@ public class DefaultOperationManager implements OperationManager
     /** The directory service instance */
     private final DirectoryService directoryService;
 
-    /** A lock used to protect against concurrent operations */
+    /**
+     * A lock used to protect against concurrent operations. The writes on the system, schema
+     * and root partitions take it exclusively, the other operations share it
+     */
     private ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
 
+    /**
+     * How long an operation holding a partition lock waits for the lock of a partition which
+     * comes before in the order of the suffixes, before failing with a busy error
+     */
+    private static final long NESTED_LOCK_TIMEOUT_MILLIS = 1000L;
+
+    /**
+     * The locks protecting each partition against concurrent operations, by suffix. The
+     * interceptors read other partitions while an operation holds its partition lock, so
+     * the nested locks are taken in the order of the suffixes to avoid deadlocks.
+     */
+    private final Map<String, PartitionReadWriteLock> partitionLocks = new ConcurrentHashMap<>();
+
     /** A reference to the ObjectClass AT */
     protected AttributeType objectClassAT;
     
@@ -161,6 +181,196 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Partition partition )
+    {
+        return getPartitionLock( partition );
+    }
+
+
+    /**
+     * Gets the lock of a partition, creating it if needed
+     */
+    private PartitionReadWriteLock getPartitionLock( Partition partition )
+    {
+        return partitionLocks.computeIfAbsent( getLockKey( partition ),
+            key -> new PartitionReadWriteLock( key, partitionLocks.values(), NESTED_LOCK_TIMEOUT_MILLIS ) );
+    }
+
+
+    /**
+     * The partitions are identified by their suffix, as the nexus may return a new
+     * instance for the RootDSE on each call.
+     */
+    private static String getLockKey( Partition partition )
+    {
+        Dn suffixDn = partition.getSuffixDn();
+
+        if ( suffixDn == null )
+        {
+            return "";
+        }
+
+        return suffixDn.getNormName();
+    }
+
+
+    /**
+     * Tells if a write on the given partition must exclude all the other operations. This is
+     * the case for the RootDSE and the subschemaSubentry, for the schema partition, as the
+     * schema is shared by all the partitions, and for the system partition, which is updated
+     * by the interceptors while they process operations on the other partitions.
+     * 
+     * @param partition The partition to update, or null if the write spans more than one partition
+     * @return <code>true</code> if the write must be done alone
+     */
+    private boolean isExclusiveWrite( Partition partition )
+    {
+        if ( partition == null )
+        {
+            return true;
+        }
+
+        Dn suffixDn = partition.getSuffixDn();
+
+        if ( Dn.isNullOrEmpty( suffixDn ) )
+        {
+            return true;
+        }
+
+        return suffixDn.equals( directoryService.getSchemaPartition().getSuffixDn() )
+            || suffixDn.equals( directoryService.getSystemPartition().getSuffixDn() );
+    }
+
+
+    /**
+     * Acquires a ReadLock, unless the partition reads from a stable snapshot : in
+     * this case, the reads don't have to wait for the writes.
+     * <p>
+     * A read nested in an operation holding the lock of another partition (an interceptor
+     * looking up an entry in the system partition while an entry is added, for instance)
+     * waits for the partition lock only if it comes after all the held locks, in the order
+     * of the partition suffixes. Otherwise it only waits for a bounded time, and fails with
+     * a busy error : waiting longer could deadlock with an operation holding this partition
+     * lock and reading the partitions we have locked.
+     * 
+     * @param partition The partition we are going to read from
+     * @throws PartitionLockException If the partition lock can't be acquired in order
+     */
+    private void lockRead( Partition partition ) throws PartitionLockException
+    {
+        if ( !partition.isSnapshotReadSupported() )
+        {
+            lockRead();
+
+            try
+            {
+                getPartitionLock( partition ).lockRead();
+            }
+            catch ( PartitionLockException ple )
+            {
+                unlockRead();
+
+                throw ple;
+            }
+        }
+    }
+
+
+    /**
+     * Releases a ReadLock acquired by {@link #lockRead(Partition)}
+     * 
+     * @param partition The partition we have read from
+     */
+    private void unlockRead( Partition partition )
+    {
+        if ( !partition.isSnapshotReadSupported() )
+        {
+            getPartitionLock( partition ).readLock().unlock();
+            unlockRead();
+        }
+    }
+
+
+    /**
+     * Acquires a WriteLock on a partition : the writes on distinct partitions can be
+     * processed concurrently, except for the partitions the whole server depends on.
+     * The partition locks are taken in the order of the suffixes, as the reads.
+     * 
+     * @param partition The partition we are going to update, or null if the update spans
+     * more than one partition
+     * @throws PartitionLockException If the partition lock can't be acquired in order
+     */
+    private void lockWrite( Partition partition ) throws PartitionLockException
+    {
+        if ( isExclusiveWrite( partition ) )
+        {
+            lockWrite();
+        }
+        else
+        {
+            lockRead();
+
+            try
+            {
+                getPartitionLock( partition ).lockWrite();
+            }
+            catch ( PartitionLockException ple )
+            {
+                unlockRead();
+
+                throw ple;
+            }
+        }
+    }
+
+
+    /**
+     * Releases a WriteLock acquired by {@link #lockWrite(Partition)}
+     * 
+     * @param partition The partition we have updated, or null if the update spanned
+     * more than one partition
+     */
+    private void unlockWrite( Partition partition )
+    {
+        if ( isExclusiveWrite( partition ) )
+        {
+            unlockWrite();
+        }
+        else
+        {
+            getPartitionLock( partition ).writeLock().unlock();
+            unlockRead();
+        }
+    }
+
+
+    /**
+     * Gets the partition a ModDN operation is working on : when the entry is moved to
+     * another partition, both are updated, so we return null.
+     */
+    private Partition getModDnPartition( Partition partition, Dn newSuperiorDn )
+    {
+        try
+        {
+            Partition newPartition = directoryService.getPartitionNexus().getPartition( newSuperiorDn );
+
+            if ( !getLockKey( partition ).equals( getLockKey( newPartition ) ) )
+            {
+                return null;
+            }
+        }
+        catch ( LdapException le )
+        {
+            // No partition for the new superior : the operation will fail anyway
+        }
+
+        return partition;
+    }
+
+
     /**
      * Eagerly populates fields of operation contexts so multiple Interceptors
      * in the processing pathway can reuse this value without performing a
@@ -409,7 +619,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Add method
         Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
 
-        lockWrite();
+        lockWrite( partition );
 
         // Start a Write transaction right away
         PartitionTxn transaction = addContext.getSession().getTransaction( partition ); 
@@ -466,7 +676,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( partition );
         }
 
         if ( IS_DEBUG )
@@ -512,12 +722,12 @@ public class DefaultOperationManager implements OperationManager
             bindContext.setDn( dn );
         }
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockRead( partition );
 
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 bindContext.setPartition( partition );
@@ -532,7 +742,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -627,12 +837,12 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockRead( partition );
 
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 compareContext.setPartition( partition );
@@ -647,7 +857,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -795,7 +1005,7 @@ public class DefaultOperationManager implements OperationManager
         }
 
         // populate the context with the old entry
-        lockWrite();
+        lockWrite( partition );
 
         // Start a Write transaction right away
         PartitionTxn transaction = deleteContext.getSession().getTransaction( partition ); 
@@ -889,7 +1099,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( partition );
         }
 
         if ( IS_DEBUG )
@@ -926,12 +1136,12 @@ public class DefaultOperationManager implements OperationManager
         Interceptor head = directoryService.getInterceptor( getRootDseContext.getNextInterceptor() );
         Entry root;
 
+        Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
+
+        lockRead( partition );
+
         try
         {
-            lockRead();
-            
-            Partition partition = directoryService.getPartitionNexus().getPartition( Dn.ROOT_DSE );
-            
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 getRootDseContext.setPartition( partition );
@@ -946,7 +1156,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -986,8 +1196,6 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
-
         // Normalize the addContext Dn
         Dn dn = hasEntryContext.getDn();
         
@@ -997,10 +1205,12 @@ public class DefaultOperationManager implements OperationManager
             hasEntryContext.setDn( dn );
         }
 
+        Partition partition = directoryService.getPartitionNexus().getPartition( dn );
+
+        lockRead( partition );
+
         try
         {
-            Partition partition = directoryService.getPartitionNexus().getPartition( dn );
-
             try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
                 hasEntryContext.setPartition( partition );
@@ -1015,7 +1225,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( partition );
         }
 
         if ( IS_DEBUG )
@@ -1072,7 +1282,7 @@ public class DefaultOperationManager implements OperationManager
         {
             lookupContext.setTransaction( transaction );
 
-            lockRead();
+            lockRead( partition );
     
             try
             {
@@ -1080,7 +1290,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                unlockRead( partition );
             }
         }
         catch ( IOException ioe )
@@ -1187,7 +1397,7 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         modifyContext.setPartition( partition );
         
-        lockWrite();
+        lockWrite( partition );
         
         // Start a Write transaction right away
         PartitionTxn transaction = modifyContext.getSession().getTransaction( partition ); 
@@ -1250,7 +1460,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( partition );
         }
 
         if ( IS_DEBUG )
@@ -1358,12 +1568,13 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-        
         // Find the working partition
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveContext.setPartition( partition );
 
+        Partition lockedPartition = getModDnPartition( partition, newSuperiorDn );
+        lockWrite( lockedPartition );
+
         // Start a Write transaction right away
         PartitionTxn transaction = moveContext.getSession().getTransaction( partition ); 
         
@@ -1428,7 +1639,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lockedPartition );
         }
 
         if ( IS_DEBUG )
@@ -1541,7 +1752,8 @@ public class DefaultOperationManager implements OperationManager
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
         moveAndRenameContext.setPartition( partition );
 
-        lockWrite();
+        Partition lockedPartition = getModDnPartition( partition, moveAndRenameContext.getNewSuperiorDn() );
+        lockWrite( lockedPartition );
         
         // Start a Write transaction right away
         PartitionTxn transaction = moveAndRenameContext.getSession().getTransaction( partition ); 
@@ -1603,7 +1815,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lockedPartition );
         }
 
         if ( IS_DEBUG )
@@ -1709,26 +1921,13 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
-
         Partition partition = directoryService.getPartitionNexus().getPartition( dn );
 
-        // Start a Write transaction right away
-        PartitionTxn transaction = renameContext.getSession().getTransaction( partition ); 
-        
+        lockWrite( partition );
+
         // Call the rename method
         try
         {
-            if ( transaction == null )
-            {
-                transaction = partition.beginWriteTransaction();
-                
-                if ( renameContext.getSession().hasSessionTransaction() )
-                {
-                    renameContext.getSession().addTransaction( partition, transaction );
-                }
-            }
-
             renameContext.setPartition( partition );
 
             // populate the context with the old entry
@@ -1764,7 +1963,7 @@ public class DefaultOperationManager implements OperationManager
             Interceptor head = directoryService.getInterceptor( renameContext.getNextInterceptor() );
 
             // Start a Write transaction right away
-            transaction = renameContext.getSession().getTransaction( partition ); 
+            PartitionTxn transaction = renameContext.getSession().getTransaction( partition ); 
             
             // Call the Rename method
             try
@@ -1823,7 +2022,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( partition );
         }
 
         if ( IS_DEBUG )
@@ -1922,7 +2121,7 @@ public class DefaultOperationManager implements OperationManager
         {
             searchContext.setPartition( partition );
             searchContext.setTransaction( partitionTxn );
-            lockRead();
+            lockRead( partition );
     
             try
             {
@@ -1930,7 +2129,7 @@ public class DefaultOperationManager implements OperationManager
             }
             finally
             {
-                unlockRead();
+                unlockRead( partition );
             }
         }
         catch ( IOException ioe )
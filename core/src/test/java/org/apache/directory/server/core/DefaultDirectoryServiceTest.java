@@ -21,11 +21,23 @@ package org.apache.directory.server.core;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationEnum;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.Interceptor;
+import org.apache.directory.server.core.api.interceptor.InterceptorChain;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.junit.jupiter.api.Test;
 
 
@@ -70,6 +82,72 @@ public class DefaultDirectoryServiceTest
         assertEquals( "foo", lastInterceptor.getName() );
     }
 
+    @Test
+    public void testAddAfterRebuildsTheChains() throws LdapException
+    {
+        // given
+        final String existingInterceptorName = InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName();
+        DefaultDirectoryService service = new DefaultDirectoryService();
+        List<String> before = service.getInterceptors( OperationEnum.ADD );
+
+        // when
+        service.addAfter( existingInterceptorName, new FooInterceptor() );
+
+        // then the chain used by the operations already started is unchanged
+        List<String> after = service.getInterceptors( OperationEnum.ADD );
+        assertNotSame( before, after );
+        assertFalse( before.contains( "foo" ) );
+
+        // and the new chain calls the added interceptor right after its predecessor
+        assertTrue( after.contains( "foo" ) );
+        assertEquals( after.indexOf( existingInterceptorName ) + 1, after.indexOf( "foo" ) );
+        assertEquals( before.size() + 1, after.size() );
+
+        // the foo interceptor does not handle lookups
+        assertFalse( service.getInterceptors( OperationEnum.LOOKUP ).contains( "foo" ) );
+    }
+
+
+    @Test
+    public void testChainIsImmutable()
+    {
+        DefaultDirectoryService service = new DefaultDirectoryService();
+        List<String> chain = service.getInterceptors( OperationEnum.ADD );
+
+        assertThrows( UnsupportedOperationException.class, () -> chain.add( "foo" ) );
+        assertThrows( UnsupportedOperationException.class, () -> chain.remove( 0 ) );
+        assertThrows( UnsupportedOperationException.class, () -> chain.set( 0, "foo" ) );
+    }
+
+
+    @Test
+    public void testGetNextInterceptorIndexesTheChain()
+    {
+        FooInterceptor foo = new FooInterceptor();
+        BarInterceptor bar = new BarInterceptor();
+        InterceptorChain chain = new InterceptorChain( Arrays.asList( foo, bar ) );
+
+        assertEquals( Arrays.asList( "foo", "bar" ), chain );
+        assertSame( foo, chain.getInterceptor( 0 ) );
+        assertSame( bar, chain.getInterceptor( 1 ) );
+
+        OperationContext addContext = new AddOperationContext( null );
+        addContext.setInterceptors( chain );
+        assertSame( chain, addContext.getInterceptorChain() );
+
+        // The interceptors are returned in order, each call moving to the next one
+        assertSame( foo, foo.next( addContext ) );
+        assertEquals( 1, addContext.getCurrentInterceptor() );
+        assertSame( bar, foo.next( addContext ) );
+        assertEquals( 2, addContext.getCurrentInterceptor() );
+
+        // At the end of the chain, we get the final interceptor
+        Interceptor last = foo.next( addContext );
+        assertNotSame( foo, last );
+        assertNotSame( bar, last );
+        assertEquals( 2, addContext.getCurrentInterceptor() );
+    }
+
     static class FooInterceptor extends BaseInterceptor
     {
 
@@ -78,5 +156,28 @@ public class DefaultDirectoryServiceTest
         {
             return "foo";
         }
+
+
+        @Override
+        public void add( AddOperationContext addContext ) throws LdapException
+        {
+            next( addContext ).add( addContext );
+        }
+
+
+        Interceptor next( OperationContext operationContext )
+        {
+            return getNextInterceptor( operationContext );
+        }
+    }
+
+    static class BarInterceptor extends BaseInterceptor
+    {
+
+        @Override
+        public String getName()
+        {
+            return "bar";
+        }
     }
 }
\ No newline at end of file
@@ -272,6 +272,9 @@ public abstract class AbstractAuthenticator implements Authenticator
             InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
         PasswordPolicyConfiguration pPolicyConfig = authenticationInterceptor.getPwdPolicy( userEntry );
 
+        // The state updated by the previous binds may not be written yet
+        userEntry = authenticationInterceptor.applyPwdPolicyState( userEntry );
+
         // check for locked out account
         if ( pPolicyConfig.isPwdLockout() )
         {
@@ -306,12 +309,17 @@ public abstract class AbstractAuthenticator implements Authenticator
                         // remove pwdAccountLockedTime attribute
                         Modification pwdAccountLockMod = new DefaultModification(
                             ModificationOperation.REMOVE_ATTRIBUTE, accountLockAttr );
-                        ModifyOperationContext modContext = new ModifyOperationContext(
-                            directoryService.getAdminSession() );
-                        modContext.setDn( userEntry.getDn() );
-                        modContext.setModItems( Collections.singletonList( pwdAccountLockMod ) );
 
-                        internalModify( modContext );
+                        if ( !authenticationInterceptor.deferPwdPolicyState( userEntry,
+                            Collections.singletonList( pwdAccountLockMod ) ) )
+                        {
+                            ModifyOperationContext modContext = new ModifyOperationContext(
+                                directoryService.getAdminSession() );
+                            modContext.setDn( userEntry.getDn() );
+                            modContext.setModItems( Collections.singletonList( pwdAccountLockMod ) );
+
+                            internalModify( modContext );
+                        }
                     }
                 }
             }
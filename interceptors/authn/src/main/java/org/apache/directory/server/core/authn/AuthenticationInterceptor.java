@@ -155,6 +155,12 @@ public class AuthenticationInterceptor extends BaseInterceptor
     /** a container to hold all the ppolicies */
     private PpolicyConfigContainer pwdPolicyContainer;
 
+    /** The interval between two writes of the ppolicy states updated by the binds, 0 to write them on each bind */
+    private long pwdPolicyStateFlushInterval;
+
+    /** The ppolicy states updated by the binds, not written yet */
+    private PasswordPolicyStateStore pwdPolicyStateStore;
+
 
     /**
      * Creates an authentication service interceptor.
@@ -187,6 +193,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
 
         loadPwdPolicyStateAttributeTypes();
+
+        pwdPolicyStateStore = new PasswordPolicyStateStore( directoryService );
+        pwdPolicyStateStore.setFlushInterval( pwdPolicyStateFlushInterval );
     }
 
 
@@ -262,6 +271,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
     @Override
     public void destroy()
     {
+        if ( pwdPolicyStateStore != null )
+        {
+            pwdPolicyStateStore.destroy();
+        }
+
         authenticatorsMapByType.clear();
         Set<Authenticator> copy = new HashSet<>( authenticators );
         authenticators = new HashSet<>();
@@ -524,6 +538,76 @@ public class AuthenticationInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * Writes the ppolicy state attributes updated by a bind. They are kept in memory
+     * when a flush interval is set, and written in the entry otherwise.
+     *
+     * @param opContext The operation context
+     * @param userEntry The user entry, with its pending state
+     * @param mods The modifications of the ppolicy state attributes
+     * @throws LdapException If the entry can't be modified
+     */
+    void writePwdPolicyState( OperationContext opContext, Entry userEntry, List<Modification> mods )
+        throws LdapException
+    {
+        if ( deferPwdPolicyState( userEntry, mods ) )
+        {
+            return;
+        }
+
+        List<Modification> modItems = new ArrayList<>( mods );
+        String csnVal = directoryService.getCSN().toString();
+        Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
+            .getEntryCSN(), csnVal );
+        modItems.add( csnMod );
+
+        ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
+        bindModCtx.setDn( userEntry.getDn() );
+        bindModCtx.setEntry( userEntry );
+        bindModCtx.setModItems( modItems );
+        bindModCtx.setPushToEvtInterceptor( true );
+
+        internalModify( opContext, bindModCtx );
+    }
+
+
+    /**
+     * Keeps the ppolicy state attributes updated by a bind in memory, if a flush interval is set.
+     *
+     * @param userEntry The user entry, with its pending state
+     * @param mods The modifications of the ppolicy state attributes
+     * @return true if the modifications are kept in memory, false if they have to be written
+     */
+    boolean deferPwdPolicyState( Entry userEntry, List<Modification> mods )
+    {
+        if ( ( pwdPolicyStateStore == null ) || !pwdPolicyStateStore.isEnabled() )
+        {
+            return false;
+        }
+
+        pwdPolicyStateStore.update( userEntry, mods );
+
+        return true;
+    }
+
+
+    /**
+     * Applies the pending ppolicy state of a user, if any, to its entry.
+     *
+     * @param userEntry The user entry, as stored
+     * @return The user entry with its up to date ppolicy state
+     */
+    Entry applyPwdPolicyState( Entry userEntry )
+    {
+        if ( ( pwdPolicyStateStore == null ) || !pwdPolicyStateStore.isEnabled() )
+        {
+            return userEntry;
+        }
+
+        return pwdPolicyStateStore.apply( userEntry );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -625,6 +709,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
             lookupContext.setTransaction( bindContext.getTransaction() );
             
             userEntry = directoryService.getPartitionNexus().lookup( lookupContext );
+
+            if ( pwdPolicyStateStore.isEnabled() )
+            {
+                userEntry = pwdPolicyStateStore.apply( userEntry );
+            }
         }
 
         // check if the user entry is null, it will be null
@@ -712,17 +801,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
                 if ( !mods.isEmpty() )
                 {
-                    String csnVal = directoryService.getCSN().toString();
-                    Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
-                        .getEntryCSN(), csnVal );
-                    mods.add( csnMod );
-                    ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
-                    bindModCtx.setDn( bindDn );
-                    bindModCtx.setEntry( userEntry );
-                    bindModCtx.setModItems( mods );
-                    bindModCtx.setPushToEvtInterceptor( true );
-
-                    internalModify( bindContext, bindModCtx );
+                    writePwdPolicyState( bindContext, userEntry, mods );
                 }
             }
 
@@ -793,18 +872,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
             if ( !mods.isEmpty() )
             {
-                String csnVal = directoryService.getCSN().toString();
-                Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, directoryService.getAtProvider()
-                    .getEntryCSN(), csnVal );
-                mods.add( csnMod );
-
-                ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
-                bindModCtx.setDn( bindDn );
-                bindModCtx.setEntry( userEntry );
-                bindModCtx.setModItems( mods );
-                bindModCtx.setPushToEvtInterceptor( true );
-                
-                internalModify( bindContext, bindModCtx );
+                writePwdPolicyState( bindContext, userEntry, mods );
             }
 
             if ( isPPolicyReqCtrlPresent )
@@ -859,6 +927,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( deleteContext );
         checkPwdReset( deleteContext );
         next( deleteContext );
+        pwdPolicyStateStore.discard( deleteContext.getDn() );
         invalidateAuthenticatorCaches( deleteContext.getDn() );
     }
 
@@ -951,6 +1020,55 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             processPasswordPolicydModify( modifyContext );
         }
+
+        // An administrative unlock or a password change must not be overridden by the pending
+        // ppolicy state. The other modifications are kept along with it.
+        if ( isPwdPolicyStateModified( modifyContext ) )
+        {
+            pwdPolicyStateStore.discard( modifyContext.getDn() );
+        }
+    }
+
+
+    /**
+     * Tells if a modification updates the ppolicy state attributes kept by the bind, or the
+     * password of the entry.
+     */
+    private boolean isPwdPolicyStateModified( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        if ( pwdPolicyStateStore.getPendingCount() == 0 )
+        {
+            return false;
+        }
+
+        AttributeType passwordAT = directoryService.getAtProvider().getUserPassword();
+        PasswordPolicyConfiguration policyConfig = getPwdPolicy( modifyContext.getEntry() );
+
+        if ( policyConfig != null )
+        {
+            // The modification has been applied : an unknown attribute must not make it fail
+            AttributeType policyPasswordAT = schemaManager.getAttributeType( policyConfig.getPwdAttribute() );
+
+            if ( policyPasswordAT != null )
+            {
+                passwordAT = policyPasswordAT;
+            }
+        }
+
+        for ( Modification modification : modifyContext.getModItems() )
+        {
+            AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+            if ( attributeType.equals( pwdFailurTimeAT ) || attributeType.equals( pwdAccountLockedTimeAT )
+                || attributeType.equals( pwdLastSuccessAT ) || attributeType.equals( pwdGraceUseTimeAT )
+                || attributeType.equals( passwordAT )
+                || attributeType.equals( directoryService.getAtProvider().getUserPassword() ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     
@@ -1333,6 +1451,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( moveContext );
         checkPwdReset( moveContext );
         next( moveContext );
+        pwdPolicyStateStore.rename( moveContext.getDn(), moveContext.getNewDn() );
         invalidateAuthenticatorCaches( moveContext.getDn() );
     }
 
@@ -1351,6 +1470,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( moveAndRenameContext );
         checkPwdReset( moveAndRenameContext );
         next( moveAndRenameContext );
+        pwdPolicyStateStore.rename( moveAndRenameContext.getDn(), moveAndRenameContext.getNewDn() );
         invalidateAuthenticatorCaches( moveAndRenameContext.getDn() );
     }
 
@@ -1369,6 +1489,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkAuthenticated( renameContext );
         checkPwdReset( renameContext );
         next( renameContext );
+        pwdPolicyStateStore.rename( renameContext.getDn(), renameContext.getNewDn() );
         invalidateAuthenticatorCaches( renameContext.getDn() );
     }
 
@@ -1882,6 +2003,50 @@ public class AuthenticationInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * @return The interval between two writes of the ppolicy states updated by the binds, in milliseconds
+     */
+    public long getPwdPolicyStateFlushInterval()
+    {
+        return pwdPolicyStateFlushInterval;
+    }
+
+
+    /**
+     * Sets the interval between two writes of the ppolicy states updated by the binds
+     * (pwdFailureTime, pwdAccountLockedTime, pwdLastSuccess and pwdGraceUseTime). When
+     * set, these states are kept in memory, and the successive changes of an entry are
+     * written at once. When 0, the default, they are written on each bind.
+     *
+     * @param pwdPolicyStateFlushInterval The interval, in milliseconds
+     */
+    public void setPwdPolicyStateFlushInterval( long pwdPolicyStateFlushInterval )
+    {
+        this.pwdPolicyStateFlushInterval = pwdPolicyStateFlushInterval;
+
+        if ( pwdPolicyStateStore != null )
+        {
+            pwdPolicyStateStore.setFlushInterval( pwdPolicyStateFlushInterval );
+        }
+    }
+
+
+    /**
+     * Writes the ppolicy states updated by the binds which are not written yet.
+     *
+     * @return The number of entries written
+     */
+    public int flushPwdPolicyStates()
+    {
+        if ( pwdPolicyStateStore == null )
+        {
+            return 0;
+        }
+
+        return pwdPolicyStateStore.flush();
+    }
+
+
     /**
      * purges failure timestamps which are older than the configured interval
      * (section 7.6 in the draft)
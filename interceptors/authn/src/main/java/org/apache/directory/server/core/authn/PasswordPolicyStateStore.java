@@ -0,0 +1,623 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps the password policy state attributes updated by the binds (pwdFailureTime,
+ * pwdAccountLockedTime, pwdLastSuccess and pwdGraceUseTime) in memory, instead of
+ * writing them into the user entry on each bind.
+ * <p>
+ * The store is authoritative : the pending state of a user is applied to its entry
+ * before checking the password policy, so the lockouts are decided on up to date
+ * failures. The pending states are written into the entries at a fixed interval,
+ * the successive changes of an entry being written by a single modification. These
+ * writes update the entryCSN and are sent to the event interceptor, so they are
+ * replicated.
+ * <p>
+ * A user entry which state attributes or password are updated by an operation loses its
+ * pending state, so that an administrative unlock or a password change is not overridden
+ * by an older state. The pending state of a renamed or moved entry follows it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordPolicyStateStore
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordPolicyStateStore.class );
+
+    /** The directory service */
+    private final DirectoryService directoryService;
+
+    /** The session used to write the states */
+    private final CoreSession adminSession;
+
+    /** The normalized Dn of the users to their pending states */
+    private final Map<String, PendingState> states = new ConcurrentHashMap<>();
+
+    /** The executor flushing the states */
+    private ScheduledExecutorService executor;
+
+    /** The scheduled flush, if any */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /** The flush interval, in milliseconds. 0 means the states are not kept in memory */
+    private long flushInterval;
+
+
+    /**
+     * Creates a new instance of PasswordPolicyStateStore
+     *
+     * @param directoryService The directory service
+     */
+    public PasswordPolicyStateStore( DirectoryService directoryService )
+    {
+        this.directoryService = directoryService;
+        this.adminSession = directoryService.getAdminSession();
+    }
+
+
+    /**
+     * @return true if the states are kept in memory
+     */
+    public boolean isEnabled()
+    {
+        return flushInterval > 0L;
+    }
+
+
+    /**
+     * @return The interval between two flushes, in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+
+    /**
+     * Sets the interval between two flushes of the pending states. When set to 0, the pending
+     * states are flushed and the binds write the states directly into the entries again.
+     *
+     * @param flushInterval The interval, in milliseconds
+     */
+    public synchronized void setFlushInterval( long flushInterval )
+    {
+        if ( scheduledFlush != null )
+        {
+            scheduledFlush.cancel( false );
+            scheduledFlush = null;
+        }
+
+        this.flushInterval = flushInterval;
+
+        if ( flushInterval > 0L )
+        {
+            if ( executor == null )
+            {
+                executor = Executors.newSingleThreadScheduledExecutor( runnable ->
+                {
+                    Thread thread = Executors.defaultThreadFactory().newThread( runnable );
+                    thread.setName( "pwdPolicyStateFlush" );
+                    thread.setDaemon( true );
+
+                    return thread;
+                } );
+            }
+
+            scheduledFlush = executor.scheduleWithFixedDelay( this::flush, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS );
+        }
+        else
+        {
+            flush();
+        }
+    }
+
+
+    /**
+     * Flushes the pending states and stops the flushing thread
+     */
+    public synchronized void destroy()
+    {
+        if ( scheduledFlush != null )
+        {
+            scheduledFlush.cancel( false );
+            scheduledFlush = null;
+        }
+
+        if ( executor != null )
+        {
+            executor.shutdown();
+            executor = null;
+        }
+
+        flush();
+    }
+
+
+    /**
+     * Applies the pending state of a user to its entry.
+     *
+     * @param userEntry The user entry, as stored
+     * @return The user entry with its pending state, or the given entry if there is none
+     */
+    public Entry apply( Entry userEntry )
+    {
+        if ( userEntry == null )
+        {
+            return null;
+        }
+
+        PendingState state = states.get( userEntry.getDn().getNormName() );
+
+        if ( state == null )
+        {
+            return userEntry;
+        }
+
+        Entry entry = userEntry.clone();
+
+        synchronized ( state )
+        {
+            for ( Attribute attribute : state.attributes.values() )
+            {
+                if ( attribute.size() == 0 )
+                {
+                    entry.removeAttributes( attribute.getAttributeType() );
+                }
+                else
+                {
+                    entry.put( attribute.clone() );
+                }
+            }
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Records the modifications of the state of a user. They are applied to the pending
+     * state, which is created if needed.
+     *
+     * @param userEntry The user entry, with its pending state applied
+     * @param mods The modifications of the state attributes
+     */
+    public void update( Entry userEntry, List<Modification> mods )
+    {
+        while ( true )
+        {
+            PendingState state = states.computeIfAbsent( userEntry.getDn().getNormName(),
+                dn -> new PendingState( userEntry.getDn() ) );
+
+            synchronized ( state )
+            {
+                // The state may have been flushed and discarded meanwhile
+                if ( !state.discarded )
+                {
+                    update( state, userEntry, mods );
+
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Applies some modifications to a pending state. Must be called while holding its lock.
+     */
+    private void update( PendingState state, Entry userEntry, List<Modification> mods )
+    {
+        for ( Modification mod : mods )
+        {
+            Attribute modAttribute = mod.getAttribute();
+            AttributeType attributeType = modAttribute.getAttributeType();
+            Attribute attribute;
+
+            switch ( mod.getOperation() )
+            {
+                case ADD_ATTRIBUTE:
+                    attribute = state.attributes.get( attributeType );
+
+                    if ( attribute == null )
+                    {
+                        attribute = userEntry.get( attributeType );
+                    }
+
+                    attribute = ( attribute == null ) ? new DefaultAttribute( attributeType ) : attribute.clone();
+
+                    for ( Value value : modAttribute )
+                    {
+                        attribute.add( value );
+                    }
+
+                    break;
+
+                case REPLACE_ATTRIBUTE:
+                    attribute = modAttribute.clone();
+                    break;
+
+                default:
+                    // The removal of the whole attribute is recorded as an empty attribute
+                    attribute = new DefaultAttribute( attributeType );
+                    break;
+            }
+
+            state.attributes.put( attributeType, attribute );
+        }
+
+        state.version++;
+    }
+
+
+    /**
+     * Discards the pending state of a user, which entry has been deleted, or which state
+     * attributes have been updated.
+     *
+     * @param userDn The user Dn
+     */
+    public void discard( Dn userDn )
+    {
+        if ( !states.isEmpty() )
+        {
+            PendingState state = states.remove( userDn.getNormName() );
+
+            if ( state != null )
+            {
+                synchronized ( state )
+                {
+                    state.discarded = true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Moves the pending states of a renamed or moved entry, and of its descendants, to their
+     * new Dn.
+     *
+     * @param oldDn The Dn of the entry before the operation
+     * @param newDn The Dn of the entry after the operation
+     * @throws LdapException If the new Dn of a descendant can't be built
+     */
+    public void rename( Dn oldDn, Dn newDn ) throws LdapException
+    {
+        if ( states.isEmpty() )
+        {
+            return;
+        }
+
+        for ( PendingState state : states.values() )
+        {
+            if ( !state.dn.isDescendantOf( oldDn ) )
+            {
+                continue;
+            }
+
+            Dn stateDn = newDn.add( state.dn.getDescendantOf( oldDn ) );
+
+            synchronized ( state )
+            {
+                if ( state.discarded || !states.remove( state.dn.getNormName(), state ) )
+                {
+                    continue;
+                }
+
+                state.discarded = true;
+
+                PendingState renamed = new PendingState( stateDn );
+                renamed.attributes.putAll( state.attributes );
+                renamed.version = state.version;
+                states.put( stateDn.getNormName(), renamed );
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of users having a pending state
+     */
+    public int getPendingCount()
+    {
+        return states.size();
+    }
+
+
+    /**
+     * Writes all the pending states into the user entries. The successive changes made
+     * to a user state are written by a single modification, and the states of the users
+     * of a partition are written in a single transaction.
+     *
+     * @return The number of entries written
+     */
+    public int flush()
+    {
+        // The pending states, by partition suffix
+        Map<String, List<PendingState>> batches = new HashMap<>();
+        Map<String, Partition> partitions = new HashMap<>();
+
+        for ( PendingState state : states.values() )
+        {
+            try
+            {
+                Partition partition = directoryService.getPartitionNexus().getPartition( state.dn );
+                String suffix = partition.getSuffixDn().getNormName();
+                partitions.put( suffix, partition );
+                batches.computeIfAbsent( suffix, key -> new ArrayList<>() ).add( state );
+            }
+            catch ( Exception e )
+            {
+                // Keep the state, the write will be done on the next flush
+                LOG.warn( "Failed to write the password policy state of {}", state.dn, e );
+            }
+        }
+
+        int written = 0;
+
+        for ( Map.Entry<String, List<PendingState>> batch : batches.entrySet() )
+        {
+            Partition partition = partitions.get( batch.getKey() );
+
+            try
+            {
+                written += flush( partition, batch.getValue() );
+            }
+            catch ( Exception e )
+            {
+                // The batch has been aborted : write the states one by one, so that an entry
+                // which can't be written does not hold back the others
+                LOG.warn( "Failed to write the password policy states of {}, writing them one by one",
+                    batch.getKey(), e );
+
+                for ( PendingState state : batch.getValue() )
+                {
+                    try
+                    {
+                        written += flush( partition, Collections.singletonList( state ) );
+                    }
+                    catch ( Exception e2 )
+                    {
+                        // Keep the state, the write will be done on the next flush
+                        LOG.warn( "Failed to write the password policy state of {}", state.dn, e2 );
+                    }
+                }
+            }
+        }
+
+        return written;
+    }
+
+
+    /**
+     * Writes the pending states of some users of a partition into their entries, in a single
+     * transaction, then discards the states which haven't changed meanwhile.
+     */
+    private int flush( Partition partition, List<PendingState> batch ) throws LdapException
+    {
+        long[] versions = new long[batch.size()];
+        boolean[] flushed = new boolean[batch.size()];
+        int written = 0;
+
+        directoryService.getOperationManager().lockWrite();
+
+        try
+        {
+            PartitionTxn partitionTxn = null;
+
+            try
+            {
+                partitionTxn = partition.beginWriteTransaction();
+
+                for ( int i = 0; i < batch.size(); i++ )
+                {
+                    PendingState state = batch.get( i );
+                    Map<AttributeType, Attribute> attributes;
+
+                    // The state is read once we hold the write lock : an operation which has
+                    // updated the entry is either done, and has discarded the state, or will
+                    // only start once the state is written
+                    synchronized ( state )
+                    {
+                        if ( state.discarded )
+                        {
+                            continue;
+                        }
+
+                        attributes = new HashMap<>( state.attributes );
+                        versions[i] = state.version;
+                    }
+
+                    if ( write( partition, partitionTxn, state.dn, attributes ) )
+                    {
+                        written++;
+                    }
+
+                    flushed[i] = true;
+                }
+
+                partitionTxn.commit();
+            }
+            catch ( LdapException le )
+            {
+                abort( partitionTxn );
+
+                throw le;
+            }
+            catch ( IOException ioe )
+            {
+                abort( partitionTxn );
+
+                throw new LdapOtherException( ioe.getMessage(), ioe );
+            }
+        }
+        finally
+        {
+            directoryService.getOperationManager().unlockWrite();
+        }
+
+        // The entries are now up to date, unless their state was updated during the write
+        for ( int i = 0; i < batch.size(); i++ )
+        {
+            PendingState state = batch.get( i );
+
+            synchronized ( state )
+            {
+                if ( flushed[i] && ( state.version == versions[i] ) )
+                {
+                    state.discarded = true;
+                    states.remove( state.dn.getNormName(), state );
+                }
+            }
+        }
+
+        return written;
+    }
+
+
+    /**
+     * Writes the state attributes into an entry, in a partition transaction
+     */
+    private boolean write( Partition partition, PartitionTxn partitionTxn, Dn dn,
+        Map<AttributeType, Attribute> attributes ) throws LdapException
+    {
+        LookupOperationContext lookupContext = new LookupOperationContext( adminSession, dn,
+            SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+        lookupContext.setPartition( partition );
+        lookupContext.setTransaction( partitionTxn );
+
+        Entry entry = directoryService.getPartitionNexus().lookup( lookupContext );
+        List<Modification> mods = new ArrayList<>();
+
+        if ( entry != null )
+        {
+            for ( Attribute attribute : attributes.values() )
+            {
+                if ( attribute.size() > 0 )
+                {
+                    mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attribute ) );
+                }
+                else if ( entry.containsAttribute( attribute.getAttributeType() ) )
+                {
+                    mods.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+                        attribute.getAttributeType() ) );
+                }
+            }
+        }
+
+        if ( mods.isEmpty() )
+        {
+            // The entry has been deleted, or is already up to date
+            return false;
+        }
+
+        mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            directoryService.getAtProvider().getEntryCSN(), directoryService.getCSN().toString() ) );
+
+        ModifyOperationContext modContext = new ModifyOperationContext( adminSession );
+        modContext.setDn( dn );
+        modContext.setEntry( entry );
+        modContext.setModItems( mods );
+        modContext.setPushToEvtInterceptor( true );
+        modContext.setPartition( partition );
+        modContext.setTransaction( partitionTxn );
+
+        directoryService.getPartitionNexus().modify( modContext );
+
+        return true;
+    }
+
+
+    private void abort( PartitionTxn partitionTxn ) throws LdapException
+    {
+        try
+        {
+            if ( partitionTxn != null )
+            {
+                partitionTxn.abort();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * The state attributes of a user not written yet
+     */
+    private static final class PendingState
+    {
+        /** The user Dn */
+        private final Dn dn;
+
+        /** The state attributes. An empty attribute means it has been removed */
+        private final Map<AttributeType, Attribute> attributes = new HashMap<>();
+
+        /** The number of updates */
+        private long version;
+
+        /** Tells if the state has been removed from the store */
+        private boolean discarded;
+
+
+        private PendingState( Dn dn )
+        {
+            this.dn = dn;
+        }
+    }
+}
@@ -21,10 +21,17 @@ package org.apache.directory.server.core.authn;
 
 
 import java.net.SocketAddress;
-
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.naming.Context;
 
-import org.apache.commons.collections4.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -37,6 +44,7 @@ import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyException;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
@@ -45,6 +53,9 @@ import org.apache.directory.server.core.api.interceptor.context.LookupOperationC
 import org.apache.directory.server.i18n.I18n;
 import org.apache.mina.core.session.IoSession;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 
 /**
  * A simple {@link Authenticator} that authenticates clear text passwords
@@ -53,6 +64,9 @@ import org.apache.mina.core.session.IoSession;
  * is hashed the same way before comparison.
  *
  * We use a cache to speedup authentication, where the Dn/password are stored.
+ * The cache also keeps a keyed digest of the last password successfully checked
+ * for each Dn, so that a repeated bind does not have to hash the password again,
+ * which is costly with the PKCS5S2 or crypt schemes.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -61,6 +75,9 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     /** A speedup for logger in debug mode */
     private static final boolean IS_DEBUG = LOG.isDebugEnabled();
 
+    /** The algorithm used to digest the verified passwords */
+    private static final String DIGEST_ALGORITHM = "HmacSHA256";
+
     /**
      * A cache to store passwords. It's a speedup, we will be able to avoid backend lookups.
      *
@@ -75,9 +92,19 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * just have to offer an access to refresh the local cache.
      *
      * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * The cache is not locked on each bind : when it's full, Caffeine evicts the entries which
+     * are the least likely to be used again.
      */
-    private final LRUMap credentialCache;
+    private final Cache<String, CachedCredentials> credentialCache;
+
+    /** Incremented each time an entry is invalidated, so that we don't cache a stale password */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** The key used to digest the verified passwords, specific to this authenticator */
+    private final SecretKeySpec digestKey;
+
+    /** The Mac instances, which can't be shared by the threads */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
 
     /** Declare a default for this cache. 100 entries seems to be enough */
     private static final int DEFAULT_CACHE_SIZE = 100;
@@ -88,8 +115,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator()
     {
-        super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        this( DEFAULT_CACHE_SIZE, Dn.ROOT_DSE );
     }
 
 
@@ -101,8 +127,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( Dn baseDn )
     {
-        super( AuthenticationLevel.SIMPLE, baseDn );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        this( DEFAULT_CACHE_SIZE, baseDn );
     }
 
 
@@ -112,9 +137,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator( int cacheSize )
     {
-        super( AuthenticationLevel.SIMPLE, Dn.ROOT_DSE );
-
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        this( cacheSize, Dn.ROOT_DSE );
     }
 
 
@@ -128,63 +151,91 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     {
         super( AuthenticationLevel.SIMPLE, baseDn );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        // The evictions are done by the binds adding credentials
+        credentialCache = Caffeine.newBuilder()
+            .maximumSize( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE )
+            .executor( Runnable::run )
+            .build();
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes( key );
+        digestKey = new SecretKeySpec( key, DIGEST_ALGORITHM );
     }
 
 
     /**
      * Get the password either from cache or from backend.
-     * @param principalDN The Dn from which we want the password
-     * @return A byte array which can be empty if the password was not found
-     * @throws Exception If we have a problem during the lookup operation
+     * @param bindContext The Bind operation context
+     * @param useCache Tells if the cache can be used
+     * @return The stored passwords, which can be empty if the password was not found
+     * @throws LdapException If we have a problem during the lookup operation
      */
-    private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
+    private CachedCredentials getStoredPassword( BindOperationContext bindContext, boolean useCache )
+        throws LdapException
     {
-        LdapPrincipal principal = null;
+        String normName = bindContext.getDn().getNormName();
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
+        if ( useCache )
         {
-            synchronized ( credentialCache )
+            CachedCredentials cached = credentialCache.getIfPresent( normName );
+
+            if ( cached != null )
             {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn() );
+                // The callers of the bind may need the entry, as when it's looked up
+                bindContext.setEntry( new ClonedServerEntry( cached.entry ) );
+
+                return cached;
             }
         }
 
-        byte[][] storedPasswords;
+        // Not found in the cache
+        // Get the user password from the backend. Note that we may have read it before
+        // it's modified, if it's invalidated before we store it.
+        long generation = invalidations.get();
+        CachedCredentials cached = lookupUserPassword( bindContext );
 
-        if ( principal == null )
+        // Now, update the local cache ONLY if pwdpolicy is not enabled.
+        if ( useCache )
         {
-            // Not found in the cache
-            // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
-
-            // Deal with the special case where the user didn't enter a password
-            // We will compare the empty array with the credentials. Sometime,
-            // a user does not set a password. This is bad, but there is nothing
-            // we can do against that, except education ...
-            if ( storedPasswords == null )
+            credentialCache.put( normName, cached );
+
+            if ( invalidations.get() != generation )
             {
-                storedPasswords = new byte[][]
-                    {};
+                credentialCache.asMap().remove( normName, cached );
             }
+        }
+
+        return cached;
+    }
+
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+    /**
+     * Computes the keyed digest of some credentials.
+     *
+     * @param credentials The credentials
+     * @return The digest, or null if it can't be computed
+     */
+    private byte[] digest( byte[] credentials )
+    {
+        Mac mac = macs.get();
 
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
+        try
+        {
+            if ( mac == null )
             {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
+                mac = Mac.getInstance( DIGEST_ALGORITHM );
+                mac.init( digestKey );
+                macs.set( mac );
             }
+
+            return mac.doFinal( credentials == null ? new byte[0] : credentials );
         }
+        catch ( GeneralSecurityException gse )
+        {
+            LOG.warn( "Cannot digest the credentials, the passwords will be checked on each bind", gse );
 
-        return principal;
+            return null;
+        }
     }
 
 
@@ -206,7 +257,17 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // ---- extract password from JNDI environment
         byte[] credentials = bindContext.getCredentials();
 
-        LdapPrincipal principal = getStoredPassword( bindContext );
+        // use cache only if pwdpolicy is not enabled
+        boolean useCache = !getDirectoryService().isPwdPolicyEnabled();
+
+        // Get the stored password, either from cache or from backend
+        CachedCredentials cached = getStoredPassword( bindContext, useCache );
+        byte[][] storedPasswords = cached.storedPasswords;
+
+        // The principal is not shared by the sessions, as it holds their addresses
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( storedPasswords );
 
         IoSession session = bindContext.getIoSession();
 
@@ -218,9 +279,6 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             principal.setServerAddress( serverAddress );
         }
 
-        // Get the stored password, either from cache or from backend
-        byte[][] storedPasswords = principal.getUserPasswords();
-
         PasswordPolicyException ppe = null;
         try
         {
@@ -231,24 +289,35 @@ public class SimpleAuthenticator extends AbstractAuthenticator
             ppe = e;
         }
 
+        // The same password has already been checked against the stored ones
+        byte[] digest = useCache ? digest( credentials ) : null;
+        boolean authenticated = ( digest != null ) && MessageDigest.isEqual( digest, cached.verifiedDigest );
+
         // Now, compare the passwords.
-        for ( byte[] storedPassword : storedPasswords )
+        if ( !authenticated )
         {
-            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            authenticated = comparePasswords( credentials, storedPasswords );
+
+            if ( authenticated && ( digest != null ) )
             {
-                if ( ppe != null )
-                {
-                    LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
-                    throw ppe;
-                }
+                cached.verifiedDigest = digest;
+            }
+        }
 
-                if ( IS_DEBUG )
-                {
-                    LOG.debug( "{} Authenticated", bindContext.getDn() );
-                }
+        if ( authenticated )
+        {
+            if ( ppe != null )
+            {
+                LOG.debug( "{} Authentication failed: {}", bindContext.getDn(), ppe.getMessage() );
+                throw ppe;
+            }
 
-                return principal;
+            if ( IS_DEBUG )
+            {
+                LOG.debug( "{} Authenticated", bindContext.getDn() );
             }
+
+            return principal;
         }
 
         // Bad password ...
@@ -258,13 +327,59 @@ public class SimpleAuthenticator extends AbstractAuthenticator
     }
 
 
+    /**
+     * Compares the credentials with the stored passwords, on the password hashing executor
+     * if the DirectoryService has one.
+     *
+     * @param credentials The credentials
+     * @param storedPasswords The stored passwords
+     * @return <tt>true</tt> if the credentials match one of the passwords
+     * @throws LdapException If the executor is too busy to compare the passwords
+     */
+    private boolean comparePasswords( final byte[] credentials, final byte[][] storedPasswords ) throws LdapException
+    {
+        PasswordHashingExecutor executor = getDirectoryService().getPasswordHashingExecutor();
+
+        if ( executor == null )
+        {
+            return matches( credentials, storedPasswords );
+        }
+
+        return executor.call( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return matches( credentials, storedPasswords );
+            }
+        } );
+    }
+
+
+    /**
+     * Tells if the credentials match one of the stored passwords
+     */
+    private static boolean matches( byte[] credentials, byte[][] storedPasswords )
+    {
+        for ( byte[] storedPassword : storedPasswords )
+        {
+            if ( PasswordUtil.compareCredentials( credentials, storedPassword ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Local function which request the password from the backend
      * @param bindContext the Bind operation context
-     * @return the credentials from the backend
+     * @return the user entry and its credentials from the backend
      * @throws Exception if there are problems accessing backend
      */
-    private byte[][] lookupUserPassword( BindOperationContext bindContext ) throws LdapException
+    private CachedCredentials lookupUserPassword( BindOperationContext bindContext ) throws LdapException
     {
         // ---- lookup the principal entry's userPassword attribute
         Entry userEntry;
@@ -328,8 +443,8 @@ public class SimpleAuthenticator extends AbstractAuthenticator
         // ---- assert that credentials match
         if ( userPasswordAttr == null )
         {
-            return new byte[][]
-                {};
+            return new CachedCredentials( userEntry, new byte[][]
+                {} );
         }
         else
         {
@@ -342,21 +457,64 @@ public class SimpleAuthenticator extends AbstractAuthenticator
                 pos++;
             }
 
-            return userPasswords;
+            return new CachedCredentials( userEntry, userPasswords );
         }
     }
 
 
     /**
      * Remove the principal form the cache. This is used when the user changes
-     * his password.
+     * his password. The entries below the principal are removed too, as they
+     * don't exist anymore under their cached Dn when the principal is moved or
+     * renamed.
      */
     @Override
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
+        // Tells the binds looking up the password that it may be stale
+        invalidations.incrementAndGet();
+
+        String normName = bindDn.getNormName();
+        credentialCache.invalidate( normName );
+
+        if ( credentialCache.estimatedSize() > 0L )
+        {
+            String descendantSuffix = "," + normName;
+            Iterator<String> names = credentialCache.asMap().keySet().iterator();
+
+            while ( names.hasNext() )
+            {
+                String name = names.next();
+
+                if ( bindDn.isRootDse() || name.endsWith( descendantSuffix ) )
+                {
+                    names.remove();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The passwords of an entry, and the digest of the last password they have been
+     * successfully compared with.
+     */
+    private static final class CachedCredentials
+    {
+        /** The user entry */
+        private final Entry entry;
+
+        /** The passwords stored in the entry */
+        private final byte[][] storedPasswords;
+
+        /** The digest of the last verified password */
+        private volatile byte[] verifiedDigest;
+
+
+        private CachedCredentials( Entry entry, byte[][] storedPasswords )
         {
-            credentialCache.remove( bindDn.getNormName() );
+            this.entry = entry;
+            this.storedPasswords = storedPasswords;
         }
     }
 }
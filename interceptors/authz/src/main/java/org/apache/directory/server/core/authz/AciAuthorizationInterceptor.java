@@ -48,7 +48,6 @@ import org.apache.directory.api.ldap.model.exception.LdapOperationException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -158,6 +157,18 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     /** use and instance of the ACDF engine */
     private ACDFEngine engine;
 
+    /** the compiled tuple sets and the memoized decisions */
+    private AciDecisionCache decisionCache;
+
+    /** the maximum number of memoized decisions */
+    private int maxAciDecisions = AciDecisionCache.DEFAULT_MAX_DECISIONS;
+
+    /** tells if the groups of a user are loaded when it's first seen, instead of at startup */
+    private boolean lazyGroupLoading;
+
+    /** tells if the groups the groups of a user are members of are also used */
+    private boolean nestedGroups;
+
     /** the system wide subschemaSubentryDn */
     private Dn subschemaSubentryDn;
 
@@ -231,50 +242,6 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
-    /**
-     * Load the Groups into the cache
-     */
-    private void initGroupCache() throws LdapException
-    {
-        // Load all the member/uniqueMember : they are stored in groupOfNames/groupOfUniqueName
-        SearchControls controls = new SearchControls();
-        controls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-        controls.setReturningAttributes( new String[]
-            { SchemaConstants.MEMBER_AT, SchemaConstants.UNIQUE_MEMBER_AT } );
-        AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
-
-        ExprNode filter =
-            new OrNode(
-                new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_NAMES_OC ) ),
-                new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC ) ) );
-
-        CoreSession adminSession = directoryService.getAdminSession();
-        
-        SearchOperationContext searchOperationContext = new SearchOperationContext( adminSession, Dn.ROOT_DSE, filter,
-            controls );
-
-        searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
-
-        EntryFilteringCursor results = nexus.search( searchOperationContext );
-
-        try
-        {
-            while ( results.next() )
-            {
-                Entry entry = results.get();
-
-                groupCache.groupAdded( entry.getDn().getNormName(), entry );
-            }
-
-            results.close();
-        }
-        catch ( Exception e )
-        {
-            throw new LdapOperationException( e.getMessage(), e );
-        }
-    }
-
-
     /**
      * Initializes this interceptor based service by getting a handle on the nexus, setting up
      * the tuple and group membership caches, the ACIItem parser and the ACDF engine.
@@ -295,7 +262,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         // Create the caches
         tupleCache = new TupleCache( adminSession );
-        groupCache = new GroupCache( directoryService );
+        groupCache = new GroupCache( directoryService, lazyGroupLoading, nestedGroups );
 
         // Iitialize the ACI PARSER and ACDF engine
         aciParser = new ACIItemParser( new ConcreteNameComponentNormalizer( schemaManager ), schemaManager );
@@ -308,7 +275,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         // Init the caches now
         initTupleCache();
-        initGroupCache();
+        decisionCache = new AciDecisionCache( tupleCache, maxAciDecisions );
 
         // Init the SubentryUtils instance
         subentryUtils = new SubentryUtils( directoryService );
@@ -1291,10 +1258,7 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         LdapPrincipal principal = lookupContext.getSession().getEffectivePrincipal();
         Dn userName = principal.getDn();
         Set<String> userGroups = groupCache.getGroups( userName.getNormName() );
-        Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( lookupContext, tuples, dn, entry );
-        addEntryAciTuples( tuples, entry );
-        addSubentryAciTuples( lookupContext, tuples, dn, entry );
+        AciDecisionCache.TupleSet tupleSet = getTupleSet( lookupContext, dn, entry, entry );
 
         // check that we have read access to the entry
         AciContext aciContext = new AciContext( schemaManager, lookupContext );
@@ -1303,10 +1267,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
         aciContext.setEntryDn( dn );
         aciContext.setMicroOperations( LOOKUP_PERMS );
-        aciContext.setAciTuples( tuples );
         aciContext.setEntry( entry );
 
-        engine.checkPermission( aciContext );
+        checkPermission( aciContext, tupleSet );
 
         // check that we have read access to every attribute type and value
         for ( Attribute attribute : entry )
@@ -1322,16 +1285,84 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 valueAciContext.setAttributeType( attribute.getAttributeType() );
                 valueAciContext.setAttrValue( value );
                 valueAciContext.setMicroOperations( READ_PERMS );
-                valueAciContext.setAciTuples( tuples );
                 valueAciContext.setEntry( entry );
 
-                engine.checkPermission( valueAciContext );
+                checkPermission( valueAciContext, tupleSet );
             }
         }
     }
 
 
-    public final boolean isPrincipalAnAdministrator( Dn principalDn )
+    /**
+     * @return The maximum number of memoized access control decisions
+     */
+    public int getMaxAciDecisions()
+    {
+        return maxAciDecisions;
+    }
+
+
+    /**
+     * Sets the maximum number of memoized access control decisions. It must be set
+     * before the interceptor is initialized.
+     *
+     * @param maxAciDecisions The maximum number of decisions
+     */
+    public void setMaxAciDecisions( int maxAciDecisions )
+    {
+        this.maxAciDecisions = maxAciDecisions;
+    }
+
+
+    /**
+     * @return true if the groups of a user are loaded the first time the user is seen
+     */
+    public boolean isLazyGroupLoading()
+    {
+        return lazyGroupLoading;
+    }
+
+
+    /**
+     * Sets if the groups of a user are loaded the first time the user is seen, instead
+     * of loading all the groups at startup. The member and uniqueMember attributes should
+     * be indexed. It must be set before the interceptor is initialized.
+     *
+     * @param lazyGroupLoading true to load the groups lazily
+     */
+    public void setLazyGroupLoading( boolean lazyGroupLoading )
+    {
+        this.lazyGroupLoading = lazyGroupLoading;
+    }
+
+
+    /**
+     * @return true if the groups of the groups of a user are also used
+     */
+    public boolean isNestedGroups()
+    {
+        return nestedGroups;
+    }
+
+
+    /**
+     * Sets if the groups the groups of a user are members of, transitively, are also
+     * used when checking the userGroup user classes.
+     *
+     * @param nestedGroups true to use the nested groups
+     */
+    public void setNestedGroups( boolean nestedGroups )
+    {
+        this.nestedGroups = nestedGroups;
+
+        if ( groupCache != null )
+        {
+            groupCache.setNested( nestedGroups );
+        }
+    }
+
+
+    public final boolean isPrincipalAnAdministrator( Dn principalDn ) throws LdapException
     {
         return groupCache.isPrincipalAnAdministrator( principalDn.getNormName() );
     }
@@ -1343,7 +1374,67 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
-    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    /**
+     * Gets the tuples applying to an entry. They are compiled once for all the entries
+     * sharing the same accessControlSubentries and entryACI, subentries excepted.
+     *
+     * @param opContext The operation context
+     * @param dn The normalized entry Dn
+     * @param entry The entry
+     * @param aciEntry The entry the entryACI and subentryACI are read from
+     * @return The compiled tuple set
+     */
+    private AciDecisionCache.TupleSet getTupleSet( OperationContext opContext, Dn dn, Entry entry, Entry aciEntry )
+        throws LdapException
+    {
+        Entry originalEntry = entry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        String key = null;
+
+        if ( !originalEntry.contains( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.SUBENTRY_OC )
+            && !aciEntry.contains( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.SUBENTRY_OC ) )
+        {
+            key = AciDecisionCache.getTupleSetKey(
+                originalEntry.get( directoryService.getAtProvider().getAccessControlSubentries() ),
+                aciEntry.get( directoryService.getAtProvider().getEntryACI() ) );
+
+            AciDecisionCache.TupleSet tupleSet = decisionCache.getTupleSet( key );
+
+            if ( tupleSet != null )
+            {
+                return tupleSet;
+            }
+        }
+
+        long generation = tupleCache.getGeneration();
+        Collection<ACITuple> tuples = new HashSet<>();
+        addPerscriptiveAciTuples( opContext, tuples, dn, entry );
+        addEntryAciTuples( tuples, aciEntry );
+        addSubentryAciTuples( opContext, tuples, dn, aciEntry );
+
+        return decisionCache.compile( key, tuples, generation );
+    }
+
+
+    /**
+     * Checks a permission, throwing a {@link LdapNoPermissionException} if it's not granted.
+     */
+    private void checkPermission( AciContext aciContext, AciDecisionCache.TupleSet tupleSet ) throws LdapException
+    {
+        if ( !decisionCache.hasPermission( engine, aciContext, tupleSet ) )
+        {
+            throw new LdapNoPermissionException();
+        }
+    }
+
+
+    private boolean filter( OperationContext opContext, Set<String> userGroups, Dn normName, Entry clonedEntry )
+        throws LdapException
     {
         /*
          * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
@@ -1353,11 +1444,8 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
 
         LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
         Dn userDn = principal.getDn();
-        Set<String> userGroups = groupCache.getGroups( userDn.getNormName() );
-        Collection<ACITuple> tuples = new HashSet<>();
-        addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        Entry originalEntry = ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry();
+        AciDecisionCache.TupleSet tupleSet = getTupleSet( opContext, normName, clonedEntry, originalEntry );
 
         AciContext aciContext = new AciContext( schemaManager, opContext );
         aciContext.setUserGroupNames( userGroups );
@@ -1365,10 +1453,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
         aciContext.setEntryDn( normName );
         aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
-        aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        aciContext.setEntry( originalEntry );
 
-        if ( !engine.hasPermission( aciContext ) )
+        if ( !decisionCache.hasPermission( engine, aciContext, tupleSet ) )
         {
             return false;
         }
@@ -1395,10 +1482,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             aciContext.setEntryDn( normName );
             aciContext.setAttributeType( attributeType );
             aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-            aciContext.setAciTuples( tuples );
             aciContext.setEntry( clonedEntry );
 
-            if ( !engine.hasPermission( aciContext ) )
+            if ( !decisionCache.hasPermission( engine, aciContext, tupleSet ) )
             {
                 attributeToRemove.add( attributeType );
 
@@ -1418,10 +1504,9 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 aciContext.setAttributeType( attr.getAttributeType() );
                 aciContext.setAttrValue( value );
                 aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-                aciContext.setAciTuples( tuples );
                 aciContext.setEntry( clonedEntry );
 
-                if ( !engine.hasPermission( aciContext ) )
+                if ( !decisionCache.hasPermission( engine, aciContext, tupleSet ) )
                 {
                     valueToRemove.add( value );
                 }
@@ -1451,6 +1536,10 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
      */
     private class AuthorizationFilter implements EntryFilter
     {
+        /** The groups of the user, read once for the whole search */
+        private Set<String> userGroups;
+
+
         /**
          * {@inheritDoc}
          */
@@ -1462,7 +1551,13 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
                 entry.setDn(  new Dn( schemaManager, entry.getDn() ) );
             }
 
-            return filter( searchContext, entry.getDn(), entry );
+            if ( userGroups == null )
+            {
+                userGroups = groupCache.getGroups( searchContext.getSession().getEffectivePrincipal().getDn()
+                    .getNormName() );
+            }
+
+            return filter( searchContext, userGroups, entry.getDn(), entry );
         }
 
 
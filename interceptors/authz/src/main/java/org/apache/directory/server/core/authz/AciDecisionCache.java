@@ -0,0 +1,423 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeValueItem;
+import org.apache.directory.api.ldap.aci.protectedItem.ClassesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxValueCountItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RangeOfValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.RestrictedByItem;
+import org.apache.directory.api.ldap.aci.protectedItem.SelfValueItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.subtree.SubtreeSpecification;
+import org.apache.directory.server.core.authz.support.ACDFEngine;
+import org.apache.directory.server.core.authz.support.AciContext;
+
+
+/**
+ * A cache of the ACI tuples applying to the entries, and of the access control
+ * decisions taken on them.
+ * <p>
+ * The tuples applying to an entry only depend on its accessControlSubentries and on
+ * its entryACI : the entries sharing them share a compiled {@link TupleSet}, so the
+ * prescriptive tuples are gathered and the entryACI are parsed once.
+ * <p>
+ * When the tuples of a set only depend on the requester and on the attribute type,
+ * and not on the entry content, the decision of the ACDF engine is the same for all
+ * the entries sharing the set. It is then memoized per requester (name, groups and
+ * authentication level), tuple set, micro operations, scope and attribute type. The
+ * tuple sets using the thisEntry or parentOfEntry user classes, a subtree user class
+ * with a refinement, or protected items evaluated on the entry or the value (classes,
+ * attributeValue, selfValue, rangeOfValues, maxValueCount, restrictedBy, maxImmSub)
+ * are always evaluated by the engine.
+ * <p>
+ * The cache is invalidated when the {@link TupleCache} changes. A change of the groups
+ * changes the groups of the requesters, which are part of the decisions key. The
+ * caches are emptied when they exceed their size.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AciDecisionCache
+{
+    /** The default maximum number of memoized decisions */
+    public static final int DEFAULT_MAX_DECISIONS = 100000;
+
+    /** The maximum number of compiled tuple sets */
+    private static final int MAX_TUPLE_SETS = 10000;
+
+    /** The separator of the parts of a tuple set key */
+    private static final char SEPARATOR = '\u0000';
+
+    /** The cache providing the prescriptive tuples */
+    private final TupleCache tupleCache;
+
+    /** The maximum number of memoized decisions */
+    private final int maxDecisions;
+
+    /** The compiled tuple sets, by key */
+    private final Map<String, TupleSet> tupleSets = new ConcurrentHashMap<>();
+
+    /** The memoized decisions */
+    private final Map<DecisionKey, Boolean> decisions = new ConcurrentHashMap<>();
+
+    /** The TupleCache generation the cache contents have been computed with */
+    private volatile long generation;
+
+
+    /**
+     * Creates a new instance of AciDecisionCache.
+     *
+     * @param tupleCache The cache providing the prescriptive tuples
+     * @param maxDecisions The maximum number of memoized decisions
+     */
+    public AciDecisionCache( TupleCache tupleCache, int maxDecisions )
+    {
+        this.tupleCache = tupleCache;
+        this.maxDecisions = maxDecisions;
+        this.generation = tupleCache.getGeneration();
+    }
+
+
+    /**
+     * The tuples applying to a set of entries, with the generation of the TupleCache
+     * they have been gathered from.
+     */
+    public static final class TupleSet
+    {
+        /** The set key, null if the set can't be shared */
+        private final String key;
+
+        /** The tuples */
+        private final Collection<ACITuple> tuples;
+
+        /** Tells if the decisions taken on the set can be memoized */
+        private final boolean memoizable;
+
+        /** The TupleCache generation */
+        private final long generation;
+
+
+        private TupleSet( String key, Collection<ACITuple> tuples, long generation )
+        {
+            this.key = key;
+            this.tuples = Collections.unmodifiableCollection( tuples );
+            this.generation = generation;
+            this.memoizable = ( key != null ) && isMemoizable( tuples );
+        }
+
+
+        /**
+         * @return The tuples
+         */
+        public Collection<ACITuple> getTuples()
+        {
+            return tuples;
+        }
+
+
+        /**
+         * @return true if the decisions taken on the set can be memoized
+         */
+        public boolean isMemoizable()
+        {
+            return memoizable;
+        }
+    }
+
+
+    /**
+     * The key of a memoized decision
+     */
+    private static final class DecisionKey
+    {
+        private final String userDn;
+        private final Collection<String> userGroups;
+        private final AuthenticationLevel authenticationLevel;
+        private final TupleSet tupleSet;
+        private final Collection<MicroOperation> microOperations;
+        private final String attributeTypeOid;
+        private final boolean valueScope;
+        private final int hashCode;
+
+
+        private DecisionKey( AciContext aciContext, TupleSet tupleSet )
+        {
+            userDn = aciContext.getUserDn().getNormName();
+            userGroups = aciContext.getUserGroupNames();
+            authenticationLevel = aciContext.getAuthenticationLevel();
+            this.tupleSet = tupleSet;
+            microOperations = aciContext.getMicroOperations();
+            AttributeType attributeType = aciContext.getAttributeType();
+            attributeTypeOid = ( attributeType == null ) ? null : attributeType.getOid();
+            valueScope = aciContext.getAttrValue() != null;
+            hashCode = Objects.hash( userDn, userGroups, authenticationLevel, tupleSet.key, microOperations,
+                attributeTypeOid, valueScope );
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( this == o )
+            {
+                return true;
+            }
+
+            if ( !( o instanceof DecisionKey ) )
+            {
+                return false;
+            }
+
+            DecisionKey other = ( DecisionKey ) o;
+
+            return ( hashCode == other.hashCode ) && ( valueScope == other.valueScope )
+                && ( authenticationLevel == other.authenticationLevel )
+                && ( tupleSet.generation == other.tupleSet.generation )
+                && userDn.equals( other.userDn )
+                && tupleSet.key.equals( other.tupleSet.key )
+                && Objects.equals( attributeTypeOid, other.attributeTypeOid )
+                && microOperations.equals( other.microOperations )
+                && userGroups.equals( other.userGroups );
+        }
+    }
+
+
+    /**
+     * Computes the key of the tuple set applying to an entry, from its accessControlSubentries
+     * and entryACI values.
+     *
+     * @param accessControlSubentries The entry accessControlSubentries, or null
+     * @param entryAci The entry entryACI, or null
+     * @return The key
+     */
+    public static String getTupleSetKey( Attribute accessControlSubentries, Attribute entryAci )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        if ( accessControlSubentries != null )
+        {
+            for ( Value value : accessControlSubentries )
+            {
+                sb.append( value.getNormalized() ).append( SEPARATOR );
+            }
+        }
+
+        sb.append( SEPARATOR );
+
+        if ( entryAci != null )
+        {
+            for ( Value value : entryAci )
+            {
+                sb.append( value.getString() ).append( SEPARATOR );
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Gets a compiled tuple set, if it's still valid.
+     *
+     * @param key The tuple set key
+     * @return The tuple set, or null if it has not been compiled
+     */
+    public TupleSet getTupleSet( String key )
+    {
+        checkGeneration();
+
+        TupleSet tupleSet = tupleSets.get( key );
+
+        if ( ( tupleSet == null ) || ( tupleSet.generation != tupleCache.getGeneration() ) )
+        {
+            return null;
+        }
+
+        return tupleSet;
+    }
+
+
+    /**
+     * Compiles a tuple set. The tuples must have been gathered after having read the
+     * TupleCache generation.
+     *
+     * @param key The tuple set key, or null if the set can't be shared with other entries
+     * @param tuples The tuples applying to the entry
+     * @param generation The TupleCache generation, read before gathering the tuples
+     * @return The compiled tuple set
+     */
+    public TupleSet compile( String key, Collection<ACITuple> tuples, long generation )
+    {
+        TupleSet tupleSet = new TupleSet( key, tuples, generation );
+
+        if ( key != null )
+        {
+            if ( tupleSets.size() >= MAX_TUPLE_SETS )
+            {
+                tupleSets.clear();
+            }
+
+            tupleSets.put( key, tupleSet );
+        }
+
+        return tupleSet;
+    }
+
+
+    /**
+     * Tells if the user described in an ACI context has the permission to access a
+     * resource, using the memoized decision when possible.
+     *
+     * @param engine The ACDF engine
+     * @param aciContext The ACI context, without its tuples
+     * @param tupleSet The tuples applying to the resource
+     * @return true if the permission is granted
+     * @throws LdapException If the ACI can't be evaluated
+     */
+    public boolean hasPermission( ACDFEngine engine, AciContext aciContext, TupleSet tupleSet ) throws LdapException
+    {
+        aciContext.setAciTuples( tupleSet.getTuples() );
+
+        if ( !tupleSet.isMemoizable() || ( aciContext.getUserDn() == null ) )
+        {
+            return engine.hasPermission( aciContext );
+        }
+
+        DecisionKey key = new DecisionKey( aciContext, tupleSet );
+        Boolean decision = decisions.get( key );
+
+        if ( decision != null )
+        {
+            return decision;
+        }
+
+        boolean granted = engine.hasPermission( aciContext );
+
+        if ( decisions.size() >= maxDecisions )
+        {
+            decisions.clear();
+        }
+
+        decisions.put( key, granted );
+
+        return granted;
+    }
+
+
+    /**
+     * Empties the caches when the TupleCache has changed. A decision computed before the
+     * change and stored after it can't be read, as its key holds the old generation.
+     */
+    private void checkGeneration()
+    {
+        long current = tupleCache.getGeneration();
+
+        if ( current != generation )
+        {
+            generation = current;
+            tupleSets.clear();
+            decisions.clear();
+        }
+    }
+
+
+    /**
+     * @return The number of memoized decisions
+     */
+    public int getDecisionCount()
+    {
+        return decisions.size();
+    }
+
+
+    /**
+     * Tells if the decisions taken on a set of tuples only depend on the requester, on
+     * the micro operations, on the scope and on the attribute type.
+     */
+    private static boolean isMemoizable( Collection<ACITuple> tuples )
+    {
+        for ( ACITuple tuple : tuples )
+        {
+            for ( UserClass userClass : tuple.getUserClasses() )
+            {
+                if ( ( userClass == UserClass.THIS_ENTRY ) || ( userClass == UserClass.PARENT_OF_ENTRY ) )
+                {
+                    return false;
+                }
+
+                if ( userClass instanceof UserClass.Subtree )
+                {
+                    for ( SubtreeSpecification subtreeSpecification : ( ( UserClass.Subtree ) userClass )
+                        .getSubtreeSpecifications() )
+                    {
+                        // The refinement is evaluated on the user entry, which may change
+                        if ( subtreeSpecification.getRefinement() != null )
+                        {
+                            return false;
+                        }
+                    }
+                }
+            }
+
+            for ( ProtectedItem item : tuple.getProtectedItems() )
+            {
+                if ( ( item instanceof AttributeValueItem ) || ( item instanceof ClassesItem )
+                    || ( item instanceof MaxImmSubItem ) || ( item instanceof MaxValueCountItem )
+                    || ( item instanceof RangeOfValuesItem ) || ( item instanceof RestrictedByItem )
+                    || ( item instanceof SelfValueItem ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}
@@ -20,6 +20,11 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -36,8 +41,9 @@ import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
-import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -51,6 +57,7 @@ import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +65,21 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A cache for tracking static group membership.
+ * <p>
+ * The cache is an index from each member to the groups it directly belongs to, so
+ * that the groups of a user are found without scanning all the groups. A member Dn
+ * is stored once, as the key of the index, whatever the number of groups it belongs
+ * to. The index is concurrent : it's read without any lock, and updated under a lock
+ * by the group add, delete, modify and rename operations.
+ * <p>
+ * When the nested groups are enabled, the groups of a member also contain the groups
+ * its groups are members of, transitively. They are computed from the index on each
+ * call, so a group change is immediately visible to all its nested members.
+ * <p>
+ * When the groups are lazily loaded, the groups are not read at startup : the groups
+ * of a member are searched for the first time they are requested, and then kept up to
+ * date. The <em>member</em> and <em>uniqueMember</em> attributes should be indexed in
+ * this case.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -89,29 +111,71 @@ public class GroupCache
     /** The Admin user DN */
     private Dn adminSystemDn;
 
-    private static final Set<String> EMPTY_GROUPS = new HashSet<>();
+    private static final Set<String> EMPTY_GROUPS = Collections.emptySet();
 
-    /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
-    private final Map<String, Set<String>> groups = new ConcurrentHashMap<>();
+    /** The number of pending changes above which the old ones are discarded */
+    private static final int MAX_PENDING_CHANGES = 10000;
+
+    /** The delay after which a pending change is considered as committed, in ms */
+    private static final long PENDING_CHANGES_DELAY = 60000L;
+
+    /** The normalized Dn of a member to the normalized Dns of the groups it directly belongs to */
+    private final Map<String, Set<String>> memberOf = new ConcurrentHashMap<>();
+
+    /** The lock protecting the index updates */
+    private final Object updateLock = new Object();
+
+    /** The changes made to the groups of the members not loaded yet, when lazily loading */
+    private final Map<String, PendingChanges> pendingChanges = new HashMap<>();
+
+    /** The old names of the renamed groups to their new names and the time of the rename, when lazily loading */
+    private final Map<String, Map.Entry<String, Long>> pendingRenames = new HashMap<>();
+
+    /** Tells if the groups are loaded when a member is looked up for the first time */
+    private final boolean lazy;
+
+    /** Tells if the groups of the groups are also returned */
+    private volatile boolean nested;
 
 
     /**
-     * Creates a static group cache.
+     * Creates a static group cache, loading all the groups.
      *
      * @param dirService the directory service core
      * @throws LdapException if there are failures on initialization
      */
     public GroupCache( DirectoryService dirService ) throws LdapException
+    {
+        this( dirService, false, false );
+    }
+
+
+    /**
+     * Creates a static group cache.
+     *
+     * @param dirService the directory service core
+     * @param lazy If the groups are searched when a member is looked up for the first time,
+     * instead of being all loaded now
+     * @param nested If the nested groups are taken into account
+     * @throws LdapException if there are failures on initialization
+     */
+    public GroupCache( DirectoryService dirService, boolean lazy, boolean nested ) throws LdapException
     {
         this.directoryService = dirService;
+        this.lazy = lazy;
+        this.nested = nested;
         schemaManager = dirService.getSchemaManager();
         dnFactory = dirService.getDnFactory();
         nexus = dirService.getPartitionNexus();
 
         // stuff for dealing with the admin group
         administratorsGroupDn = parseNormalized( ServerDNConstants.ADMINISTRATORS_GROUP_DN );
+        adminSystemDn = new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN_NORMALIZED );
 
-        initialize( dirService.getAdminSession() );
+        if ( !lazy )
+        {
+            initialize( dirService.getAdminSession() );
+        }
     }
 
 
@@ -121,81 +185,108 @@ public class GroupCache
     }
 
 
-    private void initialize( CoreSession session ) throws LdapException
+    /**
+     * Creates a filter selecting the static groups
+     */
+    private ExprNode createGroupFilter()
     {
-        // search all naming contexts for static groups and generate
-        // normalized sets of members to cache within the map
+        AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
 
-        Set<String> suffixes = nexus.listSuffixes();
-
-        for ( String suffix : suffixes )
-        {
-            // moving the filter creation to inside loop to fix DIRSERVER-1121
-            // didn't use clone() cause it is creating List objects, which IMO is not worth calling
-            // in this initialization phase
-            BranchNode filter = new OrNode();
-            AttributeType ocAt = directoryService.getAtProvider().getObjectClass();
+        return new OrNode(
+            new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_NAMES_OC ) ),
+            new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC ) ) );
+    }
 
-            filter.addNode( new EqualityNode<String>( ocAt, new Value( ocAt, SchemaConstants.GROUP_OF_NAMES_OC ) ) );
-            filter.addNode( new EqualityNode<String>( ocAt,
-                new Value( ocAt, SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC ) ) );
 
+    /**
+     * Searches all the naming contexts for the static groups selected by a filter
+     * 
+     * @param session The session to use
+     * @param filter The filter selecting the groups
+     * @param attributes The attributes to return
+     * @param handler The handler called for each group
+     * @throws LdapException If the search failed
+     */
+    private void searchGroups( CoreSession session, ExprNode filter, String[] attributes, GroupHandler handler )
+        throws LdapException
+    {
+        for ( String suffix : nexus.listSuffixes() )
+        {
             Dn baseDn = dnFactory.create( suffix );
             SearchControls ctls = new SearchControls();
             ctls.setSearchScope( SearchControls.SUBTREE_SCOPE );
-            ctls.setReturningAttributes( new String[]
-                { SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES } );
+            ctls.setReturningAttributes( attributes );
             
             Partition partition = nexus.getPartition( baseDn );
 
             SearchOperationContext searchOperationContext = new SearchOperationContext( session,
                 baseDn, filter, ctls );
-            searchOperationContext.setAliasDerefMode( AliasDerefMode.DEREF_ALWAYS );
+            searchOperationContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
             searchOperationContext.setPartition( partition );
-            searchOperationContext.setTransaction( partition.beginReadTransaction() );
-            EntryFilteringCursor results = nexus.search( searchOperationContext );
 
-            try
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
             {
-                while ( results.next() )
-                {
-                    Entry result = results.get();
-                    Dn groupDn = result.getDn();
-                    
-                    if ( !groupDn.isSchemaAware() )
-                    {
-                        groupDn = new Dn( schemaManager, groupDn );
-                    }
-                    
-                    Attribute members = getMemberAttribute( result );
-
-                    if ( members != null )
-                    {
-                        Set<String> memberSet = new HashSet<>( members.size() );
-                        addMembers( memberSet, members );
+                searchOperationContext.setTransaction( partitionTxn );
+                EntryFilteringCursor results = nexus.search( searchOperationContext );
 
-                        groups.put( groupDn.getNormName(), memberSet );
-                    }
-                    else
+                try
+                {
+                    while ( results.next() )
                     {
-                        LOG.warn( "Found group '{}' without any member or uniqueMember attributes", groupDn.getName() );
+                        Entry result = results.get();
+                        Dn groupDn = result.getDn();
+                        
+                        if ( !groupDn.isSchemaAware() )
+                        {
+                            groupDn = new Dn( schemaManager, groupDn );
+                        }
+                        
+                        handler.handle( groupDn, result );
                     }
                 }
-
-                results.close();
+                finally
+                {
+                    results.close();
+                }
+            }
+            catch ( LdapException le )
+            {
+                throw le;
             }
             catch ( Exception e )
             {
-                LOG.error( "Exception while initializing the groupCache:  {}", e.getCause() );
+                LOG.error( "Exception while searching the groups:  {}", e.getMessage() );
                 throw new LdapOperationException( e.getMessage(), e );
             }
         }
-        
-        adminSystemDn = new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN_NORMALIZED );
+    }
+
+
+    private void initialize( CoreSession session ) throws LdapException
+    {
+        // search all naming contexts for static groups and index their members
+        searchGroups( session, createGroupFilter(), new String[]
+            { SchemaConstants.MEMBER_AT, SchemaConstants.UNIQUE_MEMBER_AT },
+            ( groupDn, result ) ->
+            {
+                Attribute members = getMemberAttribute( result );
+
+                if ( members != null )
+                {
+                    synchronized ( updateLock )
+                    {
+                        addMembers( groupDn.getNormName(), members );
+                    }
+                }
+                else
+                {
+                    LOG.warn( "Found group '{}' without any member or uniqueMember attributes", groupDn.getName() );
+                }
+            } );
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents on startup:\n {}", groups );
+            LOG.debug( "group cache contents on startup:\n {}", memberOf );
         }
     }
 
@@ -228,62 +319,163 @@ public class GroupCache
 
 
     /**
-     * Adds normalized member DNs to the set of normalized member names.
-     *
-     * @param memberSet the set of member Dns (Strings)
-     * @param members the member attribute values being added
-     * @throws LdapException if there are problems accessing the attr values
+     * Normalizes a member value
+     * 
+     * @param value The member value
+     * @return The normalized member Dn, or null if the value is not a Dn
      */
-    private void addMembers( Set<String> memberSet, Attribute members ) throws LdapException
+    private String normalizeMember( Value value )
     {
-        for ( Value value : members )
+        try
+        {
+            return parseNormalized( value.getString() ).getNormName();
+        }
+        catch ( LdapException e )
         {
+            LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member ignored by the GroupCache.", e );
 
-            // get and normalize the Dn of the member
-            String member = value.getString();
-            Dn memberDn = null;
+            return null;
+        }
+    }
 
-            try
+
+    /**
+     * Normalizes the values of a member attribute
+     */
+    private Set<String> normalizeMembers( Attribute members )
+    {
+        Set<String> memberSet = new HashSet<>();
+
+        if ( members != null )
+        {
+            for ( Value value : members )
             {
-                memberDn = parseNormalized( member );
+                String member = normalizeMember( value );
+
+                if ( member != null )
+                {
+                    memberSet.add( member );
+                }
             }
-            catch ( LdapException e )
+        }
+
+        return memberSet;
+    }
+
+
+    /**
+     * Adds a group to the groups of a member. Must be called while holding the update lock.
+     */
+    private void addMember( String group, String member )
+    {
+        Set<String> groups = memberOf.get( member );
+
+        if ( groups != null )
+        {
+            groups.add( group );
+        }
+        else if ( lazy )
+        {
+            addPendingChange( member, group, true );
+        }
+        else
+        {
+            groups = ConcurrentHashMap.newKeySet();
+            groups.add( group );
+            memberOf.put( member, groups );
+        }
+    }
+
+
+    /**
+     * Removes a group from the groups of a member. Must be called while holding the update lock.
+     */
+    private void removeMember( String group, String member )
+    {
+        Set<String> groups = memberOf.get( member );
+
+        if ( groups != null )
+        {
+            groups.remove( group );
+
+            // Keep the empty set of a lazily loaded member : its groups are known
+            if ( groups.isEmpty() && !lazy )
             {
-                LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member not added to GroupCache.", e );
-                continue;
+                memberOf.remove( member );
             }
+        }
+        else if ( lazy )
+        {
+            addPendingChange( member, group, false );
+        }
+    }
 
-            memberSet.add( memberDn.getNormName() );
+
+    /**
+     * Records a change made to the groups of a member which are not loaded yet. The
+     * change may not be committed yet, and be missed by a concurrent search : it will
+     * be applied to the search result. Must be called while holding the update lock.
+     */
+    private void addPendingChange( String member, String group, boolean added )
+    {
+        long now = System.currentTimeMillis();
+
+        if ( pendingChanges.size() >= MAX_PENDING_CHANGES )
+        {
+            // The old changes have been committed, a search will see them
+            pendingChanges.values().removeIf( changes -> now - changes.time > PENDING_CHANGES_DELAY );
         }
+
+        PendingChanges changes = pendingChanges.computeIfAbsent( member, m -> new PendingChanges() );
+        changes.time = now;
+        changes.groups.put( group, added );
     }
 
 
     /**
-     * Removes a set of member names from an existing set.
+     * Adds a group to the groups of some members. Must be called while holding the update lock.
      *
-     * @param memberSet the set of normalized member DNs
-     * @param members the set of member values
-     * @throws LdapException if there are problems accessing the attr values
+     * @param group the normalized Dn of the group
+     * @param members the member attribute values being added
      */
-    private void removeMembers( Set<String> memberSet, Attribute members ) throws LdapException
+    private void addMembers( String group, Attribute members )
     {
-        for ( Value value : members )
+        for ( String member : normalizeMembers( members ) )
         {
-            // get and normalize the Dn of the member
-            String member = value.getString();
-            Dn memberDn = null;
+            addMember( group, member );
+        }
+    }
 
-            try
-            {
-                memberDn = parseNormalized( member );
-            }
-            catch ( LdapException e )
+
+    /**
+     * Removes a group from the groups of some members. Must be called while holding the update lock.
+     *
+     * @param group the normalized Dn of the group
+     * @param members the member attribute values being removed
+     */
+    private void removeMembers( String group, Attribute members )
+    {
+        for ( String member : normalizeMembers( members ) )
+        {
+            removeMember( group, member );
+        }
+    }
+
+
+    /**
+     * Removes a group from the groups of all the known members. Must be called while holding
+     * the update lock.
+     *
+     * @param group the normalized Dn of the group
+     */
+    private void removeGroup( String group )
+    {
+        for ( Map.Entry<String, Set<String>> entry : memberOf.entrySet() )
+        {
+            if ( entry.getValue().contains( group ) )
             {
-                LOG.warn( "Malformed member Dn in groupOf[Unique]Names entry.  Member not removed from GroupCache.", e );
-                continue;
+                removeMember( group, entry.getKey() );
             }
-
-            memberSet.remove( memberDn.getNormName() );
         }
     }
 
@@ -305,14 +497,16 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = new HashSet<>( members.size() );
-        addMembers( memberSet, members );
-
-        groups.put( name, memberSet );
+        synchronized ( updateLock )
+        {
+            // A new group may reuse the name of a renamed one
+            pendingRenames.remove( name );
+            addMembers( name, members );
+        }
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after adding '{}' :\n {}", name, groups );
+            LOG.debug( "group cache contents after adding '{}' :\n {}", name, memberOf );
         }
     }
 
@@ -334,47 +528,51 @@ public class GroupCache
             return;
         }
 
-        groups.remove( name.getNormName() );
+        synchronized ( updateLock )
+        {
+            removeMembers( name.getNormName(), members );
+        }
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after deleting '{}' :\n {}", name.getName(), groups );
+            LOG.debug( "group cache contents after deleting '{}' :\n {}", name.getName(), memberOf );
         }
     }
 
 
     /**
-     * Utility method to modify a set of member names based on a modify operation
-     * that changes the members of a group.
+     * Utility method to apply a modify operation that changes the members of a group
+     * to a set of member names.
      *
      * @param memberSet the set of members to be altered
      * @param modOp the type of modify operation being performed
      * @param members the members being added, removed or replaced
-     * @throws LdapException if there are problems accessing attribute values
      */
     private void modify( Set<String> memberSet, ModificationOperation modOp, Attribute members )
-        throws LdapException
     {
-
         switch ( modOp )
         {
             case ADD_ATTRIBUTE:
-                addMembers( memberSet, members );
+                memberSet.addAll( normalizeMembers( members ) );
                 break;
 
             case REPLACE_ATTRIBUTE:
-                if ( members.size() > 0 )
+                memberSet.clear();
+                memberSet.addAll( normalizeMembers( members ) );
+                break;
+
+            case REMOVE_ATTRIBUTE:
+                if ( members.size() == 0 )
                 {
                     memberSet.clear();
-                    addMembers( memberSet, members );
+                }
+                else
+                {
+                    memberSet.removeAll( normalizeMembers( members ) );
                 }
 
                 break;
 
-            case REMOVE_ATTRIBUTE:
-                removeMembers( memberSet, members );
-                break;
-
             default:
                 throw new InternalError( I18n.err( I18n.ERR_235, modOp ) );
         }
@@ -394,45 +592,68 @@ public class GroupCache
     public void groupModified( Dn name, List<Modification> mods, Entry entry, SchemaManager schemaManager )
         throws LdapException
     {
-        Attribute members = null;
         AttributeType memberAttr = null;
         Attribute oc = entry.get( directoryService.getAtProvider().getObjectClass() );
 
         if ( oc.contains( SchemaConstants.GROUP_OF_NAMES_OC ) )
         {
             memberAttr = directoryService.getAtProvider().getMember();
-            members = entry.get( memberAttr );
         }
 
         if ( oc.contains( SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC ) )
         {
             memberAttr = directoryService.getAtProvider().getUniqueMember();
-            members = entry.get( memberAttr );
         }
 
-        if ( members == null )
+        if ( memberAttr == null )
         {
             return;
         }
 
+        // Compute the members after the modifications
+        Set<String> oldMembers = normalizeMembers( entry.get( memberAttr ) );
+        Set<String> newMembers = new HashSet<>( oldMembers );
+        boolean modified = false;
+
         for ( Modification modification : mods )
         {
-            if ( memberAttr.getOid() == modification.getAttribute().getId() )
+            if ( modification.getAttribute().isInstanceOf( memberAttr ) )
+            {
+                modify( newMembers, modification.getOperation(), modification.getAttribute() );
+                modified = true;
+            }
+        }
+
+        if ( !modified )
+        {
+            return;
+        }
+
+        String group = name.getNormName();
+
+        synchronized ( updateLock )
+        {
+            // Add the new members first, so that a kept member never misses the group
+            for ( String member : newMembers )
             {
-                Set<String> memberSet = groups.get( name.getNormName() );
-                
-                if ( memberSet != null )
+                if ( !oldMembers.contains( member ) )
                 {
-                    modify( memberSet, modification.getOperation(), modification.getAttribute() );
+                    addMember( group, member );
                 }
+            }
 
-                break;
+            for ( String member : oldMembers )
+            {
+                if ( !newMembers.contains( member ) )
+                {
+                    removeMember( group, member );
+                }
             }
         }
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), groups );
+            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), memberOf );
         }
     }
 
@@ -455,16 +676,34 @@ public class GroupCache
             return;
         }
 
-        Set<String> memberSet = groups.get( name.getNormName() );
+        String group = name.getNormName();
 
-        if ( memberSet != null )
+        synchronized ( updateLock )
         {
-            modify( memberSet, modOp, members );
+            switch ( modOp )
+            {
+                case ADD_ATTRIBUTE:
+                    addMembers( group, members );
+                    break;
+
+                case REPLACE_ATTRIBUTE:
+                    // We don't know the previous members
+                    removeGroup( group );
+                    addMembers( group, members );
+                    break;
+
+                case REMOVE_ATTRIBUTE:
+                    removeMembers( group, members );
+                    break;
+
+                default:
+                    throw new InternalError( I18n.err( I18n.ERR_235, modOp ) );
+            }
         }
 
         if ( IS_DEBUG )
         {
-            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), groups );
+            LOG.debug( "group cache contents after modifying '{}' :\n {}", name.getName(), memberOf );
         }
     }
 
@@ -475,31 +714,23 @@ public class GroupCache
      *
      * @param principalDn the normalized Dn of the user to check if they are an admin
      * @return true if the principal is an admin or the admin
+     * @throws LdapException if the groups of the principal can't be read
      */
-    public final boolean isPrincipalAnAdministrator( String principalDn )
+    public final boolean isPrincipalAnAdministrator( String principalDn ) throws LdapException
     {
         if ( principalDn.equals( adminSystemDn.getNormName() ) )
         {
             return true;
         }
 
-        Set<String> members = groups.get( administratorsGroupDn.getNormName() );
-        
-        if ( members == null )
-        {
-            LOG.warn( "What do you mean there is no administrators group? This is bad news." );
-            return false;
-        }
-        else
-        {
-            return members.contains( principalDn );
-        }
+        return getGroups( principalDn ).contains( administratorsGroupDn.getNormName() );
     }
 
 
     /**
      * Gets the set of groups a user is a member of.  The groups are returned
-     * as normalized Name objects within the set.
+     * as normalized Name objects within the set. When the nested groups are enabled,
+     * the groups the user is indirectly a member of are also returned.
      *
      * @param memberDn the member (user) to get the groups for
      * @return a Set of Name objects representing the groups
@@ -507,56 +738,220 @@ public class GroupCache
      */
     public Set<String> getGroups( String memberDn ) throws LdapException
     {
-        Set<String> memberGroups = null;
+        Set<String> groups = getDirectGroups( memberDn );
 
-        for ( Map.Entry<String, Set<String>> entry : groups.entrySet() )
+        if ( groups.isEmpty() )
         {
-            String group = entry.getKey();
-            Set<String> members = entry.getValue();
+            return EMPTY_GROUPS;
+        }
 
-            if ( members == null )
-            {
-                continue;
-            }
+        Set<String> memberGroups = new HashSet<>( groups );
 
-            if ( members.contains( memberDn ) )
+        if ( nested )
+        {
+            Deque<String> toExpand = new ArrayDeque<>( memberGroups );
+
+            while ( !toExpand.isEmpty() )
             {
-                if ( memberGroups == null )
+                for ( String group : getDirectGroups( toExpand.poll() ) )
                 {
-                    memberGroups = new HashSet<>();
+                    // Don't loop on cycles
+                    if ( memberGroups.add( group ) )
+                    {
+                        toExpand.add( group );
+                    }
                 }
-
-                memberGroups.add( group );
             }
         }
 
-        if ( memberGroups == null )
+        return memberGroups;
+    }
+
+
+    /**
+     * Gets the groups a member directly belongs to, searching for them if they are lazily
+     * loaded and not known yet.
+     */
+    private Set<String> getDirectGroups( String memberDn ) throws LdapException
+    {
+        Set<String> groups = memberOf.get( memberDn );
+
+        if ( groups != null )
+        {
+            return groups;
+        }
+
+        if ( !lazy )
         {
             return EMPTY_GROUPS;
         }
 
-        return memberGroups;
+        return loadGroups( memberDn );
+    }
+
+
+    /**
+     * Searches for the groups a member directly belongs to. The search is done without
+     * holding the update lock : the changes made meanwhile are applied to its result.
+     */
+    private Set<String> loadGroups( String memberDn ) throws LdapException
+    {
+        Set<String> groups = ConcurrentHashMap.newKeySet();
+        AttributeType memberAt = directoryService.getAtProvider().getMember();
+        AttributeType uniqueMemberAt = directoryService.getAtProvider().getUniqueMember();
+        ExprNode filter = new AndNode(
+            createGroupFilter(),
+            new OrNode(
+                new EqualityNode<String>( memberAt, new Value( memberAt, memberDn ) ),
+                new EqualityNode<String>( uniqueMemberAt, new Value( uniqueMemberAt, memberDn ) ) ) );
+
+        searchGroups( directoryService.getAdminSession(), filter, new String[]
+            { SchemaConstants.NO_ATTRIBUTE }, ( groupDn, result ) -> groups.add( groupDn.getNormName() ) );
+
+        synchronized ( updateLock )
+        {
+            Set<String> existing = memberOf.get( memberDn );
+
+            if ( existing != null )
+            {
+                return existing;
+            }
+
+            PendingChanges changes = pendingChanges.remove( memberDn );
+
+            if ( changes != null )
+            {
+                for ( Map.Entry<String, Boolean> change : changes.groups.entrySet() )
+                {
+                    if ( change.getValue() )
+                    {
+                        groups.add( change.getKey() );
+                    }
+                    else
+                    {
+                        groups.remove( change.getKey() );
+                    }
+                }
+            }
+
+            for ( Map.Entry<String, Map.Entry<String, Long>> rename : pendingRenames.entrySet() )
+            {
+                if ( groups.remove( rename.getKey() ) )
+                {
+                    groups.add( rename.getValue().getKey() );
+                }
+            }
+
+            memberOf.put( memberDn, groups );
+        }
+
+        return groups;
+    }
+
+
+    /**
+     * Tells if the groups the groups are members of are also returned
+     *
+     * @return true if the nested groups are enabled
+     */
+    public boolean isNested()
+    {
+        return nested;
+    }
+
+
+    /**
+     * Sets if the groups the groups are members of are also returned
+     *
+     * @param nested true to enable the nested groups
+     */
+    public void setNested( boolean nested )
+    {
+        this.nested = nested;
+    }
+
+
+    /**
+     * @return true if the groups are loaded when a member is looked up for the first time
+     */
+    public boolean isLazy()
+    {
+        return lazy;
     }
 
 
     public boolean groupRenamed( Dn oldName, Dn newName )
     {
-        Set<String> members = groups.get( oldName.getNormName() );
+        String oldGroup = oldName.getNormName();
+        String newGroup = newName.getNormName();
+        boolean renamed = false;
 
-        if ( members != null )
+        synchronized ( updateLock )
         {
-            groups.remove( oldName.getNormName() );
+            for ( Set<String> groups : memberOf.values() )
+            {
+                // Add the new name first, so that the group is never missing
+                if ( groups.contains( oldGroup ) )
+                {
+                    groups.add( newGroup );
+                    groups.remove( oldGroup );
+                    renamed = true;
+                }
+            }
+
+            for ( PendingChanges changes : pendingChanges.values() )
+            {
+                Boolean added = changes.groups.remove( oldGroup );
 
-            groups.put( newName.getNormName(), members );
+                if ( added != null )
+                {
+                    changes.groups.put( newGroup, added );
+                }
+            }
 
-            if ( IS_DEBUG )
+            if ( lazy )
             {
-                LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(), groups );
+                long now = System.currentTimeMillis();
+                pendingRenames.values().removeIf( rename -> now - rename.getValue() > PENDING_CHANGES_DELAY );
+                pendingRenames.put( oldGroup, new AbstractMap.SimpleEntry<>( newGroup, now ) );
             }
+        }
 
-            return true;
+        if ( renamed && IS_DEBUG )
+        {
+            LOG.debug( "group cache contents after renaming '{}' :\n{}", oldName.getName(), memberOf );
         }
 
-        return false;
+        return renamed;
+    }
+
+
+    /**
+     * The changes made to the groups of a member not loaded yet
+     */
+    private static final class PendingChanges
+    {
+        /** The time of the last change */
+        private long time;
+
+        /** The groups added (true) or removed (false) */
+        private final Map<String, Boolean> groups = new HashMap<>();
+    }
+
+
+    /**
+     * The callback used when searching the groups
+     */
+    @FunctionalInterface
+    private interface GroupHandler
+    {
+        /**
+         * Handles a group
+         *
+         * @param groupDn The schema aware Dn of the group
+         * @param entry The group entry
+         * @throws LdapException If the group can't be handled
+         */
+        void handle( Dn groupDn, Entry entry ) throws LdapException;
     }
 }
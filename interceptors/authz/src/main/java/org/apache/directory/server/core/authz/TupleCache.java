@@ -23,10 +23,11 @@ package org.apache.directory.server.core.authz;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.directory.SearchControls;
 
@@ -66,6 +67,10 @@ import org.slf4j.LoggerFactory;
  * A cache for tuple sets which responds to specific events to perform
  * cache house keeping as access control subentries are added, deleted
  * and modified.
+ * <p>
+ * The cache is read without locking : the tuples of a subentry are replaced
+ * at once when it's modified or renamed, so a reader never sees a subentry
+ * without its tuples.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -75,7 +80,10 @@ public class TupleCache
     private static final Logger LOG = LoggerFactory.getLogger( TupleCache.class );
 
     /** a map of strings to ACITuple collections */
-    private final Map<String, List<ACITuple>> tuples = new HashMap<>();
+    private final Map<String, List<ACITuple>> tuples = new ConcurrentHashMap<>();
+
+    /** The number of changes made to the cache, incremented after each change */
+    private final AtomicLong generation = new AtomicLong();
 
     /** the directory service */
     private final DirectoryService directoryService;
@@ -234,7 +242,8 @@ public class TupleCache
             }
         }
 
-        tuples.put( dn.getNormName(), entryTuples );
+        tuples.put( dn.getNormName(), Collections.unmodifiableList( entryTuples ) );
+        generation.incrementAndGet();
     }
 
 
@@ -246,6 +255,7 @@ public class TupleCache
         }
 
         tuples.remove( dn.getNormName() );
+        generation.incrementAndGet();
     }
 
 
@@ -260,8 +270,9 @@ public class TupleCache
         {
             if ( mod.getAttribute().isInstanceOf( directoryService.getAtProvider().getPrescriptiveACI() ) )
             {
-                subentryDeleted( normName, entry );
+                // The new tuples replace the old ones
                 subentryAdded( normName, entry );
+                break;
             }
         }
     }
@@ -276,7 +287,7 @@ public class TupleCache
 
         if ( mods.get( directoryService.getAtProvider().getPrescriptiveACI() ) != null )
         {
-            subentryDeleted( normName, entry );
+            // The new tuples replace the old ones
             subentryAdded( normName, entry );
         }
     }
@@ -291,12 +302,32 @@ public class TupleCache
             return Collections.emptyList();
         }
 
-        return Collections.unmodifiableList( aciTuples );
+        return aciTuples;
     }
 
 
     public void subentryRenamed( Dn oldName, Dn newName )
     {
-        tuples.put( newName.getNormName(), tuples.remove( oldName.getNormName() ) );
+        List<ACITuple> aciTuples = tuples.get( oldName.getNormName() );
+
+        if ( aciTuples != null )
+        {
+            // Add the new name first, so that the tuples are never missing
+            tuples.put( newName.getNormName(), aciTuples );
+            tuples.remove( oldName.getNormName() );
+            generation.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Gives the number of changes made to the cache. It's incremented after each change,
+     * so the tuples read after having read a generation are at least as recent.
+     *
+     * @return The cache generation
+     */
+    public long getGeneration()
+    {
+        return generation.get();
     }
 }
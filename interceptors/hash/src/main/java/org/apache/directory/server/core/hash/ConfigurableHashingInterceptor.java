@@ -24,6 +24,7 @@ package org.apache.directory.server.core.hash;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 
 import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
@@ -36,6 +37,7 @@ import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.server.config.beans.HashInterceptorBean;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
@@ -84,7 +86,7 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
         {
             if ( attributeTypes.contains( attribute.getAttributeType() ) ) 
             {
-                includeHashed( attribute );    
+                hash( attribute );
             }
         }
         
@@ -104,6 +106,34 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
     }
     
     
+    /**
+     * Hashes the values of an attribute, on the password hashing executor if the
+     * DirectoryService has one.
+     */
+    private void hash( final Attribute attribute ) throws LdapException
+    {
+        PasswordHashingExecutor executor = directoryService.getPasswordHashingExecutor();
+
+        if ( executor == null )
+        {
+            includeHashed( attribute );
+
+            return;
+        }
+
+        executor.call( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws LdapException
+            {
+                includeHashed( attribute );
+
+                return null;
+            }
+        } );
+    }
+
+
     private void includeHashed( Attribute attribute ) throws LdapInvalidAttributeValueException 
     {
         if ( attribute == null ) 
@@ -183,7 +213,7 @@ public class ConfigurableHashingInterceptor extends BaseInterceptor
             Attribute attribute = mod.getAttribute();
             if ( attributeTypes.contains( attribute.getAttributeType() ) )
             {
-                includeHashed( attribute );
+                hash( attribute );
             }
         }
 
@@ -22,6 +22,7 @@ package org.apache.directory.server.core.hash;
 
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -34,6 +35,7 @@ import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.password.PasswordUtil;
 import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
@@ -84,7 +86,7 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
 
         Attribute pwdAt = entry.get( SchemaConstants.USER_PASSWORD_AT );
 
-        Attribute hashedPwdAt = includeHashedPassword( pwdAt );
+        Attribute hashedPwdAt = hashPassword( pwdAt );
         
         if ( hashedPwdAt != null )
         {
@@ -122,7 +124,7 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
                    continue; 
                 }
                 
-                Attribute newPwd = includeHashedPassword( mod.getAttribute() );
+                Attribute newPwd = hashPassword( mod.getAttribute() );
 
                 if ( newPwd != null )
                 {
@@ -135,6 +137,32 @@ public abstract class PasswordHashingInterceptor extends BaseInterceptor
     }
 
 
+    /**
+     * hash the password if it was <i>not</i> already hashed, on the password hashing
+     * executor if the DirectoryService has one
+     *
+     * @param pwdAt the password attribute
+     */
+    private Attribute hashPassword( final Attribute pwdAt ) throws LdapException
+    {
+        PasswordHashingExecutor executor = directoryService.getPasswordHashingExecutor();
+
+        if ( ( executor == null ) || ( pwdAt == null ) )
+        {
+            return includeHashedPassword( pwdAt );
+        }
+
+        return executor.call( new Callable<Attribute>()
+        {
+            @Override
+            public Attribute call() throws LdapException
+            {
+                return includeHashedPassword( pwdAt );
+            }
+        } );
+    }
+
+
     /**
      * hash the password if it was <i>not</i> already hashed
      *
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -199,6 +200,24 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
             return;
         }
 
+        // Concurrent adds on distinct partitions may run in parallel, so serialize
+        // the read-increment-store sequence on the lock of the partition holding the counters
+        Lock holderLock = directoryService.getOperationManager().getRWLock( directoryService.getSystemPartition() ).writeLock();
+        holderLock.lock();
+
+        try
+        {
+            incrementAndStore( addContext, lst );
+        }
+        finally
+        {
+            holderLock.unlock();
+        }
+    }
+
+
+    private void incrementAndStore( AddOperationContext addContext, List<Attribute> lst ) throws LdapException
+    {
         for ( Attribute at : lst )
         {
             int stored = incMap.get( at.getId() ).get();
@@ -218,7 +237,7 @@ public class NumberIncrementingInterceptor extends BaseInterceptor
         for ( Attribute at : lst )
         {
             AtomicInteger ai = incMap.get( at.getId() );
-            ai.set( ai.get() + 1 );
+            ai.incrementAndGet();
             
             Modification mod = new DefaultModification();
             mod.setOperation( ModificationOperation.REPLACE_ATTRIBUTE );
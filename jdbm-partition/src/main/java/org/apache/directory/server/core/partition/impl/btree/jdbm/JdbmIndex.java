@@ -373,7 +373,9 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     public synchronized void add( PartitionTxn partitionTxn,  K attrVal, String id ) throws LdapException
     {
         // The pair to be added must exists
+        long countBefore = countForStatistics( partitionTxn );
         forward.put( partitionTxn, attrVal, id );
+        updateStatistics( partitionTxn, attrVal, countBefore );
 
         if ( withReverse )
         {
@@ -390,7 +392,9 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         // The pair to be removed must exists
         if ( forward.has( partitionTxn, attrVal, id ) )
         {
+            long countBefore = countForStatistics( partitionTxn );
             forward.remove( partitionTxn, attrVal, id );
+            updateStatistics( partitionTxn, attrVal, countBefore );
 
             if ( withReverse )
             {
@@ -418,7 +422,10 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
                     while ( values.next() )
                     {
                         // Remove the Key -> entryId from the index
-                        forward.remove( partitionTxn, values.get().getValue(), entryId );
+                        K key = values.get().getValue();
+                        long countBefore = countForStatistics( partitionTxn );
+                        forward.remove( partitionTxn, key, entryId );
+                        updateStatistics( partitionTxn, key, countBefore );
                     }
     
                     values.close();
@@ -432,7 +439,9 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
             {
                 K key = reverse.get( partitionTxn, entryId );
 
+                long countBefore = countForStatistics( partitionTxn );
                 forward.remove( partitionTxn, key );
+                updateStatistics( partitionTxn, key, countBefore );
             }
 
             // Remove the id -> key from the reverse index
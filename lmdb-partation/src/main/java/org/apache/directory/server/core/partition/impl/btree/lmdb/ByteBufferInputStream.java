@@ -0,0 +1,109 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream reading from a ByteBuffer without copying it. The
+ * buffer is duplicated, so its position is not modified.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class ByteBufferInputStream extends InputStream
+{
+    /** The buffer we read from */
+    private final ByteBuffer buffer;
+
+
+    /**
+     * Creates a new ByteBufferInputStream instance
+     *
+     * @param buffer The buffer to read
+     */
+    ByteBufferInputStream( ByteBuffer buffer )
+    {
+        this.buffer = buffer.duplicate();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read()
+    {
+        if ( !buffer.hasRemaining() )
+        {
+            return -1;
+        }
+
+        return buffer.get() & 0xFF;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read( byte[] bytes, int offset, int length )
+    {
+        if ( length == 0 )
+        {
+            return 0;
+        }
+
+        if ( !buffer.hasRemaining() )
+        {
+            return -1;
+        }
+
+        int nbRead = Math.min( length, buffer.remaining() );
+        buffer.get( bytes, offset, nbRead );
+
+        return nbRead;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip( long n )
+    {
+        int nbSkipped = ( int ) Math.max( 0L, Math.min( n, buffer.remaining() ) );
+        buffer.position( buffer.position() + nbSkipped );
+
+        return nbSkipped;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
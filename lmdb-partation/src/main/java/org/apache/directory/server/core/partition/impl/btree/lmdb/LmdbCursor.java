@@ -0,0 +1,562 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.SeekOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Cursor over the Tuples of a LMDB table, or over the Tuples of a single key when
+ * the table allows duplicates.
+ * <br><br>
+ * A cursor created within a write transaction uses it, and must be consumed before
+ * it's committed. Otherwise the cursor reads a snapshot : the one of the given read
+ * transaction if it's still opened, or a new one, which is kept until the cursor is
+ * closed.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class LmdbCursor<K, V> extends AbstractCursor<Tuple<K, V>>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The cursor position, relative to the LMDB cursor's */
+    private enum Position
+    {
+        /** Before the first tuple */
+        BEFORE_FIRST,
+
+        /** After the last tuple */
+        AFTER_LAST,
+
+        /** On the LMDB cursor's tuple, which is available */
+        ON,
+
+        /** Just before the LMDB cursor's tuple */
+        BEFORE,
+
+        /** Just after the LMDB cursor's tuple */
+        AFTER
+    }
+
+    /** The table we browse */
+    private final LmdbTable<K, V> table;
+
+    /** The key we iterate on, if any */
+    private final K constraintKey;
+
+    /** The write transaction we are using, if any */
+    private final LmdbPartitionWriteTxn writeTxn;
+
+    /** The read transaction we hold, if any */
+    private final LmdbPartitionReadTxn readTxn;
+
+    /** The LMDB cursor */
+    private final org.lmdbjava.Cursor<ByteBuffer> cursor;
+
+    /** The current position */
+    private Position position = Position.BEFORE_FIRST;
+
+    /** The current tuple */
+    private Tuple<K, V> tuple;
+
+
+    /**
+     * Creates a Cursor over the tuples of a LMDB table.
+     *
+     * @param table the table to build a Cursor over
+     * @param partitionTxn The transaction to use, if any
+     * @param constraintKey The key to iterate on, or null to browse the whole table
+     */
+    LmdbCursor( LmdbTable<K, V> table, PartitionTxn partitionTxn, K constraintKey )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating LmdbCursor {}", this );
+        }
+
+        this.table = table;
+        this.constraintKey = constraintKey;
+
+        LmdbEnvironment environment = table.getEnvironment();
+        writeTxn = environment.getWriteTxn( partitionTxn );
+
+        if ( writeTxn != null )
+        {
+            readTxn = null;
+            cursor = table.getDbi().openCursor( writeTxn.getTxn() );
+        }
+        else
+        {
+            if ( ( partitionTxn instanceof LmdbPartitionReadTxn )
+                && ( ( ( LmdbPartitionReadTxn ) partitionTxn ).getEnvironment() == environment )
+                && ( ( LmdbPartitionReadTxn ) partitionTxn ).retain() )
+            {
+                readTxn = ( LmdbPartitionReadTxn ) partitionTxn;
+            }
+            else
+            {
+                // We own this transaction, it will be released when the cursor is closed
+                readTxn = environment.beginReadTransaction();
+                readTxn.retain();
+                readTxn.close();
+            }
+
+            cursor = table.getDbi().openCursor( readTxn.getTxn() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean available()
+    {
+        return position == Position.ON;
+    }
+
+
+    /**
+     * Positions this Cursor before the given tuple : the next call to next() will
+     * return the first tuple which is greater or equal. If the tuple's value is null,
+     * we position the cursor before the first value of the tuple's key.
+     *
+     * @param element the tuple used to position this Cursor
+     * @throws LdapException If the cursor can't be positioned
+     * @throws CursorException If the cursor can't be positioned
+     */
+    @Override
+    public void before( Tuple<K, V> element ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        tuple = null;
+
+        try
+        {
+            if ( seekGreaterOrEqual( element.getKey(), element.getValue() ) )
+            {
+                position = Position.BEFORE;
+            }
+            else
+            {
+                position = Position.AFTER_LAST;
+            }
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Positions this Cursor after the given tuple : the next call to next() will
+     * return the first tuple which is strictly greater. If the tuple's value is null,
+     * we position the cursor after the last value of the tuple's key.
+     *
+     * @param element the tuple used to position this Cursor
+     * @throws LdapException If the cursor can't be positioned
+     * @throws CursorException If the cursor can't be positioned
+     */
+    @Override
+    public void after( Tuple<K, V> element ) throws LdapException, CursorException
+    {
+        checkNotClosed();
+        tuple = null;
+
+        try
+        {
+            K key = element.getKey();
+            V value = element.getValue();
+
+            if ( !seekGreaterOrEqual( key, value ) )
+            {
+                position = Position.AFTER_LAST;
+                return;
+            }
+
+            boolean sameKey = table.getKeyComparator().compare( readKey(), key ) == 0;
+
+            if ( !sameKey )
+            {
+                // We are on the first greater key
+                position = Position.BEFORE;
+            }
+            else if ( ( value == null ) || !table.isDupsEnabled() )
+            {
+                // Skip all the values of this key
+                if ( table.isDupsEnabled() )
+                {
+                    cursor.seek( SeekOp.MDB_LAST_DUP );
+                }
+
+                position = Position.AFTER;
+            }
+            else if ( cursor.val().equals( table.valueBuffer( value ) ) )
+            {
+                position = Position.AFTER;
+            }
+            else
+            {
+                // We are on the first greater value
+                position = Position.BEFORE;
+            }
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Moves the LMDB cursor on the first tuple greater or equal to the given key and
+     * value.
+     */
+    private boolean seekGreaterOrEqual( K key, V value ) throws IOException
+    {
+        ByteBuffer keyBuffer = table.keyBuffer( key );
+
+        if ( ( value != null ) && table.isDupsEnabled() )
+        {
+            if ( cursor.get( keyBuffer, table.valueBuffer( value ), SeekOp.MDB_GET_BOTH_RANGE ) )
+            {
+                return true;
+            }
+
+            // All the values of this key are lower, if it exists : go to the next key
+            if ( cursor.get( keyBuffer, GetOp.MDB_SET_KEY ) )
+            {
+                return cursor.seek( SeekOp.MDB_NEXT_NODUP );
+            }
+        }
+
+        return cursor.get( keyBuffer, GetOp.MDB_SET_RANGE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        tuple = null;
+        position = Position.BEFORE_FIRST;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        tuple = null;
+        position = Position.AFTER_LAST;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            boolean found;
+
+            switch ( position )
+            {
+                case BEFORE_FIRST:
+                    return false;
+
+                case AFTER_LAST:
+                    if ( constraintKey == null )
+                    {
+                        found = cursor.last();
+                    }
+                    else
+                    {
+                        found = cursor.get( table.keyBuffer( constraintKey ), GetOp.MDB_SET_KEY )
+                            && cursor.seek( SeekOp.MDB_LAST_DUP );
+                    }
+
+                    break;
+
+                case AFTER:
+                    found = true;
+                    break;
+
+                default:
+                    if ( constraintKey == null )
+                    {
+                        found = cursor.prev();
+                    }
+                    else
+                    {
+                        found = cursor.seek( SeekOp.MDB_PREV_DUP );
+                    }
+
+                    break;
+            }
+
+            if ( found && inConstraint() )
+            {
+                tuple = readTuple();
+                position = Position.ON;
+
+                return true;
+            }
+
+            tuple = null;
+            position = Position.BEFORE_FIRST;
+
+            return false;
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        try
+        {
+            boolean found;
+
+            switch ( position )
+            {
+                case AFTER_LAST:
+                    return false;
+
+                case BEFORE_FIRST:
+                    if ( constraintKey == null )
+                    {
+                        found = cursor.first();
+                    }
+                    else
+                    {
+                        found = cursor.get( table.keyBuffer( constraintKey ), GetOp.MDB_SET_KEY );
+                    }
+
+                    break;
+
+                case BEFORE:
+                    found = true;
+                    break;
+
+                default:
+                    if ( constraintKey == null )
+                    {
+                        found = cursor.next();
+                    }
+                    else
+                    {
+                        found = cursor.seek( SeekOp.MDB_NEXT_DUP );
+                    }
+
+                    break;
+            }
+
+            if ( found && inConstraint() )
+            {
+                tuple = readTuple();
+                position = Position.ON;
+
+                return true;
+            }
+
+            tuple = null;
+            position = Position.AFTER_LAST;
+
+            return false;
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Tells if the LMDB cursor's tuple has the key we iterate on, if any
+     */
+    private boolean inConstraint() throws IOException
+    {
+        return ( constraintKey == null ) || ( table.getKeyComparator().compare( readKey(), constraintKey ) == 0 );
+    }
+
+
+    /**
+     * Reads the key the LMDB cursor is on
+     */
+    private K readKey() throws IOException
+    {
+        return table.getKeySerializer().deserialize( cursor.key() );
+    }
+
+
+    /**
+     * Reads the tuple the LMDB cursor is on
+     */
+    private Tuple<K, V> readTuple() throws IOException
+    {
+        K key = ( constraintKey == null ) ? readKey() : constraintKey;
+
+        return new Tuple<>( key, table.getValueSerializer().deserialize( cursor.val() ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Tuple<K, V> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( position == Position.ON )
+        {
+            return tuple;
+        }
+
+        throw new InvalidCursorPositionException();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing LmdbCursor {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            release();
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing LmdbCursor {}", this );
+        }
+
+        if ( !isClosed() )
+        {
+            release();
+        }
+
+        super.close( cause );
+    }
+
+
+    /**
+     * Closes the LMDB cursor, and releases the read transaction if we hold one
+     */
+    private void release()
+    {
+        tuple = null;
+
+        if ( readTxn != null )
+        {
+            cursor.close();
+            readTxn.release();
+        }
+        else if ( !writeTxn.isClosed() )
+        {
+            // The cursors of a write transaction are freed when it's committed
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.CacheInvalidations;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.Txn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Holds the LMDB environment of a partition : the memory mapped file containing the
+ * master table and all the indexes, one LMDB database per table.
+ * <br><br>
+ * LMDB allows a single write transaction at a time, and readers are never blocked :
+ * each read transaction sees a consistent snapshot of the data, as of the moment it
+ * was started. The write transaction in progress is associated with the thread that
+ * started it, so that the tables can join it when they are called with a transaction
+ * which is not a LMDB one (or none at all).
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbEnvironment implements Closeable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbEnvironment.class );
+
+    /** The LMDB environment */
+    private final Env<ByteBuffer> env;
+
+    /** The write transaction the current thread is running, if any */
+    private final ThreadLocal<LmdbPartitionWriteTxn> currentWriteTxn = new ThreadLocal<>();
+
+    /** The maximum size of a key, as defined by LMDB */
+    private final int maxKeySize;
+
+    /**
+     * Incremented when a write transaction starts, and again when it ends : an odd
+     * value means a write is in progress. It tells the readers if they are looking
+     * at the latest committed data.
+     */
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    /**
+     * Held for reading while a value is stored in a cache, and for writing while the
+     * caches are updated at the end of a write transaction.
+     */
+    private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+
+
+    /**
+     * Creates a new LmdbEnvironment instance, opening or creating the LMDB files in
+     * the given directory.
+     *
+     * @param directory The directory where the LMDB files are stored
+     * @param mapSize The maximum size of the database, in bytes
+     * @param maxDbs The maximum number of tables
+     * @param maxReaders The maximum number of concurrent read transactions
+     * @param syncOnWrite If the data must be flushed on disk on each commit
+     */
+    public LmdbEnvironment( File directory, long mapSize, int maxDbs, int maxReaders, boolean syncOnWrite )
+    {
+        // MDB_NOTLS : the read transactions are not bound to a thread, as the search
+        // cursors may be consumed after the thread that created them has moved on.
+        // MDB_NOMETASYNC : the meta page is only flushed on the next commit or sync,
+        // we may lose the last transaction in case of a system crash, but the database
+        // stays consistent.
+        EnvFlags[] flags;
+
+        if ( syncOnWrite )
+        {
+            flags = new EnvFlags[]
+                { EnvFlags.MDB_NOTLS };
+        }
+        else
+        {
+            flags = new EnvFlags[]
+                { EnvFlags.MDB_NOTLS, EnvFlags.MDB_NOMETASYNC };
+        }
+
+        env = Env.create()
+            .setMapSize( mapSize )
+            .setMaxDbs( maxDbs )
+            .setMaxReaders( maxReaders )
+            .open( directory, flags );
+
+        maxKeySize = env.getMaxKeySize();
+
+        LOG.debug( "Opened the LMDB environment in {}, map size {}", directory, mapSize );
+    }
+
+
+    /**
+     * Opens, or creates, a database in this environment.
+     *
+     * @param name The database name
+     * @param comparator The key comparator, or null if the keys are ordered by their bytes
+     * @param allowsDuplicates If the database accepts more than one value per key
+     * @return The opened database
+     */
+    Dbi<ByteBuffer> openDbi( String name, Comparator<ByteBuffer> comparator, boolean allowsDuplicates )
+    {
+        DbiFlags[] flags;
+
+        if ( allowsDuplicates )
+        {
+            flags = new DbiFlags[]
+                { DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT };
+        }
+        else
+        {
+            flags = new DbiFlags[]
+                { DbiFlags.MDB_CREATE };
+        }
+
+        if ( comparator == null )
+        {
+            return env.openDbi( name, flags );
+        }
+        else
+        {
+            return env.openDbi( Strings.getBytesUtf8( name ), comparator, true, flags );
+        }
+    }
+
+
+    /**
+     * Starts a read transaction, which will see a snapshot of the data as of now.
+     *
+     * @return The read transaction
+     */
+    public LmdbPartitionReadTxn beginReadTransaction()
+    {
+        // Read the sequence first : if a write commits before the snapshot is taken,
+        // the transaction will be seen as older than it is, which is safe
+        long sequence = writeSequence.get();
+
+        return new LmdbPartitionReadTxn( this, env.txnRead(), sequence );
+    }
+
+
+    /**
+     * Starts a write transaction. If the current thread is already running a write
+     * transaction, a nested transaction is created : its changes will be visible to
+     * the parent transaction once committed, and discarded if it's aborted.
+     * <br>
+     * This call blocks until the write transaction in progress in another thread, if
+     * any, is done.
+     *
+     * @return The write transaction
+     */
+    public LmdbPartitionWriteTxn beginWriteTransaction()
+    {
+        LmdbPartitionWriteTxn parent = currentWriteTxn.get();
+        Txn<ByteBuffer> txn;
+
+        if ( parent == null )
+        {
+            txn = env.txnWrite();
+            writeSequence.incrementAndGet();
+        }
+        else
+        {
+            txn = env.txn( parent.getTxn() );
+        }
+
+        LmdbPartitionWriteTxn writeTxn = new LmdbPartitionWriteTxn( this, txn, parent );
+        currentWriteTxn.set( writeTxn );
+
+        return writeTxn;
+    }
+
+
+    /**
+     * Called when a write transaction is committed or aborted : its parent, if any,
+     * becomes the current thread's write transaction. When the outermost transaction
+     * is committed, the caches are updated.
+     *
+     * @param writeTxn The ended transaction
+     * @param committed If the transaction has been committed
+     */
+    void endWriteTransaction( LmdbPartitionWriteTxn writeTxn, boolean committed )
+    {
+        if ( currentWriteTxn.get() == writeTxn )
+        {
+            LmdbPartitionWriteTxn parent = writeTxn.getParent();
+
+            if ( parent == null )
+            {
+                currentWriteTxn.remove();
+            }
+            else
+            {
+                currentWriteTxn.set( parent );
+            }
+        }
+
+        if ( writeTxn.getParent() == null )
+        {
+            CacheInvalidations invalidations = writeTxn.getCacheInvalidations();
+
+            // No value read before the commit can be cached once the caches are updated
+            cacheLock.writeLock().lock();
+
+            try
+            {
+                if ( committed && ( invalidations != null ) )
+                {
+                    invalidations.apply();
+                }
+
+                // The changes are now visible to the new readers
+                writeSequence.incrementAndGet();
+            }
+            finally
+            {
+                cacheLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return The lock to hold while a value read by a transaction is stored in a cache
+     */
+    Lock getCacheFillLock()
+    {
+        return cacheLock.readLock();
+    }
+
+
+    /**
+     * Gets the write transaction to use when modifying the data : the one the
+     * current thread is running if any, otherwise the given one if it's an opened
+     * write transaction on this environment.
+     *
+     * @param partitionTxn The transaction provided by the caller
+     * @return The write transaction to use, or null if there is none
+     */
+    LmdbPartitionWriteTxn getWriteTxn( PartitionTxn partitionTxn )
+    {
+        LmdbPartitionWriteTxn current = currentWriteTxn.get();
+
+        if ( current != null )
+        {
+            return current;
+        }
+
+        if ( partitionTxn instanceof LmdbPartitionWriteTxn )
+        {
+            LmdbPartitionWriteTxn writeTxn = ( LmdbPartitionWriteTxn ) partitionTxn;
+
+            if ( ( writeTxn.getEnvironment() == this ) && !writeTxn.isClosed() )
+            {
+                return writeTxn;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Gets the LMDB transaction to use when reading the data : the write transaction
+     * in progress, so that we see our own changes, otherwise the given read transaction
+     * if it's still opened.
+     *
+     * @param partitionTxn The transaction provided by the caller
+     * @return The LMDB transaction to use, or null if a new read transaction is needed
+     */
+    Txn<ByteBuffer> getReadTxn( PartitionTxn partitionTxn )
+    {
+        LmdbPartitionWriteTxn writeTxn = getWriteTxn( partitionTxn );
+
+        if ( writeTxn != null )
+        {
+            return writeTxn.getTxn();
+        }
+
+        if ( partitionTxn instanceof LmdbPartitionReadTxn )
+        {
+            LmdbPartitionReadTxn readTxn = ( LmdbPartitionReadTxn ) partitionTxn;
+
+            if ( ( readTxn.getEnvironment() == this ) && !readTxn.isClosed() )
+            {
+                return readTxn.getTxn();
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * @return The current write sequence. It's odd while a write transaction is in progress
+     */
+    long getWriteSequence()
+    {
+        return writeSequence.get();
+    }
+
+
+    /**
+     * @return The underlying LMDB environment
+     */
+    Env<ByteBuffer> getEnv()
+    {
+        return env;
+    }
+
+
+    /**
+     * @return The maximum size of a key, and of a value in a table allowing duplicates
+     */
+    public int getMaxKeySize()
+    {
+        return maxKeySize;
+    }
+
+
+    /**
+     * Flushes the data on disk
+     */
+    public void sync()
+    {
+        env.sync( true );
+    }
+
+
+    /**
+     * Closes the environment. All the transactions must have been closed.
+     */
+    @Override
+    public void close()
+    {
+        env.close();
+    }
+}
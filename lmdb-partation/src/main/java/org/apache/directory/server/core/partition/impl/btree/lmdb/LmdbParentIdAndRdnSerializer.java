@@ -0,0 +1,146 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serialize and deserialize a ParentIdAndRdn.
+ * <br><br>
+ * The structure used to store the ParentIdAndRdn is the following :
+ * <ul>
+ *   <li><b>[nbRdns]</b> : the number of RDNs, -1 when they are null</li>
+ *   <li><b>[Rdn]*</b> : The RDNs</li>
+ *   <li><b>[parentId]</b> : the parent's ID</li>
+ *   <li><b>[nbChildren]</b> : the number of children</li>
+ *   <li><b>[nbDescendants]</b> : the number of descendants</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbParentIdAndRdnSerializer extends LmdbSerializer<ParentIdAndRdn>
+{
+    /** the logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbParentIdAndRdnSerializer.class );
+
+    /** The schemaManager reference */
+    private final SchemaManager schemaManager;
+
+
+    /**
+     * Creates a new instance of LmdbParentIdAndRdnSerializer.
+     *
+     * @param schemaManager The reference to the global schemaManager
+     */
+    public LmdbParentIdAndRdnSerializer( SchemaManager schemaManager )
+    {
+        super( ParentIdAndRdn::compareTo );
+        this.schemaManager = schemaManager;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serialize( ParentIdAndRdn parentIdAndRdn ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream( baos ) )
+        {
+            Rdn[] rdns = parentIdAndRdn.getRdns();
+
+            if ( rdns == null )
+            {
+                out.writeByte( -1 );
+            }
+            else
+            {
+                out.writeByte( rdns.length );
+
+                for ( Rdn rdn : rdns )
+                {
+                    rdn.writeExternal( out );
+                }
+            }
+
+            out.writeUTF( parentIdAndRdn.getParentId() );
+            out.writeInt( parentIdAndRdn.getNbChildren() );
+            out.writeInt( parentIdAndRdn.getNbDescendants() );
+            out.flush();
+        }
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ParentIdAndRdn deserialize( ByteBuffer buffer ) throws IOException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteBufferInputStream( buffer ) ) )
+        {
+            ParentIdAndRdn parentIdAndRdn = new ParentIdAndRdn();
+
+            int nbRdns = in.readByte();
+
+            if ( nbRdns >= 0 )
+            {
+                Rdn[] rdns = new Rdn[nbRdns];
+
+                for ( int i = 0; i < nbRdns; i++ )
+                {
+                    Rdn rdn = new Rdn( schemaManager );
+                    rdn.readExternal( in );
+                    rdns[i] = rdn;
+                }
+
+                parentIdAndRdn.setRdns( rdns );
+            }
+
+            parentIdAndRdn.setParentId( in.readUTF() );
+            parentIdAndRdn.setNbChildren( in.readInt() );
+            parentIdAndRdn.setNbDescendants( in.readInt() );
+
+            return parentIdAndRdn;
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, cnfe.getLocalizedMessage() ) );
+            throw new IOException( cnfe.getLocalizedMessage(), cnfe );
+        }
+    }
+}
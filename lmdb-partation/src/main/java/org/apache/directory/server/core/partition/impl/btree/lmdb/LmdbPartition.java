@@ -0,0 +1,779 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.MultiException;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.CacheInvalidations;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.search.impl.CursorBuilder;
+import org.apache.directory.server.xdbm.search.impl.DefaultOptimizer;
+import org.apache.directory.server.xdbm.search.impl.DefaultSearchEngine;
+import org.apache.directory.server.xdbm.search.impl.EvaluatorBuilder;
+import org.apache.directory.server.xdbm.search.impl.NoOpOptimizer;
+import org.lmdbjava.LmdbException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A partition stored in a LMDB memory mapped file. The master table and all the
+ * indexes are databases within a single LMDB environment, so an update is atomic
+ * across all of them.
+ * <br><br>
+ * LMDB uses MVCC : a read transaction sees a snapshot of the data, and is never
+ * blocked by the writes. The entries are deserialized straight from the memory
+ * mapped pages, without being copied first.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbPartition extends AbstractBTreePartition
+{
+    /** static logger */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbPartition.class );
+
+    /** The default maximum size of the database : 10 GB */
+    public static final long DEFAULT_MAP_SIZE = 10L * 1024L * 1024L * 1024L;
+
+    /** The default maximum number of tables */
+    public static final int DEFAULT_MAX_DBS = 256;
+
+    /** The default maximum number of concurrent read transactions */
+    public static final int DEFAULT_MAX_READERS = 1024;
+
+    /** The LMDB environment */
+    private LmdbEnvironment environment;
+
+    /** The maximum size of the database */
+    private long mapSize = DEFAULT_MAP_SIZE;
+
+    /** The maximum number of tables */
+    private int maxDbs = DEFAULT_MAX_DBS;
+
+    /** The maximum number of concurrent read transactions */
+    private int maxReaders = DEFAULT_MAX_READERS;
+
+
+    /**
+     * Creates a store based on LMDB
+     *
+     * @param schemaManager The SchemaManager instance
+     * @param dnFactory The DN factory instance
+     */
+    public LmdbPartition( SchemaManager schemaManager, DnFactory dnFactory )
+    {
+        super( schemaManager, dnFactory );
+
+        // Initialize the cache size
+        if ( cacheSize < 0 )
+        {
+            cacheSize = DEFAULT_CACHE_SIZE;
+            LOG.debug( "Using the default entry cache size of {} for {} partition", cacheSize, id );
+        }
+        else
+        {
+            LOG.debug( "Using the custom configured cache size of {} for {} partition", cacheSize, id );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doRepair() throws LdapException
+    {
+        // Nothing to do : LMDB is always consistent
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doInit() throws LdapException
+    {
+        if ( !initialized )
+        {
+            // setup optimizer and registries for parent
+            if ( !isOptimizerEnabled() )
+            {
+                setOptimizer( new NoOpOptimizer() );
+            }
+            else
+            {
+                setOptimizer( new DefaultOptimizer( this ) );
+            }
+
+            EvaluatorBuilder evaluatorBuilder = new EvaluatorBuilder( this, schemaManager );
+            CursorBuilder cursorBuilder = new CursorBuilder( this, evaluatorBuilder );
+
+            setSearchEngine( new DefaultSearchEngine( this, cursorBuilder, evaluatorBuilder, getOptimizer() ) );
+
+            // Create the underlying directories (only if needed)
+            File partitionDir = new File( getPartitionPath() );
+
+            if ( !partitionDir.exists() && !partitionDir.mkdirs() )
+            {
+                throw new LdapOtherException( I18n.err( I18n.ERR_112_COULD_NOT_CREATE_DIRECTORY, partitionDir ) );
+            }
+
+            if ( cacheSize < 0 )
+            {
+                cacheSize = DEFAULT_CACHE_SIZE;
+                LOG.debug( "Using the default entry cache size of {} for {} partition", cacheSize, id );
+            }
+            else
+            {
+                LOG.debug( "Using the custom configured cache size of {} for {} partition", cacheSize, id );
+            }
+
+            try
+            {
+                environment = new LmdbEnvironment( partitionDir, mapSize, maxDbs, maxReaders, isSyncOnWrite() );
+            }
+            catch ( LmdbException le )
+            {
+                throw new LdapOtherException( le.getMessage(), le );
+            }
+
+            // The user indexes which have never been stored have to be built
+            List<Index<?, String>> indexToBuild = new ArrayList<>();
+
+            try
+            {
+                List<String> existingDbs = new ArrayList<>();
+
+                for ( byte[] dbName : environment.getEnv().getDbiNames() )
+                {
+                    existingDbs.add( Strings.utf8ToString( dbName ) );
+                }
+
+                for ( Index<?, String> index : getIndexedAttributes() )
+                {
+                    String oid = schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ).getOid();
+
+                    if ( !existingDbs.isEmpty() && !existingDbs.contains( oid + LmdbIndex.FORWARD_BTREE ) )
+                    {
+                        indexToBuild.add( index );
+                    }
+                }
+            }
+            catch ( LmdbException le )
+            {
+                throw new LdapOtherException( le.getMessage(), le );
+            }
+
+            // Initialize the indexes
+            super.doInit();
+
+            // Create the master table (the table containing all the entries)
+            try
+            {
+                master = new LmdbMasterTable( environment, schemaManager );
+            }
+            catch ( LmdbException le )
+            {
+                throw new LdapOtherException( le.getMessage(), le );
+            }
+
+            if ( !indexToBuild.isEmpty() )
+            {
+                buildUserIndex( indexToBuild );
+            }
+
+            loadIndexStatistics();
+
+            initEntryCache();
+
+            // Initialization of the context entry
+            if ( ( suffixDn != null ) && ( contextEntry != null ) )
+            {
+                addContextEntry();
+            }
+
+            // We are done !
+            initialized = true;
+        }
+    }
+
+
+    /**
+     * Adds the configured context entry, if it's not already present
+     */
+    private void addContextEntry() throws LdapException
+    {
+        Dn contextEntryDn = contextEntry.getDn();
+
+        // Checking if the context entry DN is schema aware
+        if ( !contextEntryDn.isSchemaAware() )
+        {
+            contextEntryDn = new Dn( schemaManager, contextEntryDn );
+        }
+
+        // We're only adding the entry if the two DNs are equal
+        if ( !suffixDn.equals( contextEntryDn ) )
+        {
+            return;
+        }
+
+        // Looking for the current context entry
+        Entry suffixEntry;
+        LookupOperationContext lookupContext = new LookupOperationContext( null, suffixDn );
+        lookupContext.setPartition( this );
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            lookupContext.setTransaction( partitionTxn );
+            suffixEntry = lookup( lookupContext );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        // We're only adding the context entry if it doesn't already exist
+        if ( suffixEntry != null )
+        {
+            return;
+        }
+
+        // Checking of the context entry is schema aware
+        if ( !contextEntry.isSchemaAware() )
+        {
+            // Making the context entry schema aware
+            contextEntry = new DefaultEntry( schemaManager, contextEntry );
+        }
+
+        // Adding the 'entryCsn' attribute
+        if ( contextEntry.get( SchemaConstants.ENTRY_CSN_AT ) == null )
+        {
+            contextEntry.add( SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString() );
+        }
+
+        // Adding the 'entryUuid' attribute
+        if ( contextEntry.get( SchemaConstants.ENTRY_UUID_AT ) == null )
+        {
+            contextEntry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        }
+
+        // And add this entry to the underlying partition
+        PartitionTxn partitionTxn = beginWriteTransaction();
+        AddOperationContext addContext = new AddOperationContext( null, contextEntry );
+
+        try
+        {
+            addContext.setTransaction( partitionTxn );
+            add( addContext );
+            partitionTxn.commit();
+        }
+        catch ( LdapException le )
+        {
+            abort( partitionTxn );
+
+            throw le;
+        }
+        catch ( IOException ioe )
+        {
+            abort( partitionTxn );
+
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    private void abort( PartitionTxn partitionTxn ) throws LdapException
+    {
+        try
+        {
+            partitionTxn.abort();
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Builds user defined indexes on a attributes by browsing all the entries present in master db
+     *
+     * @param indices then selected indexes that need to be built
+     * @throws LdapException in case of any problems while building the index
+     */
+    private void buildUserIndex( List<Index<?, String>> indices ) throws LdapException
+    {
+        PartitionTxn partitionTxn = beginWriteTransaction();
+
+        try ( Cursor<Tuple<String, Entry>> cursor = master.cursor() )
+        {
+            while ( cursor.next() )
+            {
+                Tuple<String, Entry> tuple = cursor.get();
+                String id = tuple.getKey();
+                Entry entry = tuple.getValue();
+
+                for ( Index index : indices )
+                {
+                    AttributeType atType = index.getAttribute();
+                    String attributeOid = atType.getOid();
+
+                    if ( systemIndices.get( attributeOid ) != null )
+                    {
+                        // skipping building of the system index
+                        continue;
+                    }
+
+                    Attribute entryAttr = entry.get( atType );
+
+                    if ( entryAttr != null )
+                    {
+                        for ( Value value : entryAttr )
+                        {
+                            index.add( partitionTxn, value.getString(), id );
+                        }
+
+                        // Adds only those attributes that are indexed
+                        presenceIdx.add( partitionTxn, attributeOid, id );
+                    }
+                }
+            }
+
+            cursor.close();
+            partitionTxn.commit();
+        }
+        catch ( CursorException | IOException e )
+        {
+            abort( partitionTxn );
+
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        catch ( LdapException le )
+        {
+            abort( partitionTxn );
+
+            throw le;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}}
+     */
+    public String getDefaultId()
+    {
+        return Partition.DEFAULT_ID;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getRootId()
+    {
+        return Partition.ROOT_ID;
+    }
+
+
+    /**
+     * Flushes the data on disk. It's only needed when syncOnWrite is disabled.
+     *
+     * @throws LdapException on failures to sync database files to disk
+     */
+    @Override
+    public void sync() throws LdapException
+    {
+        if ( !initialized )
+        {
+            return;
+        }
+
+        saveIndexStatistics( false );
+
+        try
+        {
+            environment.sync();
+        }
+        catch ( LmdbException le )
+        {
+            throw new LdapOtherException( le.getMessage(), le );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Index<?, String> convertAndInit( Index<?, String> index ) throws LdapException
+    {
+        LmdbIndex<?> lmdbIndex;
+
+        if ( index instanceof LmdbIndex<?> )
+        {
+            lmdbIndex = ( LmdbIndex<?> ) index;
+        }
+        else
+        {
+            LOG.debug( "Supplied index {} is not a LmdbIndex.  "
+                + "Will create new LmdbIndex using copied configuration parameters.", index );
+            lmdbIndex = new LmdbIndex<>( index.getAttributeId(), true );
+            lmdbIndex.setCacheSize( index.getCacheSize() );
+            lmdbIndex.setWkDirPath( index.getWkDirPath() );
+        }
+
+        if ( lmdbIndex.getWkDirPath() == null )
+        {
+            lmdbIndex.setWkDirPath( partitionPath );
+        }
+
+        lmdbIndex.setEnvironment( environment );
+
+        try
+        {
+            lmdbIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+
+        return lmdbIndex;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Index createSystemIndex( String indexOid, URI path, boolean withReverse ) throws LdapException
+    {
+        LOG.debug( "Supplied index {} is not a LmdbIndex.  "
+            + "Will create new LmdbIndex using copied configuration parameters.", indexOid );
+        LmdbIndex<?> lmdbIndex;
+
+        if ( indexOid.equals( ApacheSchemaConstants.APACHE_RDN_AT_OID ) )
+        {
+            lmdbIndex = new LmdbRdnIndex();
+            lmdbIndex.setAttributeId( ApacheSchemaConstants.APACHE_RDN_AT_OID );
+        }
+        else if ( indexOid.equals( ApacheSchemaConstants.APACHE_ALIAS_AT_OID ) )
+        {
+            lmdbIndex = new LmdbDnIndex( ApacheSchemaConstants.APACHE_ALIAS_AT_OID );
+            lmdbIndex.setAttributeId( ApacheSchemaConstants.APACHE_ALIAS_AT_OID );
+        }
+        else
+        {
+            lmdbIndex = new LmdbIndex<>( indexOid, withReverse );
+        }
+
+        lmdbIndex.setWkDirPath( path );
+
+        return lmdbIndex;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected synchronized void doDestroy( PartitionTxn partitionTxn ) throws LdapException
+    {
+        MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
+
+        if ( !initialized )
+        {
+            return;
+        }
+
+        try
+        {
+            super.doDestroy( partitionTxn );
+        }
+        catch ( Exception e )
+        {
+            errors.addThrowable( e );
+        }
+
+        // This is specific to the LMDB store : close the environment
+        try
+        {
+            environment.close();
+            LOG.debug( "Closed the LMDB environment for {} partition.", suffixDn );
+        }
+        catch ( Throwable t )
+        {
+            LOG.error( I18n.err( I18n.ERR_127 ), t );
+            errors.addThrowable( t );
+        }
+        finally
+        {
+            if ( entryCache != null )
+            {
+                entryCache.clear();
+            }
+        }
+
+        if ( errors.size() > 0 )
+        {
+            throw new LdapOtherException( errors.getMessage(), errors );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSnapshotReadSupported()
+    {
+        // The readers see the data as of the beginning of their transaction
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <br>
+     * The caches are updated when a write transaction is committed, so they can only be
+     * used by a reader looking at the latest committed data while no write is in progress.
+     * The writer reads its own changes from the tables.
+     */
+    @Override
+    protected boolean isCacheable( PartitionTxn partitionTxn )
+    {
+        if ( environment.getWriteTxn( partitionTxn ) != null )
+        {
+            return false;
+        }
+
+        long writeSequence = environment.getWriteSequence();
+
+        if ( ( writeSequence & 1L ) != 0L )
+        {
+            // A write is in progress
+            return false;
+        }
+
+        if ( partitionTxn instanceof LmdbPartitionReadTxn )
+        {
+            return ( ( LmdbPartitionReadTxn ) partitionTxn ).getWriteSequence() == writeSequence;
+        }
+
+        // The tables will use a fresh snapshot
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The entries are added and deleted in write transactions, so the number of entries
+     * only changes when the environment write sequence does. As for the caches, only the
+     * transactions seeing the latest committed state get a sequence.
+     */
+    @Override
+    protected long getCountSequence( PartitionTxn partitionTxn )
+    {
+        if ( environment.getWriteTxn( partitionTxn ) != null )
+        {
+            return -1L;
+        }
+
+        long writeSequence = environment.getWriteSequence();
+
+        if ( ( writeSequence & 1L ) != 0L )
+        {
+            // A write is in progress
+            return -1L;
+        }
+
+        if ( ( partitionTxn instanceof LmdbPartitionReadTxn )
+            && ( ( ( LmdbPartitionReadTxn ) partitionTxn ).getWriteSequence() != writeSequence ) )
+        {
+            return -1L;
+        }
+
+        return writeSequence;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected CacheInvalidations getCacheInvalidations( PartitionTxn partitionTxn )
+    {
+        LmdbPartitionWriteTxn writeTxn = environment.getWriteTxn( partitionTxn );
+
+        if ( writeTxn == null )
+        {
+            // The tables commit each change at once
+            return null;
+        }
+
+        return writeTxn.getCacheInvalidations( this );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void lockCacheFill()
+    {
+        environment.getCacheFillLock().lock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void unlockCacheFill()
+    {
+        environment.getCacheFillLock().unlock();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PartitionReadTxn beginReadTransaction()
+    {
+        return environment.beginReadTransaction();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PartitionWriteTxn beginWriteTransaction()
+    {
+        return environment.beginWriteTransaction();
+    }
+
+
+    /**
+     * @return The LMDB environment
+     */
+    public LmdbEnvironment getEnvironment()
+    {
+        return environment;
+    }
+
+
+    /**
+     * @return The maximum size of the database, in bytes
+     */
+    public long getMapSize()
+    {
+        return mapSize;
+    }
+
+
+    /**
+     * Sets the maximum size of the database. LMDB reserves this much address space,
+     * the file only grows as needed.
+     *
+     * @param mapSize The maximum size of the database, in bytes
+     */
+    public void setMapSize( long mapSize )
+    {
+        checkInitialized( "mapSize" );
+        this.mapSize = mapSize;
+    }
+
+
+    /**
+     * @return The maximum number of tables
+     */
+    public int getMaxDbs()
+    {
+        return maxDbs;
+    }
+
+
+    /**
+     * Sets the maximum number of tables : the master table, plus two per index.
+     *
+     * @param maxDbs The maximum number of tables
+     */
+    public void setMaxDbs( int maxDbs )
+    {
+        checkInitialized( "maxDbs" );
+        this.maxDbs = maxDbs;
+    }
+
+
+    /**
+     * @return The maximum number of concurrent read transactions
+     */
+    public int getMaxReaders()
+    {
+        return maxReaders;
+    }
+
+
+    /**
+     * Sets the maximum number of concurrent read transactions. Each opened search
+     * holds one until its cursor is closed.
+     *
+     * @param maxReaders The maximum number of concurrent read transactions
+     */
+    public void setMaxReaders( int maxReaders )
+    {
+        checkInitialized( "maxReaders" );
+        this.maxReaders = maxReaders;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.server.core.api.partition.PartitionReadTxn;
+import org.lmdbjava.Txn;
+
+
+/**
+ * The LMDB partition read transaction. It sees a snapshot of the data as of the
+ * moment it was started, whatever the concurrent writes are.
+ * <br><br>
+ * The cursors created while the transaction is opened share its snapshot, and
+ * keep it alive until they are closed, even if the transaction itself has been
+ * closed before : the search results are read after the search operation has
+ * released its transaction.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbPartitionReadTxn extends PartitionReadTxn
+{
+    /** The environment this transaction has been created on */
+    private final LmdbEnvironment environment;
+
+    /** The LMDB transaction */
+    private final Txn<ByteBuffer> txn;
+
+    /** The number of users of the LMDB transaction : this instance, and the cursors */
+    private final AtomicInteger references = new AtomicInteger( 1 );
+
+    /** Tells if this transaction has been closed */
+    private volatile boolean closed;
+
+    /** The environment write sequence when this transaction was started */
+    private final long writeSequence;
+
+
+    /**
+     * Creates a new LmdbPartitionReadTxn instance
+     *
+     * @param environment The LMDB environment
+     * @param txn The LMDB read transaction
+     * @param writeSequence The environment write sequence when the transaction was started
+     */
+    LmdbPartitionReadTxn( LmdbEnvironment environment, Txn<ByteBuffer> txn, long writeSequence )
+    {
+        this.environment = environment;
+        this.txn = txn;
+        this.writeSequence = writeSequence;
+    }
+
+
+    /**
+     * @return The LMDB transaction
+     */
+    Txn<ByteBuffer> getTxn()
+    {
+        return txn;
+    }
+
+
+    /**
+     * @return The environment write sequence when this transaction was started
+     */
+    long getWriteSequence()
+    {
+        return writeSequence;
+    }
+
+
+    /**
+     * @return The environment this transaction has been created on
+     */
+    LmdbEnvironment getEnvironment()
+    {
+        return environment;
+    }
+
+
+    /**
+     * Registers a new user of the LMDB transaction, typically a cursor.
+     *
+     * @return <code>false</code> if the LMDB transaction has already been released
+     */
+    boolean retain()
+    {
+        while ( true )
+        {
+            int nbReferences = references.get();
+
+            if ( nbReferences <= 0 )
+            {
+                return false;
+            }
+
+            if ( references.compareAndSet( nbReferences, nbReferences + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Unregisters a user of the LMDB transaction. The transaction is released when
+     * the last user is gone.
+     */
+    void release()
+    {
+        if ( references.decrementAndGet() == 0 )
+        {
+            txn.close();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        if ( !closed )
+        {
+            closed = true;
+            release();
+        }
+    }
+}
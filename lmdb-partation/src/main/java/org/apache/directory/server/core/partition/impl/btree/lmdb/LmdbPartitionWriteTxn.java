@@ -0,0 +1,217 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.core.partition.impl.btree.CacheInvalidations;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.Txn;
+
+
+/**
+ * The LMDB partition write transaction. The changes are only visible to the
+ * readers once the transaction has been committed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbPartitionWriteTxn extends PartitionWriteTxn
+{
+    /** The environment this transaction has been created on */
+    private final LmdbEnvironment environment;
+
+    /** The LMDB transaction */
+    private final Txn<ByteBuffer> txn;
+
+    /** The enclosing transaction, when this one is nested */
+    private final LmdbPartitionWriteTxn parent;
+
+    /** Tells if this transaction has been committed or aborted */
+    private volatile boolean closed;
+
+    /** The changes to make to the partition caches once the transaction is committed */
+    private CacheInvalidations cacheInvalidations;
+
+
+    /**
+     * Creates a new LmdbPartitionWriteTxn instance
+     *
+     * @param environment The LMDB environment
+     * @param txn The LMDB write transaction
+     * @param parent The enclosing transaction, if any
+     */
+    LmdbPartitionWriteTxn( LmdbEnvironment environment, Txn<ByteBuffer> txn, LmdbPartitionWriteTxn parent )
+    {
+        this.environment = environment;
+        this.txn = txn;
+        this.parent = parent;
+    }
+
+
+    /**
+     * @return The LMDB transaction
+     */
+    Txn<ByteBuffer> getTxn()
+    {
+        return txn;
+    }
+
+
+    /**
+     * @return The environment this transaction has been created on
+     */
+    LmdbEnvironment getEnvironment()
+    {
+        return environment;
+    }
+
+
+    /**
+     * @return The enclosing transaction, if any
+     */
+    LmdbPartitionWriteTxn getParent()
+    {
+        return parent;
+    }
+
+
+    /**
+     * Gets the changes to make to the caches of a partition once the outermost
+     * transaction is committed. A nested transaction shares them with its parent : if
+     * it's aborted, the caches are just invalidated for nothing.
+     *
+     * @param partition The partition owning the caches
+     * @return The changes to the caches
+     */
+    CacheInvalidations getCacheInvalidations( AbstractBTreePartition partition )
+    {
+        if ( parent != null )
+        {
+            return parent.getCacheInvalidations( partition );
+        }
+
+        if ( cacheInvalidations == null )
+        {
+            cacheInvalidations = new CacheInvalidations( partition );
+        }
+
+        return cacheInvalidations;
+    }
+
+
+    /**
+     * @return The changes to make to the caches once the transaction is committed, if any
+     */
+    CacheInvalidations getCacheInvalidations()
+    {
+        return cacheInvalidations;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        boolean committed = false;
+
+        try
+        {
+            txn.commit();
+            committed = true;
+        }
+        catch ( LmdbException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+        finally
+        {
+            end( committed );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+
+        try
+        {
+            txn.abort();
+        }
+        catch ( LmdbException le )
+        {
+            throw new IOException( le.getMessage(), le );
+        }
+        finally
+        {
+            end( false );
+        }
+    }
+
+
+    /**
+     * Release the LMDB transaction and the thread
+     */
+    private void end( boolean committed )
+    {
+        closed = true;
+        txn.close();
+        environment.endWriteTransaction( this, committed );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+
+    /**
+     * Aborts the transaction, unless it has already been committed : the changes of
+     * a transaction left by an exception are not written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        abort();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+
+/**
+ * The base class for the serializers used to store keys and values in an LMDB
+ * database. Deserialization reads directly from the buffer LMDB hands back, which
+ * is a view on the memory mapped file : no intermediate copy is made.
+ *
+ * @param <T> The serialized type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public abstract class LmdbSerializer<T>
+{
+    /** The comparator used to order the deserialized elements */
+    protected final Comparator<T> comparator;
+
+
+    /**
+     * Creates a new LmdbSerializer instance
+     *
+     * @param comparator The comparator used to order the elements
+     */
+    protected LmdbSerializer( Comparator<T> comparator )
+    {
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * @return The comparator used to order the elements
+     */
+    public Comparator<T> getComparator()
+    {
+        return comparator;
+    }
+
+
+    /**
+     * Tells if the serialized form sorts in the same order as the comparator. When
+     * it's the case, LMDB can use its native memcmp ordering, otherwise the table
+     * registers a comparison callback which deserializes the keys.
+     *
+     * @return <code>true</code> if the byte order is the element order
+     */
+    public boolean isByteOrdered()
+    {
+        return false;
+    }
+
+
+    /**
+     * Serializes an element
+     *
+     * @param element The element to serialize
+     * @return The serialized element
+     * @throws IOException If the serialization failed
+     */
+    public abstract byte[] serialize( T element ) throws IOException;
+
+
+    /**
+     * Deserializes an element from a buffer. The buffer position and limit
+     * delimit the serialized element, and are left untouched.
+     *
+     * @param buffer The buffer containing the serialized element
+     * @return The deserialized element
+     * @throws IOException If the deserialization failed
+     */
+    public abstract T deserialize( ByteBuffer buffer ) throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A serializer for Strings, stored as UTF-8 bytes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbStringSerializer extends LmdbSerializer<String>
+{
+    /** A static instance for Strings ordered by their code points, like entry IDs */
+    public static final LmdbStringSerializer INSTANCE = new LmdbStringSerializer();
+
+    /** Tells if the UTF-8 byte order is the String order */
+    private final boolean byteOrdered;
+
+
+    /**
+     * Creates a serializer for Strings using their natural order. The UTF-8 byte
+     * order is the code point order, so LMDB can compare the keys natively.
+     */
+    private LmdbStringSerializer()
+    {
+        super( Comparator.naturalOrder() );
+        byteOrdered = true;
+    }
+
+
+    /**
+     * Creates a serializer for Strings ordered by a specific comparator
+     *
+     * @param comparator The comparator to use
+     */
+    public LmdbStringSerializer( Comparator<String> comparator )
+    {
+        super( comparator );
+        byteOrdered = false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isByteOrdered()
+    {
+        return byteOrdered;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serialize( String element )
+    {
+        return Strings.getBytesUtf8( element );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String deserialize( ByteBuffer buffer )
+    {
+        return StandardCharsets.UTF_8.decode( buffer.duplicate() ).toString();
+    }
+}
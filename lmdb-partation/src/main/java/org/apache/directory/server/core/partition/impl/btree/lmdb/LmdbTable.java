@@ -0,0 +1,799 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
+import org.apache.directory.api.ldap.model.cursor.SingletonCursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractTable;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.LmdbException;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Table implementation backed by a LMDB database.
+ * <br><br>
+ * The keys are ordered using the key serializer's comparator. When duplicates are
+ * allowed, the values associated with a key are ordered by their serialized bytes,
+ * which is the natural order for the entry IDs stored in the index tables.
+ * <br>
+ * LMDB limits the size of the keys (and of the values when duplicates are allowed)
+ * to {@link LmdbEnvironment#getMaxKeySize()} bytes : storing a bigger element fails.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbTable<K, V> extends AbstractTable<K, V>
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbTable.class );
+
+    /** The slot of the key in the scratch buffers */
+    private static final int KEY_SLOT = 0;
+
+    /** The slot of the value in the scratch buffers */
+    private static final int VALUE_SLOT = 1;
+
+    /** The scratch buffers, per thread, used to pass the keys and values to LMDB */
+    private static final ThreadLocal<ByteBuffer[]> SCRATCH_BUFFERS = ThreadLocal.withInitial( () -> new ByteBuffer[2] );
+
+    /** The LMDB environment */
+    private final LmdbEnvironment environment;
+
+    /** The LMDB database */
+    private final Dbi<ByteBuffer> dbi;
+
+    /** The key serializer */
+    private final LmdbSerializer<K> keySerializer;
+
+    /** The value serializer */
+    private final LmdbSerializer<V> valueSerializer;
+
+    /**
+     * An operation run within a LMDB transaction
+     */
+    @FunctionalInterface
+    private interface TxnOperation<R>
+    {
+        R apply( Txn<ByteBuffer> txn ) throws IOException;
+    }
+
+
+    /**
+     * Creates a new instance of a LmdbTable.
+     *
+     * @param environment The LMDB environment
+     * @param schemaManager The server schemaManager
+     * @param name the name of the table
+     * @param keySerializer The key serializer
+     * @param valueSerializer The value serializer
+     * @param allowsDuplicates If the table allows more than one value per key
+     */
+    public LmdbTable( LmdbEnvironment environment, SchemaManager schemaManager, String name,
+        LmdbSerializer<K> keySerializer, LmdbSerializer<V> valueSerializer, boolean allowsDuplicates )
+    {
+        super( schemaManager, name, keySerializer.getComparator(), valueSerializer.getComparator() );
+
+        this.environment = environment;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.allowsDuplicates = allowsDuplicates;
+
+        if ( keySerializer.isByteOrdered() )
+        {
+            dbi = environment.openDbi( name, null, allowsDuplicates );
+        }
+        else
+        {
+            dbi = environment.openDbi( name, new KeyComparator<>( name, keySerializer ), allowsDuplicates );
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Count Overloads
+    // ------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long count( PartitionTxn partitionTxn ) throws LdapException
+    {
+        return read( partitionTxn, txn -> dbi.stat( txn ).entries );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long count( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return 0L;
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+
+            if ( keyBuffer == null )
+            {
+                return 0L;
+            }
+
+            if ( !allowsDuplicates )
+            {
+                return ( dbi.get( txn, keyBuffer ) == null ) ? 0L : 1L;
+            }
+
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                if ( cursor.get( keyBuffer, GetOp.MDB_SET_KEY ) )
+                {
+                    return cursor.count();
+                }
+
+                return 0L;
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long greaterThanCount( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        // take a best guess
+        return Math.min( count( partitionTxn ), 10L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long lessThanCount( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        // take a best guess
+        return Math.min( count( partitionTxn ), 10L );
+    }
+
+
+    // ------------------------------------------------------------------------
+    // get/has/put/remove Methods and Overloads
+    // ------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return null;
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+
+            if ( keyBuffer == null )
+            {
+                return null;
+            }
+
+            ByteBuffer value = dbi.get( txn, keyBuffer );
+
+            if ( value == null )
+            {
+                return null;
+            }
+
+            return valueSerializer.deserialize( value );
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean has( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+
+            return ( keyBuffer != null ) && ( dbi.get( txn, keyBuffer ) != null );
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean has( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( ( key == null ) || ( value == null ) )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V stored = get( partitionTxn, key );
+
+            return ( stored != null ) && ( valueComparator.compare( stored, value ) == 0 );
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+            ByteBuffer valueBuffer = lookupBuffer( valueSerializer.serialize( value ), VALUE_SLOT );
+
+            if ( ( keyBuffer == null ) || ( valueBuffer == null ) )
+            {
+                return false;
+            }
+
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                return cursor.get( keyBuffer, valueBuffer, SeekOp.MDB_GET_BOTH );
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasGreaterOrEqual( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                return cursor.get( keyBuffer( key ), GetOp.MDB_SET_RANGE );
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasLessOrEqual( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                if ( !cursor.get( keyBuffer( key ), GetOp.MDB_SET_RANGE ) )
+                {
+                    // All the keys are lower than the given key
+                    return cursor.last();
+                }
+
+                if ( keyComparator.compare( keySerializer.deserialize( cursor.key() ), key ) == 0 )
+                {
+                    return true;
+                }
+
+                return cursor.prev();
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasGreaterOrEqual( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                return cursor.get( keyBuffer( key ), valueBuffer( value ), SeekOp.MDB_GET_BOTH_RANGE );
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasLessOrEqual( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return false;
+        }
+
+        if ( !allowsDuplicates )
+        {
+            throw new UnsupportedOperationException( I18n.err( I18n.ERR_593 ) );
+        }
+
+        return read( partitionTxn, txn ->
+        {
+            try ( org.lmdbjava.Cursor<ByteBuffer> cursor = dbi.openCursor( txn ) )
+            {
+                ByteBuffer keyBuffer = keyBuffer( key );
+                ByteBuffer valueBuffer = valueBuffer( value );
+
+                if ( cursor.get( keyBuffer, valueBuffer, SeekOp.MDB_GET_BOTH_RANGE ) )
+                {
+                    // We are on the first value >= the given one
+                    return cursor.val().equals( valueBuffer ) || cursor.seek( SeekOp.MDB_PREV_DUP );
+                }
+
+                // All the values are lower than the given one, if the key exists
+                return cursor.get( keyBuffer, GetOp.MDB_SET_KEY );
+            }
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( ( value == null ) || ( key == null ) )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_594 ) );
+        }
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "---> Add {} = {}", name, key );
+        }
+
+        write( partitionTxn, txn -> dbi.put( txn, keyBuffer( key ), valueBuffer( value ) ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove( PartitionTxn partitionTxn, K key, V value ) throws LdapException
+    {
+        if ( ( key == null ) || ( value == null ) )
+        {
+            return;
+        }
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "---> Remove {} = {}, {}", name, key, value );
+        }
+
+        write( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+
+            if ( keyBuffer == null )
+            {
+                return false;
+            }
+
+            if ( allowsDuplicates )
+            {
+                ByteBuffer valueBuffer = lookupBuffer( valueSerializer.serialize( value ), VALUE_SLOT );
+
+                return ( valueBuffer != null ) && dbi.delete( txn, keyBuffer, valueBuffer );
+            }
+
+            // Only remove the tuple if the value matches
+            ByteBuffer stored = dbi.get( txn, keyBuffer );
+
+            if ( ( stored == null ) || ( valueComparator.compare( valueSerializer.deserialize( stored ), value ) != 0 ) )
+            {
+                return false;
+            }
+
+            return dbi.delete( txn, keyBuffer );
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "---> Remove {} = {}", name, key );
+        }
+
+        write( partitionTxn, txn ->
+        {
+            ByteBuffer keyBuffer = lookupBuffer( keySerializer.serialize( key ), KEY_SLOT );
+
+            return ( keyBuffer != null ) && dbi.delete( txn, keyBuffer );
+        } );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Tuple<K, V>> cursor()
+    {
+        return new LmdbCursor<>( this, null, null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Tuple<K, V>> cursor( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return new EmptyCursor<>();
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V value = get( partitionTxn, key );
+
+            if ( value == null )
+            {
+                return new EmptyCursor<>();
+            }
+
+            return new SingletonCursor<>( new Tuple<K, V>( key, value ) );
+        }
+
+        return new LmdbCursor<>( this, partitionTxn, key );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<V> valueCursor( PartitionTxn partitionTxn, K key ) throws LdapException
+    {
+        if ( key == null )
+        {
+            return new EmptyCursor<>();
+        }
+
+        if ( !allowsDuplicates )
+        {
+            V value = get( partitionTxn, key );
+
+            if ( value == null )
+            {
+                return new EmptyCursor<>();
+            }
+
+            return new SingletonCursor<>( value );
+        }
+
+        return new LmdbValueCursor<>( new LmdbCursor<>( this, partitionTxn, key ), key );
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Maintenance Operations
+    // ------------------------------------------------------------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( PartitionTxn partitionTxn ) throws LdapException
+    {
+        // Nothing to do : the databases are closed with the environment
+    }
+
+
+    /**
+     * @return The LMDB environment this table is stored in
+     */
+    LmdbEnvironment getEnvironment()
+    {
+        return environment;
+    }
+
+
+    /**
+     * @return The LMDB database
+     */
+    Dbi<ByteBuffer> getDbi()
+    {
+        return dbi;
+    }
+
+
+    /**
+     * @return The key serializer
+     */
+    LmdbSerializer<K> getKeySerializer()
+    {
+        return keySerializer;
+    }
+
+
+    /**
+     * @return The value serializer
+     */
+    LmdbSerializer<V> getValueSerializer()
+    {
+        return valueSerializer;
+    }
+
+
+    /**
+     * Serializes a key in the current thread's key scratch buffer
+     *
+     * @param key The key to serialize
+     * @return The buffer to pass to LMDB
+     * @throws IOException If the key can't be serialized, or is too big
+     */
+    ByteBuffer keyBuffer( K key ) throws IOException
+    {
+        return toBuffer( keySerializer.serialize( key ), KEY_SLOT );
+    }
+
+
+    /**
+     * Serializes a value in the current thread's value scratch buffer
+     *
+     * @param value The value to serialize
+     * @return The buffer to pass to LMDB
+     * @throws IOException If the value can't be serialized, or is too big
+     */
+    ByteBuffer valueBuffer( V value ) throws IOException
+    {
+        byte[] bytes = valueSerializer.serialize( value );
+
+        if ( allowsDuplicates )
+        {
+            // The values are stored as keys in the duplicates sub-database
+            return toBuffer( bytes, VALUE_SLOT );
+        }
+
+        return scratch( bytes, VALUE_SLOT );
+    }
+
+
+    /**
+     * Copies some serialized data in a scratch buffer, checking that it's not too
+     * big to be used as a key.
+     */
+    private ByteBuffer toBuffer( byte[] bytes, int slot ) throws IOException
+    {
+        if ( bytes.length > environment.getMaxKeySize() )
+        {
+            throw new IOException( "The serialized element is " + bytes.length + " bytes long, the maximum size in table "
+                + name + " is " + environment.getMaxKeySize() );
+        }
+
+        return scratch( bytes, slot );
+    }
+
+
+    /**
+     * Copies some serialized data used for a lookup in a scratch buffer. An element
+     * too big to be stored can't be found, we return null in this case.
+     */
+    private ByteBuffer lookupBuffer( byte[] bytes, int slot )
+    {
+        if ( bytes.length > environment.getMaxKeySize() )
+        {
+            return null;
+        }
+
+        return scratch( bytes, slot );
+    }
+
+
+    /**
+     * Copies some data in one of the current thread's direct buffers. LMDB copies the
+     * data it's given, so the buffer can be reused as soon as the call returns.
+     */
+    private static ByteBuffer scratch( byte[] bytes, int slot )
+    {
+        ByteBuffer[] buffers = SCRATCH_BUFFERS.get();
+        ByteBuffer buffer = buffers[slot];
+
+        if ( ( buffer == null ) || ( buffer.capacity() < bytes.length ) )
+        {
+            buffer = ByteBuffer.allocateDirect( Math.max( bytes.length, 512 ) );
+            buffers[slot] = buffer;
+        }
+
+        buffer.clear();
+        buffer.put( bytes ).flip();
+
+        return buffer;
+    }
+
+
+    /**
+     * Runs a read operation, using the current transaction when we have one, or a
+     * short lived read transaction otherwise.
+     */
+    private <R> R read( PartitionTxn partitionTxn, TxnOperation<R> operation ) throws LdapException
+    {
+        try
+        {
+            Txn<ByteBuffer> txn = environment.getReadTxn( partitionTxn );
+
+            if ( txn != null )
+            {
+                return operation.apply( txn );
+            }
+
+            try ( Txn<ByteBuffer> readTxn = environment.getEnv().txnRead() )
+            {
+                return operation.apply( readTxn );
+            }
+        }
+        catch ( IOException | LmdbException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * Runs a write operation, within the write transaction in progress if any, or
+     * within its own transaction otherwise.
+     */
+    private <R> R write( PartitionTxn partitionTxn, TxnOperation<R> operation ) throws LdapException
+    {
+        try
+        {
+            LmdbPartitionWriteTxn writeTxn = environment.getWriteTxn( partitionTxn );
+
+            if ( writeTxn != null )
+            {
+                return operation.apply( writeTxn.getTxn() );
+            }
+
+            // No write transaction in progress : run the operation in its own transaction
+            writeTxn = environment.beginWriteTransaction();
+
+            try
+            {
+                R result = operation.apply( writeTxn.getTxn() );
+                writeTxn.commit();
+
+                return result;
+            }
+            finally
+            {
+                // Does nothing if the transaction has been committed
+                writeTxn.abort();
+            }
+        }
+        catch ( IOException | LmdbException e )
+        {
+            LOG.error( "Failed to update the {} table : {}", name, e.getMessage() );
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * The comparator LMDB calls back to order the keys when their serialized form
+     * is not ordered like the keys themselves.
+     */
+    private static final class KeyComparator<K> implements Comparator<ByteBuffer>
+    {
+        /** The table name, for logs */
+        private final String tableName;
+
+        /** The key serializer */
+        private final LmdbSerializer<K> serializer;
+
+
+        KeyComparator( String tableName, LmdbSerializer<K> serializer )
+        {
+            this.tableName = tableName;
+            this.serializer = serializer;
+        }
+
+
+        @Override
+        public int compare( ByteBuffer buffer1, ByteBuffer buffer2 )
+        {
+            try
+            {
+                return serializer.getComparator().compare( serializer.deserialize( buffer1 ),
+                    serializer.deserialize( buffer2 ) );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                // We can't throw from a LMDB callback, fallback to the bytes order
+                LOG.error( "Cannot compare two keys in table {} : {}", tableName, e.getMessage() );
+
+                return buffer1.compareTo( buffer2 );
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Measures how the read throughput of a LMDB partition scales with the number of
+ * reader threads while a writer keeps modifying entries. The reads are done twice :
+ * protected by a fair read/write lock, as the OperationManager does for the partitions
+ * which don't support snapshot reads, and without any lock.
+ * <br>
+ * Run it with <code>mvn test -Dtest=LmdbContentionPerfTest -Dbenchmark=true</code>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class LmdbContentionPerfTest
+{
+    /** The duration of each measure, in ms */
+    private static final long DURATION = 2000L;
+
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+
+    private LmdbPartition store;
+
+    private List<Dn> dns;
+
+    private PartitionTxn partitionTxn;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbContentionPerfTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        dnFactory = new DefaultDnFactory( schemaManager, 100 );
+    }
+
+
+    @BeforeEach
+    public void createStore() throws Exception
+    {
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        File wkdir = Files.createDirectory( tmpDir.resolve( getClass().getSimpleName() ) ).toFile();
+
+        store = new LmdbPartition( schemaManager, dnFactory );
+        store.setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+        store.setMapSize( 256L * 1024L * 1024L );
+        store.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        store.initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        dns = new ArrayList<>();
+        dns.add( new Dn( schemaManager, "o=Good Times Co." ) );
+        dns.add( new Dn( schemaManager, "ou=Sales,o=Good Times Co." ) );
+        dns.add( new Dn( schemaManager, "ou=Engineering,o=Good Times Co." ) );
+        dns.add( new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." ) );
+        dns.add( new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." ) );
+        dns.add( new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." ) );
+
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @AfterEach
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            store.destroy( partitionTxn );
+        }
+    }
+
+
+    @Test
+    public void testReadScalabilityWithActiveWriter() throws Exception
+    {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println( "================= LMDB reads with an active writer =================" );
+        System.out.println( String.format( "%8s %16s %16s %10s", "readers", "locked (ops/s)", "snapshot (ops/s)",
+            "speedup" ) );
+
+        for ( int nbReaders = 1; nbReaders <= maxThreads; nbReaders *= 2 )
+        {
+            long locked = measure( nbReaders, true );
+            long snapshot = measure( nbReaders, false );
+
+            assertTrue( snapshot > 0 );
+
+            System.out.println( String.format( "%8d %16d %16d %10.2f", nbReaders, locked, snapshot,
+                ( double ) snapshot / Math.max( 1L, locked ) ) );
+        }
+
+        System.out.println( "====================================================================" );
+    }
+
+
+    /**
+     * Runs the readers and a writer for {@link #DURATION} ms
+     *
+     * @return The number of reads per second
+     */
+    private long measure( int nbReaders, boolean locked ) throws Exception
+    {
+        // The same fair lock as the OperationManager
+        ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
+        AtomicBoolean running = new AtomicBoolean( true );
+        AtomicLong nbReads = new AtomicLong();
+        CountDownLatch done = new CountDownLatch( nbReaders + 1 );
+        List<Throwable> errors = new ArrayList<>();
+
+        Thread writer = new Thread( () ->
+        {
+            Dn dn = dns.get( 1 );
+            long count = 0L;
+
+            try
+            {
+                while ( running.get() )
+                {
+                    Modification modification = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+                        new DefaultAttribute( schemaManager.getAttributeType( SchemaConstants.DESCRIPTION_AT ),
+                            "description " + count++ ) );
+
+                    rwLock.writeLock().lock();
+
+                    try
+                    {
+                        PartitionTxn writeTxn = store.beginWriteTransaction();
+                        store.modify( writeTxn, dn, modification );
+                        writeTxn.commit();
+                    }
+                    finally
+                    {
+                        rwLock.writeLock().unlock();
+                    }
+                }
+            }
+            catch ( Throwable t )
+            {
+                synchronized ( errors )
+                {
+                    errors.add( t );
+                }
+            }
+            finally
+            {
+                done.countDown();
+            }
+        } );
+
+        List<Thread> readers = new ArrayList<>();
+
+        for ( int i = 0; i < nbReaders; i++ )
+        {
+            readers.add( new Thread( () ->
+            {
+                try
+                {
+                    while ( running.get() )
+                    {
+                        Dn dn = dns.get( ThreadLocalRandom.current().nextInt( dns.size() ) );
+
+                        if ( locked )
+                        {
+                            rwLock.readLock().lock();
+                        }
+
+                        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+                        {
+                            String id = store.getEntryId( readTxn, dn );
+                            assertNotNull( store.fetch( readTxn, id, dn ) );
+                        }
+                        finally
+                        {
+                            if ( locked )
+                            {
+                                rwLock.readLock().unlock();
+                            }
+                        }
+
+                        nbReads.incrementAndGet();
+                    }
+                }
+                catch ( Throwable t )
+                {
+                    synchronized ( errors )
+                    {
+                        errors.add( t );
+                    }
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            } ) );
+        }
+
+        writer.start();
+        readers.forEach( Thread::start );
+
+        Thread.sleep( DURATION );
+        running.set( false );
+        done.await();
+
+        if ( !errors.isEmpty() )
+        {
+            fail( errors.get( 0 ) );
+        }
+
+        return nbReads.get() * 1000L / DURATION;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the LmdbIndex.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class LmdbIndexTest
+{
+    private Index<String, String> idx;
+    private static SchemaManager schemaManager;
+    private PartitionTxn partitionTxn;
+
+    /** The LMDB environment the index is stored in */
+    private LmdbEnvironment environment;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbIndexTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @BeforeEach
+    public void setup() throws IOException
+    {
+        environment = new LmdbEnvironment( tmpDir.toFile(), 16L * 1024L * 1024L, 16, 16, false );
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @AfterEach
+    public void teardown() throws Exception
+    {
+        destroyIndex();
+        environment.close();
+    }
+
+
+    void destroyIndex() throws Exception
+    {
+        if ( idx != null )
+        {
+            idx.close( partitionTxn );
+        }
+
+        idx = null;
+    }
+
+
+    void initIndex() throws Exception
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT );
+        LmdbIndex<String> index = new LmdbIndex<>( attributeType.getName(), false );
+        index.setWkDirPath( tmpDir.toUri() );
+        initIndex( index );
+    }
+
+
+    void initIndex( LmdbIndex<String> lmdbIdx ) throws Exception
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT );
+
+        if ( lmdbIdx == null )
+        {
+            lmdbIdx = new LmdbIndex<>( attributeType.getName(), false );
+        }
+
+        lmdbIdx.setEnvironment( environment );
+        lmdbIdx.init( schemaManager, attributeType );
+        this.idx = lmdbIdx;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Property Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testAttributeId() throws Exception
+    {
+        // uninitialized index
+        LmdbIndex<Object> lmdbIndex1 = new LmdbIndex<>( "foo", false );
+        assertEquals( "foo", lmdbIndex1.getAttributeId() );
+
+        LmdbIndex<Object> lmdbIndex2 = new LmdbIndex<>( "bar", false );
+        assertEquals( "bar", lmdbIndex2.getAttributeId() );
+
+        // initialized index
+        initIndex();
+
+        try
+        {
+            idx.setAttributeId( "foo" );
+            fail( "Should not be able to set attributeId after initialization." );
+        }
+        catch ( Exception e )
+        {
+        }
+
+        assertEquals( "ou", idx.getAttributeId() );
+    }
+
+
+    @Test
+    public void testWkDirPath() throws Exception
+    {
+        File wkdir = new File( tmpDir.toFile(), "foo" );
+
+        // uninitialized index
+        LmdbIndex<String> lmdbIndex = new LmdbIndex<>( "foo", false );
+        lmdbIndex.setWkDirPath( wkdir.toURI() );
+        assertEquals( "foo", new File( lmdbIndex.getWkDirPath() ).getName() );
+
+        // initialized index
+        initIndex();
+
+        try
+        {
+            idx.setWkDirPath( wkdir.toURI() );
+            fail( "Should not be able to set wkDirPath after initialization." );
+        }
+        catch ( Exception e )
+        {
+        }
+
+        assertEquals( tmpDir.toUri(), idx.getWkDirPath() );
+    }
+
+
+    @Test
+    public void testInitWithoutEnvironment() throws Exception
+    {
+        LmdbIndex<String> lmdbIndex = new LmdbIndex<>( SchemaConstants.OU_AT, false );
+
+        assertThrows( IllegalStateException.class, () -> lmdbIndex.init( schemaManager,
+            schemaManager.lookupAttributeTypeRegistry( SchemaConstants.OU_AT ) ) );
+    }
+
+
+    @Test
+    public void testGetAttribute() throws Exception
+    {
+        // uninitialized index
+        LmdbIndex<Object> lmdbIndex = new LmdbIndex<>( "ou", false );
+        assertNull( lmdbIndex.getAttribute() );
+
+        initIndex();
+        assertEquals( schemaManager.lookupAttributeTypeRegistry( "ou" ), idx.getAttribute() );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Count Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testCount() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, "foo", Strings.getUUID( 1234L ) );
+        assertEquals( 1, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, "foo", Strings.getUUID( 333L ) );
+        assertEquals( 2, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, "bar", Strings.getUUID( 555L ) );
+        assertEquals( 3, idx.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testCountOneArg() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.count( partitionTxn, " foo " ) );
+
+        idx.add( partitionTxn, "bar", Strings.getUUID( 1234L ) );
+        assertEquals( 0, idx.count( partitionTxn, " foo " ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 1234L ) );
+        assertEquals( 1, idx.count( partitionTxn, " foo " ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 333L ) );
+        assertEquals( 2, idx.count( partitionTxn, " foo " ) );
+    }
+
+
+    @Test
+    public void testGreaterThanCount() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.greaterThanCount( partitionTxn, "a" ) );
+
+        for ( char ch = 'a'; ch <= 'z'; ch++ )
+        {
+            idx.add( partitionTxn, String.valueOf( ch ), Strings.getUUID( ch ) );
+        }
+
+        // We should not go above the magic limit of 10
+        assertEquals( 10, idx.greaterThanCount( partitionTxn, "a" ) );
+    }
+
+
+    @Test
+    public void testLessThanCount() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.lessThanCount( partitionTxn, "z" ) );
+
+        for ( char ch = 'a'; ch <= 'z'; ch++ )
+        {
+            idx.add( partitionTxn, String.valueOf( ch ), Strings.getUUID( ch ) );
+        }
+
+        // We should not go above the magic limit of 10
+        assertEquals( 10, idx.lessThanCount( partitionTxn, "z" ) );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Add, Drop and Lookup Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testLookupsToo() throws Exception
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( "seeAlso" );
+        LmdbIndex<String> index = new LmdbIndex<>( attributeType.getName(), false );
+        index.setWkDirPath( tmpDir.toUri() );
+        index.setEnvironment( environment );
+        index.init( schemaManager, attributeType );
+        this.idx = index;
+
+        String foobarDn = "uid=foo,ou=bar";
+        String bazbarDn = "uid=baz,ou=bar";
+
+        assertNull( idx.forwardLookup( partitionTxn, foobarDn ) );
+        assertNull( idx.forwardLookup( partitionTxn, bazbarDn ) );
+        idx.add( partitionTxn, foobarDn, Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, foobarDn ) );
+        assertNull( idx.forwardLookup( partitionTxn, bazbarDn ) );
+        idx.add( partitionTxn, bazbarDn, Strings.getUUID( 24L ) );
+        assertEquals( Strings.getUUID( 24L ), idx.forwardLookup( partitionTxn, bazbarDn ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, foobarDn ) );
+    }
+
+
+    @Test
+    public void testLookups() throws Exception
+    {
+        initIndex();
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertNull( idx.forwardLookup( partitionTxn, " bar " ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertTrue( idx.forward( partitionTxn, " foo ", Strings.getUUID( 0L ) ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 1L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertTrue( idx.forward( partitionTxn, " foo ", Strings.getUUID( 0L ) ) );
+        assertTrue( idx.forward( partitionTxn, " foo ", Strings.getUUID( 1L ) ) );
+
+        idx.add( partitionTxn, " bar ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " bar " ) );
+        assertTrue( idx.forward( partitionTxn, " bar ", Strings.getUUID( 0L ) ) );
+        assertTrue( idx.forward( partitionTxn, " foo ", Strings.getUUID( 0L ) ) );
+        assertTrue( idx.forward( partitionTxn, " foo ", Strings.getUUID( 1L ) ) );
+    }
+
+
+    @Test
+    public void testAddDropById() throws Exception
+    {
+        initIndex();
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertNull( idx.forwardLookup( partitionTxn, " bar " ) );
+
+        // test add/drop without adding any duplicates
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+
+        // test add/drop with duplicates in bulk
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 1L ) );
+        idx.add( partitionTxn, " bar ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " bar " ) );
+
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        idx.drop( partitionTxn, " bar ", Strings.getUUID( 0L ) );
+        assertFalse( idx.forward( partitionTxn, " bar ", Strings.getUUID( 0L ) ) );
+        assertFalse( idx.forward( partitionTxn, " foo ", Strings.getUUID( 0L ) ) );
+
+        idx.drop( partitionTxn, " bar ", Strings.getUUID( 1L ) );
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 1L ) );
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertNull( idx.forwardLookup( partitionTxn, " bar " ) );
+        assertEquals( 0, idx.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testAddDropOneByOne() throws Exception
+    {
+        initIndex();
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertNull( idx.forwardLookup( partitionTxn, " bar " ) );
+
+        // test add/drop without adding any duplicates
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+
+        // test add/drop with duplicates but one at a time
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 1L ) );
+        idx.add( partitionTxn, " bar ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " bar " ) );
+
+        idx.drop( partitionTxn, " bar ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertFalse( idx.forward( partitionTxn, " bar ", Strings.getUUID( 0L ) ) );
+
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 1L ), idx.forwardLookup( partitionTxn, " foo " ) );
+        assertFalse( idx.forward( partitionTxn, " foo ", Strings.getUUID( 0L ) ) );
+
+        idx.drop( partitionTxn, " foo ", Strings.getUUID( 1L ) );
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertNull( idx.forwardLookup( partitionTxn, " bar " ) );
+        assertEquals( 0, idx.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testAbortedAdd() throws Exception
+    {
+        initIndex();
+
+        // The changes made in an aborted transaction are not visible
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            idx.add( writeTxn, " foo ", Strings.getUUID( 0L ) );
+            assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( writeTxn, " foo " ) );
+        }
+
+        assertNull( idx.forwardLookup( partitionTxn, " foo " ) );
+        assertEquals( 0, idx.count( partitionTxn ) );
+
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            idx.add( writeTxn, " foo ", Strings.getUUID( 0L ) );
+            writeTxn.commit();
+        }
+
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, " foo " ) );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Miscellaneous Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testCursors() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 1234L ) );
+        assertEquals( 1, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, " foo ", Strings.getUUID( 333L ) );
+        assertEquals( 2, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, "bar", Strings.getUUID( 555L ) );
+        assertEquals( 3, idx.count( partitionTxn ) );
+
+        // use forward index's cursor
+        try ( Cursor<IndexEntry<String, String>> cursor = idx.forwardCursor( partitionTxn ) )
+        {
+            cursor.beforeFirst();
+
+            cursor.next();
+            IndexEntry<String, String> e1 = cursor.get();
+            assertEquals( Strings.getUUID( 555L ), e1.getId() );
+            assertEquals( "bar", e1.getKey() );
+
+            cursor.next();
+            IndexEntry<String, String> e2 = cursor.get();
+            assertEquals( Strings.getUUID( 333L ), e2.getId() );
+            assertEquals( " foo ", e2.getKey() );
+
+            cursor.next();
+            IndexEntry<String, String> e3 = cursor.get();
+            assertEquals( Strings.getUUID( 1234L ), e3.getId() );
+            assertEquals( " foo ", e3.getKey() );
+
+            assertFalse( cursor.next() );
+        }
+    }
+
+
+    @Test
+    public void testNoEqualityMatching() throws Exception
+    {
+        LmdbIndex<Object> lmdbIndex = new LmdbIndex<>( "1.1", false );
+        lmdbIndex.setEnvironment( environment );
+
+        AttributeType noEqMatchAttribute = new AttributeType( "1.1" );
+
+        assertThrows( IOException.class, () -> lmdbIndex.init( schemaManager, noEqMatchAttribute ) );
+    }
+
+
+    @Test
+    public void testSingleValuedAttribute() throws Exception
+    {
+        LmdbIndex<Object> lmdbIndex = new LmdbIndex<>( SchemaConstants.CREATORS_NAME_AT, true );
+        lmdbIndex.setWkDirPath( tmpDir.toUri() );
+        lmdbIndex.setEnvironment( environment );
+        lmdbIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATORS_NAME_AT ) );
+        lmdbIndex.close( partitionTxn );
+    }
+}
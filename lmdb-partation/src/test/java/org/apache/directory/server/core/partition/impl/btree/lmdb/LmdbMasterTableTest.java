@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Test cases for LmdbMasterTable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class LmdbMasterTableTest
+{
+    private LmdbMasterTable table;
+
+    private static SchemaManager schemaManager = null;
+
+    private LmdbEnvironment environment;
+
+    private PartitionTxn partitionTxn;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void loadSchema() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbMasterTableTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @BeforeEach
+    public void createTable() throws Exception
+    {
+        environment = new LmdbEnvironment( tmpDir.toFile(), 16L * 1024L * 1024L, 4, 16, false );
+        table = new LmdbMasterTable( environment, schemaManager );
+
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @AfterEach
+    public void destroyTable() throws Exception
+    {
+        if ( table == null )
+        {
+            return;
+        }
+
+        table.close( partitionTxn );
+
+        environment.close();
+    }
+
+
+    @Test
+    public void testAll() throws Exception
+    {
+        assertNull( table.get( partitionTxn, Strings.getUUID( 0L ) ) );
+        assertEquals( 0, table.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testPutGetRemove() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=test,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: test" );
+
+        String id = Strings.getUUID( 1L );
+
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            table.put( writeTxn, id, entry );
+            writeTxn.commit();
+        }
+
+        assertEquals( 1, table.count( partitionTxn ) );
+        assertTrue( table.has( partitionTxn, id ) );
+
+        Entry stored = table.get( partitionTxn, id );
+        assertEquals( "test", stored.get( "ou" ).getString() );
+        assertTrue( stored.contains( "objectClass", "organizationalUnit" ) );
+
+        // An aborted transaction must leave the table untouched
+        LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction();
+        table.remove( writeTxn, id );
+        writeTxn.abort();
+
+        assertTrue( table.has( partitionTxn, id ) );
+
+        // A transaction closed without being committed is aborted
+        try ( LmdbPartitionWriteTxn removeTxn = environment.beginWriteTransaction() )
+        {
+            table.remove( removeTxn, id );
+        }
+
+        assertTrue( table.has( partitionTxn, id ) );
+
+        try ( LmdbPartitionWriteTxn removeTxn = environment.beginWriteTransaction() )
+        {
+            table.remove( removeTxn, id );
+            removeTxn.commit();
+        }
+
+        assertFalse( table.has( partitionTxn, id ) );
+        assertEquals( 0, table.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testCursorSeesSnapshot() throws Exception
+    {
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            for ( long i = 1L; i <= 3L; i++ )
+            {
+                table.put( writeTxn, Strings.getUUID( i ), new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+                    "objectClass: top",
+                    "objectClass: organizationalUnit",
+                    "ou: test" + i ) );
+            }
+
+            writeTxn.commit();
+        }
+
+        try ( LmdbPartitionReadTxn readTxn = environment.beginReadTransaction();
+            Cursor<Tuple<String, Entry>> cursor = new LmdbCursor<>( table, readTxn, null ) )
+        {
+            // A write committed after the read transaction has started is not visible
+            try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+            {
+                table.remove( writeTxn, Strings.getUUID( 2L ) );
+                writeTxn.commit();
+            }
+
+            cursor.beforeFirst();
+            int count = 0;
+
+            while ( cursor.next() )
+            {
+                count++;
+                assertEquals( Strings.getUUID( count ), cursor.get().getKey() );
+            }
+
+            assertEquals( 3, count );
+        }
+
+        assertEquals( 2, table.count( partitionTxn ) );
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.constants.ApacheSchemaConstants;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the LmdbRdnIndex.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class LmdbRdnIndexTest
+{
+    private Index<ParentIdAndRdn, String> idx;
+    private static SchemaManager schemaManager;
+    private PartitionTxn partitionTxn;
+
+    /** The LMDB environment the index is stored in */
+    private LmdbEnvironment environment;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbRdnIndexTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @BeforeEach
+    public void setup() throws Exception
+    {
+        environment = new LmdbEnvironment( tmpDir.toFile(), 16L * 1024L * 1024L, 16, 16, false );
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @AfterEach
+    public void teardown() throws Exception
+    {
+        destroyIndex();
+        environment.close();
+    }
+
+
+    void destroyIndex() throws Exception
+    {
+        if ( idx != null )
+        {
+            idx.close( partitionTxn );
+        }
+
+        idx = null;
+    }
+
+
+    void initIndex() throws Exception
+    {
+        LmdbRdnIndex index = new LmdbRdnIndex();
+        index.setWkDirPath( tmpDir.toUri() );
+        index.setEnvironment( environment );
+        index.init( schemaManager,
+            schemaManager.lookupAttributeTypeRegistry( ApacheSchemaConstants.APACHE_RDN_AT_OID ) );
+        this.idx = index;
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Property Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testWkDirPath() throws Exception
+    {
+        File wkdir = new File( tmpDir.toFile(), "foo" );
+
+        // uninitialized index
+        LmdbRdnIndex lmdbRdnIndex = new LmdbRdnIndex();
+        lmdbRdnIndex.setWkDirPath( wkdir.toURI() );
+        assertEquals( "foo", new File( lmdbRdnIndex.getWkDirPath() ).getName() );
+
+        // initialized index
+        initIndex();
+
+        try
+        {
+            idx.setWkDirPath( wkdir.toURI() );
+            fail( "Should not be able to set wkDirPath after initialization." );
+        }
+        catch ( Exception e )
+        {
+        }
+
+        assertEquals( tmpDir.toUri(), idx.getWkDirPath() );
+    }
+
+
+    @Test
+    public void testGetAttribute() throws Exception
+    {
+        // uninitialized index
+        LmdbRdnIndex rdnIndex = new LmdbRdnIndex();
+        assertNull( rdnIndex.getAttribute() );
+
+        initIndex();
+        assertEquals( schemaManager.lookupAttributeTypeRegistry( ApacheSchemaConstants.APACHE_RDN_AT ),
+            idx.getAttribute() );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Count Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testCount() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.count( partitionTxn ) );
+
+        ParentIdAndRdn key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=key" ) );
+
+        idx.add( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertEquals( 1, idx.count( partitionTxn ) );
+
+        // setting a different parentId should make this key a different key
+        key = new ParentIdAndRdn( Strings.getUUID( 1L ), new Rdn( schemaManager, "cn=key" ) );
+
+        idx.add( partitionTxn, key, Strings.getUUID( 1L ) );
+        assertEquals( 2, idx.count( partitionTxn ) );
+
+        //count shouldn't get affected cause of inserting the same key
+        idx.add( partitionTxn, key, Strings.getUUID( 2L ) );
+        assertEquals( 2, idx.count( partitionTxn ) );
+
+        key = new ParentIdAndRdn( Strings.getUUID( 2L ), new Rdn( schemaManager, "cn=key" ) );
+        idx.add( partitionTxn, key, Strings.getUUID( 3L ) );
+        assertEquals( 3, idx.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testCountOneArg() throws Exception
+    {
+        initIndex();
+
+        ParentIdAndRdn key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=key" ) );
+
+        assertEquals( 0, idx.count( partitionTxn, key ) );
+
+        idx.add( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertEquals( 1, idx.count( partitionTxn, key ) );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Add, Drop and Lookup Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testLookups() throws Exception
+    {
+        initIndex();
+
+        ParentIdAndRdn key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=key" ) );
+
+        assertNull( idx.forwardLookup( partitionTxn, key ) );
+
+        idx.add( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, key ) );
+        assertEquals( key, idx.reverseLookup( partitionTxn, Strings.getUUID( 0L ) ) );
+
+        // check with the different case in UP name, this ensures that the custom
+        // key comparator is used
+        key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=KEY" ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, key ) );
+        assertEquals( key, idx.reverseLookup( partitionTxn, Strings.getUUID( 0L ) ) );
+    }
+
+
+    @Test
+    public void testAddDropById() throws Exception
+    {
+        initIndex();
+
+        ParentIdAndRdn key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=key" ) );
+
+        assertNull( idx.forwardLookup( partitionTxn, key ) );
+
+        // test add/drop without adding any duplicates
+        idx.add( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertEquals( Strings.getUUID( 0L ), idx.forwardLookup( partitionTxn, key ) );
+
+        idx.drop( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertNull( idx.forwardLookup( partitionTxn, key ) );
+        assertNull( idx.reverseLookup( partitionTxn, Strings.getUUID( 0L ) ) );
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Miscellaneous Test Methods
+    // -----------------------------------------------------------------------
+
+    @Test
+    public void testCursors() throws Exception
+    {
+        initIndex();
+
+        ParentIdAndRdn key = new ParentIdAndRdn( Strings.getUUID( 0L ), new Rdn( schemaManager, "cn=key" ) );
+
+        assertEquals( 0, idx.count( partitionTxn ) );
+
+        idx.add( partitionTxn, key, Strings.getUUID( 0L ) );
+        assertEquals( 1, idx.count( partitionTxn ) );
+
+        for ( long i = 1; i < 5; i++ )
+        {
+            key = new ParentIdAndRdn( Strings.getUUID( i ), new Rdn( schemaManager, "cn=key" + i ) );
+
+            idx.add( partitionTxn, key, Strings.getUUID( i ) );
+        }
+
+        assertEquals( 5, idx.count( partitionTxn ) );
+
+        // use forward index's cursor
+        try ( Cursor<IndexEntry<ParentIdAndRdn, String>> cursor = idx.forwardCursor( partitionTxn ) )
+        {
+            cursor.beforeFirst();
+
+            for ( long i = 0; i < 5; i++ )
+            {
+                cursor.next();
+                IndexEntry<ParentIdAndRdn, String> indexEntry = cursor.get();
+                assertEquals( Strings.getUUID( i ), indexEntry.getId() );
+                assertEquals( ( i == 0 ) ? "cn=key" : "cn=key" + i, indexEntry.getKey().getRdns()[0].getName() );
+                assertEquals( Strings.getUUID( i ), indexEntry.getKey().getParentId() );
+            }
+
+            assertFalse( cursor.next() );
+        }
+    }
+}
@@ -0,0 +1,1039 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModDnAva;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.EntryCache;
+import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
+import org.apache.directory.server.core.partition.impl.btree.OffHeapEntryCache;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.UuidSetCursor;
+import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.cursor.IdOrderedCursor;
+import org.apache.directory.server.xdbm.search.cursor.SortedIndexCursor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Unit test cases for LmdbPartition
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LmdbStoreTest
+{
+    private static final Logger LOG = LoggerFactory.getLogger( LmdbStoreTest.class );
+
+    private File wkdir;
+
+    private LmdbPartition store;
+
+    private static SchemaManager schemaManager = null;
+    private static DnFactory dnFactory;
+
+    /** The OU AttributeType instance */
+    private static AttributeType OU_AT;
+
+    /** The SN AttributeType instance */
+    private static AttributeType SN_AT;
+
+    private PartitionTxn partitionTxn;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbStoreTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        OU_AT = schemaManager.getAttributeType( SchemaConstants.OU_AT );
+        SN_AT = schemaManager.getAttributeType( SchemaConstants.SN_AT );
+
+        dnFactory = new DefaultDnFactory( schemaManager, 100 );
+    }
+
+
+    @BeforeEach
+    public void createStore() throws Exception
+    {
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        // setup the working directory for the store
+        wkdir = Files.createDirectory( tmpDir.resolve( getClass().getSimpleName() ) ).toFile();
+
+        store = createPartition( wkdir );
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        partitionTxn = new MockPartitionReadTxn();
+
+        LOG.debug( "Created new store" );
+    }
+
+
+    private LmdbPartition createPartition( File directory ) throws Exception
+    {
+        return initPartition( new LmdbPartition( schemaManager, dnFactory ), directory );
+    }
+
+
+    private LmdbPartition initPartition( LmdbPartition partition, File directory ) throws Exception
+    {
+        partition.setId( "example" );
+        partition.setCacheSize( 10 );
+        partition.setPartitionPath( directory.toURI() );
+        partition.setSyncOnWrite( false );
+        partition.setMapSize( 64L * 1024L * 1024L );
+
+        LmdbIndex<String> ouIndex = new LmdbIndex<>( SchemaConstants.OU_AT_OID, false );
+        ouIndex.setWkDirPath( directory.toURI() );
+        partition.addIndex( ouIndex );
+
+        LmdbIndex<String> uidIndex = new LmdbIndex<>( SchemaConstants.UID_AT_OID, false );
+        uidIndex.setWkDirPath( directory.toURI() );
+        partition.addIndex( uidIndex );
+
+        partition.setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    @AfterEach
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            store.destroy( partitionTxn );
+        }
+
+        store = null;
+        wkdir = null;
+    }
+
+
+    /**
+     * Adds an entry in its own write transaction
+     */
+    private void addEntry( Entry entry ) throws Exception
+    {
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( store );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            addContext.setTransaction( writeTxn );
+            store.add( addContext );
+            writeTxn.commit();
+        }
+    }
+
+
+    /**
+     * Applies a modification to an entry in its own write transaction, and returns the modified entry
+     */
+    private Entry modify( Dn dn, Modification modification ) throws Exception
+    {
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            Entry modified = store.modify( writeTxn, dn, modification );
+            writeTxn.commit();
+
+            return modified;
+        }
+    }
+
+
+    @Test
+    public void testSimplePropertiesLocked() throws Exception
+    {
+        assertTrue( store.isInitialized() );
+        assertNotNull( store.getEnvironment() );
+        assertThrows( IllegalStateException.class, () -> store.setMapSize( 1024L ) );
+        assertThrows( IllegalStateException.class, () -> store.setMaxReaders( 1 ) );
+        assertThrows( IllegalStateException.class, () -> store.setMaxDbs( 1 ) );
+    }
+
+
+    @Test
+    public void testFreshStore() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "o=Good Times Co." );
+        assertEquals( Strings.getUUID( 1L ), store.getEntryId( partitionTxn, dn ) );
+        assertEquals( 11, store.count( partitionTxn ) );
+        assertEquals( "o=Good Times Co.", store.getEntryDn( partitionTxn, Strings.getUUID( 1L ) ).getName() );
+
+        // note that the suffix entry returns 0 for it's parent which does not exist
+        assertEquals( Strings.getUUID( 0L ), store.getParentId( partitionTxn, store.getEntryId( partitionTxn, dn ) ) );
+        assertNull( store.getParentId( partitionTxn, Strings.getUUID( 0L ) ) );
+    }
+
+
+    @Test
+    public void testAddWithoutParentId() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Marting King,ou=Not Present,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou: Not Present",
+            "cn: Martin King" );
+
+        assertThrows( LdapNoSuchObjectException.class, () -> addEntry( entry ) );
+        assertEquals( 11, store.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testAddWithoutObjectClass() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Martin King,ou=Sales,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "ou: Sales",
+            "cn: Martin King" );
+
+        assertThrows( LdapSchemaViolationException.class, () -> addEntry( entry ) );
+        assertEquals( 11, store.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testModifyAddOUAttrib() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+        attrib.add( "Engineering" );
+
+        Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attrib );
+
+        modify( dn, add );
+
+        // The index has been updated
+        @SuppressWarnings("unchecked")
+        Index<String, String> ouIndex = ( Index<String, String> ) store.getUserIndex( OU_AT );
+        assertTrue( ouIndex.forward( partitionTxn, "engineering", id ) );
+        assertTrue( ouIndex.forward( partitionTxn, "sales", id ) );
+    }
+
+
+    @Test
+    public void testRename() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou: Engineering",
+            "cn: Private Ryan",
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        addEntry( entry );
+
+        Rdn rdn = new Rdn( schemaManager, "sn=James" );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.rename( writeTxn, dn, rdn, true, null );
+            writeTxn.commit();
+        }
+
+        Dn newDn = new Dn( schemaManager, "sn=James,ou=Engineering,o=Good Times Co." );
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            assertNull( store.getEntryId( readTxn, dn ) );
+
+            String id = store.getEntryId( readTxn, newDn );
+            assertNotNull( id );
+
+            Entry renamed = store.fetch( readTxn, id, newDn );
+            assertNotNull( renamed );
+            assertEquals( "James", renamed.getDn().getRdn().getValue() );
+        }
+    }
+
+
+    @Test
+    public void testRenameEscaped() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou: Engineering",
+            "cn: Private Ryan",
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        addEntry( entry );
+
+        Rdn rdn = new Rdn( schemaManager, "sn=Ja\\+es" );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.rename( writeTxn, dn, rdn, true, null );
+            writeTxn.commit();
+        }
+
+        Dn dn2 = new Dn( schemaManager, "sn=Ja\\+es,ou=Engineering,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn2 );
+        assertNotNull( id );
+        Entry entry2 = store.fetch( partitionTxn, id, dn2 );
+        assertEquals( "Ja+es", entry2.get( "sn" ).getString() );
+    }
+
+
+    @Test
+    public void testMove() throws Exception
+    {
+        Dn childDn = new Dn( schemaManager, "cn=Private Ryan,ou=Engineering,o=Good Times Co." );
+        Entry childEntry = new DefaultEntry( schemaManager, childDn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "ou", "Engineering",
+            "cn", "Private Ryan",
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        addEntry( childEntry );
+
+        Dn parentDn = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+
+        Rdn rdn = new Rdn( schemaManager, "cn=Ryan" );
+
+        // The cn=Ryan RDN that will be added. The cn=Private Ryan RDN will be removed
+        Map<String, List<ModDnAva>> modDnAvas = new HashMap<>();
+
+        List<ModDnAva> modAvas = new ArrayList<>();
+        modAvas.add( new ModDnAva( ModDnAva.ModDnType.ADD, rdn.getAva() ) );
+        modAvas.add( new ModDnAva( ModDnAva.ModDnType.DELETE, childDn.getRdn().getAva() ) );
+        modDnAvas.put( SchemaConstants.CN_AT_OID, modAvas );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.moveAndRename( writeTxn, childDn, parentDn, rdn, modDnAvas, childEntry );
+            writeTxn.commit();
+        }
+
+        Dn movedDn = new Dn( schemaManager, "cn=Ryan,ou=Sales,o=Good Times Co." );
+        assertNull( store.getEntryId( partitionTxn, childDn ) );
+        assertNotNull( store.getEntryId( partitionTxn, movedDn ) );
+
+        // to drop the alias indices
+        childDn = new Dn( schemaManager, "commonName=Jim Bean,ou=Apache,ou=Board of Directors,o=Good Times Co." );
+
+        parentDn = new Dn( schemaManager, "ou=Engineering,o=Good Times Co." );
+
+        assertEquals( 3, store.getSubAliasIndex().count( partitionTxn ) );
+
+        Dn newDn = parentDn.add( childDn.getRdn() );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.move( writeTxn, childDn, parentDn, newDn, null );
+            writeTxn.commit();
+        }
+
+        assertEquals( 3, store.getSubAliasIndex().count( partitionTxn ) );
+        assertNotNull( store.getEntryId( partitionTxn, newDn ) );
+    }
+
+
+    @Test
+    public void testModifyAdd() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+
+        Attribute attrib = new DefaultAttribute( "sn", SN_AT );
+
+        String attribVal = "Walker";
+        attrib.add( attribVal );
+
+        Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, attrib );
+
+        Entry modified = modify( dn, add );
+        assertTrue( modified.get( "sn" ).contains( attribVal ) );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+        assertTrue( lookedup.get( "sn" ).contains( attribVal ) );
+    }
+
+
+    @Test
+    public void testModifyReplace() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.SN_AT, SN_AT );
+
+        String attribVal = "Johnny";
+        attrib.add( attribVal );
+
+        Modification add = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attrib );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+
+        assertEquals( "WAlkeR", lookedup.get( "sn" ).get().getString() ); // before replacing
+
+        lookedup = modify( dn, add );
+        assertEquals( attribVal, lookedup.get( "sn" ).get().getString() );
+
+        // testing the store.modify( dn, mod, entry ) API
+        Modification replace = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, SN_AT, "JWalker" );
+
+        lookedup = modify( dn, replace );
+        assertEquals( "JWalker", lookedup.get( "sn" ).get().getString() );
+        assertEquals( 1, lookedup.get( "sn" ).size() );
+
+        lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+        assertEquals( "JWalker", lookedup.get( "sn" ).get().getString() );
+    }
+
+
+    @Test
+    public void testModifyRemove() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.SN_AT, SN_AT );
+
+        Modification add = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, attrib );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+
+        assertNotNull( lookedup.get( "sn" ).get() );
+
+        lookedup = modify( dn, add );
+        assertNull( lookedup.get( "sn" ) );
+
+        // add an entry for the sake of testing the remove operation
+        add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, SN_AT, "JWalker" );
+        lookedup = modify( dn, add );
+        assertNotNull( lookedup.get( "sn" ) );
+
+        Modification remove = new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, SN_AT );
+        lookedup = modify( dn, remove );
+        assertNull( lookedup.get( "sn" ) );
+
+        lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+        assertNull( lookedup.get( "sn" ) );
+    }
+
+
+    @Test
+    public void testModifyReplaceNonExistingIndexAttribute() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Tim B,ou=Sales,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "objectClass: organizationalPerson",
+            "cn", "Tim B",
+            "entryCSN", new CsnFactory( 1 ).newInstance().toString(),
+            "entryUUID", UUID.randomUUID().toString() );
+
+        addEntry( entry );
+
+        Attribute attrib = new DefaultAttribute( SchemaConstants.OU_AT, OU_AT );
+
+        String attribVal = "Marketing";
+        attrib.add( attribVal );
+
+        Modification add = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attrib );
+
+        Entry lookedup = store.fetch( partitionTxn, store.getEntryId( partitionTxn, dn ), dn );
+
+        assertNull( lookedup.get( "ou" ) ); // before replacing
+
+        lookedup = modify( dn, add );
+        assertEquals( attribVal, lookedup.get( "ou" ).get().getString() );
+    }
+
+
+    @Test
+    public void testDelete() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+        String parentId = store.getParentId( partitionTxn, id );
+
+        assertEquals( 2, store.getChildCount( partitionTxn, parentId ) );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.delete( writeTxn, id );
+            writeTxn.commit();
+        }
+
+        assertEquals( 10, store.count( partitionTxn ) );
+        assertNull( store.getEntryId( partitionTxn, dn ) );
+        assertEquals( 1, store.getChildCount( partitionTxn, parentId ) );
+        assertEquals( 10, store.getRdnIndex().count( partitionTxn ) );
+
+        @SuppressWarnings("unchecked")
+        Index<String, String> ouIndex = ( Index<String, String> ) store.getUserIndex( OU_AT );
+        assertFalse( ouIndex.forward( partitionTxn, "sales", id ) );
+    }
+
+
+    @Test
+    public void testAbortedDelete() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        // A transaction closed without being committed leaves the entry
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            store.delete( writeTxn, id );
+        }
+
+        assertEquals( 11, store.count( partitionTxn ) );
+        assertEquals( id, store.getEntryId( partitionTxn, dn ) );
+        assertNotNull( store.fetch( partitionTxn, id, dn ) );
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIndexes() throws Exception
+    {
+        Index<String, String> ouIndex = ( Index<String, String> ) store.getUserIndex( OU_AT );
+        assertTrue( ouIndex.forward( partitionTxn, "sales", Strings.getUUID( 2L ) ) );
+        assertEquals( 3, store.getChildCount( partitionTxn, Strings.getUUID( 1L ) ) );
+        assertEquals( 11, store.getRdnIndex().count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testSnapshotRead() throws Exception
+    {
+        assertTrue( store.isSnapshotReadSupported() );
+
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+                new DefaultAttribute( schemaManager.getAttributeType( SchemaConstants.SURNAME_AT ), "Walker" ) );
+
+            PartitionTxn writeTxn = store.beginWriteTransaction();
+            store.modify( writeTxn, dn, add );
+
+            // The reader sees neither the uncommitted change, nor the committed one
+            assertFalse( store.fetch( readTxn, id, dn ).contains( SchemaConstants.SURNAME_AT, "Walker" ) );
+
+            writeTxn.commit();
+
+            assertFalse( store.fetch( readTxn, id, dn ).contains( SchemaConstants.SURNAME_AT, "Walker" ) );
+        }
+
+        // A new reader sees the change
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            assertTrue( store.fetch( readTxn, id, dn ).contains( SchemaConstants.SURNAME_AT, "Walker" ) );
+        }
+    }
+
+
+    @Test
+    public void testCachesAfterAbort() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        // Load the entry in the cache
+        assertEquals( "WAlkeR", store.fetch( partitionTxn, id, dn ).get( SN_AT ).getString() );
+
+        try ( PartitionTxn writeTxn = store.beginWriteTransaction() )
+        {
+            Modification replace = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, SN_AT, "Daniels" );
+            Entry modified = store.modify( writeTxn, dn, replace );
+            assertEquals( "Daniels", modified.get( SN_AT ).getString() );
+
+            // The writer sees its own change
+            assertEquals( "Daniels", store.fetch( writeTxn, id, dn ).get( SN_AT ).getString() );
+        }
+
+        // The aborted change has not been cached
+        assertEquals( "WAlkeR", store.fetch( partitionTxn, id, dn ).get( SN_AT ).getString() );
+    }
+
+
+    @Test
+    public void testCachesSeenFromOldSnapshot() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            Modification replace = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, SN_AT, "Daniels" );
+            modify( dn, replace );
+
+            // A new reader caches the modified entry
+            try ( PartitionTxn newReadTxn = store.beginReadTransaction() )
+            {
+                assertEquals( "Daniels", store.fetch( newReadTxn, id, dn ).get( SN_AT ).getString() );
+            }
+
+            // The old reader still sees its snapshot
+            assertEquals( "WAlkeR", store.fetch( readTxn, id, dn ).get( SN_AT ).getString() );
+            assertEquals( dn, store.getEntryDn( readTxn, id ) );
+        }
+    }
+
+
+    @Test
+    public void testOffHeapEntryReadDuringCommit() throws Exception
+    {
+        AtomicReference<Runnable> onSecondLevelRead = new AtomicReference<>();
+
+        OffHeapEntryCache secondLevel = new OffHeapEntryCache( 1024 * 1024, 64 * 1024 )
+        {
+            @Override
+            public byte[] get( String id )
+            {
+                byte[] bytes = super.get( id );
+                Runnable hook = onSecondLevelRead.getAndSet( null );
+
+                if ( hook != null )
+                {
+                    hook.run();
+                }
+
+                return bytes;
+            }
+        };
+
+        // No entry is kept on heap : they are all moved to the second level
+        LmdbPartition partition = new LmdbPartition( schemaManager, dnFactory )
+        {
+            @Override
+            protected void initEntryCache()
+            {
+                entryCache = new EntryCache( schemaManager, 0, secondLevel );
+            }
+        };
+
+        LmdbPartition defaultStore = store;
+        store = initPartition( partition, Files.createDirectory( tmpDir.resolve( "offHeap" ) ).toFile() );
+
+        try
+        {
+            StoreUtils.loadExampleData( store, schemaManager );
+
+            Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+            String id = store.getEntryId( partitionTxn, dn );
+
+            try ( PartitionTxn readTxn = store.beginReadTransaction() )
+            {
+                assertEquals( "WAlkeR", store.fetch( readTxn, id, dn ).get( SN_AT ).getString() );
+            }
+
+            assertTrue( secondLevel.contains( id ) );
+
+            try ( PartitionTxn readTxn = store.beginReadTransaction() )
+            {
+                // A write is committed once the reader has read the off-heap copy of the entry
+                onSecondLevelRead.set( () ->
+                {
+                    try
+                    {
+                        modify( dn, new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, SN_AT,
+                            "Daniels" ) );
+                    }
+                    catch ( Exception e )
+                    {
+                        throw new RuntimeException( e );
+                    }
+                } );
+
+                assertEquals( "WAlkeR", store.fetch( readTxn, id, dn ).get( SN_AT ).getString() );
+                assertNull( onSecondLevelRead.get() );
+            }
+
+            // The outdated copy has not been promoted back into the cache
+            try ( PartitionTxn readTxn = store.beginReadTransaction() )
+            {
+                assertEquals( "Daniels", store.fetch( readTxn, id, dn ).get( SN_AT ).getString() );
+            }
+        }
+        finally
+        {
+            store.destroy( partitionTxn );
+            store = defaultStore;
+        }
+    }
+
+
+    private Set<String> search( String base, SearchScope scope, String filter ) throws Exception
+    {
+        Set<String> dns = new HashSet<>();
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            SearchOperationContext searchContext = new SearchOperationContext( null );
+            searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+            searchContext.setDn( new Dn( schemaManager, base ) );
+            searchContext.setFilter( FilterParser.parse( schemaManager, filter ) );
+            searchContext.setScope( scope );
+
+            PartitionSearchResult searchResult = store.getSearchEngine().computeResult( readTxn, schemaManager,
+                searchContext );
+
+            // The candidates must be streamed, not gathered in a set
+            assertFalse( searchResult.getResultSet() instanceof UuidSetCursor );
+
+            try ( Cursor<Entry> cursor = new EntryCursorAdaptor( readTxn, store, searchResult ) )
+            {
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+
+                    if ( entry != null )
+                    {
+                        assertTrue( dns.add( entry.getDn().getNormName() ), "Duplicate " + entry.getDn() );
+                    }
+                }
+            }
+        }
+
+        return dns;
+    }
+
+
+    @Test
+    public void testStreamingSearch() throws Exception
+    {
+        String sales = new Dn( schemaManager, "ou=Sales,o=Good Times Co." ).getNormName();
+        String walker = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." ).getNormName();
+        String bean = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." ).getNormName();
+
+        // Equality on an indexed attribute
+        Set<String> dns = search( "o=Good Times Co.", SearchScope.SUBTREE, "(ou=sales)" );
+        assertEquals( 3, dns.size() );
+        assertTrue( dns.contains( sales ) );
+        assertTrue( dns.contains( walker ) );
+        assertTrue( dns.contains( bean ) );
+
+        // An OR returns each candidate once, even when many branches select it
+        assertEquals( dns, search( "o=Good Times Co.", SearchScope.SUBTREE, "(|(ou=sales)(ou=sales))" ) );
+        assertEquals( 6, search( "o=Good Times Co.", SearchScope.SUBTREE, "(|(ou=sales)(ou=engineering))" ).size() );
+
+        // Not indexed : all the entries are browsed
+        assertEquals( 5, search( "o=Good Times Co.", SearchScope.SUBTREE, "(|(ou=sales)(cn=jim bean))" ).size() );
+
+        // Scopes
+        dns = search( "ou=Sales,o=Good Times Co.", SearchScope.ONELEVEL, "(objectClass=*)" );
+        assertEquals( 2, dns.size() );
+        assertTrue( dns.contains( walker ) );
+        assertTrue( dns.contains( bean ) );
+
+        assertEquals( 3, search( "ou=Sales,o=Good Times Co.", SearchScope.SUBTREE, "(objectClass=*)" ).size() );
+        assertEquals( 1, search( "ou=Sales,o=Good Times Co.", SearchScope.SUBTREE, "(cn=jim bean)" ).size() );
+    }
+
+
+    /**
+     * Reads the entries of a search sorted on the ou attribute, and returns their least ou
+     */
+    private List<String> sortedSearch( String filter, boolean reverse ) throws Exception
+    {
+        List<String> ous = new ArrayList<>();
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            SearchOperationContext searchContext = new SearchOperationContext( null );
+            searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+            searchContext.setDn( new Dn( schemaManager, "o=Good Times Co." ) );
+            searchContext.setFilter( FilterParser.parse( schemaManager, filter ) );
+            searchContext.setScope( SearchScope.SUBTREE );
+
+            SortRequest sortRequest = new SortRequestImpl();
+            sortRequest.addSortKey( new SortKey( SchemaConstants.OU_AT, null, reverse ) );
+            searchContext.addRequestControl( sortRequest );
+
+            PartitionSearchResult searchResult = store.getSearchEngine().computeResult( readTxn, schemaManager,
+                searchContext );
+
+            // The candidates are read from the ou index
+            assertTrue( searchResult.getResultSet() instanceof SortedIndexCursor );
+            assertTrue( searchContext.isSorted() );
+
+            try ( Cursor<Entry> cursor = new EntryCursorAdaptor( readTxn, store, searchResult ) )
+            {
+                while ( cursor.next() )
+                {
+                    Entry entry = cursor.get();
+
+                    if ( entry == null )
+                    {
+                        continue;
+                    }
+
+                    String least = null;
+
+                    if ( entry.get( OU_AT ) != null )
+                    {
+                        for ( Value value : entry.get( OU_AT ) )
+                        {
+                            if ( ( least == null ) || ( value.getNormalized().compareTo( least ) < 0 ) )
+                            {
+                                least = value.getNormalized();
+                            }
+                        }
+                    }
+
+                    ous.add( least );
+                }
+            }
+        }
+
+        return ous;
+    }
+
+
+    @Test
+    public void testSortedSearch() throws Exception
+    {
+        // The entries without any ou come last, or first in the reverse order
+        assertEquals( Arrays.asList( "apache", "apache", "board of directors", "engineering", "engineering",
+            "engineering", "sales", "sales", "sales", null, null ), sortedSearch( "(objectClass=*)", false ) );
+        assertEquals( Arrays.asList( null, null, "sales", "sales", "sales", "engineering", "engineering",
+            "engineering", "board of directors", "apache", "apache" ), sortedSearch( "(objectClass=*)", true ) );
+
+        // An entry with many values is returned once, for its least value
+        Dn dn = new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." );
+        Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            new DefaultAttribute( OU_AT, "Aardvark" ) );
+
+        PartitionTxn writeTxn = store.beginWriteTransaction();
+        store.modify( writeTxn, dn, add );
+        writeTxn.commit();
+
+        assertEquals( Arrays.asList( "aardvark", "apache", "apache", "board of directors", "engineering",
+            "engineering", "sales", "sales", "sales" ), sortedSearch( "(ou=*)", false ) );
+        assertEquals( Arrays.asList( "sales", "sales", "sales", "engineering", "engineering",
+            "board of directors", "apache", "apache", "aardvark" ), sortedSearch( "(ou=*)", true ) );
+    }
+
+
+    /**
+     * Reads at most a given number of entries of a resumable search, after the given
+     * entryUUID, and returns their entryUUID
+     */
+    private List<String> resumableSearch( String filter, String resumeAfter, int limit ) throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+
+        try ( PartitionTxn readTxn = store.beginReadTransaction() )
+        {
+            SearchOperationContext searchContext = new SearchOperationContext( null );
+            searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+            searchContext.setDn( new Dn( schemaManager, "o=Good Times Co." ) );
+            searchContext.setFilter( FilterParser.parse( schemaManager, filter ) );
+            searchContext.setScope( SearchScope.SUBTREE );
+            searchContext.setResumable( true );
+            searchContext.setResumeAfter( resumeAfter );
+
+            PartitionSearchResult searchResult = store.getSearchEngine().computeResult( readTxn, schemaManager,
+                searchContext );
+
+            assertTrue( searchResult.getResultSet() instanceof IdOrderedCursor );
+            assertTrue( searchContext.isIdOrdered() );
+
+            try ( Cursor<Entry> cursor = new EntryCursorAdaptor( readTxn, store, searchResult ) )
+            {
+                while ( ( ids.size() < limit ) && cursor.next() )
+                {
+                    Entry entry = cursor.get();
+
+                    if ( entry != null )
+                    {
+                        ids.add( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+                    }
+                }
+            }
+        }
+
+        return ids;
+    }
+
+
+    @Test
+    public void testResumableSearch() throws Exception
+    {
+        // A large part of the partition is read from the MasterTable, a small one from the candidates
+        for ( String filter : new String[] { "(objectClass=*)", "(ou=sales)", "(ou=board of directors)" } )
+        {
+            List<String> all = resumableSearch( filter, null, Integer.MAX_VALUE );
+
+            for ( int i = 1; i < all.size(); i++ )
+            {
+                assertTrue( all.get( i - 1 ).compareTo( all.get( i ) ) < 0 );
+            }
+
+            // Read the entries 2 by 2, resuming after the last one each time
+            List<String> paged = new ArrayList<>();
+            String resumeAfter = null;
+
+            while ( true )
+            {
+                List<String> page = resumableSearch( filter, resumeAfter, 2 );
+                paged.addAll( page );
+
+                if ( page.size() < 2 )
+                {
+                    break;
+                }
+
+                resumeAfter = page.get( 1 );
+            }
+
+            assertEquals( all, paged );
+        }
+
+        assertEquals( 11, resumableSearch( "(objectClass=*)", null, Integer.MAX_VALUE ).size() );
+        assertEquals( 3, resumableSearch( "(ou=sales)", null, Integer.MAX_VALUE ).size() );
+        assertEquals( 1, resumableSearch( "(ou=board of directors)", null, Integer.MAX_VALUE ).size() );
+    }
+
+
+    @Test
+    public void testModifyAndReopen() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        String id = store.getEntryId( partitionTxn, dn );
+
+        Modification add = new DefaultModification( ModificationOperation.ADD_ATTRIBUTE,
+            new DefaultAttribute( schemaManager.getAttributeType( SchemaConstants.SURNAME_AT ), "Walker" ) );
+
+        PartitionTxn writeTxn = store.beginWriteTransaction();
+        Entry modified = store.modify( writeTxn, dn, add );
+        writeTxn.commit();
+
+        assertTrue( modified.contains( SchemaConstants.SURNAME_AT, "Walker" ) );
+
+        // Close the partition, and open it again : the data must still be there
+        store.destroy( partitionTxn );
+        store = createPartition( wkdir );
+
+        assertEquals( 11, store.count( partitionTxn ) );
+        Entry entry = store.fetch( partitionTxn, id, dn );
+        assertNotNull( entry );
+        assertTrue( entry.contains( SchemaConstants.SURNAME_AT, "Walker" ) );
+        assertFalse( entry.contains( SchemaConstants.SURNAME_AT, "Daniels" ) );
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.lmdb;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.xdbm.MockPartitionReadTxn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the LmdbTable, with and without duplicate keys.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class LmdbTableTest
+{
+    private static SchemaManager schemaManager;
+
+    /** A table which does not allow duplicate keys */
+    private LmdbTable<String, String> table;
+
+    /** A table which allows duplicate keys */
+    private LmdbTable<String, String> dupsTable;
+
+    private LmdbEnvironment environment;
+
+    private PartitionTxn partitionTxn;
+
+    @TempDir
+    public Path tmpDir;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = LmdbTableTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @BeforeEach
+    public void createTables() throws Exception
+    {
+        environment = new LmdbEnvironment( tmpDir.toFile(), 16L * 1024L * 1024L, 16, 16, false );
+        table = new LmdbTable<>( environment, schemaManager, "test", LmdbStringSerializer.INSTANCE,
+            LmdbStringSerializer.INSTANCE, false );
+        dupsTable = new LmdbTable<>( environment, schemaManager, "testDups", LmdbStringSerializer.INSTANCE,
+            LmdbStringSerializer.INSTANCE, true );
+
+        partitionTxn = new MockPartitionReadTxn();
+    }
+
+
+    @AfterEach
+    public void destroyTables() throws Exception
+    {
+        table.close( partitionTxn );
+        dupsTable.close( partitionTxn );
+        environment.close();
+    }
+
+
+    @Test
+    public void testConfigMethods() throws Exception
+    {
+        assertFalse( table.isDupsEnabled() );
+        assertEquals( "test", table.getName() );
+        assertTrue( dupsTable.isDupsEnabled() );
+        assertEquals( "testDups", dupsTable.getName() );
+    }
+
+
+    @Test
+    public void testWhenEmpty() throws Exception
+    {
+        // Test the count methods
+        assertEquals( 0, table.count( partitionTxn ) );
+        assertEquals( 0, table.count( partitionTxn, "1" ) );
+        assertEquals( 0, dupsTable.count( partitionTxn, "1" ) );
+
+        // Test get method
+        assertNull( table.get( partitionTxn, "0" ) );
+        assertNull( dupsTable.get( partitionTxn, "0" ) );
+
+        // Test remove methods
+        table.remove( partitionTxn, "1" );
+        dupsTable.remove( partitionTxn, "1", "0" );
+        assertNull( table.get( partitionTxn, "1" ) );
+
+        // Test has operations
+        assertFalse( table.has( partitionTxn, "1" ) );
+        assertFalse( table.has( partitionTxn, "1", "0" ) );
+        assertFalse( table.hasGreaterOrEqual( partitionTxn, "1" ) );
+        assertFalse( table.hasLessOrEqual( partitionTxn, "1" ) );
+        assertFalse( dupsTable.hasGreaterOrEqual( partitionTxn, "1", "0" ) );
+        assertFalse( dupsTable.hasLessOrEqual( partitionTxn, "1", "0" ) );
+
+        // The values can only be compared when duplicates are allowed
+        assertThrows( UnsupportedOperationException.class, () -> table.hasGreaterOrEqual( partitionTxn, "1", "0" ) );
+        assertThrows( UnsupportedOperationException.class, () -> table.hasLessOrEqual( partitionTxn, "1", "0" ) );
+    }
+
+
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            table.put( partitionTxn, String.valueOf( i ), String.valueOf( i ) );
+        }
+
+        assertEquals( 10, table.count( partitionTxn ) );
+        assertEquals( "5", table.get( partitionTxn, "5" ) );
+
+        // Replace the value of an existing key
+        table.put( partitionTxn, "5", "10" );
+        assertEquals( 10, table.count( partitionTxn ) );
+        assertEquals( "10", table.get( partitionTxn, "5" ) );
+        assertFalse( table.has( partitionTxn, "5", "5" ) );
+        assertTrue( table.has( partitionTxn, "5", "10" ) );
+
+        // Removing a tuple with another value leaves the key
+        table.remove( partitionTxn, "5", "5" );
+        assertTrue( table.has( partitionTxn, "5" ) );
+
+        table.remove( partitionTxn, "5", "10" );
+        assertFalse( table.has( partitionTxn, "5" ) );
+        assertEquals( 9, table.count( partitionTxn ) );
+
+        assertThrows( IllegalArgumentException.class, () -> table.put( partitionTxn, "1", null ) );
+        assertThrows( IllegalArgumentException.class, () -> table.put( partitionTxn, null, "1" ) );
+    }
+
+
+    @Test
+    public void testHas() throws Exception
+    {
+        table.put( partitionTxn, "1", "0" );
+        table.put( partitionTxn, "3", "0" );
+
+        assertTrue( table.has( partitionTxn, "1" ) );
+        assertFalse( table.has( partitionTxn, "2" ) );
+
+        assertTrue( table.hasGreaterOrEqual( partitionTxn, "0" ) );
+        assertTrue( table.hasGreaterOrEqual( partitionTxn, "2" ) );
+        assertTrue( table.hasGreaterOrEqual( partitionTxn, "3" ) );
+        assertFalse( table.hasGreaterOrEqual( partitionTxn, "4" ) );
+
+        assertFalse( table.hasLessOrEqual( partitionTxn, "0" ) );
+        assertTrue( table.hasLessOrEqual( partitionTxn, "1" ) );
+        assertTrue( table.hasLessOrEqual( partitionTxn, "2" ) );
+        assertTrue( table.hasLessOrEqual( partitionTxn, "4" ) );
+    }
+
+
+    @Test
+    public void testDuplicates() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            dupsTable.put( partitionTxn, "1", String.valueOf( i ) );
+        }
+
+        dupsTable.put( partitionTxn, "2", "0" );
+
+        // Adding an existing tuple does nothing
+        dupsTable.put( partitionTxn, "1", "5" );
+
+        assertEquals( 11, dupsTable.count( partitionTxn ) );
+        assertEquals( 10, dupsTable.count( partitionTxn, "1" ) );
+        assertEquals( 1, dupsTable.count( partitionTxn, "2" ) );
+
+        // The first value is returned
+        assertEquals( "0", dupsTable.get( partitionTxn, "1" ) );
+
+        assertTrue( dupsTable.has( partitionTxn, "1", "5" ) );
+        assertFalse( dupsTable.has( partitionTxn, "1", "a" ) );
+        assertFalse( dupsTable.has( partitionTxn, "2", "5" ) );
+
+        assertTrue( dupsTable.hasGreaterOrEqual( partitionTxn, "1", "9" ) );
+        assertFalse( dupsTable.hasGreaterOrEqual( partitionTxn, "1", "a" ) );
+        assertTrue( dupsTable.hasLessOrEqual( partitionTxn, "1", "0" ) );
+        assertTrue( dupsTable.hasLessOrEqual( partitionTxn, "1", "a" ) );
+        assertFalse( dupsTable.hasLessOrEqual( partitionTxn, "3", "0" ) );
+
+        // Remove a single value, then the whole key
+        dupsTable.remove( partitionTxn, "1", "5" );
+        assertFalse( dupsTable.has( partitionTxn, "1", "5" ) );
+        assertEquals( 9, dupsTable.count( partitionTxn, "1" ) );
+
+        dupsTable.remove( partitionTxn, "1" );
+        assertFalse( dupsTable.has( partitionTxn, "1" ) );
+        assertEquals( 1, dupsTable.count( partitionTxn ) );
+    }
+
+
+    @Test
+    public void testCursors() throws Exception
+    {
+        for ( int i = 9; i >= 0; i-- )
+        {
+            dupsTable.put( partitionTxn, String.valueOf( i % 3 ), String.valueOf( i ) );
+        }
+
+        // The tuples are ordered by key, then by value
+        String[][] expected = new String[][]
+            {
+                { "0", "0" }, { "0", "3" }, { "0", "6" }, { "0", "9" },
+                { "1", "1" }, { "1", "4" }, { "1", "7" },
+                { "2", "2" }, { "2", "5" }, { "2", "8" }
+            };
+
+        try ( Cursor<Tuple<String, String>> cursor = dupsTable.cursor() )
+        {
+            cursor.beforeFirst();
+
+            for ( String[] tuple : expected )
+            {
+                assertTrue( cursor.next() );
+                assertEquals( tuple[0], cursor.get().getKey() );
+                assertEquals( tuple[1], cursor.get().getValue() );
+            }
+
+            assertFalse( cursor.next() );
+        }
+
+        // A cursor on a key only browses its values
+        try ( Cursor<Tuple<String, String>> cursor = dupsTable.cursor( partitionTxn, "1" ) )
+        {
+            cursor.beforeFirst();
+
+            for ( String value : new String[] { "1", "4", "7" } )
+            {
+                assertTrue( cursor.next() );
+                assertEquals( "1", cursor.get().getKey() );
+                assertEquals( value, cursor.get().getValue() );
+            }
+
+            assertFalse( cursor.next() );
+        }
+
+        try ( Cursor<String> cursor = dupsTable.valueCursor( partitionTxn, "2" ) )
+        {
+            cursor.afterLast();
+
+            for ( String value : new String[] { "8", "5", "2" } )
+            {
+                assertTrue( cursor.previous() );
+                assertEquals( value, cursor.get() );
+            }
+
+            assertFalse( cursor.previous() );
+        }
+
+        try ( Cursor<String> cursor = dupsTable.valueCursor( partitionTxn, "3" ) )
+        {
+            cursor.beforeFirst();
+            assertFalse( cursor.next() );
+        }
+    }
+
+
+    @Test
+    public void testAbortedTransaction() throws Exception
+    {
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            table.put( writeTxn, "1", "1" );
+            dupsTable.put( writeTxn, "1", "1" );
+
+            // The transaction sees its own changes
+            assertTrue( table.has( writeTxn, "1" ) );
+            assertTrue( dupsTable.has( writeTxn, "1", "1" ) );
+
+            writeTxn.abort();
+        }
+
+        assertFalse( table.has( partitionTxn, "1" ) );
+        assertFalse( dupsTable.has( partitionTxn, "1" ) );
+
+        try ( LmdbPartitionWriteTxn writeTxn = environment.beginWriteTransaction() )
+        {
+            table.put( writeTxn, "1", "1" );
+            dupsTable.put( writeTxn, "1", "1" );
+            writeTxn.commit();
+        }
+
+        assertTrue( table.has( partitionTxn, "1" ) );
+        assertTrue( dupsTable.has( partitionTxn, "1", "1" ) );
+    }
+}
@@ -338,7 +338,9 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
     public synchronized void add( PartitionTxn partitionTxn, K attrVal, String id ) throws LdapException
     {
         // The pair to be removed must exists
+        long countBefore = countForStatistics( partitionTxn );
         forward.put( partitionTxn, attrVal, id );
+        updateStatistics( partitionTxn, attrVal, countBefore );
 
         if ( withReverse )
         {
@@ -356,7 +358,9 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
         // The pair to be removed must exists
         if ( forward.has( partitionTxn, attrVal, id ) )
         {
+            long countBefore = countForStatistics( partitionTxn );
             forward.remove( partitionTxn, attrVal, id );
+            updateStatistics( partitionTxn, attrVal, countBefore );
 
             if ( withReverse )
             {
@@ -384,7 +388,10 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
                     while ( values.next() )
                     {
                         // Remove the Key -> entryId from the index
-                        forward.remove( partitionTxn, values.get().getValue(), entryId );
+                        K key = values.get().getValue();
+                        long countBefore = countForStatistics( partitionTxn );
+                        forward.remove( partitionTxn, key, entryId );
+                        updateStatistics( partitionTxn, key, countBefore );
                     }
     
                     values.close();
@@ -398,7 +405,9 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
             {
                 K key = reverse.get( partitionTxn, entryId );
 
+                long countBefore = countForStatistics( partitionTxn );
                 forward.remove( partitionTxn, key );
+                updateStatistics( partitionTxn, key, countBefore );
             }
 
             // Remove the id -> key from the reverse index
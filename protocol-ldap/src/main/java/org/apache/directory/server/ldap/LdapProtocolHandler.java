@@ -132,6 +132,16 @@ class LdapProtocolHandler extends DemuxingIoHandler
         // Abandon all the requests
         ldapSession.abandonAllOutstandingRequests();
 
+        // Close the paged searches cursors, giving back their slots in the server budget
+        try
+        {
+            ldapSession.closeAllPagedSearches();
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to close the paged searches of the {} session", ldapSession, e );
+        }
+
         if ( !ldapSession.getIoSession().isClosing() || ldapSession.getIoSession().isConnected() )
         {
             try
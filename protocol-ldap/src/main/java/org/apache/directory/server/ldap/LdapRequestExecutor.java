@@ -0,0 +1,274 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoSession;
+
+
+/**
+ * The Executor running the LDAP requests received by the server, when the requests
+ * of a session are ordered. Each request is run on a thread of an elastic pool : the
+ * threads are created when the requests come in, up to a global limit, and stopped
+ * when they have been idle for a while. A few slow requests can't then starve the
+ * other clients, as long as the global limit isn't reached.
+ * <p>
+ * The requests of a session are run in the order they have been received, at most
+ * maxRequestsPerSession at a time : the next ones wait in the session queue. The
+ * AbandonRequests are run immediately, as they have to stop the request they abandon.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutor implements Executor
+{
+    /** The key of the session attribute storing the queued requests of a session */
+    private static final AttributeKey SESSION_QUEUE = new AttributeKey( LdapRequestExecutor.class, "sessionQueue" );
+
+    /** How long an idle thread is kept, in seconds */
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    /** The threads running the requests */
+    private final ThreadPoolExecutor pool;
+
+    /** The maximum number of requests of a session running at the same time */
+    private final int maxRequestsPerSession;
+
+    /** The number of requests waiting for a thread */
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+
+    /** The number of requests being run */
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+
+    /**
+     * Creates a new instance of LdapRequestExecutor.
+     *
+     * @param name The prefix of the threads name
+     * @param maxConcurrentRequests The maximum number of requests running at the same time
+     * @param maxRequestsPerSession The maximum number of requests of a session running at
+     * the same time. The requests of a session are run one after the other with 1.
+     */
+    public LdapRequestExecutor( final String name, int maxConcurrentRequests, int maxRequestsPerSession )
+    {
+        this.maxRequestsPerSession = Math.max( 1, maxRequestsPerSession );
+
+        int maxThreads = Math.max( 1, maxConcurrentRequests );
+
+        pool = new ThreadPoolExecutor( maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+
+                @Override
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, name + "-" + threadNumber.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+
+        // The threads are only created when needed, and stopped when idle
+        pool.allowCoreThreadTimeOut( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute( Runnable task )
+    {
+        queuedRequests.incrementAndGet();
+
+        if ( ( task instanceof IoEvent ) && !( ( ( IoEvent ) task ).getParameter() instanceof AbandonRequest ) )
+        {
+            getSessionQueue( ( ( IoEvent ) task ).getSession() ).submit( task );
+        }
+        else
+        {
+            dispatch( task, null );
+        }
+    }
+
+
+    /**
+     * Gets the queue of a session, creating it if needed
+     */
+    private SessionQueue getSessionQueue( IoSession session )
+    {
+        SessionQueue queue = ( SessionQueue ) session.getAttribute( SESSION_QUEUE );
+
+        if ( queue == null )
+        {
+            queue = new SessionQueue();
+            SessionQueue existing = ( SessionQueue ) session.setAttributeIfAbsent( SESSION_QUEUE, queue );
+
+            if ( existing != null )
+            {
+                queue = existing;
+            }
+        }
+
+        return queue;
+    }
+
+
+    /**
+     * Runs a task on a thread of the pool, and then the next task of its session, if any
+     */
+    private void dispatch( final Runnable task, final SessionQueue queue )
+    {
+        pool.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                queuedRequests.decrementAndGet();
+                activeRequests.incrementAndGet();
+
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    activeRequests.decrementAndGet();
+
+                    if ( queue != null )
+                    {
+                        queue.done();
+                    }
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * @return The number of requests waiting to be run, either because their session
+     * already runs as many requests as allowed, or because all the threads are busy
+     */
+    public int getQueuedRequests()
+    {
+        return queuedRequests.get();
+    }
+
+
+    /**
+     * @return The number of requests being run
+     */
+    public int getActiveRequests()
+    {
+        return activeRequests.get();
+    }
+
+
+    /**
+     * Stops the threads once the running requests are done. The queued requests are
+     * still run.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+
+    /**
+     * The requests of a session waiting for the previous ones to be done.
+     */
+    private final class SessionQueue
+    {
+        /** The requests waiting to be run */
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+        /** The number of requests of the session dispatched to the pool */
+        private int running;
+
+
+        /**
+         * Runs a request if the session doesn't run too many of them, or queues it.
+         */
+        void submit( Runnable task )
+        {
+            synchronized ( this )
+            {
+                if ( running >= maxRequestsPerSession )
+                {
+                    waiting.add( task );
+
+                    return;
+                }
+
+                running++;
+            }
+
+            dispatch( task, this );
+        }
+
+
+        /**
+         * Called when a request of the session is done : the next one is dispatched.
+         */
+        void done()
+        {
+            Runnable next;
+
+            synchronized ( this )
+            {
+                next = waiting.poll();
+
+                if ( next == null )
+                {
+                    running--;
+
+                    return;
+                }
+            }
+
+            dispatch( next, this );
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "LdapRequestExecutor [active: " + activeRequests.get() + ", queued: " + queuedRequests.get()
+            + ", threads: " + pool.getPoolSize() + "]";
+    }
+}
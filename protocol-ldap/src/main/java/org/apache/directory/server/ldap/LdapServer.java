@@ -30,6 +30,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManager;
@@ -67,6 +68,7 @@ import org.apache.directory.server.core.api.partition.PartitionNexus;
 import org.apache.directory.server.core.security.CertificateUtil;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
+import org.apache.directory.server.ldap.handlers.LdapRequestScheduler;
 import org.apache.directory.server.ldap.handlers.LdapResponseHandler;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
 import org.apache.directory.server.ldap.handlers.request.AbandonRequestHandler;
@@ -174,6 +176,54 @@ public class LdapServer extends DirectoryBackedService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /** The default number of bytes which can be queued for a session before a search waits for the client */
+    private static final long MAX_SCHEDULED_WRITE_BYTES_DEFAULT = 4 * 1024 * 1024L;
+
+    /** The number of bytes which can be queued for a session before a search waits for the client */
+    private long maxScheduledWriteBytes = MAX_SCHEDULED_WRITE_BYTES_DEFAULT;
+
+    /** Tells if the search result entries are encoded by the handler instead of the codec */
+    private boolean directEntryEncoding = true;
+
+    /** The default maximum number of paged searches keeping their cursor opened between two pages */
+    private static final int MAX_OPEN_PAGED_SEARCHES_DEFAULT = 1000;
+
+    /** The maximum number of paged searches keeping their cursor opened between two pages */
+    private int maxOpenPagedSearches = MAX_OPEN_PAGED_SEARCHES_DEFAULT;
+
+    /** The number of paged searches currently keeping their cursor opened */
+    private final AtomicInteger openPagedSearches = new AtomicInteger();
+
+    /** Tells if the paged searches are resumed from a position stored in the cookie, rather than from an opened cursor */
+    private boolean resumablePagedSearch = false;
+
+    /** The default maximum number of requests run at the same time when the requests of a session are ordered */
+    private static final int MAX_CONCURRENT_REQUESTS_DEFAULT = 1024;
+
+    /** Tells if the requests of a session are run in order, on an elastic pool of threads */
+    private boolean orderedRequestExecution = false;
+
+    /** The maximum number of requests run at the same time when the requests of a session are ordered */
+    private int maxConcurrentRequests = MAX_CONCURRENT_REQUESTS_DEFAULT;
+
+    /** The maximum number of requests of a session run at the same time when they are ordered */
+    private int maxConcurrentRequestsPerSession = 1;
+
+    /** The executor running the requests when they are ordered, shared by the transports */
+    private LdapRequestExecutor requestExecutor;
+
+    /** The scheduler sharing the server between the clients, null if the requests are not scheduled */
+    private LdapRequestScheduler requestScheduler;
+
+    /** The default maximum number of simple binds run at the same time when the requests are not ordered */
+    private static final int MAX_CONCURRENT_BINDS_DEFAULT = 64;
+
+    /** The maximum number of simple binds run at the same time when the requests are not ordered */
+    private int maxConcurrentBinds = MAX_CONCURRENT_BINDS_DEFAULT;
+
+    /** The executor running the simple binds when the requests are not ordered, shared by the transports */
+    private LdapRequestExecutor bindExecutor;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
 
@@ -452,6 +502,18 @@ public class LdapServer extends DirectoryBackedService
         // Install the replication handler if we have one
         startReplicationProducer();
 
+        if ( requestScheduler != null )
+        {
+            checkRequestScheduler();
+        }
+
+        // The simple binds wait for their password to be hashed on a pool of their own
+        if ( !orderedRequestExecution && ( getDirectoryService().getPasswordHashingExecutor() != null )
+            && ( bindExecutor == null ) )
+        {
+            bindExecutor = new LdapRequestExecutor( "ldap-bind", maxConcurrentBinds, 1 );
+        }
+
         for ( Transport transport : transports )
         {
             if ( !( transport instanceof TcpTransport ) )
@@ -476,10 +538,25 @@ public class LdapServer extends DirectoryBackedService
                 .getProtocolCodecFactory() ) );
 
             // Now inject an ExecutorFilter for the write operations
-            // We use the same number of thread than the number of IoProcessor
-            // (NOTE : this has to be double checked)
-            ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
-                new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
+            if ( orderedRequestExecution )
+            {
+                // The requests of all the transports share the same limits
+                if ( requestExecutor == null )
+                {
+                    requestExecutor = new LdapRequestExecutor( "ldap-request", maxConcurrentRequests,
+                        maxConcurrentRequestsPerSession );
+                }
+
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+                    requestExecutor, IoEventType.MESSAGE_RECEIVED ) );
+            }
+            else
+            {
+                // We use the same number of thread than the number of IoProcessor
+                // (NOTE : this has to be double checked)
+                ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
+                    new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
+            }
 
             /*
             // Trace all the incoming and outgoing message to the console
@@ -600,6 +677,18 @@ public class LdapServer extends DirectoryBackedService
             LOG.warn( "Failed to sent NoD.", e );
         }
 
+        if ( requestExecutor != null )
+        {
+            requestExecutor.shutdown();
+            requestExecutor = null;
+        }
+
+        if ( bindExecutor != null )
+        {
+            bindExecutor.shutdown();
+            bindExecutor = null;
+        }
+
         started = false;
         LOG.info( "Ldap service stopped." );
     }
@@ -657,6 +746,37 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * Checks that the scheduler can be used with the executor running the requests. The
+     * requests waiting for their turn in the scheduler hold the thread running them, so
+     * the threads have to be more than the active and the waiting requests, otherwise the
+     * waiting requests would starve the active ones and the other clients. This is only
+     * the case with the elastic pool of the ordered request execution : the waiting
+     * requests are limited to the threads which are not used by the active requests.
+     *
+     * @throws LdapConfigurationException If the requests are not run on the elastic pool
+     */
+    private void checkRequestScheduler() throws LdapConfigurationException
+    {
+        if ( !orderedRequestExecution )
+        {
+            String msg = "The request scheduler needs the ordered request execution : the waiting requests "
+                + "would hold the threads of the fixed pool";
+            LOG.error( msg );
+            throw new LdapConfigurationException( msg );
+        }
+
+        int maxQueuedRequests = Math.max( 0, maxConcurrentRequests - requestScheduler.getMaxActiveRequests() );
+
+        if ( requestScheduler.getMaxQueuedRequests() > maxQueuedRequests )
+        {
+            LOG.warn( "The request scheduler can't queue more than {} requests with {} concurrent requests",
+                maxQueuedRequests, maxConcurrentRequests );
+            requestScheduler.setMaxQueuedRequests( maxQueuedRequests );
+        }
+    }
+
+
     /**
      * Starts the replication consumers
      *
@@ -1698,6 +1818,288 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * @return The number of bytes which can be queued in a session write queue before
+     * a search stops reading its results until the client has consumed them
+     */
+    public long getMaxScheduledWriteBytes()
+    {
+        return maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * Set the number of bytes which can be queued in a session write queue before a search
+     * stops reading its results until the client has consumed them.
+     * @param maxScheduledWriteBytes A number of bytes. A negative or null value disables
+     * the back pressure : the search results are queued as fast as they are read
+     */
+    public void setMaxScheduledWriteBytes( long maxScheduledWriteBytes )
+    {
+        this.maxScheduledWriteBytes = maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * @return true if the search result entries are encoded directly by the search handler
+     */
+    public boolean isDirectEntryEncoding()
+    {
+        return directEntryEncoding;
+    }
+
+
+    /**
+     * Tells if the search result entries are encoded directly from the entries by the
+     * search handler, in a single buffer, instead of being built as messages encoded by
+     * the codec. The referrals, and the entries of the persistent and replication
+     * searches, are still encoded by the codec. It's the default.
+     * @param directEntryEncoding true to encode the entries directly
+     */
+    public void setDirectEntryEncoding( boolean directEntryEncoding )
+    {
+        this.directEntryEncoding = directEntryEncoding;
+    }
+
+
+    /**
+     * @return The maximum number of paged searches, on all the sessions, which can keep
+     * their cursor opened between two pages
+     */
+    public int getMaxOpenPagedSearches()
+    {
+        return maxOpenPagedSearches;
+    }
+
+
+    /**
+     * Set the maximum number of paged searches, on all the sessions, which can keep their
+     * cursor opened between two pages. The other paged searches are resumed from the
+     * position stored in their cookie when possible, and rejected otherwise.
+     * @param maxOpenPagedSearches A number of paged searches. A negative value removes the limit
+     */
+    public void setMaxOpenPagedSearches( int maxOpenPagedSearches )
+    {
+        this.maxOpenPagedSearches = maxOpenPagedSearches;
+    }
+
+
+    /**
+     * @return The number of paged searches currently keeping their cursor opened
+     */
+    public int getOpenPagedSearches()
+    {
+        return openPagedSearches.get();
+    }
+
+
+    /**
+     * Tries to grant a slot to a paged search which keeps its cursor opened between two
+     * pages. The slot must be given back with {@link #releasePagedSearchContext()} when
+     * the cursor is closed.
+     * @return true if the paged search can keep its cursor opened
+     */
+    public boolean acquirePagedSearchContext()
+    {
+        while ( true )
+        {
+            int current = openPagedSearches.get();
+
+            if ( ( maxOpenPagedSearches >= 0 ) && ( current >= maxOpenPagedSearches ) )
+            {
+                return false;
+            }
+
+            if ( openPagedSearches.compareAndSet( current, current + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Gives back the slot of a paged search which has closed its cursor
+     */
+    public void releasePagedSearchContext()
+    {
+        openPagedSearches.decrementAndGet();
+    }
+
+
+    /**
+     * @return true if the paged searches are resumed from a position stored in their
+     * cookie, without keeping a cursor opened between two pages
+     */
+    public boolean isResumablePagedSearch()
+    {
+        return resumablePagedSearch;
+    }
+
+
+    /**
+     * Tells if the paged searches are resumed from a position stored in their cookie,
+     * without keeping a cursor opened between two pages. The entries are then returned
+     * in the order of their entryUUID. The searches which can't be resumed this way (using
+     * the server side sort control, or based on the RootDSE) still keep their cursor opened.
+     * @param resumablePagedSearch true to resume the paged searches from their cookie
+     */
+    public void setResumablePagedSearch( boolean resumablePagedSearch )
+    {
+        this.resumablePagedSearch = resumablePagedSearch;
+    }
+
+
+    /**
+     * @return true if the requests of a session are run in the order they are received,
+     * on an elastic pool of threads
+     */
+    public boolean isOrderedRequestExecution()
+    {
+        return orderedRequestExecution;
+    }
+
+
+    /**
+     * Tells if the requests of a session are run in the order they are received, on an
+     * elastic pool of threads, rather than on a fixed pool sized by the transport number
+     * of threads. It has to be set before the server is started.
+     * @param orderedRequestExecution true to run the requests of a session in order
+     */
+    public void setOrderedRequestExecution( boolean orderedRequestExecution )
+    {
+        this.orderedRequestExecution = orderedRequestExecution;
+    }
+
+
+    /**
+     * @return The maximum number of requests run at the same time, on all the sessions,
+     * when the requests of a session are ordered
+     */
+    public int getMaxConcurrentRequests()
+    {
+        return maxConcurrentRequests;
+    }
+
+
+    /**
+     * Set the maximum number of requests run at the same time, on all the sessions, when
+     * the requests of a session are ordered. The other requests wait for a thread.
+     * @param maxConcurrentRequests A number of requests
+     */
+    public void setMaxConcurrentRequests( int maxConcurrentRequests )
+    {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+
+    /**
+     * @return The maximum number of requests of a session run at the same time, when
+     * the requests of a session are ordered
+     */
+    public int getMaxConcurrentRequestsPerSession()
+    {
+        return maxConcurrentRequestsPerSession;
+    }
+
+
+    /**
+     * Set the maximum number of requests of a session run at the same time, when the
+     * requests of a session are ordered. With 1, the default, a request is only run once
+     * the previous one is done. The AbandonRequests are never delayed.
+     * @param maxConcurrentRequestsPerSession A number of requests
+     */
+    public void setMaxConcurrentRequestsPerSession( int maxConcurrentRequestsPerSession )
+    {
+        this.maxConcurrentRequestsPerSession = maxConcurrentRequestsPerSession;
+    }
+
+
+    /**
+     * @return The number of requests waiting to be run, when the requests of a session
+     * are ordered
+     */
+    public int getQueuedRequests()
+    {
+        return ( requestExecutor == null ) ? 0 : requestExecutor.getQueuedRequests();
+    }
+
+
+    /**
+     * @return The number of requests being run, when the requests of a session are ordered
+     */
+    public int getActiveRequests()
+    {
+        return ( requestExecutor == null ) ? 0 : requestExecutor.getActiveRequests();
+    }
+
+
+    /**
+     * @return The maximum number of simple binds run at the same time, when the requests
+     * of a session are not ordered
+     */
+    public int getMaxConcurrentBinds()
+    {
+        return maxConcurrentBinds;
+    }
+
+
+    /**
+     * Set the maximum number of simple binds run at the same time, when the requests of a
+     * session are not ordered. The other binds wait for a thread. It has to be set before
+     * the server is started.
+     * <p>
+     * When the DirectoryService hashes the passwords on its PasswordHashingExecutor, the
+     * simple binds are run on a pool of their own, so that the threads of the transports
+     * don't wait for the hashing. This pool is separate from the hashing one : its threads
+     * mostly wait for their password to be checked, while the hashing pool alone bounds the
+     * CPU used to hash the passwords. Its size should then be large enough to keep the
+     * hashing pool busy, and small enough not to fill its queue.
+     * @param maxConcurrentBinds A number of binds
+     */
+    public void setMaxConcurrentBinds( int maxConcurrentBinds )
+    {
+        this.maxConcurrentBinds = maxConcurrentBinds;
+    }
+
+
+    /**
+     * @return The executor running the simple binds, or null if they are run on the thread
+     * which has received them
+     */
+    public LdapRequestExecutor getBindExecutor()
+    {
+        return bindExecutor;
+    }
+
+
+    /**
+     * @return The scheduler admitting the requests, null if the requests are not scheduled
+     */
+    public LdapRequestScheduler getRequestScheduler()
+    {
+        return requestScheduler;
+    }
+
+
+    /**
+     * Set the scheduler admitting the requests before they are handled : it limits the
+     * rate of each client and shares the server between them. The requests are not
+     * scheduled by default.
+     * <p>
+     * A request waiting for its turn holds the thread running it : the scheduler needs the
+     * elastic pool of the ordered request execution, and the server refuses to start
+     * without it. The scheduler then queues at most maxConcurrentRequests minus its
+     * maxActiveRequests requests, so that the waiting requests never take the threads of
+     * the admitted ones.
+     * @param requestScheduler The scheduler, or null to handle the requests as they come
+     */
+    public void setRequestScheduler( LdapRequestScheduler requestScheduler )
+    {
+        this.requestScheduler = requestScheduler;
+    }
+
+
     /**
      * @return the number of seconds pinger thread sleeps between subsequent pings
      */
@@ -513,6 +513,9 @@ public class LdapSession
      * Add a new Paged Search context into the stored context. If some
      * context with the same id already exists, it will be closed and
      * removed.
+     * <p>
+     * The context must have been granted a slot in the server budget of open
+     * paged searches : it's given back when the context is removed.
      *
      * @param context The context to add
      */
@@ -523,6 +526,7 @@ public class LdapSession
         if ( oldContext != null )
         {
             // ??? Very unlikely to happen ...
+            releasePagedSearchContext();
             Cursor<Entry> cursor = oldContext.getCursor();
 
             if ( cursor != null )
@@ -548,24 +552,44 @@ public class LdapSession
      */
     public PagedSearchContext removePagedSearchContext( int contextId )
     {
-        return pagedSearchContexts.remove( contextId );
+        PagedSearchContext context = pagedSearchContexts.remove( contextId );
+
+        if ( context != null )
+        {
+            releasePagedSearchContext();
+        }
+
+        return context;
     }
 
 
     /**
-     * Close all the pending cursors for all the pending PagedSearches
+     * Gives back the slot of a removed context in the server budget of open paged searches
+     */
+    private void releasePagedSearchContext()
+    {
+        if ( ldapServer != null )
+        {
+            ldapServer.releasePagedSearchContext();
+        }
+    }
+
+
+    /**
+     * Close all the pending cursors for all the pending PagedSearches, and
+     * remove their contexts.
      *
      * @throws IOException If we've got an exception.
      */
     public void closeAllPagedSearches() throws IOException
     {
-        for ( Map.Entry<Integer, PagedSearchContext> entry : pagedSearchContexts.entrySet() )
+        for ( Integer contextId : pagedSearchContexts.keySet() )
         {
-            Cursor<Entry> cursor = entry.getValue().getCursor();
+            PagedSearchContext context = removePagedSearchContext( contextId );
 
-            if ( cursor != null )
+            if ( ( context != null ) && ( context.getCursor() != null ) )
             {
-                cursor.close();
+                context.getCursor().close();
             }
         }
     }
@@ -20,6 +20,8 @@
 package org.apache.directory.server.ldap.handlers;
 
 
+import java.util.concurrent.RejectedExecutionException;
+
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.directory.api.ldap.codec.api.LdapApiService;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
@@ -36,9 +38,11 @@ import org.apache.directory.api.ldap.model.message.Request;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.ResultResponse;
 import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.ldap.LdapRequestExecutor;
 import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
@@ -192,7 +196,7 @@ public abstract class LdapRequestHandler<T extends Request> implements MessageHa
         // only if it's not a BindRequest
         if ( message instanceof BindRequest )
         {
-            handle( ldapSession, message );
+            schedule( ldapSession, message );
         }
         else
         {
@@ -206,7 +210,7 @@ public abstract class LdapRequestHandler<T extends Request> implements MessageHa
             if ( ldapSession.isAuthenticated() )
             {
                 coreSession = ldapSession.getCoreSession();
-                handle( ldapSession, message );
+                schedule( ldapSession, message );
                 return;
             }
 
@@ -221,8 +225,155 @@ public abstract class LdapRequestHandler<T extends Request> implements MessageHa
                 return;
             }
 
+            schedule( ldapSession, message );
+        }
+    }
+
+
+    /**
+     * Handles a message once it has been admitted by the request scheduler, if the
+     * server has one. A rejected request is answered with the result code given by
+     * the scheduler.
+     */
+    private void schedule( LdapSession ldapSession, T message ) throws Exception
+    {
+        LdapRequestScheduler scheduler = ldapServer.getRequestScheduler();
+
+        if ( scheduler == null )
+        {
+            dispatch( ldapSession, message, null, null );
+            return;
+        }
+
+        LdapRequestScheduler.Ticket ticket = scheduler.admit( ldapSession, message );
+
+        if ( !ticket.isAdmitted() )
+        {
+            LOG.debug( "The request {} has been rejected by the scheduler : {}", message, ticket.getResultCode() );
+
+            reject( ldapSession, message, ticket.getResultCode() );
+
+            return;
+        }
+
+        dispatch( ldapSession, message, scheduler, ticket );
+    }
+
+
+    /**
+     * Handles an admitted message, and releases its ticket. A simple bind is handled by
+     * the bind executor of the server, if it has one : the thread is not held while the
+     * password is checked, and the other requests can go on. The client doesn't send any
+     * other request until it gets the BindResponse. The bind executor is separate from the
+     * DirectoryService password hashing executor : the password alone is checked on the
+     * latter, which bounds the CPU used by the hashing.
+     * <p>
+     * When the requests of a session are ordered, there is no bind executor, and the bind
+     * stays on the thread of the session : the next requests of the session must wait for
+     * it. The password is still checked on the password hashing executor.
+     */
+    private void dispatch( final LdapSession ldapSession, final T message, final LdapRequestScheduler scheduler,
+        final LdapRequestScheduler.Ticket ticket ) throws Exception
+    {
+        LdapRequestExecutor bindExecutor = ldapServer.getBindExecutor();
+
+        if ( ( bindExecutor != null ) && ( message instanceof BindRequest )
+            && ( ( BindRequest ) message ).isSimple() && !Strings.isEmpty( ( ( BindRequest ) message ).getCredentials() ) )
+        {
+            try
+            {
+                bindExecutor.execute( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            handle( ldapSession, message );
+                        }
+                        catch ( Exception e )
+                        {
+                            exceptionCaught( ldapSession, e );
+                        }
+                        finally
+                        {
+                            release( scheduler, ticket );
+                        }
+                    }
+
+
+                    @Override
+                    public String toString()
+                    {
+                        return message.toString();
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException ree )
+            {
+                // The server is being stopped
+                LOG.debug( "The request {} has been rejected by the bind executor", message );
+
+                release( scheduler, ticket );
+                reject( ldapSession, message, ResultCodeEnum.UNAVAILABLE );
+            }
+
+            return;
+        }
+
+        try
+        {
             handle( ldapSession, message );
         }
+        finally
+        {
+            release( scheduler, ticket );
+        }
+    }
+
+
+    /**
+     * Releases the ticket of a request, if it has been scheduled
+     */
+    private static void release( LdapRequestScheduler scheduler, LdapRequestScheduler.Ticket ticket )
+    {
+        if ( scheduler != null )
+        {
+            scheduler.release( ticket );
+        }
+    }
+
+
+    /**
+     * Answers a request the server is too busy to handle
+     */
+    private void reject( LdapSession ldapSession, T message, ResultCodeEnum resultCode )
+    {
+        if ( message instanceof ResultResponseRequest )
+        {
+            ResultResponse response = ( ( ResultResponseRequest ) message ).getResultResponse();
+            LdapResult result = response.getLdapResult();
+            result.setResultCode( resultCode );
+            result.setDiagnosticMessage( "The server is too busy to handle the request, try again later" );
+            ldapSession.getIoSession().write( response );
+        }
+    }
+
+
+    /**
+     * Deals with an exception thrown by a request handled out of the MINA threads, the
+     * same way MINA does.
+     */
+    private void exceptionCaught( LdapSession ldapSession, Exception e )
+    {
+        try
+        {
+            ldapServer.getHandler().exceptionCaught( ldapSession.getIoSession(), e );
+        }
+        catch ( Exception e2 )
+        {
+            LOG.error( "Cannot handle the exception thrown by a request", e2 );
+        }
     }
 
 
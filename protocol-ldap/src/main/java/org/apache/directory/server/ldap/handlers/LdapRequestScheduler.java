@@ -0,0 +1,824 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers;
+
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
+import org.apache.directory.api.ldap.model.message.Request;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A scheduler in front of the request handlers, sharing the server between its clients.
+ * The requests are classified by the bound identity, the client address and the operation
+ * type. Each class has :
+ * <ul>
+ *   <li>a token bucket, limiting its rate of requests. The requests exceeding it are
+ *   rejected with <code>busy</code></li>
+ *   <li>a queue of the requests waiting for one of the <code>maxActiveRequests</code>
+ *   slots. The slots are given to the classes in a weighted fair order : a class gets
+ *   a share of the slots proportional to the weight of its operation type, whatever
+ *   the number of requests it sends. A request is rejected with <code>busy</code> when
+ *   its class queue is full or when it has waited too long, and with
+ *   <code>unwillingToPerform</code> when the queues of all the classes are full</li>
+ * </ul>
+ * The latencies and the queues of each class can be read with {@link #getStatistics()}.
+ * The abandon and unbind requests are never scheduled.
+ * <p>
+ * A waiting request blocks the thread running it until its turn comes. The scheduler is
+ * then only used with the elastic pool of the ordered request execution, which has more
+ * threads than the active and the waiting requests : with the fixed pool, the waiting
+ * requests would take all the threads, and the slots would be given in the order of the
+ * pool queue rather than in the fair order.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestScheduler
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( LdapRequestScheduler.class );
+
+    /** The idle classes are removed when there are more than this number of classes */
+    private static final int MAX_CLASSES = 10000;
+
+    /** The maximum number of requests handled at the same time */
+    private final int maxActiveRequests;
+
+    /** The maximum number of waiting requests per class */
+    private int maxQueuedRequestsPerClass = 16;
+
+    /** The maximum number of waiting requests, all classes included */
+    private int maxQueuedRequests = 1024;
+
+    /** The maximum time a request waits for a slot, in milliseconds */
+    private long maxWaitMillis = 10000L;
+
+    /** The number of requests per second a class can send, 0 for no limit */
+    private double requestsPerSecond = 0d;
+
+    /** The number of requests a class can send at once above its rate */
+    private int burst = 1;
+
+    /** The weights of the operation types */
+    private final Map<MessageTypeEnum, Integer> weights = new EnumMap<>( MessageTypeEnum.class );
+
+    /** The lock protecting the scheduler state */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The classes, by key */
+    private final Map<String, RequestClass> classes = new HashMap<>();
+
+    /** The waiting requests, ordered by their virtual finish time */
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+
+    /** The number of requests being handled */
+    private int activeRequests;
+
+    /** The virtual time of the scheduler : the finish time of the last started request */
+    private double virtualTime;
+
+    /** The arrival order of the requests, breaking the virtual time ties */
+    private long sequence;
+
+
+    /**
+     * Creates a new instance of LdapRequestScheduler.
+     *
+     * @param maxActiveRequests The maximum number of requests handled at the same time
+     */
+    public LdapRequestScheduler( int maxActiveRequests )
+    {
+        this.maxActiveRequests = Math.max( 1, maxActiveRequests );
+    }
+
+
+    /**
+     * A class of requests, sent by one identity from one address, for one operation type
+     */
+    private final class RequestClass
+    {
+        /** The class key */
+        private final String key;
+
+        /** The weight of the class */
+        private final int weight;
+
+        /** The virtual finish time of the last request of the class */
+        private double lastFinish;
+
+        /** The tokens available in the bucket */
+        private double tokens;
+
+        /** The last time the bucket has been refilled, in nanoseconds */
+        private long lastRefill = System.nanoTime();
+
+        /** The number of waiting requests */
+        private int queued;
+
+        /** The number of requests being handled */
+        private int active;
+
+        /** The number of handled requests */
+        private long handled;
+
+        /** The number of rejected requests */
+        private long rejected;
+
+        /** The total latency of the handled requests, in nanoseconds, including the wait */
+        private long totalLatency;
+
+        /** The maximum latency of the handled requests, in nanoseconds, including the wait */
+        private long maxLatency;
+
+
+        private RequestClass( String key, int weight )
+        {
+            this.key = key;
+            this.weight = weight;
+            this.tokens = burst;
+        }
+
+
+        /**
+         * Takes a token from the bucket, after having refilled it
+         */
+        private boolean takeToken()
+        {
+            if ( requestsPerSecond <= 0d )
+            {
+                return true;
+            }
+
+            long now = System.nanoTime();
+            tokens = Math.min( burst, tokens + ( now - lastRefill ) * requestsPerSecond / TimeUnit.SECONDS.toNanos( 1 ) );
+            lastRefill = now;
+
+            if ( tokens < 1d )
+            {
+                return false;
+            }
+
+            tokens -= 1d;
+
+            return true;
+        }
+
+
+        private boolean isIdle()
+        {
+            return ( queued == 0 ) && ( active == 0 );
+        }
+    }
+
+
+    /**
+     * The admission of a request. A waiting request is ordered by its virtual finish time.
+     */
+    public final class Ticket implements Comparable<Ticket>
+    {
+        /** The class of the request, null if the request is not scheduled */
+        private final RequestClass requestClass;
+
+        /** The virtual finish time of the request */
+        private final double finish;
+
+        /** The arrival order of the request */
+        private final long order;
+
+        /** The time the request has been received, in nanoseconds */
+        private final long start = System.nanoTime();
+
+        /** Tells if the request can be handled */
+        private boolean admitted;
+
+        /** The result code sent back when the request is rejected */
+        private ResultCodeEnum resultCode;
+
+        /** The condition the waiting request is signaled with */
+        private Condition turn;
+
+
+        private Ticket( RequestClass requestClass, double finish, long order )
+        {
+            this.requestClass = requestClass;
+            this.finish = finish;
+            this.order = order;
+        }
+
+
+        /**
+         * @return true if the request can be handled
+         */
+        public boolean isAdmitted()
+        {
+            return admitted;
+        }
+
+
+        /**
+         * @return The result code to send back when the request has been rejected
+         */
+        public ResultCodeEnum getResultCode()
+        {
+            return resultCode;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo( Ticket other )
+        {
+            int comparison = Double.compare( finish, other.finish );
+
+            return ( comparison != 0 ) ? comparison : Long.compare( order, other.order );
+        }
+    }
+
+
+    /**
+     * Admits a request received on a session, waiting for a slot if needed. The request
+     * must be handled only if the returned ticket is admitted, and the ticket must then be
+     * given back with {@link #release(Ticket)} once the request has been handled.
+     *
+     * @param session The session the request has been received on
+     * @param request The request
+     * @return The ticket of the request
+     * @throws InterruptedException If the thread has been interrupted while waiting
+     */
+    public Ticket admit( LdapSession session, Request request ) throws InterruptedException
+    {
+        MessageTypeEnum type = request.getType();
+
+        if ( ( type == MessageTypeEnum.ABANDON_REQUEST ) || ( type == MessageTypeEnum.UNBIND_REQUEST ) )
+        {
+            Ticket ticket = new Ticket( null, 0d, 0L );
+            ticket.admitted = true;
+
+            return ticket;
+        }
+
+        return admit( getIdentity( session ), getAddress( session ), type );
+    }
+
+
+    /**
+     * Admits a request of the class of an identity, an address and an operation type.
+     */
+    Ticket admit( String identity, String address, MessageTypeEnum type ) throws InterruptedException
+    {
+        String key = identity + '|' + address + '|' + type;
+
+        lock.lock();
+
+        try
+        {
+            RequestClass requestClass = getRequestClass( key, type );
+
+            // The class rate
+            if ( !requestClass.takeToken() )
+            {
+                return reject( requestClass, ResultCodeEnum.BUSY, null );
+            }
+
+            // Start-time fair queueing : the virtual finish time of the request depends on
+            // the weight of its class, and on the finish time of the previous request of
+            // the class
+            double finish = Math.max( virtualTime, requestClass.lastFinish ) + 1d / requestClass.weight;
+            Ticket ticket = new Ticket( requestClass, finish, sequence++ );
+
+            if ( waiting.isEmpty() && ( activeRequests < maxActiveRequests ) )
+            {
+                requestClass.lastFinish = finish;
+                start( ticket );
+
+                return ticket;
+            }
+
+            // All the slots are used : the request waits for its turn
+            if ( waiting.size() >= maxQueuedRequests )
+            {
+                return reject( requestClass, ResultCodeEnum.UNWILLING_TO_PERFORM, ticket );
+            }
+
+            if ( requestClass.queued >= maxQueuedRequestsPerClass )
+            {
+                return reject( requestClass, ResultCodeEnum.BUSY, ticket );
+            }
+
+            requestClass.lastFinish = finish;
+            requestClass.queued++;
+            ticket.turn = lock.newCondition();
+            waiting.add( ticket );
+            long remaining = TimeUnit.MILLISECONDS.toNanos( maxWaitMillis );
+
+            try
+            {
+                // The released slots are given to the waiting requests by release()
+                while ( !ticket.admitted && ( remaining > 0L ) )
+                {
+                    remaining = ticket.turn.awaitNanos( remaining );
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                if ( !ticket.admitted )
+                {
+                    throw ie;
+                }
+
+                // The slot has been given to the request : it has to be handled and released
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                if ( !ticket.admitted )
+                {
+                    waiting.remove( ticket );
+                    requestClass.queued--;
+                }
+            }
+
+            if ( !ticket.admitted )
+            {
+                LOG.debug( "The request of the class {} has waited too long", key );
+
+                return reject( requestClass, ResultCodeEnum.BUSY, ticket );
+            }
+
+            return ticket;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gives back the slot of a request once it has been handled, and gives it to the next
+     * waiting request.
+     *
+     * @param ticket The admitted ticket of the request
+     */
+    public void release( Ticket ticket )
+    {
+        RequestClass requestClass = ticket.requestClass;
+
+        if ( ( requestClass == null ) || !ticket.admitted )
+        {
+            return;
+        }
+
+        long latency = System.nanoTime() - ticket.start;
+
+        lock.lock();
+
+        try
+        {
+            requestClass.active--;
+            requestClass.handled++;
+            requestClass.totalLatency += latency;
+            requestClass.maxLatency = Math.max( requestClass.maxLatency, latency );
+            activeRequests--;
+
+            while ( ( activeRequests < maxActiveRequests ) && !waiting.isEmpty() )
+            {
+                Ticket next = waiting.poll();
+                next.requestClass.queued--;
+                start( next );
+                next.turn.signal();
+            }
+
+            purgeIdleClasses();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Starts a request : it takes a slot, and the virtual time moves to its start.
+     */
+    private void start( Ticket ticket )
+    {
+        RequestClass requestClass = ticket.requestClass;
+        virtualTime = Math.max( virtualTime, ticket.finish - 1d / requestClass.weight );
+        ticket.admitted = true;
+        requestClass.active++;
+        activeRequests++;
+    }
+
+
+    /**
+     * Rejects a request
+     */
+    private Ticket reject( RequestClass requestClass, ResultCodeEnum resultCode, Ticket ticket )
+    {
+        requestClass.rejected++;
+
+        Ticket rejected = ( ticket == null ) ? new Ticket( requestClass, 0d, 0L ) : ticket;
+        rejected.resultCode = resultCode;
+
+        purgeIdleClasses();
+
+        return rejected;
+    }
+
+
+    /**
+     * Gets the class for a key, creating it if needed
+     */
+    private RequestClass getRequestClass( String key, MessageTypeEnum type )
+    {
+        RequestClass requestClass = classes.get( key );
+
+        if ( requestClass == null )
+        {
+            requestClass = new RequestClass( key, getWeight( type ) );
+            classes.put( key, requestClass );
+        }
+
+        return requestClass;
+    }
+
+
+    /**
+     * Removes the idle classes when there are too many of them. Their statistics are lost.
+     */
+    private void purgeIdleClasses()
+    {
+        if ( classes.size() <= MAX_CLASSES )
+        {
+            return;
+        }
+
+        Iterator<RequestClass> iterator = classes.values().iterator();
+
+        while ( iterator.hasNext() )
+        {
+            if ( iterator.next().isIdle() )
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    /**
+     * @return The normalized name of the identity bound on a session, an empty String for
+     * an anonymous session
+     */
+    private static String getIdentity( LdapSession session )
+    {
+        CoreSession coreSession = session.getCoreSession();
+
+        if ( ( coreSession == null ) || coreSession.isAnonymous() || ( coreSession.getEffectivePrincipal() == null ) )
+        {
+            return "";
+        }
+
+        return coreSession.getEffectivePrincipal().getDn().getNormName();
+    }
+
+
+    /**
+     * @return The address of the client of a session
+     */
+    private static String getAddress( LdapSession session )
+    {
+        SocketAddress address = session.getIoSession().getRemoteAddress();
+
+        if ( address instanceof InetSocketAddress )
+        {
+            InetSocketAddress inetAddress = ( InetSocketAddress ) address;
+
+            if ( inetAddress.getAddress() != null )
+            {
+                return inetAddress.getAddress().getHostAddress();
+            }
+
+            return inetAddress.getHostString();
+        }
+
+        return String.valueOf( address );
+    }
+
+
+    /**
+     * @return The statistics of the classes of requests
+     */
+    public Map<String, Statistics> getStatistics()
+    {
+        Map<String, Statistics> statistics = new HashMap<>();
+
+        lock.lock();
+
+        try
+        {
+            for ( RequestClass requestClass : classes.values() )
+            {
+                statistics.put( requestClass.key, new Statistics( requestClass ) );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return statistics;
+    }
+
+
+    /**
+     * The statistics of a class of requests, at the time they have been read
+     */
+    public static final class Statistics
+    {
+        /** The number of handled requests */
+        private final long handled;
+
+        /** The number of rejected requests */
+        private final long rejected;
+
+        /** The number of waiting requests */
+        private final int queued;
+
+        /** The number of requests being handled */
+        private final int active;
+
+        /** The mean latency of the handled requests, in nanoseconds */
+        private final long meanLatency;
+
+        /** The maximum latency of the handled requests, in nanoseconds */
+        private final long maxLatency;
+
+
+        private Statistics( RequestClass requestClass )
+        {
+            handled = requestClass.handled;
+            rejected = requestClass.rejected;
+            queued = requestClass.queued;
+            active = requestClass.active;
+            meanLatency = ( handled == 0L ) ? 0L : requestClass.totalLatency / handled;
+            maxLatency = requestClass.maxLatency;
+        }
+
+
+        /**
+         * @return The number of handled requests
+         */
+        public long getHandled()
+        {
+            return handled;
+        }
+
+
+        /**
+         * @return The number of rejected requests
+         */
+        public long getRejected()
+        {
+            return rejected;
+        }
+
+
+        /**
+         * @return The number of waiting requests
+         */
+        public int getQueued()
+        {
+            return queued;
+        }
+
+
+        /**
+         * @return The number of requests being handled
+         */
+        public int getActive()
+        {
+            return active;
+        }
+
+
+        /**
+         * @return The mean latency of the handled requests, waiting time included, in nanoseconds
+         */
+        public long getMeanLatency()
+        {
+            return meanLatency;
+        }
+
+
+        /**
+         * @return The maximum latency of the handled requests, waiting time included, in nanoseconds
+         */
+        public long getMaxLatency()
+        {
+            return maxLatency;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return "handled=" + handled + ", rejected=" + rejected + ", queued=" + queued + ", active=" + active
+                + ", meanLatency=" + meanLatency + "ns, maxLatency=" + maxLatency + "ns";
+        }
+    }
+
+
+    /**
+     * @return The number of requests being handled
+     */
+    public int getActiveRequests()
+    {
+        lock.lock();
+
+        try
+        {
+            return activeRequests;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of waiting requests
+     */
+    public int getQueuedRequests()
+    {
+        lock.lock();
+
+        try
+        {
+            return waiting.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The maximum number of requests handled at the same time
+     */
+    public int getMaxActiveRequests()
+    {
+        return maxActiveRequests;
+    }
+
+
+    /**
+     * @return The maximum number of waiting requests per class
+     */
+    public int getMaxQueuedRequestsPerClass()
+    {
+        return maxQueuedRequestsPerClass;
+    }
+
+
+    /**
+     * @param maxQueuedRequestsPerClass The maximum number of waiting requests per class.
+     * The requests above are rejected with <code>busy</code>
+     */
+    public void setMaxQueuedRequestsPerClass( int maxQueuedRequestsPerClass )
+    {
+        this.maxQueuedRequestsPerClass = maxQueuedRequestsPerClass;
+    }
+
+
+    /**
+     * @return The maximum number of waiting requests, all classes included
+     */
+    public int getMaxQueuedRequests()
+    {
+        return maxQueuedRequests;
+    }
+
+
+    /**
+     * @param maxQueuedRequests The maximum number of waiting requests, all classes included.
+     * The requests above are rejected with <code>unwillingToPerform</code>
+     */
+    public void setMaxQueuedRequests( int maxQueuedRequests )
+    {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+
+    /**
+     * @return The maximum time a request waits for a slot, in milliseconds
+     */
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+
+    /**
+     * @param maxWaitMillis The maximum time a request waits for a slot, in milliseconds
+     */
+    public void setMaxWaitMillis( long maxWaitMillis )
+    {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+
+    /**
+     * @return The number of requests per second a class can send, 0 for no limit
+     */
+    public double getRequestsPerSecond()
+    {
+        return requestsPerSecond;
+    }
+
+
+    /**
+     * Sets the rate limit of each class. It applies to the classes created afterwards.
+     *
+     * @param requestsPerSecond The number of requests per second a class can send, 0 for no limit
+     * @param burst The number of requests a class can send at once
+     */
+    public void setRateLimit( double requestsPerSecond, int burst )
+    {
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = Math.max( 1, burst );
+    }
+
+
+    /**
+     * @return The number of requests a class can send at once
+     */
+    public int getBurst()
+    {
+        return burst;
+    }
+
+
+    /**
+     * @param type The operation type
+     * @return The weight of an operation type, 1 by default
+     */
+    public int getWeight( MessageTypeEnum type )
+    {
+        Integer weight = weights.get( type );
+
+        return ( weight == null ) ? 1 : weight;
+    }
+
+
+    /**
+     * Sets the weight of an operation type : the classes of this type get a share of the
+     * slots proportional to it. It applies to the classes created afterwards.
+     *
+     * @param type The operation type
+     * @param weight The weight, at least 1
+     */
+    public void setWeight( MessageTypeEnum type, int weight )
+    {
+        weights.put( type, Math.max( 1, weight ) );
+    }
+}
@@ -117,7 +117,7 @@ public class PagedSearchContext
     /**
      * Build a set of OIDs from the list of attributes we have in the search request
      */
-    private Set<String> buildAttributeSet( SearchRequest request,
+    static Set<String> buildAttributeSet( SearchRequest request,
         SchemaManager schemaManager )
     {
         Set<String> requestSet = new HashSet<>();
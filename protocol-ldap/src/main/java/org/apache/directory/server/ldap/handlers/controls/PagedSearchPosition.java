@@ -0,0 +1,266 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * The position of a resumable paged search, stored in the cookie sent back to the
+ * client. Nothing is kept on the server between two pages : the search is done again
+ * for each page, starting after the entryUUID of the last returned entry. The cookie
+ * can then be used on any connection, until the server is restarted.
+ * <p>
+ * The cookie contains the number of entries already returned, so that the size limit
+ * is enforced on the whole search, and the entryUUID of the last one. It's signed with
+ * a key generated when the server starts, over these values and the search request
+ * parameters, so that it can't be forged nor used for another request.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class PagedSearchPosition
+{
+    /** The first byte of a position cookie. The other cookies are at most 5 bytes long */
+    private static final byte POSITION_MARKER = ( byte ) 0xA5;
+
+    /** The length of the signature at the end of the cookie */
+    private static final int SIGNATURE_LENGTH = 8;
+
+    /** The shortest position cookie : the marker, the count, an empty ID and the signature */
+    private static final int MIN_LENGTH = 1 + 4 + 2 + SIGNATURE_LENGTH;
+
+    /** The algorithm used to sign the cookies */
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+
+    /** The key used to sign the cookies, valid until the server is restarted */
+    private static final byte[] KEY = new byte[32];
+
+    static
+    {
+        new SecureRandom().nextBytes( KEY );
+    }
+
+    /** The number of entries already returned */
+    private final int count;
+
+    /** The entryUUID of the last returned entry */
+    private final String lastId;
+
+
+    /**
+     * Creates a new instance of PagedSearchPosition.
+     *
+     * @param count The number of entries already returned
+     * @param lastId The entryUUID of the last returned entry
+     */
+    public PagedSearchPosition( int count, String lastId )
+    {
+        this.count = count;
+        this.lastId = lastId;
+    }
+
+
+    /**
+     * @return The number of entries already returned
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return The entryUUID of the last returned entry, null if none has been returned yet
+     */
+    public String getLastId()
+    {
+        return lastId;
+    }
+
+
+    /**
+     * Tells if a cookie contains a position, rather than the ID of a paged search
+     * context stored in the session.
+     *
+     * @param cookie The cookie
+     * @return true if the cookie contains a position
+     */
+    public static boolean isPosition( byte[] cookie )
+    {
+        return ( cookie != null ) && ( cookie.length >= MIN_LENGTH ) && ( cookie[0] == POSITION_MARKER );
+    }
+
+
+    /**
+     * Computes the fingerprint of a search request : the cookie of a position can only
+     * be used with requests having the same fingerprint. The paged results control and
+     * the message ID are not part of it.
+     *
+     * @param request The search request
+     * @param schemaManager The SchemaManager
+     * @return The fingerprint
+     * @throws LdapException If the base Dn is invalid
+     */
+    public static String fingerprint( SearchRequest request, SchemaManager schemaManager ) throws LdapException
+    {
+        Dn base = request.getBase();
+
+        if ( !base.isSchemaAware() )
+        {
+            base = new Dn( schemaManager, base );
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( base.getNormName() ).append( '\n' );
+        sb.append( request.getScope() ).append( '\n' );
+        sb.append( request.getSizeLimit() ).append( '\n' );
+        sb.append( request.getTimeLimit() ).append( '\n' );
+        sb.append( request.getTypesOnly() ).append( '\n' );
+        sb.append( request.getDerefAliases() ).append( '\n' );
+        sb.append( new TreeSet<>( PagedSearchContext.buildAttributeSet( request, schemaManager ) ) ).append( '\n' );
+        sb.append( request.getFilter() );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Encodes this position in a signed cookie.
+     *
+     * @param fingerprint The fingerprint of the search request
+     * @return The cookie
+     */
+    public byte[] encode( String fingerprint )
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( baos );
+
+            out.writeByte( POSITION_MARKER );
+            out.writeInt( count );
+            out.writeUTF( lastId == null ? "" : lastId );
+            out.write( sign( fingerprint, baos.toByteArray() ) );
+            out.flush();
+
+            return baos.toByteArray();
+        }
+        catch ( IOException ioe )
+        {
+            // Can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException( ioe );
+        }
+    }
+
+
+    /**
+     * Decodes the position stored in a cookie, checking its signature.
+     *
+     * @param cookie The cookie
+     * @param fingerprint The fingerprint of the search request
+     * @return The position, or null if the cookie is invalid, or has been produced by
+     * another request
+     */
+    public static PagedSearchPosition decode( byte[] cookie, String fingerprint )
+    {
+        if ( !isPosition( cookie ) )
+        {
+            return null;
+        }
+
+        byte[] data = Arrays.copyOf( cookie, cookie.length - SIGNATURE_LENGTH );
+        byte[] signature = Arrays.copyOfRange( cookie, data.length, cookie.length );
+
+        if ( !MessageDigest.isEqual( signature, sign( fingerprint, data ) ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+            in.readByte();
+            int count = in.readInt();
+            String lastId = in.readUTF();
+
+            if ( ( count < 0 ) || ( in.available() != 0 ) )
+            {
+                return null;
+            }
+
+            return new PagedSearchPosition( count, Strings.isEmpty( lastId ) ? null : lastId );
+        }
+        catch ( IOException ioe )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Computes the truncated signature of some data, for a search request
+     */
+    private static byte[] sign( String fingerprint, byte[] data )
+    {
+        try
+        {
+            Mac mac = Mac.getInstance( SIGNATURE_ALGORITHM );
+            mac.init( new SecretKeySpec( KEY, SIGNATURE_ALGORITHM ) );
+            mac.update( Strings.getBytesUtf8( fingerprint ) );
+            mac.update( data );
+
+            return Arrays.copyOf( mac.doFinal(), SIGNATURE_LENGTH );
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            // HmacSHA256 is available on every JVM
+            throw new IllegalStateException( gse );
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "PagedSearch position : <" + count + ", " + lastId + ">";
+    }
+}
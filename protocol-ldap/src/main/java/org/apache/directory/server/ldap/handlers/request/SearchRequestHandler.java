@@ -38,6 +38,7 @@ import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.exception.LdapURLEncodingException;
 import org.apache.directory.api.ldap.model.exception.OperationAbandonedException;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
@@ -49,7 +50,6 @@ import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
 import org.apache.directory.api.ldap.model.message.Referral;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
-import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
@@ -81,7 +81,10 @@ import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.directory.server.ldap.handlers.controls.PagedSearchPosition;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,6 +107,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     /** The replication handler */
     protected ReplicationRequestHandler replicationReqHandler;
 
+    /** How long we wait for the client before checking the session again when its write queue is full */
+    private static final long BACK_PRESSURE_WAIT_MS = 100L;
+
 
     /**
      * Constructs a new filter EqualityNode asserting that a candidate
@@ -371,6 +377,36 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Writes a search response. If the session write queue holds more than the configured
+     * number of bytes, we wait for the client to consume half of it before returning, so
+     * that the results are not read faster than the client reads them.
+     */
+    private void writeWithBackPressure( LdapSession session, SearchRequest req, Object response )
+    {
+        IoSession ioSession = session.getIoSession();
+        WriteFuture future = ioSession.write( response );
+        long maxScheduledWriteBytes = ldapServer.getMaxScheduledWriteBytes();
+
+        if ( ( maxScheduledWriteBytes <= 0 ) || ( ioSession.getScheduledWriteBytes() <= maxScheduledWriteBytes ) )
+        {
+            return;
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "{} bytes are queued for message {}, waiting for the client", ioSession.getScheduledWriteBytes(),
+                req.getMessageId() );
+        }
+
+        while ( ( ioSession.getScheduledWriteBytes() > maxScheduledWriteBytes / 2 ) && !future.isDone()
+            && !ioSession.isClosing() && !req.isAbandoned() )
+        {
+            future.awaitUninterruptibly( BACK_PRESSURE_WAIT_MS );
+        }
+    }
+
+
     private void writeResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
         Cursor<Entry> cursor, long sizeLimit ) throws Exception
     {
@@ -405,7 +441,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+            writeWithBackPressure( session, req, generateResponse( session, req, entry ) );
 
             if ( IS_DEBUG )
             {
@@ -460,7 +496,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+            writeWithBackPressure( session, req, generateResponse( session, req, entry ) );
             count++;
             pageCount++;
         }
@@ -522,7 +558,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
                 cursor.close();
 
-                session.removePagedSearchContext( cookieValue );
+                session.removePagedSearchContext( pagedContext.getCookieValue() );
             }
         }
     }
@@ -537,7 +573,13 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         PagedResults pagedSearchControl = ( PagedResults ) req.getControls().get( PagedResults.OID );
         byte[] cookie = pagedSearchControl.getCookie();
 
-        if ( !Strings.isEmpty( cookie ) )
+        if ( PagedSearchPosition.isPosition( cookie ) )
+        {
+            // Nothing is kept on the server for a resumable paged search
+            pagedSearchControl.setSize( 0 );
+            pagedSearchControl.setCritical( true );
+        }
+        else if ( !Strings.isEmpty( cookie ) )
         {
             // If the cookie is not null, we have to destroy the associated
             // cursor stored into the session (if any)
@@ -587,6 +629,127 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Handle a page of a resumable Paged Search. The search is done again for each page,
+     * and the entries are read in the order of their entryUUID, after the last entry of
+     * the previous page. The cursor is closed when the page has been sent : the position
+     * is stored in the cookie sent back to the client.
+     *
+     * @return The response, or null if the search can't be resumed
+     */
+    private SearchResultDone doResumablePagedSearch( LdapSession session, SearchRequest req, LdapResult ldapResult,
+        long sizeLimit, int pagedLimit, String fingerprint, PagedSearchPosition position ) throws Exception
+    {
+        String resumeAfter = ( position == null ) ? null : position.getLastId();
+        Cursor<Entry> cursor = session.getCoreSession().resumableSearch( req, resumeAfter );
+
+        if ( cursor == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            cursor.beforeFirst();
+            req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
+            setTimeLimitsOnCursor( req, session, cursor );
+
+            int count = ( position == null ) ? 0 : position.getCount();
+            int pageCount = 0;
+            String lastId = resumeAfter;
+
+            while ( ( count < sizeLimit ) && ( pageCount < pagedLimit ) && cursor.next() )
+            {
+                if ( session.getIoSession().isClosing() || req.isAbandoned() )
+                {
+                    break;
+                }
+
+                Entry entry = cursor.get();
+                writeWithBackPressure( session, req, generateResponse( session, req, entry ) );
+                lastId = getEntryUuid( entry );
+                count++;
+                pageCount++;
+            }
+
+            // DO NOT WRITE THE RESPONSE - JUST RETURN IT
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+
+            PagedResults pagedResultsControl = new PagedResultsImpl();
+            pagedResultsControl.setSize( 0 );
+            pagedResultsControl.setCritical( true );
+
+            if ( !cursor.next() )
+            {
+                // All the entries have been returned : the cookie is empty
+                req.getResultResponse().addControl( pagedResultsControl );
+            }
+            else if ( count < sizeLimit )
+            {
+                pagedResultsControl.setCookie( new PagedSearchPosition( count, lastId ).encode( fingerprint ) );
+                req.getResultResponse().addControl( pagedResultsControl );
+            }
+            else
+            {
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+            }
+        }
+        finally
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_168 ), e );
+            }
+        }
+
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+
+
+    /**
+     * @return The entryUUID of an entry returned by a search, which may not be part of
+     * the returned attributes
+     */
+    private static String getEntryUuid( Entry entry ) throws LdapException
+    {
+        Entry originalEntry = entry;
+
+        if ( entry instanceof ClonedServerEntry )
+        {
+            originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        Attribute entryUuid = originalEntry.get( SchemaConstants.ENTRY_UUID_AT );
+
+        if ( entryUuid == null )
+        {
+            throw new LdapOtherException( "The entry " + entry.getDn() + " has no entryUUID" );
+        }
+
+        return entryUuid.getString();
+    }
+
+
+    /**
+     * Returns an error when the paged search can neither keep its cursor opened, as too
+     * many cursors are opened on the server, nor be resumed from its cookie.
+     */
+    private SearchResultDone tooManyPagedSearches( SearchRequest req, LdapResult ldapResult )
+    {
+        LOG.warn( "{} paged searches are already opened, rejecting the message {}", ldapServer.getOpenPagedSearches(),
+            req.getMessageId() );
+
+        ldapResult.setDiagnosticMessage( "Too many paged searches are opened on the server." );
+        ldapResult.setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+
+
     /**
      * Handle a Paged Search request.
      */
@@ -632,8 +795,47 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         byte[] cookie = pagedSearchControl.getCookie();
         LdapResult ldapResult = req.getResultResponse().getLdapResult();
 
+        // The fingerprint is computed before the request is processed by the core
+        String fingerprint = PagedSearchPosition.fingerprint( req,
+            ldapServer.getDirectoryService().getSchemaManager() );
+
+        if ( PagedSearchPosition.isPosition( cookie ) )
+        {
+            // Case 3 for a resumable search : the cookie contains the position to resume from
+            PagedSearchPosition position = PagedSearchPosition.decode( cookie, fingerprint );
+            SearchResultDone done = null;
+
+            if ( position != null )
+            {
+                done = doResumablePagedSearch( session, req, ldapResult, sizeLimit, pagedLimit, fingerprint,
+                    position );
+            }
+
+            if ( done == null )
+            {
+                ldapResult.setDiagnosticMessage( "Invalid cookie for this PagedSearch request." );
+                ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+
+                return ( SearchResultDone ) req.getResultResponse();
+            }
+
+            return done;
+        }
+
         if ( Strings.isEmpty( cookie ) )
         {
+            // A resumable search doesn't keep its cursor opened between two pages
+            if ( ( pagedLimit <= sizeLimit ) && ldapServer.isResumablePagedSearch() )
+            {
+                SearchResultDone done = doResumablePagedSearch( session, req, ldapResult, sizeLimit, pagedLimit,
+                    fingerprint, null );
+
+                if ( done != null )
+                {
+                    return done;
+                }
+            }
+
             // No cursor : do a search.
             cursor = session.getCoreSession().search( req );
 
@@ -668,6 +870,20 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
                 return ( SearchResultDone ) req.getResultResponse();
             }
+            else if ( !ldapServer.acquirePagedSearchContext() )
+            {
+                // Too many cursors are opened : try to resume the search from its cookie instead
+                cursor.close();
+                SearchResultDone done = null;
+
+                if ( !ldapServer.isResumablePagedSearch() )
+                {
+                    done = doResumablePagedSearch( session, req, ldapResult, sizeLimit, pagedLimit, fingerprint,
+                        null );
+                }
+
+                return ( done == null ) ? tooManyPagedSearches( req, ldapResult ) : done;
+            }
             else
             {
                 // Case 2 : create the context
@@ -717,18 +933,28 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             else
             {
                 // case 2 : create a new cursor
-                // We have to close the cursor
+                // We have to close the cursor, and remove the previous context
                 cursor = pagedContext.getCursor();
+                removeContext( session, pagedContext );
 
                 if ( cursor != null )
                 {
                     cursor.close();
                 }
 
+                if ( !ldapServer.acquirePagedSearchContext() )
+                {
+                    return tooManyPagedSearches( req, ldapResult );
+                }
+
+                cursor = session.getCoreSession().search( req );
+                cursor.beforeFirst();
+
                 // Now create a new context and stores it into the session
                 pagedContext = new PagedSearchContext( req );
 
                 session.addPagedSearchContext( pagedContext );
+                pagedContext.setCursor( cursor );
 
                 cookie = pagedContext.getCookie();
                 pagedResultsControl = new PagedResultsImpl();
@@ -750,6 +976,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         }
         catch ( Exception e )
         {
+            removeContext( session, pagedContext );
+
             if ( cursor != null )
             {
                 try
@@ -850,14 +1078,15 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      * on the nature of the request with respect to referral handling.  This
      * method will either generate a SearchResponseEntry or a
      * SearchResponseReference depending on if the entry is a referral or if
-     * the ManageDSAITControl has been enabled.
+     * the ManageDSAITControl has been enabled. When the server encodes the entries
+     * directly, a SearchResponseEntry is returned already encoded, in an IoBuffer.
      *
      * @param req the search request
      * @param entry the entry to be handled
      * @return the response for the entry
      * @throws Exception if there are problems in generating the response
      */
-    private Response generateResponse( LdapSession session, SearchRequest req, Entry entry ) throws Exception
+    private Object generateResponse( LdapSession session, SearchRequest req, Entry entry ) throws Exception
     {
         Attribute ref = entry.get( SchemaConstants.REF_AT );
         boolean hasManageDsaItControl = req.getControls().containsKey( ManageDsaIT.OID );
@@ -913,13 +1142,23 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         else
         {
             // The entry is not a referral, or the ManageDsaIt decorator is set
+            boolean passwordHidden = session.getCoreSession().getDirectoryService().isPasswordHidden();
+
+            if ( ldapServer.isDirectEntryEncoding() )
+            {
+                // Don't send the userPassword if the server mandate to do so
+                Attribute password = passwordHidden ? entry.get( SchemaConstants.USER_PASSWORD_AT ) : null;
+
+                return SearchResultEntryEncoder.encode( req.getMessageId(), entry, password );
+            }
+
             SearchResultEntry respEntry;
             respEntry = new SearchResultEntryImpl( req.getMessageId() );
             respEntry.setEntry( entry );
             respEntry.setObjectName( entry.getDn() );
 
             // Filter the userPassword if the server mandate to do so
-            if ( session.getCoreSession().getDirectoryService().isPasswordHidden() )
+            if ( passwordHidden )
             {
                 // Remove the userPassord attribute from the entry.
                 respEntry.getEntry().removeAttributes( SchemaConstants.USER_PASSWORD_AT );
@@ -0,0 +1,167 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.ber.tlv.BerValue;
+import org.apache.directory.api.asn1.ber.tlv.TLV;
+import org.apache.directory.api.asn1.ber.tlv.UniversalTag;
+import org.apache.directory.api.ldap.codec.api.LdapCodecConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.util.Strings;
+import org.apache.mina.core.buffer.IoBuffer;
+
+
+/**
+ * Encodes a SearchResultEntry without controls directly from an entry into a buffer
+ * of the exact PDU size, which is written as is on the session : the codec filter lets
+ * the buffers go through. This avoids building a response message and the codec
+ * intermediate structures for each returned entry. The encoded bytes are the ones the
+ * codec would produce.
+ * <pre>
+ * LDAPMessage ::= SEQUENCE {
+ *     messageID       MessageID,
+ *     protocolOp      SearchResultEntry }
+ *
+ * SearchResultEntry ::= [APPLICATION 4] SEQUENCE {
+ *     objectName      LDAPDN,
+ *     attributes      PartialAttributeList }
+ *
+ * PartialAttributeList ::= SEQUENCE OF partialAttribute PartialAttribute
+ *
+ * PartialAttribute ::= SEQUENCE {
+ *     type       AttributeDescription,
+ *     vals       SET OF value AttributeValue }
+ * </pre>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+final class SearchResultEntryEncoder
+{
+    private SearchResultEntryEncoder()
+    {
+    }
+
+
+    /**
+     * Encodes an entry as a SearchResultEntry.
+     *
+     * @param messageId The ID of the search request
+     * @param entry The entry to encode
+     * @param skipped An attribute of the entry which must not be sent, or null
+     * @return The buffer containing the PDU, ready to be read
+     * @throws EncoderException If the entry can't be encoded
+     */
+    static IoBuffer encode( int messageId, Entry entry, Attribute skipped ) throws EncoderException
+    {
+        int nbAttributes = entry.size();
+        byte[][] types = new byte[nbAttributes][];
+        byte[][][] values = new byte[nbAttributes][][];
+        int[] valuesLengths = new int[nbAttributes];
+        int[] attributeLengths = new int[nbAttributes];
+
+        // First compute the lengths, keeping the bytes to write
+        int attributesLength = 0;
+        int pos = 0;
+
+        for ( Attribute attribute : entry )
+        {
+            if ( attribute == skipped )
+            {
+                continue;
+            }
+
+            byte[] type = Strings.getBytesUtf8( attribute.getUpId() );
+            byte[][] attributeValues = new byte[attribute.size()][];
+            int valuesLength = 0;
+            int nbValues = 0;
+
+            for ( Value value : attribute )
+            {
+                byte[] bytes = value.getBytes();
+
+                if ( bytes == null )
+                {
+                    bytes = Strings.EMPTY_BYTES;
+                }
+
+                attributeValues[nbValues++] = bytes;
+                valuesLength += 1 + TLV.getNbBytes( bytes.length ) + bytes.length;
+            }
+
+            types[pos] = type;
+            values[pos] = attributeValues;
+            valuesLengths[pos] = valuesLength;
+            attributeLengths[pos] = 1 + TLV.getNbBytes( type.length ) + type.length
+                + 1 + TLV.getNbBytes( valuesLength ) + valuesLength;
+            attributesLength += 1 + TLV.getNbBytes( attributeLengths[pos] ) + attributeLengths[pos];
+            pos++;
+        }
+
+        nbAttributes = pos;
+        byte[] dn = Strings.getBytesUtf8( entry.getDn().getName() );
+        int entryLength = 1 + TLV.getNbBytes( dn.length ) + dn.length
+            + 1 + TLV.getNbBytes( attributesLength ) + attributesLength;
+        int messageIdLength = BerValue.getNbBytes( messageId );
+        int messageLength = 1 + TLV.getNbBytes( messageIdLength ) + messageIdLength
+            + 1 + TLV.getNbBytes( entryLength ) + entryLength;
+
+        IoBuffer ioBuffer = IoBuffer.allocate( 1 + TLV.getNbBytes( messageLength ) + messageLength );
+        ByteBuffer buffer = ioBuffer.buf();
+
+        // The LDAPMessage
+        buffer.put( UniversalTag.SEQUENCE.getValue() );
+        buffer.put( TLV.getBytes( messageLength ) );
+        BerValue.encode( buffer, messageId );
+
+        // The SearchResultEntry
+        buffer.put( LdapCodecConstants.SEARCH_RESULT_ENTRY_TAG );
+        buffer.put( TLV.getBytes( entryLength ) );
+        BerValue.encode( buffer, dn );
+
+        // The PartialAttributeList
+        buffer.put( UniversalTag.SEQUENCE.getValue() );
+        buffer.put( TLV.getBytes( attributesLength ) );
+
+        for ( int i = 0; i < nbAttributes; i++ )
+        {
+            buffer.put( UniversalTag.SEQUENCE.getValue() );
+            buffer.put( TLV.getBytes( attributeLengths[i] ) );
+            BerValue.encode( buffer, types[i] );
+
+            buffer.put( UniversalTag.SET.getValue() );
+            buffer.put( TLV.getBytes( valuesLengths[i] ) );
+
+            for ( byte[] value : values[i] )
+            {
+                BerValue.encode( buffer, value );
+            }
+        }
+
+        ioBuffer.flip();
+
+        return ioBuffer;
+    }
+}
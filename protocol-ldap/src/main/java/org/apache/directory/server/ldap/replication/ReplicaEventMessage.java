@@ -21,15 +21,30 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
 /**
- * A place holder storing an Entry and the operation applied on it
+ * A place holder storing an Entry and the operation applied on it.
+ * <p>
+ * A MODIFY also stores the OIDs of the modified attributes, when they are known, so that
+ * it can be sent as a delta : the entry then only contains its DN, entryUUID, entryCSN and
+ * the current values of the modified attributes.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -41,6 +56,12 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The OIDs of the attributes modified by a MODIFY, null if they are not known */
+    private List<String> modifiedAttributes;
+
+    /** Tells if the entry only contains the modified attributes */
+    private boolean delta;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
@@ -61,6 +82,50 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * Create a new ReplicaEvent instance for a Modify operation, keeping the modified attributes
+     * @param changeType The change type
+     * @param entry The modified entry
+     * @param modifications The modifications applied on the entry
+     */
+    public ReplicaEventMessage( ChangeType changeType, Entry entry, List<Modification> modifications )
+    {
+        this( changeType, entry );
+
+        modifiedAttributes = new ArrayList<>( modifications.size() );
+
+        for ( Modification modification : modifications )
+        {
+            AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+            if ( attributeType == null )
+            {
+                // Not schema aware : we can't tell which attributes have been modified
+                modifiedAttributes = null;
+
+                return;
+            }
+
+            if ( !modifiedAttributes.contains( attributeType.getOid() ) )
+            {
+                modifiedAttributes.add( attributeType.getOid() );
+            }
+        }
+    }
+
+
+    /**
+     * Create a new ReplicaEvent instance, read from its serialized form
+     */
+    ReplicaEventMessage( ChangeType changeType, Entry entry, List<String> modifiedAttributes, boolean delta )
+    {
+        this.changeType = changeType;
+        this.entry = entry;
+        this.modifiedAttributes = modifiedAttributes;
+        this.delta = delta;
+    }
+
+
     /**
      * @return The changeType
      */
@@ -79,6 +144,93 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The OIDs of the attributes modified by a MODIFY, or null if they are not known
+     */
+    public List<String> getModifiedAttributes()
+    {
+        return modifiedAttributes;
+    }
+
+
+    /**
+     * @return true if the entry only contains the modified attributes
+     */
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+
+    /**
+     * Creates the delta of a MODIFY : a message which entry only contains the DN, the entryUUID,
+     * the entryCSN and the modified attributes. The message is returned as is if it's not a
+     * MODIFY or if the modified attributes are not known.
+     *
+     * @return The delta of this message
+     */
+    public ReplicaEventMessage toDelta()
+    {
+        if ( ( changeType != ChangeType.MODIFY ) || ( modifiedAttributes == null ) || delta )
+        {
+            return this;
+        }
+
+        Entry deltaEntry = new DefaultEntry( entry.getDn() );
+        deltaEntry.put( entry.get( SchemaConstants.ENTRY_UUID_AT ) );
+        deltaEntry.put( entry.get( SchemaConstants.ENTRY_CSN_AT ) );
+
+        for ( String oid : modifiedAttributes )
+        {
+            Attribute attribute = entry.get( oid );
+
+            if ( attribute != null )
+            {
+                deltaEntry.put( attribute );
+            }
+        }
+
+        return new ReplicaEventMessage( changeType, deltaEntry, modifiedAttributes, true );
+    }
+
+
+    /**
+     * Computes the modifications to apply on a replica for a delta : the modified attributes,
+     * and the entryCSN, are replaced by their values in the entry, an attribute absent from the
+     * entry being removed. Applying them twice has the same result.
+     *
+     * @param schemaManager The SchemaManager
+     * @return The modifications to apply
+     * @throws LdapException If one of the modified attributes is unknown
+     */
+    public List<Modification> getDeltaModifications( SchemaManager schemaManager ) throws LdapException
+    {
+        List<Modification> modifications = new ArrayList<>( modifiedAttributes.size() + 1 );
+        List<String> oids = new ArrayList<>( modifiedAttributes );
+        String csnOid = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_CSN_AT ).getOid();
+
+        if ( !oids.contains( csnOid ) )
+        {
+            oids.add( csnOid );
+        }
+
+        for ( String oid : oids )
+        {
+            AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( oid );
+            Attribute attribute = entry.get( attributeType );
+
+            if ( attribute == null )
+            {
+                attribute = new DefaultAttribute( attributeType );
+            }
+
+            modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, attribute ) );
+        }
+
+        return modifications;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
@@ -26,6 +26,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
@@ -44,6 +46,9 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * <li>byte : EventType</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>int : the number of modified attributes of a MODIFY, -1 if they are not known</li>
+ * <li>String[] : the OIDs of the modified attributes</li>
+ * <li>boolean : true if the entry only contains the modified attributes</li>
  * </ul>
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
@@ -91,6 +96,25 @@ public class ReplicaEventMessageSerializer implements Serializer
             // The entry
             entry.writeExternal( out );
 
+            // The modified attributes
+            List<String> modifiedAttributes = replicaEventMessage.getModifiedAttributes();
+
+            if ( modifiedAttributes == null )
+            {
+                out.writeInt( -1 );
+            }
+            else
+            {
+                out.writeInt( modifiedAttributes.size() );
+
+                for ( String oid : modifiedAttributes )
+                {
+                    out.writeUTF( oid );
+                }
+            }
+
+            out.writeBoolean( replicaEventMessage.isDelta() );
+
             out.flush();
 
             return baos.toByteArray();
@@ -126,8 +150,24 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.readExternal( in );
             entry.setDn( entryDn );
 
+            // The modified attributes
+            int nbModifiedAttributes = in.readInt();
+            List<String> modifiedAttributes = null;
+
+            if ( nbModifiedAttributes >= 0 )
+            {
+                modifiedAttributes = new ArrayList<>( nbModifiedAttributes );
+
+                for ( int i = 0; i < nbModifiedAttributes; i++ )
+                {
+                    modifiedAttributes.add( in.readUTF() );
+                }
+            }
+
+            boolean delta = in.readBoolean();
+
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage = new ReplicaEventMessage( changeType, entry, modifiedAttributes, delta );
         }
         catch ( ClassNotFoundException cnfe )
         {
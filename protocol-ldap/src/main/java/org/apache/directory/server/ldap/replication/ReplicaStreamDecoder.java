@@ -0,0 +1,186 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+
+
+/**
+ * Reads the changes written by a {@link ReplicaStreamEncoder}. A decoder is used for a single
+ * replication stream, and must be given the records in the order they have been received in.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaStreamDecoder
+{
+    /**
+     * A change read from the stream, with its cookie.
+     */
+    public static class Record
+    {
+        /** The change */
+        private final ReplicaEventMessage message;
+
+        /** The cookie, null if there is none */
+        private final byte[] cookie;
+
+
+        Record( ReplicaEventMessage message, byte[] cookie )
+        {
+            this.message = message;
+            this.cookie = cookie;
+        }
+
+
+        /**
+         * @return The change
+         */
+        public ReplicaEventMessage getMessage()
+        {
+            return message;
+        }
+
+
+        /**
+         * @return The cookie sent with the change, or null
+         */
+        public byte[] getCookie()
+        {
+            return cookie;
+        }
+    }
+
+    /** The serializer for the changes */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** The inflater, null if the changes are not compressed */
+    private final Inflater inflater;
+
+    /** The buffer used to inflate the records */
+    private final byte[] window = new byte[8192];
+
+
+    /**
+     * Creates a new instance of ReplicaStreamDecoder.
+     *
+     * @param schemaManager The SchemaManager
+     * @param flags The flags sent to the provider
+     */
+    public ReplicaStreamDecoder( SchemaManager schemaManager, int flags )
+    {
+        serializer = new ReplicaEventMessageSerializer( schemaManager );
+
+        if ( ( flags == 0 ) || ( ( flags & ReplicaStreamEncoder.COMPRESS ) != 0 ) )
+        {
+            inflater = new Inflater();
+        }
+        else
+        {
+            inflater = null;
+        }
+    }
+
+
+    /**
+     * Decodes the value of an IntermediateResponse written by the provider.
+     *
+     * @param value The IntermediateResponse value
+     * @return The changes it contains
+     * @throws IOException If the value is corrupted : the stream can't be decoded anymore
+     */
+    public List<Record> decode( byte[] value ) throws IOException
+    {
+        byte[] data = value;
+
+        if ( inflater != null )
+        {
+            inflater.setInput( value );
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream( value.length * 4 );
+
+            try
+            {
+                int length = inflater.inflate( window );
+
+                while ( length > 0 )
+                {
+                    inflated.write( window, 0, length );
+                    length = inflater.inflate( window );
+                }
+            }
+            catch ( DataFormatException dfe )
+            {
+                throw new IOException( dfe.getMessage(), dfe );
+            }
+
+            data = inflated.toByteArray();
+        }
+
+        List<Record> records = new ArrayList<>( 1 );
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+
+        while ( in.available() > 0 )
+        {
+            byte[] cookie = null;
+            int cookieLength = in.readInt();
+
+            if ( cookieLength >= 0 )
+            {
+                cookie = new byte[cookieLength];
+                in.readFully( cookie );
+            }
+
+            byte[] change = new byte[in.readInt()];
+            in.readFully( change );
+
+            ReplicaEventMessage message = ( ReplicaEventMessage ) serializer.deserialize( change );
+
+            if ( message == null )
+            {
+                throw new IOException( "Cannot deserialize a replicated change" );
+            }
+
+            records.add( new Record( message, cookie ) );
+        }
+
+        return records;
+    }
+
+
+    /**
+     * Releases the resources used by the decompression
+     */
+    public void close()
+    {
+        if ( inflater != null )
+        {
+            inflater.end();
+        }
+    }
+}
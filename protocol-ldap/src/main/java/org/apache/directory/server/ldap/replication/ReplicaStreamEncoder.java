@@ -0,0 +1,226 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.session.IoSession;
+
+
+/**
+ * Writes the replicated changes to a consumer which has requested them in a compact form,
+ * with the {@link #CONTROL_OID} control added to its SyncRepl request. The control value is a
+ * single byte of flags :
+ * <ul>
+ * <li>{@link #COMPRESS} : the changes are compressed</li>
+ * <li>{@link #DELTA} : a MODIFY only contains the modified attributes</li>
+ * </ul>
+ * No flag at all means the changes are only compressed.
+ * <p>
+ * Each change is sent in an IntermediateResponse named {@link #RESPONSE_OID}, instead of a
+ * SearchResultEntry with a SyncState control. Its value is a record with this format :
+ * <ul>
+ * <li>int : the length of the cookie, -1 if there is no cookie</li>
+ * <li>byte[] : the cookie</li>
+ * <li>int : the length of the serialized change</li>
+ * <li>byte[] : the change, serialized by the {@link ReplicaEventMessageSerializer}</li>
+ * </ul>
+ * When compressed, the records are all deflated in the same stream, flushed after each record : the
+ * dictionary built with the previous changes is used for the next ones, which compresses the
+ * similar entries of a replication stream far better than each message on its own. The records
+ * must then be decoded by a single {@link ReplicaStreamDecoder}, in the order they have been
+ * written in.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaStreamEncoder
+{
+    /** The OID of the control requesting the compact replication stream */
+    public static final String CONTROL_OID = "1.3.6.1.4.1.18060.0.0.1.101";
+
+    /** The name of the IntermediateResponses carrying the changes */
+    public static final String RESPONSE_OID = "1.3.6.1.4.1.18060.0.0.1.102";
+
+    /** The flag requesting the changes to be compressed */
+    public static final int COMPRESS = 0x01;
+
+    /** The flag requesting the MODIFY to be sent as deltas */
+    public static final int DELTA = 0x02;
+
+    /** The serializer for the changes */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** Tells if the MODIFY are sent as deltas */
+    private final boolean delta;
+
+    /** The deflater, null if the changes are not compressed */
+    private final Deflater deflater;
+
+    /** The buffer the current record is written into */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    /** The stream on top of the buffer */
+    private final DataOutputStream out;
+
+    /** Tells if the encoder has been closed */
+    private boolean closed;
+
+
+    /**
+     * Creates a new instance of ReplicaStreamEncoder.
+     *
+     * @param schemaManager The SchemaManager
+     * @param flags The flags sent by the consumer
+     */
+    public ReplicaStreamEncoder( SchemaManager schemaManager, int flags )
+    {
+        serializer = new ReplicaEventMessageSerializer( schemaManager );
+
+        if ( flags == 0 )
+        {
+            flags = COMPRESS;
+        }
+
+        delta = ( flags & DELTA ) != 0;
+
+        if ( ( flags & COMPRESS ) != 0 )
+        {
+            deflater = new Deflater( Deflater.DEFAULT_COMPRESSION );
+            out = new DataOutputStream( new DeflaterOutputStream( buffer, deflater, 8192, true ) );
+        }
+        else
+        {
+            deflater = null;
+            out = new DataOutputStream( buffer );
+        }
+    }
+
+
+    /**
+     * Encodes a change in the IntermediateResponse to send to the consumer.
+     *
+     * @param messageId The ID of the consumer's SyncRepl request
+     * @param message The change
+     * @param cookie The cookie to send with the change, if any
+     * @return The IntermediateResponse
+     * @throws IOException If the change can't be serialized
+     */
+    public synchronized IntermediateResponse encode( int messageId, ReplicaEventMessage message, byte[] cookie )
+        throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "The replication stream is closed" );
+        }
+
+        if ( cookie == null )
+        {
+            out.writeInt( -1 );
+        }
+        else
+        {
+            out.writeInt( cookie.length );
+            out.write( cookie );
+        }
+
+        byte[] change = serializer.serialize( delta ? message.toDelta() : message );
+        out.writeInt( change.length );
+        out.write( change );
+
+        // A sync flush : the record can be inflated on its own, without resetting the dictionary
+        out.flush();
+
+        IntermediateResponse response = new IntermediateResponseImpl( messageId );
+        response.setResponseName( RESPONSE_OID );
+        response.setResponseValue( buffer.toByteArray() );
+        buffer.reset();
+
+        return response;
+    }
+
+
+    /**
+     * Encodes a change and writes it to the consumer. The records must reach the consumer in the
+     * order they have been encoded in, so the encoding and the write are done atomically.
+     *
+     * @param ioSession The consumer's session
+     * @param messageId The ID of the consumer's SyncRepl request
+     * @param message The change
+     * @param cookie The cookie to send with the change, if any
+     * @return The future of the write
+     * @throws IOException If the change can't be serialized
+     */
+    public synchronized WriteFuture write( IoSession ioSession, int messageId, ReplicaEventMessage message,
+        byte[] cookie ) throws IOException
+    {
+        return ioSession.write( encode( messageId, message, cookie ) );
+    }
+
+
+    /**
+     * @return true if the MODIFY are sent as deltas
+     */
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+
+    /**
+     * @return true if the changes are compressed
+     */
+    public boolean isCompressed()
+    {
+        return deflater != null;
+    }
+
+
+    /**
+     * Releases the resources used by the compression
+     */
+    public synchronized void close()
+    {
+        closed = true;
+
+        if ( deflater != null )
+        {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "ReplicaStreamEncoder [compressed: " + isCompressed() + ", delta: " + delta + "]";
+    }
+}
@@ -58,6 +58,10 @@ import org.apache.directory.ldap.client.api.NoVerificationTrustManager;
  *   <li>useTls : the connection uses TLS, defaults to true</li>
  *   <li>strictCertVerification : strictly verify the certificate, defaults to true</li>
  *   <li>trustManager : the trustManager to use, defaults to @link{ReplicationTrustManager}</li>
+ *   <li>refreshBatchSize : the number of entries added in a single transaction during an initial refresh, defaults to 1000.
+ *   While the batches are loaded, the searches on the replicated partition don't use its user indices</li>
+ *   <li>compression : the changes are compressed by the provider, defaults to false</li>
+ *   <li>deltaModify : the provider only sends the modified attributes of a modified entry, defaults to false</li>
  *   <li></li>
  * </ul>
  * 
@@ -133,6 +137,18 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** The default number of entries added in a single transaction during an initial refresh */
+    public static final int DEFAULT_REFRESH_BATCH_SIZE = 1000;
+
+    /** the number of entries added in a single transaction during an initial refresh. 1 or less disables the batches */
+    private int refreshBatchSize = DEFAULT_REFRESH_BATCH_SIZE;
+
+    /** flag to indicate if the provider compresses the changes, default is false */
+    private boolean compression = false;
+
+    /** flag to indicate if the provider only sends the modified attributes of a modified entry, default is false */
+    private boolean deltaModify = false;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -580,6 +596,75 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of entries added in a single transaction during an initial refresh
+     */
+    public int getRefreshBatchSize()
+    {
+        return refreshBatchSize;
+    }
+
+
+    /**
+     * Sets the number of entries added in a single transaction during an initial refresh.
+     * The entries are then added without the per-entry checks already done by the provider,
+     * and the user indices are built once the whole content has been received, by batches
+     * of the same size.
+     * <p>
+     * Until the user indices are built, the searches on the replicated partition don't use
+     * them : their filters are evaluated against every entry of the partition, which is slow
+     * on a large partition, but does not miss the entries already loaded.
+     *
+     * @param refreshBatchSize The batch size. 1 or less disables the batches
+     */
+    public void setRefreshBatchSize( int refreshBatchSize )
+    {
+        this.refreshBatchSize = refreshBatchSize;
+    }
+
+
+    /**
+     * @return true if the provider compresses the changes
+     */
+    public boolean isCompression()
+    {
+        return compression;
+    }
+
+
+    /**
+     * Enable/disable the compression of the changes sent by the provider. The provider
+     * must support it, otherwise the changes are sent uncompressed.
+     *
+     * @param compression true if the changes are compressed
+     */
+    public void setCompression( boolean compression )
+    {
+        this.compression = compression;
+    }
+
+
+    /**
+     * @return true if the provider only sends the modified attributes of a modified entry
+     */
+    public boolean isDeltaModify()
+    {
+        return deltaModify;
+    }
+
+
+    /**
+     * Enable/disable the replication of the modified attributes only, instead of the whole
+     * modified entry. The provider must support it, otherwise the whole entry is sent.
+     *
+     * @param deltaModify true if only the modified attributes are sent
+     */
+    public void setDeltaModify( boolean deltaModify )
+    {
+        this.deltaModify = deltaModify;
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -633,6 +718,21 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
             sb.append( "MS, " );
         }
 
+        if ( refreshBatchSize > 1 )
+        {
+            sb.append( "batch:" ).append( refreshBatchSize ).append( ", " );
+        }
+
+        if ( compression )
+        {
+            sb.append( "compressed" ).append( ", " );
+        }
+
+        if ( deltaModify )
+        {
+            sb.append( "delta" ).append( ", " );
+        }
+
         sb.append( "provider:" ).append( producer ).append( ", " );
         sb.append( "user:'" ).append( replUserDn ).append( "', " );
 
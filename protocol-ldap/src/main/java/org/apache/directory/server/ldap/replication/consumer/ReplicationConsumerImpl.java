@@ -20,6 +20,7 @@
 package org.apache.directory.server.ldap.replication.consumer;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -64,7 +65,9 @@ import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaITImpl;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
@@ -80,7 +83,11 @@ import org.apache.directory.ldap.client.api.future.SearchFuture;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.OperationEnum;
 import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.interceptor.Interceptor;
+import org.apache.directory.server.core.api.interceptor.InterceptorChain;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
@@ -90,7 +97,11 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaStreamDecoder;
+import org.apache.directory.server.ldap.replication.ReplicaStreamEncoder;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
@@ -166,6 +177,24 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
     private static final Map<String, Object> UUID_LOCK_MAP = new LRUMap( 1000 );
 
+    /** Tells if the initial content is being loaded by batches */
+    private volatile boolean initialLoad;
+
+    /** Tells if the initial content has not been fully loaded : no cookie is stored until it is */
+    private volatile boolean loadIncomplete;
+
+    /** The session used to add the initial content by batches */
+    private CoreSession loadSession;
+
+    /** The interceptors used to add the initial content */
+    private InterceptorChain loadInterceptors;
+
+    /** The partition which user indices are built once the initial content is loaded */
+    private AbstractBTreePartition loadPartition;
+
+    /** The entries added in the current batch */
+    private List<Entry> batch = new ArrayList<>();
+
 
     /**
      * @return the config
@@ -310,6 +339,8 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     {
         CONSUMER_LOG.debug( "///////////////// handleSearchDone //////////////////" );
 
+        endInitialLoad( true );
+
         SyncDoneValue ctrl = ( SyncDoneValue ) searchDone.getControls().get( SyncDoneValue.OID );
 
         if ( ( ctrl != null ) && ( ctrl.getCookie() != null ) )
@@ -335,13 +366,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
 
     /**
-     * Process a SearchResultEntry received from a consumer. We have to handle all the
-     * cases :
-     * - Add
-     * - Modify
-     * - Moddn
-     * - Delete
-     * - Present
+     * Process a SearchResultEntry received from a consumer, with its SyncState control.
      * @param syncResult
      */
     private void handleSearchResultEntry( SearchResultEntry syncResult )
@@ -353,120 +378,426 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         try
         {
             Entry remoteEntry = new DefaultEntry( schemaManager, syncResult.getEntry() );
-            String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
-            // lock on UUID to serialize the updates when there are multiple consumers
-            // connected to several producers and to the *same* base/partition
-            Object lock = getLockFor( uuid );
 
-            synchronized ( lock )
+            applyChange( remoteEntry, syncStateCtrl.getSyncStateType(), syncStateCtrl.getCookie(), null );
+        }
+        catch ( Exception e )
+        {
+            CONSUMER_LOG.error( e.getMessage(), e );
+        }
+
+        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+    }
+
+
+    /**
+     * Process the changes received in the compact replication stream, the same way as the
+     * SearchResultEntries.
+     *
+     * @param streamDecoder The decoder of the stream
+     * @param response The IntermediateResponse containing the changes
+     * @throws IOException If the stream is corrupted
+     */
+    private void handleReplicaStream( ReplicaStreamDecoder streamDecoder, IntermediateResponse response )
+        throws IOException
+    {
+        for ( ReplicaStreamDecoder.Record record : streamDecoder.decode( response.getResponseValue() ) )
+        {
+            ReplicaEventMessage message = record.getMessage();
+
+            try
             {
-                int rid = -1;
+                applyChange( message.getEntry(), getSyncStateType( message.getChangeType() ), record.getCookie(),
+                    message.isDelta() ? message : null );
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( e.getMessage(), e );
+            }
+        }
+    }
 
-                if ( syncStateCtrl.getCookie() != null )
-                {
-                    syncCookie = syncStateCtrl.getCookie();
-                    rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
-                    CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
-                        Strings.utf8ToString( syncCookie ) );
-                }
 
-                SyncStateTypeEnum state = syncStateCtrl.getSyncStateType();
+    /**
+     * Converts the type of a change received in the compact replication stream
+     */
+    private SyncStateTypeEnum getSyncStateType( ChangeType changeType )
+    {
+        switch ( changeType )
+        {
+            case ADD:
+                return SyncStateTypeEnum.ADD;
 
-                // check to avoid conversion of UUID from byte[] to String
-                if ( CONSUMER_LOG.isDebugEnabled() )
-                {
-                    CONSUMER_LOG.debug( "state name {}", state.name() );
-                    CONSUMER_LOG.debug( "entryUUID = {}", Strings.uuidToString( syncStateCtrl.getEntryUUID() ) );
-                }
+            case MODIFY:
+                return SyncStateTypeEnum.MODIFY;
 
-                Dn remoteDn = remoteEntry.getDn();
+            case MODDN:
+                return SyncStateTypeEnum.MODDN;
 
-                switch ( state )
-                {
-                    case ADD:
-                        boolean remoteDnExist = false;
-
-                        try
-                        {
-                            remoteDnExist = session.exists( remoteDn );
-                        }
-                        catch ( LdapNoSuchObjectException lnsoe )
-                        {
-                            CONSUMER_LOG.error( lnsoe.getMessage() );
-                        }
-
-                        if ( !remoteDnExist )
-                        {
-                            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
-                            CONSUMER_LOG.debug( remoteEntry.toString() );
-                            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
-                            addContext.setReplEvent( true );
-                            addContext.setRid( rid );
-
-                            OperationManager operationManager = directoryService.getOperationManager();
-                            operationManager.add( addContext );
-                        }
-                        else
-                        {
-                            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
-                            modify( remoteEntry, rid );
-                        }
-
-                        break;
-
-                    case MODIFY:
-                        CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+            case DELETE:
+                return SyncStateTypeEnum.DELETE;
+
+            default:
+                throw new IllegalArgumentException( "Unexpected change type " + changeType );
+        }
+    }
+
+
+    /**
+     * Apply a change received from the provider. We have to handle all the
+     * cases :
+     * - Add
+     * - Modify
+     * - Moddn
+     * - Delete
+     * - Present
+     *
+     * @param remoteEntry The entry received from the provider
+     * @param state The kind of change
+     * @param cookie The cookie received with the change, if any
+     * @param delta The change, if it only contains the modified attributes of a MODIFY
+     */
+    private void applyChange( Entry remoteEntry, SyncStateTypeEnum state, byte[] cookie, ReplicaEventMessage delta )
+        throws Exception
+    {
+        String uuid = remoteEntry.get( directoryService.getAtProvider().getEntryUUID() ).getString();
+        // lock on UUID to serialize the updates when there are multiple consumers
+        // connected to several producers and to the *same* base/partition
+        Object lock = getLockFor( uuid );
+
+        synchronized ( lock )
+        {
+            int rid = -1;
+
+            if ( cookie != null )
+            {
+                syncCookie = cookie;
+                rid = LdapProtocolUtils.getReplicaId( Strings.utf8ToString( syncCookie ) );
+                CONSUMER_LOG.debug( "assigning the cookie from sync state value control: {}",
+                    Strings.utf8ToString( syncCookie ) );
+            }
+
+            CONSUMER_LOG.debug( "state name {}", state );
+            CONSUMER_LOG.debug( "entryUUID = {}", uuid );
+
+            Dn remoteDn = remoteEntry.getDn();
+
+            // The changes received after the initial content apply on committed entries
+            if ( initialLoad && ( ( state != SyncStateTypeEnum.ADD ) || ( cookie != null ) ) )
+            {
+                flushBatch();
+            }
+
+            switch ( state )
+            {
+                case ADD:
+                    if ( initialLoad && !exists( remoteDn ) )
+                    {
+                        addInBatch( remoteEntry, rid );
+                    }
+                    else
+                    {
+                        // The update is not part of the batch
+                        flushBatch();
+                        add( remoteEntry, rid );
+                    }
+
+                    break;
+
+                case MODIFY:
+                    CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
+
+                    if ( delta != null )
+                    {
+                        modify( remoteEntry, delta.getDeltaModifications( schemaManager ), rid );
+                    }
+                    else
+                    {
                         modify( remoteEntry, rid );
+                    }
 
-                        break;
+                    break;
 
-                    case MODDN:
-                        String entryUuid = Strings.uuidToString( syncStateCtrl.getEntryUUID() );
-                        applyModDnOperation( remoteEntry, entryUuid, rid );
+                case MODDN:
+                    applyModDnOperation( remoteEntry, uuid, rid );
 
-                        break;
+                    break;
 
-                    case DELETE:
-                        CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
+                case DELETE:
+                    CONSUMER_LOG.debug( "deleting entry with dn {}", remoteEntry.getDn().getName() );
 
-                        if ( !session.exists( remoteDn ) )
-                        {
-                            CONSUMER_LOG
-                                .debug(
-                                    "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
-                                    remoteDn );
-                        }
-                        else
-                        {
-                            // incase of a MODDN operation resulting in a branch to be moved out of scope
-                            // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
-                            // so the branch needs to be recursively deleted here
-                            deleteRecursive( remoteEntry.getDn(), rid );
-                        }
+                    if ( !session.exists( remoteDn ) )
+                    {
+                        CONSUMER_LOG
+                            .debug(
+                                "looks like entry {} was already deleted in a prior update (possibly from another provider), skipping delete",
+                                remoteDn );
+                    }
+                    else
+                    {
+                        // incase of a MODDN operation resulting in a branch to be moved out of scope
+                        // ApacheDS replication provider sends a single delete event on the Dn of the moved branch
+                        // so the branch needs to be recursively deleted here
+                        deleteRecursive( remoteEntry.getDn(), rid );
+                    }
 
-                        break;
+                    break;
 
-                    case PRESENT:
-                        CONSUMER_LOG.debug( "entry present {}", remoteEntry );
-                        break;
+                case PRESENT:
+                    CONSUMER_LOG.debug( "entry present {}", remoteEntry );
+                    break;
 
-                    default:
-                        throw new IllegalArgumentException( "Unexpected sync state " + state );
-                }
+                default:
+                    throw new IllegalArgumentException( "Unexpected sync state " + state );
+            }
+
+            // store the cookie only if the above operation was successful
+            if ( cookie != null )
+            {
+                storeCookie();
+            }
+        }
+    }
+
+
+    /**
+     * Tells if an entry exists locally
+     */
+    private boolean exists( Dn dn ) throws LdapException
+    {
+        try
+        {
+            return session.exists( dn );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            CONSUMER_LOG.error( lnsoe.getMessage() );
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Adds an entry received from the provider, or updates it if it already exists
+     */
+    private void add( Entry remoteEntry, int rid ) throws Exception
+    {
+        Dn remoteDn = remoteEntry.getDn();
+
+        if ( !exists( remoteDn ) )
+        {
+            CONSUMER_LOG.debug( "adding entry with dn {}", remoteDn );
+            CONSUMER_LOG.debug( remoteEntry.toString() );
+            AddOperationContext addContext = new AddOperationContext( session, remoteEntry );
+            addContext.setReplEvent( true );
+            addContext.setRid( rid );
+
+            OperationManager operationManager = directoryService.getOperationManager();
+            operationManager.add( addContext );
+        }
+        else
+        {
+            CONSUMER_LOG.debug( "updating entry in refreshOnly mode {}", remoteDn );
+            modify( remoteEntry, rid );
+        }
+    }
+
+
+    /**
+     * Prepares the initial load of the replicated content, when the consumer has no cookie.
+     * The entries are added in batches, each batch in a single transaction, and without the
+     * checks already done by the provider. The user indices of the partition are built once
+     * the whole content has been received.
+     */
+    private void startInitialLoad() throws LdapException
+    {
+        CONSUMER_LOG.info( "Consumer {} starts an initial load from {}, by batches of {} entries",
+            config.getReplicaId(), config.getProducer(), config.getRefreshBatchSize() );
+
+        // Set first, so that the load is ended, and the user indices built, whatever happens next
+        initialLoad = true;
+        loadIncomplete = true;
+        batch.clear();
+
+        // A dedicated session, so that its transactions only contain the batches
+        loadSession = directoryService.getSession( session.getAuthenticatedPrincipal() );
+
+        Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+        Dn schemaDn = new Dn( schemaManager, SchemaConstants.OU_SCHEMA );
+
+        // The schema checks are still needed if we replicate the schema itself, as it updates the SchemaManager
+        boolean replicatesSchema = baseDn.isDescendantOf( schemaDn ) || schemaDn.isDescendantOf( baseDn );
+        List<Interceptor> interceptors = new ArrayList<>();
 
-                // store the cookie only if the above operation was successful
-                if ( syncStateCtrl.getCookie() != null )
+        for ( String interceptorName : directoryService.getInterceptors( OperationEnum.ADD ) )
+        {
+            if ( InterceptorEnum.EXCEPTION_INTERCEPTOR.getName().equals( interceptorName )
+                || ( !replicatesSchema && InterceptorEnum.SCHEMA_INTERCEPTOR.getName().equals( interceptorName ) ) )
+            {
+                continue;
+            }
+
+            interceptors.add( directoryService.getInterceptor( interceptorName ) );
+        }
+
+        loadInterceptors = new InterceptorChain( interceptors );
+
+        Partition partition = directoryService.getPartitionNexus().getPartition( baseDn );
+
+        if ( partition instanceof AbstractBTreePartition )
+        {
+            loadPartition = ( AbstractBTreePartition ) partition;
+            loadPartition.setUserIndicesDeferred( true );
+        }
+    }
+
+
+    /**
+     * Adds an entry of the initial content in the current batch, and commits the batch when it's full.
+     */
+    private void addInBatch( Entry remoteEntry, int rid ) throws Exception
+    {
+        if ( batch.isEmpty() )
+        {
+            loadSession.beginSessionTransaction();
+        }
+
+        CONSUMER_LOG.debug( "adding entry with dn {} in the current batch", remoteEntry.getDn() );
+        batch.add( remoteEntry );
+
+        AddOperationContext addContext = new AddOperationContext( loadSession, remoteEntry );
+        addContext.setInterceptors( loadInterceptors );
+        addContext.setReplEvent( true );
+        addContext.setRid( rid );
+
+        try
+        {
+            directoryService.getOperationManager().add( addContext );
+        }
+        catch ( LdapException le )
+        {
+            // The batch transaction is gone : add its entries again, one by one, so that only
+            // the faulty entry is rejected
+            CONSUMER_LOG.warn( "Failed to add the entry {} in a batch, adding the {} entries of the batch one by one",
+                remoteEntry.getDn(), batch.size(), le );
+
+            loadSession.endSessionTransaction( false );
+            List<Entry> entries = new ArrayList<>( batch );
+            batch.clear();
+
+            for ( Entry entry : entries )
+            {
+                try
                 {
-                    storeCookie();
+                    add( entry, rid );
+                }
+                catch ( Exception e )
+                {
+                    CONSUMER_LOG.error( e.getMessage(), e );
                 }
             }
+
+            return;
         }
-        catch ( Exception e )
+
+        if ( batch.size() >= config.getRefreshBatchSize() )
         {
-            CONSUMER_LOG.error( e.getMessage(), e );
+            flushBatch();
         }
+    }
 
-        CONSUMER_LOG.debug( "------------- Ending handleSearchResult ------------" );
+
+    /**
+     * Commits the current batch of the initial content, if any
+     */
+    private void flushBatch() throws IOException
+    {
+        if ( batch.isEmpty() )
+        {
+            return;
+        }
+
+        CONSUMER_LOG.debug( "Committing a batch of {} entries", batch.size() );
+
+        try
+        {
+            loadSession.endSessionTransaction( true );
+        }
+        finally
+        {
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Ends the initial load : the last batch is committed, and the user indices are built.
+     * This is done before the first cookie is stored, so that an interrupted load is done
+     * again, indices included. If the load has been interrupted, or if the last batch or the
+     * user indices can't be written, the load is aborted : no cookie is stored, and the
+     * consumer is disconnected, so that the next connection does a full refresh again.
+     *
+     * @param completed If the whole initial content has been received
+     */
+    private void endInitialLoad( boolean completed )
+    {
+        if ( !initialLoad )
+        {
+            return;
+        }
+
+        initialLoad = false;
+        boolean loaded = completed;
+
+        try
+        {
+            flushBatch();
+        }
+        catch ( IOException ioe )
+        {
+            CONSUMER_LOG.error( "Failed to commit the last batch of the initial content", ioe );
+            loaded = false;
+        }
+
+        if ( loadPartition != null )
+        {
+            try
+            {
+                // The searches don't use the user indices until they are built
+                loadPartition.buildUserIndices( config.getRefreshBatchSize() );
+            }
+            catch ( Exception e )
+            {
+                CONSUMER_LOG.error( "Failed to build the user indices of the partition {}", loadPartition.getId(), e );
+                loaded = false;
+            }
+            finally
+            {
+                loadPartition = null;
+            }
+        }
+
+        loadSession = null;
+        loadInterceptors = null;
+
+        if ( !loaded )
+        {
+            CONSUMER_LOG.warn( "Consumer {} has not loaded the whole initial content from {}, "
+                + "it will be loaded again on the next connection", config.getReplicaId(), config.getProducer() );
+
+            if ( !disconnected )
+            {
+                disconnect();
+            }
+
+            return;
+        }
+
+        loadIncomplete = false;
+
+        CONSUMER_LOG.info( "Consumer {} has loaded the initial content from {}", config.getReplicaId(),
+            config.getProducer() );
     }
 
 
@@ -475,6 +806,15 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      */
     private void handleSyncInfo( IntermediateResponse syncInfoResp )
     {
+        // The initial content has been received
+        endInitialLoad( true );
+
+        if ( disconnected )
+        {
+            // The initial load has been aborted
+            return;
+        }
+
         try
         {
             CONSUMER_LOG.debug( "............... inside handleSyncInfo ..............." );
@@ -729,6 +1069,27 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * @return The flags of the compact replication stream to request, 0 if it's not used
+     */
+    private int getStreamFlags()
+    {
+        int flags = 0;
+
+        if ( config.isCompression() )
+        {
+            flags |= ReplicaStreamEncoder.COMPRESS;
+        }
+
+        if ( config.isDeltaModify() )
+        {
+            flags |= ReplicaStreamEncoder.DELTA;
+        }
+
+        return flags;
+    }
+
+
     /**
      * Performs a search on connection with updated syncRequest control. The provider
      * will initiate an UpdateContant or an initContent depending on the current consumer
@@ -767,35 +1128,89 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         searchRequest.addControl( syncReq );
 
-        // Do the search. We use a searchAsync because we want to get SearchResultDone responses
-        SearchFuture sf = connection.searchAsync( searchRequest );
+        // Ask for a compact stream of changes, if configured
+        ReplicaStreamDecoder streamDecoder = null;
+        int streamFlags = getStreamFlags();
 
-        Response resp = sf.get();
+        if ( streamFlags != 0 )
+        {
+            OpaqueControl streamControl = new OpaqueControl( ReplicaStreamEncoder.CONTROL_OID );
+            streamControl.setEncodedValue( new byte[]
+                { ( byte ) streamFlags } );
+            searchRequest.addControl( streamControl );
+            streamDecoder = new ReplicaStreamDecoder( schemaManager, streamFlags );
+        }
+
+        SearchFuture sf;
+        Response resp;
+        boolean completed = false;
 
-        CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
+        // A previous load, if any, has been aborted along with its connection : the
+        // consumer had no cookie to send, and is doing a full refresh again
+        loadIncomplete = false;
 
-        // Now, process the responses. We loop until we have a connection termination or
-        // a SearchResultDone (RefreshOnly mode)
-        while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
+        try
         {
-            if ( resp instanceof SearchResultEntry )
+            // Without a cookie, we get the whole content : load it by batches
+            if ( ( syncCookie == null ) && ( config.getRefreshBatchSize() > 1 ) )
             {
-                SearchResultEntry result = ( SearchResultEntry ) resp;
-
-                handleSearchResultEntry( result );
+                startInitialLoad();
             }
-            else if ( resp instanceof SearchResultReference )
+
+            // Do the search. We use a searchAsync because we want to get SearchResultDone responses
+            sf = connection.searchAsync( searchRequest );
+
+            resp = sf.get();
+
+            CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
+
+            // Now, process the responses. We loop until we have a connection termination or
+            // a SearchResultDone (RefreshOnly mode)
+            while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
             {
-                handleSearchReference( ( SearchResultReference ) resp );
+                if ( resp instanceof SearchResultEntry )
+                {
+                    SearchResultEntry result = ( SearchResultEntry ) resp;
+
+                    handleSearchResultEntry( result );
+                }
+                else if ( resp instanceof SearchResultReference )
+                {
+                    handleSearchReference( ( SearchResultReference ) resp );
+                }
+                else if ( resp instanceof IntermediateResponse )
+                {
+                    IntermediateResponse intermediateResponse = ( IntermediateResponse ) resp;
+
+                    if ( ( streamDecoder != null )
+                        && ReplicaStreamEncoder.RESPONSE_OID.equals( intermediateResponse.getResponseName() ) )
+                    {
+                        handleReplicaStream( streamDecoder, intermediateResponse );
+                    }
+                    else
+                    {
+                        handleSyncInfo( intermediateResponse );
+                    }
+                }
+
+                // Next entry
+                resp = sf.get();
+                CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
             }
-            else if ( resp instanceof IntermediateResponse )
+
+            // The whole content has been received, unless the search has been interrupted or has failed
+            completed = ( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected
+                && ( ( ( SearchResultDone ) resp ).getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS );
+        }
+        finally
+        {
+            // The load may have been interrupted
+            endInitialLoad( completed );
+
+            if ( streamDecoder != null )
             {
-                handleSyncInfo( ( IntermediateResponse ) resp );
+                streamDecoder.close();
             }
-
-            // Next entry
-            resp = sf.get();
-            CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
         }
 
         if ( sf.isCancelled() )
@@ -923,6 +1338,14 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             return;
         }
 
+        if ( loadIncomplete )
+        {
+            // The next connection must load the whole content again
+            CONSUMER_LOG.debug( "The initial content is not fully loaded, the cookie is not stored" );
+
+            return;
+        }
+
         if ( ( lastSavedCookie != null ) && Arrays.equals( syncCookie, lastSavedCookie ) )
         {
             return;
@@ -1208,6 +1631,78 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Applies the modifications of a delta received from the provider : the modified attributes
+     * are replaced, without reading the whole local entry.
+     */
+    private void modify( Entry remoteEntry, List<Modification> deltaModifications, int rid ) throws Exception
+    {
+        if ( config.isMmrMode() )
+        {
+            LookupOperationContext lookupCtx =
+                new LookupOperationContext( session, remoteEntry.getDn(), SchemaConstants.ENTRY_CSN_AT );
+
+            lookupCtx.setSyncreplLookup( true );
+
+            Entry localEntry;
+
+            Partition partition = session.getDirectoryService().getPartitionNexus().getPartition( remoteEntry.getDn() );
+
+            try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
+            {
+                lookupCtx.setTransaction( partitionTxn );
+                localEntry = session.getDirectoryService().getOperationManager().lookup( lookupCtx );
+            }
+
+            Csn localCsn = new Csn( localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+            Csn remoteCsn = new Csn( remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+
+            if ( localCsn.compareTo( remoteCsn ) >= 0 )
+            {
+                // just discard the received modification, that is old
+                CONSUMER_LOG.debug( "local modification is latest, discarding the modification of dn {}",
+                    remoteEntry.getDn() );
+                return;
+            }
+        }
+
+        List<Modification> serverModifications = new ArrayList<>( deltaModifications.size() );
+
+        for ( Modification mod : deltaModifications )
+        {
+            if ( !isIgnored( mod.getAttribute().getAttributeType() ) )
+            {
+                serverModifications.add( mod );
+            }
+        }
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( session, remoteEntry.getDn(),
+            serverModifications );
+        modifyContext.setReplEvent( true );
+        modifyContext.setRid( rid );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+        operationManager.modify( modifyContext );
+    }
+
+
+    /**
+     * Tells if the modifications of an attribute are ignored, as it's managed locally
+     */
+    private boolean isIgnored( AttributeType attributeType ) throws LdapException
+    {
+        for ( String ignored : MOD_IGNORE_AT )
+        {
+            if ( schemaManager.lookupAttributeTypeRegistry( ignored ).equals( attributeType ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Create a new list combining a list and a newly added attribute
      */
@@ -20,20 +20,18 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Removes the replication event logs of the consumers which have been idle for too long, and
+ * deletes the segments of the replication journal which have been received by all the consumers.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -45,6 +43,9 @@ public class ReplicaEventLogJanitor extends Thread
 
     private Map<Integer, ReplicaEventLog> replicaLogMap;
 
+    /** The journal shared by the consumers */
+    private ReplicaJournal journal;
+
     private volatile boolean stop = false;
 
     /** A lock used to wait */
@@ -57,12 +58,13 @@ public class ReplicaEventLogJanitor extends Thread
 
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaJournal journal )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // if the journal has more entries than the lowest threshold count of the logs then 
+        // all the segments before the lowest last sent CSN and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.journal = journal;
         setDaemon( true );
     }
 
@@ -72,97 +74,91 @@ public class ReplicaEventLogJanitor extends Thread
     {
         while ( !stop )
         {
+            long now = directoryService.getTimeProvider().currentIimeMillis();
+
+            // The lowest CSN sent to all the consumers : the changes before it can be purged 
+            String minLastSentCsn = null;
+            long thresholdCount = Long.MAX_VALUE;
+            boolean purge = true;
+
             for ( ReplicaEventLog log : replicaLogMap.values() )
             {
                 synchronized ( log ) // lock the log and clean
                 {
-                    try
-                    {
-                        String lastSentCsn = log.getLastSentCsn();
+                    String lastSentCsn = log.getLastSentCsn();
 
-                        if ( lastSentCsn == null )
-                        {
-                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
-                        }
+                    if ( lastSentCsn == null )
+                    {
+                        LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
+                        purge = false;
 
-                        long now = directoryService.getTimeProvider().currentIimeMillis();
+                        continue;
+                    }
 
-                        long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
+                    long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
 
-                        long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
+                    long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
 
-                        LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
-                            lastUpdatedTime, maxIdleTime );
+                    LOG.debug( "checking log idle time now={} lastUpdatedTime={} maxIdleTime={}", now,
+                        lastUpdatedTime, maxIdleTime );
 
-                        // DO NOT delete those with maxIdleTime <= 0
-                        if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    // DO NOT delete those with maxIdleTime <= 0
+                    if ( ( maxIdleTime > 0 ) && ( now - lastUpdatedTime ) >= maxIdleTime )
+                    {
+                        //max idle time of the event log reached, delete it
+                        removeEventLog( log );
+
+                        // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
+                        // will get called eventually but removeEventLog() will not be called cause by 
+                        // that time this log will not be present in replicaLogMap
+                        // The reason we don't call this method first is to guard against any rename
+                        // operation performed on the log's entry in DiT
+                        try
                         {
-                            //max idle time of the event log reached, delete it
-                            removeEventLog( log );
-
-                            // delete the associated entry from DiT, note that ConsumerLogEntryDeleteListener 
-                            // will get called eventually but removeEventLog() will not be called cause by 
-                            // that time this log will not be present in replicaLogMap
-                            // The reason we don't call this method first is to guard against any rename
-                            // operation performed on the log's entry in DiT
-                            try
-                            {
-                                directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
-                            }
-                            catch ( LdapException e )
-                            {
-                                LOG.warn( "Failed to delete the entry {} of replica event log {}",
-                                    log.getConsumerEntryDn(), log.getName(), e );
-                            }
-
-                            continue;
+                            directoryService.getAdminSession().delete( log.getConsumerEntryDn() );
                         }
-
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
+                        catch ( LdapException e )
                         {
-                            continue;
+                            LOG.warn( "Failed to delete the entry {} of replica event log {}",
+                                log.getConsumerEntryDn(), log.getName(), e );
                         }
 
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
+                        continue;
+                    }
+
+                    if ( ( minLastSentCsn == null ) || ( lastSentCsn.compareTo( minLastSentCsn ) < 0 ) )
+                    {
+                        minLastSentCsn = lastSentCsn;
+                    }
+
+                    thresholdCount = Math.min( thresholdCount, log.getPurgeThresholdCount() );
+                }
+            }
 
-                        long deleteCount = 0;
+            // The consumers registered in the journal during an initial refresh are not in the map yet
+            for ( ReplicaEventLog log : journal.getConsumers() )
+            {
+                if ( !replicaLogMap.containsKey( log.getId() ) )
+                {
+                    purge = false;
+                }
+            }
 
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
+            // Without any consumer, nobody will read the journal
+            boolean noConsumer = replicaLogMap.isEmpty() && journal.getConsumers().isEmpty();
 
-                        while ( cursor.next() )
-                        {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
-                        }
+            if ( noConsumer )
+            {
+                thresholdCount = 0L;
+            }
 
-                        cursor.close();
+            if ( purge && ( noConsumer || ( minLastSentCsn != null ) ) && ( journal.count() >= thresholdCount ) )
+            {
+                LOG.debug( "starting to purge the journal segments older than {} milliseconds", thresholdTime );
 
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
-                    }
-                    catch ( Exception e )
-                    {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
-                    }
-                }
+                long deleteCount = journal.purge( minLastSentCsn, now - thresholdTime );
+
+                LOG.debug( "purged {} messages from the journal", deleteCount );
             }
 
             try
@@ -190,10 +186,9 @@ public class ReplicaEventLogJanitor extends Thread
 
         try
         {
+            // The journal segments are deleted once the other consumers have received them
             replicaEventLog.stop();
 
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
@@ -0,0 +1,751 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The replication journal shared by all the consumers of a provider. Each change is
+ * appended once, with the IDs of the consumers it has to be sent to, so writing a change
+ * costs the same whatever the number of consumers. Each consumer reads the journal with
+ * its own cursor, starting after the last CSN it has received.
+ * <p>
+ * The journal is split in segment files, stored in the replication directory. The changes
+ * are appended to the last segment, which is rolled over when it's full. A segment is
+ * deleted once all the consumers have received all its changes. Each record is stored
+ * following this format :
+ * <ul>
+ * <li>int : the length of the record, excluding this header</li>
+ * <li>int : the CRC32 checksum of the record</li>
+ * <li>UTF : the entryCSN of the change</li>
+ * <li>int : the number of recipients, followed by their replica IDs</li>
+ * <li>byte[] : the ReplicaEventMessage, serialized by the {@link ReplicaEventMessageSerializer}</li>
+ * </ul>
+ * A record which has not been completely written, because the server has crashed, is
+ * removed when the journal is opened.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournal
+{
+    /** The logger */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaJournal.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The prefix of the segment files */
+    public static final String REPLICA_JOURNAL_NAME_PREFIX = "REPL_JOURNAL.";
+
+    /** The default size of a segment file */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024L * 1024L;
+
+    /** The size of a record header : the length and the checksum */
+    private static final int HEADER_SIZE = 8;
+
+    /** The directory containing the segment files */
+    private final File directory;
+
+    /** The size after which a segment is rolled over */
+    private final long segmentSize;
+
+    /** The serializer for the messages */
+    private final ReplicaEventMessageSerializer serializer;
+
+    /** The segments, from the oldest to the current one */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /** The segment the changes are appended to, guarded by the journal lock */
+    private Segment current;
+
+    /** The channel used to append to the current segment, guarded by the journal lock */
+    private FileChannel channel;
+
+    /** The consumers the changes are logged for */
+    private final Map<Integer, ReplicaEventLog> consumers = new ConcurrentHashMap<>();
+
+
+    /**
+     * A segment file. Its size is only updated once a record has been completely
+     * written and forced on disk, so the cursors never read past it.
+     */
+    static final class Segment
+    {
+        /** The segment file */
+        final File file;
+
+        /** The sequence number of the segment */
+        final long sequence;
+
+        /** The size of the written records */
+        volatile long size;
+
+        /** The number of records */
+        volatile int count;
+
+        /** The lowest and the highest CSNs of the records */
+        volatile String minCsn;
+        volatile String maxCsn;
+
+
+        private Segment( File file, long sequence )
+        {
+            this.file = file;
+            this.sequence = sequence;
+        }
+
+
+        private void update( String csn, long recordSize )
+        {
+            if ( ( minCsn == null ) || ( csn.compareTo( minCsn ) < 0 ) )
+            {
+                minCsn = csn;
+            }
+
+            if ( ( maxCsn == null ) || ( csn.compareTo( maxCsn ) > 0 ) )
+            {
+                maxCsn = csn;
+            }
+
+            count++;
+            size += recordSize;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return file.getName() + " [size=" + size + ", count=" + count + ", minCsn=" + minCsn + ", maxCsn="
+                + maxCsn + "]";
+        }
+    }
+
+
+    /**
+     * A record read from a segment : the message is only deserialized when asked for.
+     */
+    static final class Record
+    {
+        /** The entryCSN of the change */
+        final String csn;
+
+        /** The replica IDs of the recipients */
+        final int[] recipients;
+
+        /** The serialized message */
+        private final byte[] data;
+
+        /** The position of the serialized message */
+        private final int offset;
+
+
+        private Record( String csn, int[] recipients, byte[] data, int offset )
+        {
+            this.csn = csn;
+            this.recipients = recipients;
+            this.data = data;
+            this.offset = offset;
+        }
+
+
+        /**
+         * Tells if the change has to be sent to a given consumer
+         *
+         * @param replicaId The consumer's replica ID
+         * @return <code>true</code> if the consumer is one of the recipients
+         */
+        boolean isFor( int replicaId )
+        {
+            for ( int recipient : recipients )
+            {
+                if ( recipient == replicaId )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+
+        /**
+         * @return The size of the record in the segment, including its header
+         */
+        long size()
+        {
+            return HEADER_SIZE + ( long ) data.length;
+        }
+
+
+        ReplicaEventMessage getMessage( ReplicaEventMessageSerializer serializer ) throws IOException
+        {
+            byte[] bytes = new byte[data.length - offset];
+            System.arraycopy( data, offset, bytes, 0, bytes.length );
+
+            return ( ReplicaEventMessage ) serializer.deserialize( bytes );
+        }
+    }
+
+
+    /**
+     * Opens the journal stored in a directory, creating it if needed, using segments
+     * of the default size.
+     *
+     * @param schemaManager The SchemaManager
+     * @param directory The replication directory
+     * @throws IOException If the journal can't be opened
+     */
+    public ReplicaJournal( SchemaManager schemaManager, File directory ) throws IOException
+    {
+        this( schemaManager, directory, DEFAULT_SEGMENT_SIZE );
+    }
+
+
+    /**
+     * Opens the journal stored in a directory, creating it if needed.
+     *
+     * @param schemaManager The SchemaManager
+     * @param directory The replication directory
+     * @param segmentSize The size after which a segment is rolled over
+     * @throws IOException If the journal can't be opened
+     */
+    public ReplicaJournal( SchemaManager schemaManager, File directory, long segmentSize ) throws IOException
+    {
+        if ( segmentSize <= HEADER_SIZE )
+        {
+            throw new IllegalArgumentException( "Invalid journal segment size " + segmentSize );
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serializer = new ReplicaEventMessageSerializer( schemaManager );
+
+        long lastSequence = 0L;
+
+        for ( Segment segment : loadSegments() )
+        {
+            if ( segment.count == 0 )
+            {
+                delete( segment );
+            }
+            else
+            {
+                segments.add( segment );
+            }
+
+            lastSequence = segment.sequence;
+        }
+
+        // Always append to a new segment, the existing ones are never written again
+        roll( lastSequence + 1 );
+
+        PROVIDER_LOG.debug( "Opened the replication journal {}", this );
+    }
+
+
+    /**
+     * Reads the existing segment files, removing the partially written records.
+     */
+    private List<Segment> loadSegments() throws IOException
+    {
+        List<Segment> loaded = new ArrayList<>();
+        File[] files = directory.listFiles( ( dir, name ) -> name.startsWith( REPLICA_JOURNAL_NAME_PREFIX ) );
+
+        if ( files == null )
+        {
+            return loaded;
+        }
+
+        for ( File file : files )
+        {
+            try
+            {
+                long sequence = Long.parseLong( file.getName().substring( REPLICA_JOURNAL_NAME_PREFIX.length() ) );
+                loaded.add( new Segment( file, sequence ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                LOG.warn( "Ignoring the file {}, it's not a replication journal segment", file );
+            }
+        }
+
+        Collections.sort( loaded, Comparator.comparingLong( segment -> segment.sequence ) );
+
+        for ( Segment segment : loaded )
+        {
+            try ( FileChannel segmentChannel = FileChannel.open( segment.file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE ) )
+            {
+                long position = 0L;
+                Record record;
+
+                while ( ( record = read( segmentChannel, position, segmentChannel.size() ) ) != null )
+                {
+                    segment.update( record.csn, record.size() );
+                    position += record.size();
+                }
+
+                if ( position < segmentChannel.size() )
+                {
+                    PROVIDER_LOG.warn( "Removing the {} bytes partially written at the end of the journal segment {}",
+                        segmentChannel.size() - position, segment.file );
+                    segmentChannel.truncate( position );
+                    segmentChannel.force( true );
+                }
+            }
+        }
+
+        return loaded;
+    }
+
+
+    /**
+     * Reads the record stored at a given position.
+     *
+     * @return The record, or null if there is no complete record at this position
+     */
+    static Record read( FileChannel segmentChannel, long position, long limit ) throws IOException
+    {
+        if ( position + HEADER_SIZE > limit )
+        {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        readFully( segmentChannel, header, position );
+        header.flip();
+
+        int length = header.getInt();
+        int checksum = header.getInt();
+
+        if ( ( length <= 0 ) || ( position + HEADER_SIZE + length > limit ) )
+        {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+        readFully( segmentChannel, buffer, position + HEADER_SIZE );
+        byte[] data = buffer.array();
+
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, length );
+
+        if ( ( int ) crc.getValue() != checksum )
+        {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+        String csn = in.readUTF();
+        int[] recipients = new int[in.readInt()];
+
+        for ( int i = 0; i < recipients.length; i++ )
+        {
+            recipients[i] = in.readInt();
+        }
+
+        return new Record( csn, recipients, data, length - in.available() );
+    }
+
+
+    private static void readFully( FileChannel segmentChannel, ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            if ( segmentChannel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new IOException( "Unexpected end of the replication journal segment" );
+            }
+        }
+    }
+
+
+    /**
+     * Starts logging the changes for a consumer.
+     *
+     * @param consumer The consumer's event log
+     */
+    public void register( ReplicaEventLog consumer )
+    {
+        consumers.put( consumer.getId(), consumer );
+    }
+
+
+    /**
+     * Stops logging the changes for a consumer. The changes already logged are kept
+     * until their segment is purged.
+     *
+     * @param consumer The consumer's event log
+     */
+    public void unregister( ReplicaEventLog consumer )
+    {
+        consumers.remove( consumer.getId(), consumer );
+    }
+
+
+    /**
+     * @return The consumers the changes are logged for
+     */
+    public Collection<ReplicaEventLog> getConsumers()
+    {
+        return consumers.values();
+    }
+
+
+    /**
+     * Appends a change to the journal. The record is on disk when this method returns.
+     *
+     * @param message The change
+     * @param recipients The replica IDs of the consumers the change has to be sent to
+     * @throws IOException If the change can't be written
+     */
+    public synchronized void append( ReplicaEventMessage message, int... recipients ) throws IOException
+    {
+        if ( recipients.length == 0 )
+        {
+            return;
+        }
+
+        if ( channel == null )
+        {
+            throw new IOException( "The replication journal is closed" );
+        }
+
+        String csn;
+
+        try
+        {
+            csn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        }
+        catch ( LdapInvalidAttributeValueException e )
+        {
+            throw new IOException( e.getMessage(), e );
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( baos );
+        out.writeUTF( csn );
+        out.writeInt( recipients.length );
+
+        for ( int recipient : recipients )
+        {
+            out.writeInt( recipient );
+        }
+
+        out.write( serializer.serialize( message ) );
+        out.flush();
+
+        byte[] data = baos.toByteArray();
+        long recordSize = HEADER_SIZE + data.length;
+
+        if ( ( current.count > 0 ) && ( current.size + recordSize > segmentSize ) )
+        {
+            roll( current.sequence + 1 );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, data.length );
+
+        ByteBuffer buffer = ByteBuffer.allocate( ( int ) recordSize );
+        buffer.putInt( data.length );
+        buffer.putInt( ( int ) crc.getValue() );
+        buffer.put( data );
+        buffer.flip();
+
+        long position = current.size;
+
+        while ( buffer.hasRemaining() )
+        {
+            position += channel.write( buffer, position );
+        }
+
+        channel.force( false );
+        current.update( csn, recordSize );
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "logged entry with Dn {} with the event {} for the replicas {}", message.getEntry().getDn(),
+                message.getChangeType(), Arrays.toString( recipients ) );
+        }
+    }
+
+
+    /**
+     * Closes the current segment, and starts a new one.
+     */
+    private void roll( long sequence ) throws IOException
+    {
+        if ( channel != null )
+        {
+            channel.close();
+        }
+
+        File file = new File( directory, REPLICA_JOURNAL_NAME_PREFIX + sequence );
+        channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING );
+        current = new Segment( file, sequence );
+        segments.add( current );
+
+        PROVIDER_LOG.debug( "Started the replication journal segment {}", file );
+    }
+
+
+    /**
+     * Creates a cursor on the changes to send to a consumer. The cursor sees the changes
+     * appended while it's read.
+     * <p>
+     * The CSNs are allocated when the operations start, and the changes are appended when
+     * they are done, so the journal is not ordered by CSN : a change with a lower CSN than
+     * the consumer's one may have been appended after it. The cursor thus resumes right
+     * after the record of the consumer's CSN, and returns all the following changes,
+     * whatever their CSN. Only when this record can't be found, because the consumer's CSN
+     * comes from an initial refresh or its segment has been purged, are the changes
+     * selected by comparing their CSN to the consumer's one.
+     *
+     * @param replicaId The consumer's replica ID
+     * @param consumerCsn The last CSN received by the consumer, or null to read all the changes
+     * @return A cursor on the changes the consumer has not received
+     */
+    public ReplicaJournalCursor cursor( int replicaId, String consumerCsn )
+    {
+        List<Segment> selected = new ArrayList<>( segments );
+
+        if ( consumerCsn == null )
+        {
+            return new ReplicaJournalCursor( selected, serializer, replicaId, null, 0L );
+        }
+
+        // Look for the record of the consumer's CSN, starting from the most recent segments
+        for ( int i = selected.size() - 1; i >= 0; i-- )
+        {
+            Segment segment = selected.get( i );
+            String minCsn = segment.minCsn;
+            String maxCsn = segment.maxCsn;
+
+            if ( ( minCsn == null ) || ( maxCsn == null ) || ( minCsn.compareTo( consumerCsn ) > 0 )
+                || ( maxCsn.compareTo( consumerCsn ) < 0 ) )
+            {
+                continue;
+            }
+
+            long position = locate( segment, replicaId, consumerCsn );
+
+            if ( position >= 0L )
+            {
+                LOG.debug( "Resuming the replica {} after the CSN {} in the segment {}", replicaId, consumerCsn,
+                    segment );
+
+                return new ReplicaJournalCursor( new ArrayList<>( selected.subList( i, selected.size() ) ),
+                    serializer, replicaId, null, position );
+            }
+        }
+
+        LOG.debug( "The CSN {} of the replica {} is not in the journal, selecting the changes by CSN", consumerCsn,
+            replicaId );
+        Segment last = getCurrent();
+        Iterator<Segment> iterator = selected.iterator();
+
+        while ( iterator.hasNext() )
+        {
+            Segment segment = iterator.next();
+
+            // The current segment may still receive newer changes
+            if ( ( segment != last ) && ( segment.maxCsn != null ) && ( segment.maxCsn.compareTo( consumerCsn ) <= 0 ) )
+            {
+                iterator.remove();
+            }
+        }
+
+        return new ReplicaJournalCursor( selected, serializer, replicaId, consumerCsn, 0L );
+    }
+
+
+    /**
+     * Finds the record of a change sent to a consumer in a segment.
+     *
+     * @return The position following the record, or -1 if the segment does not contain it
+     */
+    private long locate( Segment segment, int replicaId, String csn )
+    {
+        try ( FileChannel segmentChannel = FileChannel.open( segment.file.toPath(), StandardOpenOption.READ ) )
+        {
+            long position = 0L;
+            long limit = segment.size;
+            Record record;
+
+            while ( ( record = read( segmentChannel, position, limit ) ) != null )
+            {
+                position += record.size();
+
+                if ( record.csn.equals( csn ) && record.isFor( replicaId ) )
+                {
+                    return position;
+                }
+            }
+        }
+        catch ( IOException ioe )
+        {
+            // The segment may have been purged
+            LOG.debug( "Cannot read the journal segment {}", segment, ioe );
+        }
+
+        return -1L;
+    }
+
+
+    private synchronized Segment getCurrent()
+    {
+        return current;
+    }
+
+
+    /**
+     * Deletes the segments containing only changes which have been received by all the
+     * consumers, and which are old enough. The current segment is never deleted.
+     *
+     * @param lastSentCsn The lowest last sent CSN of the consumers, or null if there is no consumer
+     * @param maxTimestamp The timestamp of the most recent change which can be deleted
+     * @return The number of deleted records
+     */
+    public synchronized long purge( String lastSentCsn, long maxTimestamp )
+    {
+        long deleted = 0L;
+
+        for ( Segment segment : segments )
+        {
+            // Keep the segments ordered : stop at the first one which can't be deleted
+            if ( ( segment == current )
+                || ( ( lastSentCsn != null ) && ( segment.maxCsn.compareTo( lastSentCsn ) > 0 ) )
+                || ( new Csn( segment.maxCsn ).getTimestamp() > maxTimestamp ) )
+            {
+                break;
+            }
+
+            segments.remove( segment );
+            delete( segment );
+            deleted += segment.count;
+        }
+
+        return deleted;
+    }
+
+
+    private void delete( Segment segment )
+    {
+        // A cursor still reading the segment keeps it open, and skips it if it's already gone
+        if ( segment.file.delete() )
+        {
+            PROVIDER_LOG.debug( "Deleted the replication journal segment {}", segment );
+        }
+        else
+        {
+            PROVIDER_LOG.warn( "Failed to delete the replication journal segment {}", segment.file );
+        }
+    }
+
+
+    /**
+     * @return The number of changes in the journal
+     */
+    public long count()
+    {
+        long count = 0L;
+
+        for ( Segment segment : segments )
+        {
+            count += segment.count;
+        }
+
+        return count;
+    }
+
+
+    /**
+     * @return The number of segment files
+     */
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+
+    /**
+     * Closes the journal. The current segment is deleted if it's empty.
+     *
+     * @throws IOException If the current segment can't be closed
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( channel == null )
+        {
+            return;
+        }
+
+        channel.close();
+        channel = null;
+
+        if ( current.count == 0 )
+        {
+            segments.remove( current );
+            delete( current );
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "ReplicaJournal [directory=" + directory + ", segments=" + segments + "]";
+    }
+}
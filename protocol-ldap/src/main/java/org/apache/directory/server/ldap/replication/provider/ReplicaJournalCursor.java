@@ -22,25 +22,27 @@ package org.apache.directory.server.ldap.replication.provider;
 
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.api.partition.PartitionTxn;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.apache.directory.server.ldap.replication.provider.ReplicaJournal.Record;
+import org.apache.directory.server.ldap.replication.provider.ReplicaJournal.Segment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of the replication journal, returning the changes a consumer
+ * has not received yet. The journal is never modified by the cursor.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -55,45 +57,54 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** the journal segments to read */
+    private List<Segment> segments;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the serializer for the messages */
+    private ReplicaEventMessageSerializer serializer;
 
-    /** the consumer's CSN based on which messages will be qualified for sending */
+    /** the consumer's replica ID */
+    private int replicaId;
+
+    /** the consumer's CSN based on which messages will be qualified for sending, if the cursor
+     * does not start after the consumer's last change */
     private String consumerCsn;
 
     private ReplicaEventMessage qualifiedEvtMsg;
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
-    
-    /** The partition transaction */
-    private PartitionTxn partitionTxn;
-    
+    /** the position of the segment being read */
+    private int segmentIndex;
+
+    /** the channel on the segment being read */
+    private FileChannel segmentChannel;
+
+    /** the position of the next record in the segment */
+    private long position;
 
 
     /**
-     * Creates a cursor on top of the given journal
+     * Creates a cursor on top of the given journal segments
      * 
-     * @param partitionTxn The Transaction to use
-     * @param journal the log journal
-     * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception If the cursor creation failed
+     * @param segments the journal segments to read, from the oldest one
+     * @param serializer the serializer for the messages
+     * @param replicaId the consumer's replica ID
+     * @param consumerCsn the consumer's CSN taken from cookie, or null if all the read changes
+     * have to be sent
+     * @param position the position of the first record to read in the first segment
      */
-    public ReplicaJournalCursor( PartitionTxn partitionTxn, JdbmTable<String, ReplicaEventMessage> journal, 
-            String consumerCsn ) throws Exception
+    ReplicaJournalCursor( List<Segment> segments, ReplicaEventMessageSerializer serializer, int replicaId,
+        String consumerCsn, long position )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating ReplicaJournalCursor {}", this );
         }
 
-        this.journal = journal;
-        this.tupleCursor = journal.cursor();
+        this.segments = segments;
+        this.serializer = serializer;
+        this.replicaId = replicaId;
         this.consumerCsn = consumerCsn;
-        this.partitionTxn = partitionTxn;
+        this.position = position;
     }
 
 
@@ -160,29 +171,20 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * selects the current queue entry if qualified for sending to the consumer
-     * 
-     * @throws Exception
+     * selects the current journal record if qualified for sending to the consumer. The CSN
+     * is only checked when the cursor hasn't been positioned after the consumer's last
+     * change, as the journal is not ordered by CSN.
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private boolean isQualified( Record record )
     {
-        LOG.debug( "ReplicaEventMessage: {}", evtMsg );
-
-        if ( evtMsg.isEventOlderThan( consumerCsn ) )
+        if ( !record.isFor( replicaId ) )
         {
-            if ( LOG.isDebugEnabled() )
-            {
-                String evt = "MODDN"; // take this as default cause the event type for MODDN is null
-
-                ChangeType changeType = evtMsg.getChangeType();
-
-                if ( changeType != null )
-                {
-                    evt = changeType.name();
-                }
+            return false;
+        }
 
-                LOG.debug( "event {} for dn {} is not qualified for sending", evt, evtMsg.getEntry().getDn() );
-            }
+        if ( ( consumerCsn != null ) && ( record.csn.compareTo( consumerCsn ) <= 0 ) )
+        {
+            LOG.debug( "event with CSN {} is not qualified for sending", record.csn );
 
             return false;
         }
@@ -205,31 +207,52 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        try
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
+            while ( segmentIndex < segments.size() )
+            {
+                Segment segment = segments.get( segmentIndex );
 
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
+                if ( segmentChannel == null )
+                {
+                    try
+                    {
+                        segmentChannel = FileChannel.open( segment.file.toPath(), StandardOpenOption.READ );
+                    }
+                    catch ( NoSuchFileException nsfe )
+                    {
+                        // The segment has been purged : it contained nothing to send
+                        LOG.debug( "The journal segment {} has been deleted", segment );
+                        nextSegment();
+
+                        continue;
+                    }
+                }
 
-            if ( skipQualifying )
-            {
-                qualifiedEvtMsg = message;
-                return true;
-            }
+                Record record = ReplicaJournal.read( segmentChannel, position, segment.size );
 
-            boolean qualified = isQualified( csn, message );
+                if ( record == null )
+                {
+                    nextSegment();
 
-            if ( qualified )
-            {
-                qualifiedEvtMsg = message;
-                return true;
-            }
-            else
-            {
-                journal.remove( partitionTxn, csn );
+                    continue;
+                }
+
+                position += record.size();
+
+                if ( isQualified( record ) )
+                {
+                    qualifiedEvtMsg = record.getMessage( serializer );
+                    LOG.debug( "ReplicaEventMessage: {}", qualifiedEvtMsg );
+
+                    return true;
+                }
             }
         }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe.getMessage(), ioe );
+        }
 
         qualifiedEvtMsg = null;
 
@@ -237,6 +260,22 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     }
 
 
+    /**
+     * Closes the segment being read, and moves to the next one
+     */
+    private void nextSegment() throws IOException
+    {
+        if ( segmentChannel != null )
+        {
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+
+        segmentIndex++;
+        position = 0L;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -257,7 +296,7 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        closeSegment();
         super.close();
     }
 
@@ -273,36 +312,17 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
+        closeSegment();
         super.close( cause );
     }
 
 
-    /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
-     */
-    protected void skipQualifyingWhileFetching()
+    private void closeSegment() throws IOException
     {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
-    {
-        try
-        {
-            if ( qualifiedEvtMsg != null )
-            {
-                journal.remove( partitionTxn, qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            }
-        }
-        catch ( Exception e )
+        if ( segmentChannel != null )
         {
+            segmentChannel.close();
+            segmentChannel = null;
         }
     }
 
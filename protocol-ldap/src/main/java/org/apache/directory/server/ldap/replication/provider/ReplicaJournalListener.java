@@ -0,0 +1,346 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.apache.directory.api.ldap.model.message.SearchScope.OBJECT;
+import static org.apache.directory.api.ldap.model.message.SearchScope.ONELEVEL;
+import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.apache.directory.server.core.api.event.Evaluator;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The listener logging the changes in the {@link ReplicaJournal}. It's registered once
+ * for the whole DIT, and selects the consumers each change has to be sent to, using
+ * their search criteria : the change is then written once, whatever the number of
+ * consumers.
+ * <p>
+ * A change is not sent back to the consumer it has been received from, when MMR is used.
+ * An entry moved out of the base of a consumer is sent to it as a deleted entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalListener implements DirectoryListener
+{
+    /** Logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ReplicaJournalListener.class );
+
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The journal shared by the consumers */
+    private final ReplicaJournal journal;
+
+    /** The evaluator for the consumers filters */
+    private final Evaluator evaluator;
+
+
+    /**
+     * Creates a new instance of ReplicaJournalListener
+     *
+     * @param journal The journal shared by the consumers
+     * @param schemaManager The SchemaManager
+     */
+    public ReplicaJournalListener( ReplicaJournal journal, SchemaManager schemaManager )
+    {
+        this.journal = journal;
+        this.evaluator = new ExpressionEvaluator( schemaManager );
+    }
+
+
+    /**
+     * Creates the criteria this listener has to be registered with : all the changes
+     * on the whole DIT.
+     *
+     * @param schemaManager The SchemaManager
+     * @return The notification criteria
+     */
+    public static NotificationCriteria createCriteria( SchemaManager schemaManager )
+    {
+        NotificationCriteria criteria = new NotificationCriteria( schemaManager );
+        criteria.setBase( Dn.ROOT_DSE );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+        return criteria;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSynchronous()
+    {
+        // The change must be logged before the operation returns
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryAdded( AddOperationContext addContext )
+    {
+        Entry entry = addContext.getEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( entry ) )
+        {
+            log( addContext, entry, null, new ReplicaEventMessage( ChangeType.ADD, entry ), null );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryDeleted( DeleteOperationContext deleteContext )
+    {
+        Entry entry = deleteContext.getEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( entry ) )
+        {
+            Entry deletedEntry = ( ( ClonedServerEntry ) entry ).getClonedEntry();
+            log( deleteContext, entry, null, new ReplicaEventMessage( ChangeType.DELETE, deletedEntry ), null );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryModified( ModifyOperationContext modifyContext )
+    {
+        Entry alteredEntry = modifyContext.getAlteredEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( alteredEntry ) )
+        {
+            log( modifyContext, modifyContext.getEntry(), null,
+                new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry, modifyContext.getModItems() ), null );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryMoved( MoveOperationContext moveContext )
+    {
+        Entry entry = moveContext.getModifiedEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( entry ) )
+        {
+            log( moveContext, moveContext.getOriginalEntry(), moveContext.getNewSuperior(),
+                new ReplicaEventMessage( ChangeType.MODDN, entry ),
+                new ReplicaEventMessage( ChangeType.DELETE, moveContext.getOriginalEntry() ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+    {
+        Entry entry = moveAndRenameContext.getModifiedEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( entry ) )
+        {
+            log( moveAndRenameContext, moveAndRenameContext.getOriginalEntry(),
+                moveAndRenameContext.getNewSuperiorDn(), new ReplicaEventMessage( ChangeType.MODDN, entry ),
+                new ReplicaEventMessage( ChangeType.DELETE, entry ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryRenamed( RenameOperationContext renameContext )
+    {
+        Entry entry = renameContext.getModifiedEntry();
+
+        if ( !SyncReplSearchListener.isConfigEntry( entry ) )
+        {
+            Entry originalEntry = ( ( ClonedServerEntry ) renameContext.getEntry() ).getOriginalEntry();
+            log( renameContext, originalEntry, null, new ReplicaEventMessage( ChangeType.MODDN, entry ), null );
+        }
+    }
+
+
+    /**
+     * Selects the consumers a change has to be sent to, and logs it once for all of them.
+     *
+     * @param ctx The operation context
+     * @param originalEntry The entry before the change, checked against the consumers filters
+     * @param newSuperior The new parent of a moved entry, null for the other operations
+     * @param message The change to log
+     * @param deleteMessage The change to log for the consumers the entry is moved away from
+     */
+    private void log( AbstractChangeOperationContext ctx, Entry originalEntry, Dn newSuperior,
+        ReplicaEventMessage message, ReplicaEventMessage deleteMessage )
+    {
+        if ( ctx.isGenerateNoReplEvt() )
+        {
+            return;
+        }
+
+        int[] recipients = new int[journal.getConsumers().size()];
+        int nbRecipients = 0;
+        int[] deleteRecipients = new int[recipients.length];
+        int nbDeleteRecipients = 0;
+
+        for ( ReplicaEventLog consumer : journal.getConsumers() )
+        {
+            NotificationCriteria criteria = consumer.getSearchCriteria();
+
+            if ( !isSelected( criteria, ctx.getDn(), originalEntry ) || isMmrConfiguredToReceiver( ctx, consumer ) )
+            {
+                continue;
+            }
+
+            // The consumers may have been registered while we were looping on them
+            if ( nbRecipients + nbDeleteRecipients == recipients.length )
+            {
+                break;
+            }
+
+            if ( ( newSuperior != null ) && !newSuperior.isDescendantOf( criteria.getBase() ) )
+            {
+                deleteRecipients[nbDeleteRecipients++] = consumer.getId();
+            }
+            else
+            {
+                recipients[nbRecipients++] = consumer.getId();
+            }
+        }
+
+        try
+        {
+            if ( nbRecipients > 0 )
+            {
+                journal.append( message, Arrays.copyOf( recipients, nbRecipients ) );
+            }
+
+            if ( nbDeleteRecipients > 0 )
+            {
+                journal.append( deleteMessage, Arrays.copyOf( deleteRecipients, nbDeleteRecipients ) );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to insert the entry into syncrepl log", ioe );
+            PROVIDER_LOG.error( "Failed to insert the entry into syncrepl log", ioe );
+        }
+    }
+
+
+    /**
+     * Tells if a change is selected by a consumer's criteria, the same way the
+     * EventInterceptor selects the listeners.
+     */
+    private boolean isSelected( NotificationCriteria criteria, Dn name, Entry entry )
+    {
+        if ( ( criteria == null ) || ( criteria.getBase() == null ) )
+        {
+            return false;
+        }
+
+        Dn base = criteria.getBase();
+        SearchScope scope = criteria.getScope();
+
+        boolean inscope =
+            ( ( ( scope == OBJECT ) && name.equals( base ) )
+            || ( ( scope == ONELEVEL ) && name.getParent().equals( base ) )
+            || ( ( scope == SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) ) );
+
+        try
+        {
+            return inscope && evaluator.evaluate( criteria.getFilter(), base, entry );
+        }
+        catch ( LdapException le )
+        {
+            LOG.warn( "Failed to evaluate the filter {} on the entry {}", criteria.getFilter(), name, le );
+
+            return false;
+        }
+    }
+
+
+    /**
+     * checks if the sender of this replication event is the consumer itself, with MMR
+     * (Note: this method is used to prevent sending a replicated event back to the sender after
+     *  performing local update)
+     */
+    private boolean isMmrConfiguredToReceiver( AbstractChangeOperationContext ctx, ReplicaEventLog consumer )
+    {
+        if ( ctx.isReplEvent() && ( ctx.getRid() == consumer.getId() ) )
+        {
+            LOG.debug( "RID in operation context matches with the ID of replication event log {} for host {}",
+                consumer.getName(), consumer.getHostName() );
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return "ReplicaJournalListener [" + journal + "]";
+    }
+}
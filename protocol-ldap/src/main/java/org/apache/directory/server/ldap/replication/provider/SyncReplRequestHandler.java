@@ -29,10 +29,8 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -65,6 +63,7 @@ import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.LdapResult;
 import org.apache.directory.api.ldap.model.message.ReferralImpl;
 import org.apache.directory.api.ldap.model.message.Response;
@@ -78,6 +77,7 @@ import org.apache.directory.api.ldap.model.message.SearchResultReferenceImpl;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.message.controls.SortRequestImpl;
@@ -103,6 +103,8 @@ import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaStreamEncoder;
+import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -117,6 +119,12 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /** A logger for the replication provider */
     private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
 
+    /**
+     * The number of entries of the initial content written before waiting for the previous
+     * batch to be sent, so that the content is streamed without being all queued in memory
+     */
+    private static final int INITIAL_REFRESH_BATCH_SIZE = 1000;
+
     /** Tells if the replication handler is already started */
     private boolean initialized = false;
 
@@ -144,6 +152,12 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private ReplicaEventLogJanitor logJanitor;
 
+    /** The replication journal shared by the consumers */
+    private ReplicaJournal journal;
+
+    /** The listener logging the changes in the journal */
+    private ReplicaJournalListener journalListener;
+
     private AttributeType replLogMaxIdleAT;
 
     private AttributeType replLogPurgeThresholdCountAT;
@@ -199,14 +213,21 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 throw new IOException( I18n.err( I18n.ERR_112_COULD_NOT_CREATE_DIRECTORY, syncReplData ) );
             }
 
+            // Open the journal shared by all the consumers
+            journal = new ReplicaJournal( dirService.getSchemaManager(), syncReplData );
+
             // Create the replication manager
             replicaUtil = new ReplConsumerManager( dirService );
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, journal );
             logJanitor.start();
 
+            journalListener = new ReplicaJournalListener( journal, dirService.getSchemaManager() );
+            dirService.getEventService().addListener( journalListener,
+                ReplicaJournalListener.createCriteria( dirService.getSchemaManager() ) );
+
             registerPersistentSearches();
 
             cledListener = new ConsumerLogEntryChangeListener();
@@ -252,6 +273,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         EventService evtSrv = dirService.getEventService();
 
         evtSrv.removeListener( cledListener );
+        evtSrv.removeListener( journalListener );
         //first set the 'stop' flag
         logJanitor.stopCleaning();
         //then interrupt the janitor
@@ -274,6 +296,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             }
         }
 
+        try
+        {
+            journal.close();
+        }
+        catch ( IOException e )
+        {
+            PROVIDER_LOG.error( "Failed to close the replication journal", e );
+        }
+
         // flush the dirty repos
         storeReplicaInfo();
 
@@ -290,6 +321,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     public void handleSyncRequest( LdapSession session, SearchRequest request ) throws LdapException
     {
         PROVIDER_LOG.debug( "Received a Syncrepl request : {} from {}", request, session );
+        ReplicaStreamEncoder streamEncoder = null;
+
         try
         {
             if ( !request.getAttributes().contains( SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES ) )
@@ -305,12 +338,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             // cookie is in the format <replicaId>;<Csn value>
             byte[] cookieBytes = syncControl.getCookie();
 
+            // The consumer may have requested the changes in a compact form
+            streamEncoder = createStreamEncoder( request );
+
             if ( cookieBytes == null )
             {
                 PROVIDER_LOG.debug( "Received a replication request with no cookie" );
                 // No cookie ? We have to get all the entries from the provider
                 // This is an initiate Content Poll action (RFC 4533, 3.3.1)
-                doInitialRefresh( session, request );
+                doInitialRefresh( session, request, streamEncoder );
             }
             else
             {
@@ -336,10 +372,17 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                             cookieString );
                         sendESyncRefreshRequired( session, request );
                     }
+                    else if ( clientMsgLog.isRefreshRequired() )
+                    {
+                        PROVIDER_LOG.info(
+                            "the changes for the replica {} were logged by a previous version, it has to refresh",
+                            clientMsgLog.getId() );
+                        sendESyncRefreshRequired( session, request );
+                    }
                     else
                     {
                         String consumerCsn = LdapProtocolUtils.getCsn( cookieString );
-                        doContentUpdate( session, request, clientMsgLog, consumerCsn );
+                        doContentUpdate( session, request, clientMsgLog, consumerCsn, streamEncoder );
                     }
                 }
             }
@@ -350,6 +393,37 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             throw new LdapException( e.getMessage(), e );
         }
+        finally
+        {
+            // In refreshAndPersist mode, the encoder is kept by the persistent listener
+            if ( ( streamEncoder != null ) && !isRefreshNPersist( request ) )
+            {
+                streamEncoder.close();
+            }
+        }
+    }
+
+
+    /**
+     * Creates the encoder of the changes if the consumer has requested a compact replication
+     * stream, with the {@link ReplicaStreamEncoder#CONTROL_OID} control.
+     */
+    private ReplicaStreamEncoder createStreamEncoder( SearchRequest request )
+    {
+        Control control = request.getControl( ReplicaStreamEncoder.CONTROL_OID );
+
+        if ( !( control instanceof OpaqueControl ) )
+        {
+            return null;
+        }
+
+        byte[] value = ( ( OpaqueControl ) control ).getEncodedValue();
+        int flags = Strings.isEmpty( value ) ? 0 : value[0];
+
+        ReplicaStreamEncoder streamEncoder = new ReplicaStreamEncoder( dirService.getSchemaManager(), flags );
+        PROVIDER_LOG.debug( "The changes are sent with the {}", streamEncoder );
+
+        return streamEncoder;
     }
 
 
@@ -357,7 +431,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * Send all the stored modifications to the consumer
      */
     private void sendContentFromLog( LdapSession session, SearchRequest req, ReplicaEventLog clientMsgLog,
-        String fromCsn )
+        String fromCsn, ReplicaStreamEncoder streamEncoder )
         throws Exception
     {
         // do the search from the log
@@ -375,7 +449,13 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 Entry entry = replicaEventMessage.getEntry();
                 PROVIDER_LOG.debug( "Read message from the queue {}", entry );
 
-                lastSentCsn = entry.get( csnAT ).getString();
+                // The journal is in the order of the changes, which may differ from the order of the CSNs
+                String csn = entry.get( csnAT ).getString();
+
+                if ( ( lastSentCsn == null ) || ( csn.compareTo( lastSentCsn ) > 0 ) )
+                {
+                    lastSentCsn = csn;
+                }
 
                 ChangeType changeType = replicaEventMessage.getChangeType();
 
@@ -403,7 +483,14 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         throw new IllegalStateException( I18n.err( I18n.ERR_686 ) );
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                if ( streamEncoder != null )
+                {
+                    streamEncoder.write( session.getIoSession(), req.getMessageId(), replicaEventMessage, null );
+                }
+                else
+                {
+                    sendSearchResultEntry( session, req, entry, syncStateType, null );
+                }
 
                 clientMsgLog.setLastSentCsn( lastSentCsn );
 
@@ -424,8 +511,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * process the update of the consumer, starting from the given LastEntryCSN the consumer
      * has sent with the sync request.
      */
-    private void doContentUpdate( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog, String consumerCsn )
-        throws Exception
+    private void doContentUpdate( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog, String consumerCsn,
+        ReplicaStreamEncoder streamEncoder ) throws Exception
     {
         synchronized ( replicaLog )
         {
@@ -439,9 +526,10 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 SyncReplSearchListener handler = replicaLog.getPersistentListener();
                 handler.setSearchRequest( req );
                 handler.setSession( session );
+                handler.setStreamEncoder( streamEncoder );
             }
 
-            sendContentFromLog( session, req, replicaLog, consumerCsn );
+            sendContentFromLog( session, req, replicaLog, consumerCsn, streamEncoder );
 
             String lastSentCsn = replicaLog.getLastSentCsn();
 
@@ -480,7 +568,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /**
      * Process the initial refresh : we will send all the entries
      */
-    private void doInitialRefresh( LdapSession session, SearchRequest request ) throws Exception
+    private void doInitialRefresh( LdapSession session, SearchRequest request, ReplicaStreamEncoder streamEncoder )
+        throws Exception
     {
         PROVIDER_LOG.debug( "Starting an initial refresh" );
 
@@ -523,12 +612,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         // first register a ReplicaEventLog before starting the initial content refresh
         // this is to log all the operations happen on DIT during initial content refresh
-        ReplicaEventLog replicaLog = null;
-        
-        try ( PartitionTxn partitionTxn = partition.beginReadTransaction() )
-        {
-            replicaLog = createReplicaEventLog( partitionTxn, hostName, originalFilter );
-        }
+        ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
         Value contexCsnValue = new Value( dirService.getAtProvider().getEntryCSN(), contextCsn );
@@ -547,6 +631,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         SyncReplSearchListener replicationListener = new SyncReplSearchListener( session, request, replicaLog, false );
         replicaLog.setPersistentListener( replicationListener );
 
+        if ( refreshNPersist )
+        {
+            replicationListener.setStreamEncoder( streamEncoder );
+        }
+
         // compose notification criteria and add the listener to the event
         // service using that notification criteria to determine which events
         // are to be delivered to the persistent search issuing client
@@ -559,6 +648,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         replicaLog.setSearchCriteria( criteria );
 
+        journal.register( replicaLog );
         dirService.getEventService().addListener( replicationListener, criteria );
 
         // then start pushing initial content
@@ -569,7 +659,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         request.setFilter( initialContentFilter );
 
         // Now, do a search to get all the entries
-        SearchResultDone searchDoneResp = doSimpleSearch( session, request, replicaLog );
+        SearchResultDone searchDoneResp = doSimpleSearch( session, request, replicaLog, streamEncoder );
 
         if ( searchDoneResp.getLdapResult().getResultCode() == ResultCodeEnum.SUCCESS )
         {
@@ -583,7 +673,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG
                     .debug( "Refresh&Persist requested : send the data being modified since the initial refresh" );
                 // Now, send the modified entries since the search has started
-                sendContentFromLog( session, request, replicaLog, contextCsn );
+                sendContentFromLog( session, request, replicaLog, contextCsn, streamEncoder );
 
                 byte[] cookie = LdapProtocolUtils.createCookie( replicaLog.getId(), replicaLog.getLastSentCsn() );
 
@@ -642,8 +732,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * Process a search on the provider to get all the modified entries. We then send all
      * of them to the consumer
      */
-    private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog )
-        throws Exception
+    private SearchResultDone doSimpleSearch( LdapSession session, SearchRequest req, ReplicaEventLog replicaLog,
+        ReplicaStreamEncoder streamEncoder ) throws Exception
     {
         PROVIDER_LOG.debug( "Simple Search {} for {}", req, session );
         SearchResultDone searchDoneResp = ( SearchResultDone ) req.getResultResponse();
@@ -675,7 +765,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 serverLimit );
             long sizeLimit = min( requestLimit, serverLimit );
 
-            readResults( session, req, ldapResult, cursor, sizeLimit, replicaLog );
+            readResults( session, req, ldapResult, cursor, sizeLimit, replicaLog, streamEncoder );
         }
         finally
         {
@@ -702,10 +792,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      * Process the results get from a search request. We will send them to the client.
      */
     private void readResults( LdapSession session, SearchRequest req, LdapResult ldapResult,
-        Cursor<Entry> cursor, long sizeLimit, ReplicaEventLog replicaLog ) throws Exception
+        Cursor<Entry> cursor, long sizeLimit, ReplicaEventLog replicaLog, ReplicaStreamEncoder streamEncoder )
+        throws Exception
     {
         long count = 0;
 
+        // The last write of the previous batch, and of the current one
+        WriteFuture previousBatchWrite = null;
+        WriteFuture lastWrite = null;
+
         while ( ( count < sizeLimit ) && cursor.next() )
         {
             // Handle closed session
@@ -726,12 +821,24 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             Entry entry = cursor.get();
 
-            sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD );
+            lastWrite = sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD, streamEncoder );
 
             String lastSentCsn = entry.get( csnAT ).getString();
             replicaLog.setLastSentCsn( lastSentCsn );
 
             count++;
+
+            // Keep at most two batches in the session's write queue : the one being sent,
+            // and the one being read from the partition
+            if ( count % INITIAL_REFRESH_BATCH_SIZE == 0 )
+            {
+                if ( previousBatchWrite != null )
+                {
+                    previousBatchWrite.awaitUninterruptibly();
+                }
+
+                previousBatchWrite = lastWrite;
+            }
         }
 
         PROVIDER_LOG.debug( "Sent {} entries for {}", count, replicaLog );
@@ -753,11 +860,19 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     /**
      * Prepare and send a search result entry response, with the associated
-     * SyncState control.
+     * SyncState control, or the added entry in the compact stream if the consumer
+     * has requested it.
      */
-    private void sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
-        SyncStateTypeEnum syncStateType ) throws Exception
+    private WriteFuture sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
+        SyncStateTypeEnum syncStateType, ReplicaStreamEncoder streamEncoder ) throws Exception
     {
+        if ( ( streamEncoder != null ) && ( syncStateType == SyncStateTypeEnum.ADD )
+            && ( ( entry.get( SchemaConstants.REF_AT ) == null ) || req.getControls().containsKey( ManageDsaIT.OID ) ) )
+        {
+            return streamEncoder.write( session.getIoSession(), req.getMessageId(),
+                new ReplicaEventMessage( ChangeType.ADD, entry ), null );
+        }
+
         Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
 
         // Create the SyncState control
@@ -776,7 +891,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         resp.addControl( syncStateControl );
 
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
-        session.getIoSession().write( resp );
+
+        return session.getIoSession().write( resp );
     }
 
 
@@ -1017,8 +1133,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     {
         try
         {
-            List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs();
-            Set<String> eventLogNames = new HashSet<>();
+            List<ReplicaEventLog> eventLogs = replicaUtil.getReplicaEventLogs( journal );
 
             if ( !eventLogs.isEmpty() )
             {
@@ -1026,7 +1141,6 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 {
                     PROVIDER_LOG.debug( "initializing the replica log from {}", replica.getId() );
                     replicaLogMap.put( replica.getId(), replica );
-                    eventLogNames.add( replica.getName() );
 
                     // update the replicaCount's value to assign a correct value to the new replica(s)
                     if ( replicaCount.get() < replica.getId() )
@@ -1040,10 +1154,20 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "no replica logs found to initialize" );
             }
 
-            // remove unused logs
+            // The consumers are now sharing the journal. The changes still pending in the logs of
+            // the previous versions are not moved to the journal : their consumers have to refresh
             for ( File f : getAllReplJournalNames() )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
+                ReplicaEventLog replica = replicaLogMap.get( getLegacyReplicaId( f ) );
+
+                if ( replica != null )
+                {
+                    replica.addLegacyFile( f );
+                    PROVIDER_LOG.info(
+                        "the replica {} has an event log {} of a previous version, it will have to refresh",
+                        replica.getId(), f );
+                }
+                else
                 {
                     f.delete();
                     PROVIDER_LOG.info( "removed unused replication event log {}", f );
@@ -1071,6 +1195,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "registering persistent search for the replica {}", log.getId() );
                 SyncReplSearchListener handler = new SyncReplSearchListener( null, null, log, false );
                 log.setPersistentListener( handler );
+                journal.register( log );
 
                 dirService.getEventService().addListener( handler, log.getSearchCriteria() );
             }
@@ -1133,13 +1258,13 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     /**
      * Create a new ReplicaEventLog. Each replica will have a unique ID, created by the provider.
      */
-    private ReplicaEventLog createReplicaEventLog( PartitionTxn partitionTxn, String hostName, String filter ) throws Exception
+    private ReplicaEventLog createReplicaEventLog( String hostName, String filter )
     {
         int replicaId = replicaCount.incrementAndGet();
 
         PROVIDER_LOG.debug( "creating a new event log for the replica with id {}", replicaId );
 
-        ReplicaEventLog replicaLog = new ReplicaEventLog( partitionTxn, dirService, replicaId );
+        ReplicaEventLog replicaLog = new ReplicaEventLog( journal, dirService, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
 
@@ -1187,6 +1312,33 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         return replDir.listFiles( filter );
     }
 
+    /**
+     * Extracts the replica ID from the name of an event log file of a previous version,
+     * like REPL_EVENT_LOG.3.db
+     *
+     * @return The replica ID, or -1 if the name is not valid
+     */
+    private int getLegacyReplicaId( File file )
+    {
+        String name = file.getName().substring( ReplicaEventLog.REPLICA_EVENT_LOG_NAME_PREFIX.length() );
+        int pos = name.indexOf( '.' );
+
+        if ( pos >= 0 )
+        {
+            name = name.substring( 0, pos );
+        }
+
+        try
+        {
+            return Integer.parseInt( name );
+        }
+        catch ( NumberFormatException nfe )
+        {
+            return -1;
+        }
+    }
+
+
     /**
      * an event listener for handling deletions and updates of replication event log entries present under ou=consumers,ou=system
      */
@@ -20,11 +20,16 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.io.IOException;
+import java.util.List;
+
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValueImpl;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
@@ -49,6 +54,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaStreamEncoder;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,9 +62,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A listener associated with the replication system. It does send the modifications to the 
- * consumer, if it's connected, or store the data into a queue for a later transmission.
+ * consumer, if it's connected.
  * 
- * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery
+ * Note: the modifications are always logged in the shared {@link ReplicaJournal} by the
+ * {@link ReplicaJournalListener}, irrespective of the client's connection status, for guaranteed delivery
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -78,6 +85,9 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
     /** The consumer configuration */
     private final ReplicaEventLog consumerMsgLog;
+
+    /** The encoder of the changes, if the consumer has requested a compact stream */
+    private volatile ReplicaStreamEncoder streamEncoder;
     
     private static String replConsumerConfigDn = Strings.toLowerCaseAscii( ServerDNConstants.REPL_CONSUMER_CONFIG_DN );
     private static String schemaDn = Strings.toLowerCaseAscii( SchemaConstants.OU_SCHEMA );
@@ -127,6 +137,33 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     }
 
 
+    /**
+     * Store the encoder to use to send the changes to the consumer. The previous one, if any,
+     * is released.
+     *
+     * @param streamEncoder The encoder, or null if the changes are sent as SearchResultEntries
+     */
+    public void setStreamEncoder( ReplicaStreamEncoder streamEncoder )
+    {
+        ReplicaStreamEncoder previous = this.streamEncoder;
+        this.streamEncoder = streamEncoder;
+
+        if ( ( previous != null ) && ( previous != streamEncoder ) )
+        {
+            previous.close();
+        }
+    }
+
+
+    /**
+     * @return The encoder used to send the changes to the consumer, or null
+     */
+    public ReplicaStreamEncoder getStreamEncoder()
+    {
+        return streamEncoder;
+    }
+
+
     @Override
     public boolean isSynchronous()
     {
@@ -149,6 +186,8 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
                 session.getCoreSession().getDirectoryService().getEventService().removeListener( this );
             }
 
+            setStreamEncoder( null );
+
             /*
              * From RFC 2251 Section 4.11:
              * 
@@ -192,16 +231,87 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
         SyncStateValue syncStateValue )
     {
-        searchResultEntry.addControl( syncStateValue );
+        sendResult( searchResultEntry, entry, eventType, syncStateValue, null );
+    }
 
+
+    /**
+     * Send the result to the consumer, in the compact stream if it has requested it. The
+     * modifications of a MODIFY are used to send only the modified attributes.
+     */
+    private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType,
+        SyncStateValue syncStateValue, List<Modification> modifications )
+    {
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
-        WriteFuture future = session.getIoSession().write( searchResultEntry );
+        WriteFuture future;
+        ReplicaStreamEncoder encoder = streamEncoder;
+
+        if ( encoder == null )
+        {
+            searchResultEntry.addControl( syncStateValue );
+            future = session.getIoSession().write( searchResultEntry );
+        }
+        else
+        {
+            try
+            {
+                future = encoder.write( session.getIoSession(), searchRequest.getMessageId(),
+                    createMessage( syncStateValue.getSyncStateType(), entry, modifications ),
+                    syncStateValue.getCookie() );
+            }
+            catch ( IOException ioe )
+            {
+                LOG.error( "Failed to encode the event {} on entry {} for the consumer {}", eventType,
+                    entry.getDn(), consumerMsgLog.getId(), ioe );
+
+                // The consumer will get the change from the journal when it reconnects
+                pushInRealTime = false;
+
+                return;
+            }
+        }
 
         // Now, send the entry to the consumer
         handleWriteFuture( future, entry, eventType );
     }
     
 
+    /**
+     * Create the change to write in the compact stream
+     */
+    private ReplicaEventMessage createMessage( SyncStateTypeEnum syncStateType, Entry entry,
+        List<Modification> modifications )
+    {
+        switch ( syncStateType )
+        {
+            case ADD:
+                return new ReplicaEventMessage( ChangeType.ADD, entry );
+
+            case MODIFY:
+                if ( modifications != null )
+                {
+                    return new ReplicaEventMessage( ChangeType.MODIFY, entry, modifications );
+                }
+
+                return new ReplicaEventMessage( ChangeType.MODIFY, entry );
+
+            case MODDN:
+                return new ReplicaEventMessage( ChangeType.MODDN, entry );
+
+            case DELETE:
+                // The consumer only needs the DN of a deleted entry
+                Entry deletedEntry = new DefaultEntry( entry.getDn() );
+                deletedEntry.put( entry.get( SchemaConstants.ENTRY_UUID_AT ) );
+                deletedEntry.put( entry.get( SchemaConstants.ENTRY_CSN_AT ) );
+
+                return new ReplicaEventMessage( ChangeType.DELETE, deletedEntry );
+
+            default:
+                throw new IllegalStateException( I18n.err( I18n.ERR_686 ) );
+        }
+    }
+
+
     /**
      * Process a ADD operation. The added entry is pushed to the consumer if it's connected,
      * or stored in the consumer's queue if it's not.
@@ -219,10 +329,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "ADD Listener : log " + entry.getDn() );
-            // we log it first
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry ) );
-
             // We send the added entry directly to the consumer if it's connected
             if ( pushInRealTime )
             {
@@ -271,9 +377,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     {
         try
         {
-            //System.out.println( "DELETE Listener : log " + entry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -310,9 +413,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
-            
             if ( pushInRealTime )
             {
 
@@ -322,7 +422,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
                 SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, alteredEntry );
 
-                sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
+                sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify, modifyContext.getModItems() );
             }
         }
         catch ( Exception e )
@@ -356,9 +456,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
                 return;
             }
 
-            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -402,10 +499,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             }
 
 
-            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
-            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -443,9 +536,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         try
         {
             // should always send the original entry cause the consumer perform the modDn operation there
-            //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -538,7 +628,7 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
      * @param entry the entry
      * @return true if the entry belongs to ou=config partition, false otherwise
      */
-    private boolean isConfigEntry( Entry entry )
+    static boolean isConfigEntry( Entry entry )
     {
         // we can do Dn.isDescendantOf but in this part of the
         // server the DNs are all normalized and a simple string compare should
@@ -0,0 +1,206 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequestImpl;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the executor running the requests of a session in order.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutorTest
+{
+    private LdapRequestExecutor executor;
+
+
+    @AfterEach
+    public void shutdown()
+    {
+        if ( executor != null )
+        {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * A received message, running a task instead of the filter chain
+     */
+    private static IoEvent event( IoSession session, Object message, final Runnable task )
+    {
+        return new IoEvent( IoEventType.MESSAGE_RECEIVED, session, message )
+        {
+            @Override
+            public void fire()
+            {
+                task.run();
+            }
+        };
+    }
+
+
+    @Test
+    public void testSessionOrder() throws Exception
+    {
+        executor = new LdapRequestExecutor( "test", 16, 1 );
+        IoSession session = new DummySession();
+        final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+        final CountDownLatch done = new CountDownLatch( 100 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            final int number = i;
+
+            executor.execute( event( session, "request" + i, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    order.add( number );
+                    done.countDown();
+                }
+            } ) );
+        }
+
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( i, order.get( i ).intValue() );
+        }
+    }
+
+
+    @Test
+    public void testAbandonIsNotQueued() throws Exception
+    {
+        executor = new LdapRequestExecutor( "test", 16, 1 );
+        IoSession session = new DummySession();
+        final CountDownLatch abandoned = new CountDownLatch( 1 );
+        final CountDownLatch searchDone = new CountDownLatch( 1 );
+
+        // The search waits for the abandon request of the same session
+        executor.execute( event( session, "search", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if ( abandoned.await( 10, TimeUnit.SECONDS ) )
+                    {
+                        searchDone.countDown();
+                    }
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } ) );
+
+        executor.execute( event( session, new AbandonRequestImpl( 1 ), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                abandoned.countDown();
+            }
+        } ) );
+
+        assertTrue( searchDone.await( 10, TimeUnit.SECONDS ) );
+    }
+
+
+    @Test
+    public void testQueuedRequests() throws Exception
+    {
+        executor = new LdapRequestExecutor( "test", 2, 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final CountDownLatch started = new CountDownLatch( 2 );
+        final CountDownLatch done = new CountDownLatch( 5 );
+
+        Runnable slow = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+
+                try
+                {
+                    release.await( 10, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                done.countDown();
+            }
+        };
+
+        Runnable fast = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        };
+
+        // Two slow requests on two sessions use all the threads
+        IoSession session1 = new DummySession();
+        IoSession session2 = new DummySession();
+        executor.execute( event( session1, "slow1", slow ) );
+        executor.execute( event( session2, "slow2", slow ) );
+        assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+
+        // The next request of session1 waits for the previous one, the request of
+        // session3 waits for a thread
+        executor.execute( event( session1, "fast1", fast ) );
+        executor.execute( event( session1, "fast2", fast ) );
+        executor.execute( event( new DummySession(), "fast3", fast ) );
+
+        assertEquals( 2, executor.getActiveRequests() );
+        assertEquals( 3, executor.getQueuedRequests() );
+
+        release.countDown();
+        assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.server.ldap.handlers.LdapRequestScheduler.Statistics;
+import org.apache.directory.server.ldap.handlers.LdapRequestScheduler.Ticket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the admission and the ordering of the requests by the LdapRequestScheduler.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestSchedulerTest
+{
+    /** The threads sending the waiting requests */
+    private ExecutorService clients;
+
+
+    @BeforeEach
+    public void createClients()
+    {
+        clients = Executors.newCachedThreadPool();
+    }
+
+
+    @AfterEach
+    public void shutdownClients() throws Exception
+    {
+        clients.shutdownNow();
+        clients.awaitTermination( 10, TimeUnit.SECONDS );
+    }
+
+
+    /**
+     * Sends a request from another thread, once the previous ones are waiting. The
+     * request records its client in the handled list when it is admitted.
+     */
+    private Future<Ticket> send( LdapRequestScheduler scheduler, String identity, List<String> handled )
+        throws Exception
+    {
+        int queued = scheduler.getQueuedRequests();
+
+        Future<Ticket> future = clients.submit( () ->
+        {
+            Ticket ticket = scheduler.admit( identity, "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+
+            if ( ticket.isAdmitted() )
+            {
+                handled.add( identity );
+                scheduler.release( ticket );
+            }
+
+            return ticket;
+        } );
+
+        // Wait for the request to be queued, or rejected
+        long end = System.currentTimeMillis() + 10000L;
+
+        while ( ( scheduler.getQueuedRequests() == queued ) && !future.isDone()
+            && ( System.currentTimeMillis() < end ) )
+        {
+            Thread.sleep( 1L );
+        }
+
+        return future;
+    }
+
+
+    /**
+     * Test that a client can't send more requests than its rate
+     */
+    @Test
+    public void testRateLimit() throws Exception
+    {
+        LdapRequestScheduler scheduler = new LdapRequestScheduler( 4 );
+        scheduler.setRateLimit( 0.001d, 2 );
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            Ticket ticket = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+            assertTrue( ticket.isAdmitted() );
+            scheduler.release( ticket );
+        }
+
+        Ticket rejected = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+        assertFalse( rejected.isAdmitted() );
+        assertEquals( ResultCodeEnum.BUSY, rejected.getResultCode() );
+
+        // The other clients and operations have their own bucket
+        Ticket other = scheduler.admit( "", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+        assertTrue( other.isAdmitted() );
+        scheduler.release( other );
+
+        Ticket compare = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.COMPARE_REQUEST );
+        assertTrue( compare.isAdmitted() );
+        scheduler.release( compare );
+
+        Statistics statistics = scheduler.getStatistics().get( "uid=admin,ou=system|127.0.0.1|SEARCH_REQUEST" );
+        assertEquals( 2L, statistics.getHandled() );
+        assertEquals( 1L, statistics.getRejected() );
+        assertEquals( 0, statistics.getActive() );
+    }
+
+
+    /**
+     * Test that the requests are rejected when the queues are full, or when they have
+     * waited too long
+     */
+    @Test
+    public void testQueueThresholds() throws Exception
+    {
+        LdapRequestScheduler scheduler = new LdapRequestScheduler( 1 );
+        scheduler.setMaxQueuedRequestsPerClass( 1 );
+        scheduler.setMaxQueuedRequests( 2 );
+        List<String> handled = Collections.synchronizedList( new ArrayList<String>() );
+
+        Ticket running = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+        assertTrue( running.isAdmitted() );
+
+        Future<Ticket> a1 = send( scheduler, "a", handled );
+        Future<Ticket> a2 = send( scheduler, "a", handled );
+        Future<Ticket> b1 = send( scheduler, "b", handled );
+        Future<Ticket> c1 = send( scheduler, "c", handled );
+
+        assertEquals( ResultCodeEnum.BUSY, a2.get().getResultCode() );
+        assertEquals( ResultCodeEnum.UNWILLING_TO_PERFORM, c1.get().getResultCode() );
+        assertEquals( 2, scheduler.getQueuedRequests() );
+        assertEquals( 1, scheduler.getStatistics().get( "a|127.0.0.1|SEARCH_REQUEST" ).getQueued() );
+
+        scheduler.release( running );
+
+        assertTrue( a1.get().isAdmitted() );
+        assertTrue( b1.get().isAdmitted() );
+        assertEquals( 0, scheduler.getActiveRequests() );
+
+        // A request waiting too long is rejected
+        scheduler.setMaxWaitMillis( 50L );
+        running = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+        Ticket timedOut = send( scheduler, "a", handled ).get();
+
+        assertFalse( timedOut.isAdmitted() );
+        assertEquals( ResultCodeEnum.BUSY, timedOut.getResultCode() );
+        assertEquals( 0, scheduler.getQueuedRequests() );
+
+        scheduler.release( running );
+    }
+
+
+    /**
+     * Test that a client sending many requests does not delay the others
+     */
+    @Test
+    public void testFairness() throws Exception
+    {
+        LdapRequestScheduler scheduler = new LdapRequestScheduler( 1 );
+        List<String> handled = Collections.synchronizedList( new ArrayList<String>() );
+        List<Future<Ticket>> futures = new ArrayList<>();
+
+        Ticket running = scheduler.admit( "uid=admin,ou=system", "127.0.0.1", MessageTypeEnum.SEARCH_REQUEST );
+
+        for ( int i = 0; i < 4; i++ )
+        {
+            futures.add( send( scheduler, "a", handled ) );
+        }
+
+        futures.add( send( scheduler, "b", handled ) );
+        futures.add( send( scheduler, "b", handled ) );
+
+        assertEquals( 6, scheduler.getQueuedRequests() );
+
+        scheduler.release( running );
+
+        for ( Future<Ticket> future : futures )
+        {
+            assertTrue( future.get().isAdmitted() );
+        }
+
+        // The requests of b are interleaved with the ones of a, which have been sent first
+        assertEquals( 6, handled.size() );
+        assertEquals( "[a, b, a, b, a, a]", handled.toString() );
+
+        Map<String, Statistics> statistics = scheduler.getStatistics();
+        assertEquals( 4L, statistics.get( "a|127.0.0.1|SEARCH_REQUEST" ).getHandled() );
+        assertEquals( 2L, statistics.get( "b|127.0.0.1|SEARCH_REQUEST" ).getHandled() );
+        assertTrue( statistics.get( "b|127.0.0.1|SEARCH_REQUEST" ).getMaxLatency() > 0L );
+    }
+}
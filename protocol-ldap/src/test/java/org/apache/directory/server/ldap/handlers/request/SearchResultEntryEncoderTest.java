@@ -0,0 +1,120 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.request;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.directory.api.asn1.ber.Asn1Decoder;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
+import org.apache.directory.api.ldap.codec.api.LdapMessageContainer;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.Message;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests that the entries encoded by the SearchResultEntryEncoder are decoded by the codec.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SearchResultEntryEncoderTest
+{
+    /**
+     * Decodes a PDU with the codec
+     */
+    private SearchResultEntry decode( IoBuffer buffer ) throws Exception
+    {
+        LdapMessageContainer<Message> container = new LdapMessageContainer<>(
+            LdapApiServiceFactory.getSingleton() );
+        Asn1Decoder.decode( buffer.buf(), container );
+
+        assertFalse( buffer.hasRemaining() );
+
+        return ( SearchResultEntry ) container.getMessage();
+    }
+
+
+    /**
+     * Test the encoding of a small entry
+     */
+    @Test
+    public void testEncodeEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( "cn=test,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "sn: Test" );
+
+        IoBuffer buffer = SearchResultEntryEncoder.encode( 12, entry, null );
+        SearchResultEntry response = decode( buffer );
+
+        assertEquals( 12, response.getMessageId() );
+        assertEquals( "cn=test,ou=system", response.getObjectName().getName() );
+        assertEquals( entry, response.getEntry() );
+    }
+
+
+    /**
+     * Test the encoding of an entry with long values, and a skipped attribute
+     */
+    @Test
+    public void testEncodeLargeEntry() throws Exception
+    {
+        StringBuilder description = new StringBuilder();
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            description.append( ( char ) ( 'a' + ( i % 26 ) ) );
+        }
+
+        byte[] photo = new byte[70000];
+
+        for ( int i = 0; i < photo.length; i++ )
+        {
+            photo[i] = ( byte ) i;
+        }
+
+        Entry entry = new DefaultEntry( "cn=large,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: large",
+            "sn: Large",
+            "description", description.toString(),
+            "jpegPhoto", photo,
+            "userPassword: secret" );
+
+        IoBuffer buffer = SearchResultEntryEncoder.encode( 100000, entry, entry.get( "userPassword" ) );
+        SearchResultEntry response = decode( buffer );
+
+        assertEquals( 100000, response.getMessageId() );
+        assertFalse( response.getEntry().containsAttribute( "userPassword" ) );
+
+        entry.removeAttributes( "userPassword" );
+        assertEquals( entry, response.getEntry() );
+        assertTrue( response.getEntry().contains( "jpegPhoto", photo ) );
+    }
+}
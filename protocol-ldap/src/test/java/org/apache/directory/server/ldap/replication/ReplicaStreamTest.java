@@ -0,0 +1,222 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.IntermediateResponse;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the compact replication stream.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaStreamTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+
+    /**
+     * Load the SchemaManager
+     */
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaStreamTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    private Entry createEntry( int i ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=user" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: person",
+            "cn", "user" + i,
+            "sn", "surname of the user number " + i,
+            "description", "A description of the user number " + i,
+            "entryUUID", "f290425c-8272-4e62-8a67-92b06f38dbf" + ( i % 10 ),
+            "entryCsn", csnFactory.newInstance().toString() );
+    }
+
+
+    /**
+     * Test that the changes written by the encoder are read back in order, and that the
+     * compression uses the previous changes
+     */
+    @Test
+    public void testCompressedStream() throws Exception
+    {
+        ReplicaStreamEncoder encoder = new ReplicaStreamEncoder( schemaManager, ReplicaStreamEncoder.COMPRESS );
+        ReplicaStreamDecoder decoder = new ReplicaStreamDecoder( schemaManager, ReplicaStreamEncoder.COMPRESS );
+        ReplicaEventMessageSerializer serializer = new ReplicaEventMessageSerializer( schemaManager );
+        long plainSize = 0L;
+        long compressedSize = 0L;
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            Entry entry = createEntry( i );
+            ReplicaEventMessage message = new ReplicaEventMessage( ChangeType.ADD, entry );
+            byte[] cookie = ( i % 2 == 0 ) ? Strings.getBytesUtf8( "rid=001,csn=" + i ) : null;
+
+            IntermediateResponse response = encoder.encode( 1, message, cookie );
+            assertEquals( ReplicaStreamEncoder.RESPONSE_OID, response.getResponseName() );
+
+            plainSize += serializer.serialize( message ).length;
+            compressedSize += response.getResponseValue().length;
+
+            List<ReplicaStreamDecoder.Record> records = decoder.decode( response.getResponseValue() );
+
+            assertEquals( 1, records.size() );
+            ReplicaEventMessage decoded = records.get( 0 ).getMessage();
+            assertEquals( ChangeType.ADD, decoded.getChangeType() );
+            assertEquals( entry, decoded.getEntry() );
+
+            if ( cookie == null )
+            {
+                assertNull( records.get( 0 ).getCookie() );
+            }
+            else
+            {
+                assertEquals( "rid=001,csn=" + i, Strings.utf8ToString( records.get( 0 ).getCookie() ) );
+            }
+        }
+
+        assertTrue( compressedSize * 3 < plainSize );
+
+        encoder.close();
+        decoder.close();
+    }
+
+
+    /**
+     * Test that a MODIFY sent as a delta only contains the modified attributes, and
+     * replaces them on the replica
+     */
+    @Test
+    public void testDeltaModify() throws Exception
+    {
+        ReplicaStreamEncoder encoder = new ReplicaStreamEncoder( schemaManager,
+            ReplicaStreamEncoder.COMPRESS | ReplicaStreamEncoder.DELTA );
+        ReplicaStreamDecoder decoder = new ReplicaStreamDecoder( schemaManager,
+            ReplicaStreamEncoder.COMPRESS | ReplicaStreamEncoder.DELTA );
+
+        Entry entry = createEntry( 1 );
+        entry.removeAttributes( "description" );
+        entry.put( "sn", "new surname" );
+
+        List<Modification> modifications = new ArrayList<>();
+        modifications.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE,
+            new DefaultAttribute( schemaManager.getAttributeType( "sn" ), "new surname" ) ) );
+        modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+            new DefaultAttribute( schemaManager.getAttributeType( "description" ) ) ) );
+
+        ReplicaEventMessage message = new ReplicaEventMessage( ChangeType.MODIFY, entry, modifications );
+        List<ReplicaStreamDecoder.Record> records = decoder.decode(
+            encoder.encode( 1, message, null ).getResponseValue() );
+
+        ReplicaEventMessage decoded = records.get( 0 ).getMessage();
+        assertTrue( decoded.isDelta() );
+        assertEquals( 2, decoded.getModifiedAttributes().size() );
+
+        // Only the DN, entryUUID, entryCSN and the remaining modified attribute
+        Entry deltaEntry = decoded.getEntry();
+        assertEquals( entry.getDn(), deltaEntry.getDn() );
+        assertEquals( 3, deltaEntry.size() );
+        assertTrue( deltaEntry.contains( "sn", "new surname" ) );
+        assertFalse( deltaEntry.containsAttribute( "cn" ) );
+
+        List<Modification> deltaModifications = decoded.getDeltaModifications( schemaManager );
+
+        // sn, description and entryCSN
+        assertEquals( 3, deltaModifications.size() );
+
+        for ( Modification modification : deltaModifications )
+        {
+            assertEquals( ModificationOperation.REPLACE_ATTRIBUTE, modification.getOperation() );
+
+            if ( modification.getAttribute().isInstanceOf( schemaManager.getAttributeType( "description" ) ) )
+            {
+                assertEquals( 0, modification.getAttribute().size() );
+            }
+        }
+
+        // The other changes are sent as is
+        message = new ReplicaEventMessage( ChangeType.ADD, entry );
+        records = decoder.decode( encoder.encode( 1, message, null ).getResponseValue() );
+        assertFalse( records.get( 0 ).getMessage().isDelta() );
+        assertEquals( entry, records.get( 0 ).getMessage().getEntry() );
+
+        encoder.close();
+        decoder.close();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Tests the replication journal shared by the consumers.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaJournalTest
+{
+    private static final String TEST_OUTPUT_PATH = "test.output.path";
+
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the journal */
+    private File journalDir;
+
+    /** The Journal */
+    private ReplicaJournal journal;
+
+
+    /**
+     * Load the SchemaManager
+     */
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaJournalTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @BeforeEach
+    public void createJournal() throws Exception
+    {
+        File tmpDir = null;
+
+        if ( System.getProperty( TEST_OUTPUT_PATH, null ) != null )
+        {
+            tmpDir = new File( System.getProperty( TEST_OUTPUT_PATH ) );
+        }
+
+        if ( tmpDir == null )
+        {
+            journalDir = Files.createTempDirectory( getClass().getSimpleName() ).toFile();
+        }
+        else
+        {
+            journalDir = Files.createTempDirectory( tmpDir.toPath(), getClass().getSimpleName() ).toFile();
+        }
+
+        // Small segments, so that the journal is rolled over
+        journal = new ReplicaJournal( schemaManager, journalDir, 4096 );
+    }
+
+
+    @AfterEach
+    public void deleteJournal() throws Exception
+    {
+        if ( journal != null )
+        {
+            journal.close();
+        }
+
+        FileUtils.deleteDirectory( journalDir );
+    }
+
+
+    /**
+     * Appends 1000 changes : the even ones are for the replicas 1 and 2, the odd ones
+     * for the replica 1 only.
+     */
+    private List<String> appendChanges() throws Exception
+    {
+        List<String> csns = new ArrayList<>();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            String csn = csnFactory.newInstance().toString();
+            csns.add( csn );
+
+            if ( i % 2 == 0 )
+            {
+                appendChange( i, csn, 1, 2 );
+            }
+            else
+            {
+                appendChange( i, csn, 1 );
+            }
+        }
+
+        return csns;
+    }
+
+
+    /**
+     * Appends the addition of the entry ou=test<i>,ou=system
+     */
+    private void appendChange( int i, String csn, int... recipients ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, "ou=test" + i + ",ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "test" + i,
+            "entryCsn", csn
+            );
+
+        journal.append( new ReplicaEventMessage( ChangeType.ADD, entry ), recipients );
+    }
+
+
+    /**
+     * Reads the numbers of the entries returned by a cursor
+     */
+    private List<Integer> read( int replicaId, String consumerCsn ) throws Exception
+    {
+        List<Integer> read = new ArrayList<>();
+
+        try ( ReplicaJournalCursor cursor = journal.cursor( replicaId, consumerCsn ) )
+        {
+            while ( cursor.next() )
+            {
+                ReplicaEventMessage message = cursor.get();
+                assertEquals( ChangeType.ADD, message.getChangeType() );
+                read.add( Integer.parseInt( message.getEntry().get( "ou" ).getString().substring( 4 ) ) );
+            }
+        }
+
+        return read;
+    }
+
+
+    /**
+     * Test that each consumer reads the changes written for it, after its CSN
+     */
+    @Test
+    public void testCursorPerConsumer() throws Exception
+    {
+        List<String> csns = appendChanges();
+
+        assertEquals( 1000, journal.count() );
+        assertTrue( journal.getSegmentCount() > 1 );
+
+        List<Integer> all = read( 1, null );
+        assertEquals( 1000, all.size() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertEquals( i, all.get( i ).intValue() );
+        }
+
+        // The replica 2 has received the first 101 changes
+        List<Integer> even = read( 2, csns.get( 100 ) );
+        assertEquals( 449, even.size() );
+        assertEquals( 102, even.get( 0 ).intValue() );
+        assertEquals( 998, even.get( 448 ).intValue() );
+
+        // Nothing for an unknown replica
+        assertTrue( read( 3, null ).isEmpty() );
+    }
+
+
+    /**
+     * Test that a change appended after the consumer's last change is sent, even if its
+     * CSN is lower
+     */
+    @Test
+    public void testCursorWithUnorderedCsns() throws Exception
+    {
+        String csn0 = csnFactory.newInstance().toString();
+        String csn1 = csnFactory.newInstance().toString();
+        String csn2 = csnFactory.newInstance().toString();
+        String csn3 = csnFactory.newInstance().toString();
+
+        // The operation with the CSN 1 completes after the one with the CSN 2
+        appendChange( 0, csn0, 1 );
+        appendChange( 2, csn2, 1 );
+        appendChange( 1, csn1, 1 );
+        appendChange( 3, csn3, 1 );
+
+        // The replica has received the changes 0 and 2
+        List<Integer> read = read( 1, csn2 );
+        assertEquals( 2, read.size() );
+        assertEquals( 1, read.get( 0 ).intValue() );
+        assertEquals( 3, read.get( 1 ).intValue() );
+
+        // The replica has received the changes 0, 2 and 1
+        read = read( 1, csn1 );
+        assertEquals( 1, read.size() );
+        assertEquals( 3, read.get( 0 ).intValue() );
+
+        // A CSN which is not in the journal : the changes are selected by CSN
+        read = read( 2, csn1 );
+        assertTrue( read.isEmpty() );
+        appendChange( 4, csnFactory.newInstance().toString(), 2 );
+        read = read( 2, csn1 );
+        assertEquals( 1, read.size() );
+        assertEquals( 4, read.get( 0 ).intValue() );
+    }
+
+
+    /**
+     * Test that only the segments received by all the consumers are purged
+     */
+    @Test
+    public void testPurge() throws Exception
+    {
+        List<String> csns = appendChanges();
+        int segmentCount = journal.getSegmentCount();
+
+        // Too recent to be purged
+        assertEquals( 0, journal.purge( csns.get( 500 ), 0L ) );
+        assertEquals( segmentCount, journal.getSegmentCount() );
+
+        long deleted = journal.purge( csns.get( 500 ), Long.MAX_VALUE );
+
+        assertTrue( deleted > 0 );
+        assertTrue( deleted <= 501 );
+        assertEquals( 1000 - deleted, journal.count() );
+        assertTrue( journal.getSegmentCount() < segmentCount );
+
+        // The changes not received yet are still there
+        List<Integer> remaining = read( 1, csns.get( 500 ) );
+        assertEquals( 499, remaining.size() );
+        assertEquals( 501, remaining.get( 0 ).intValue() );
+
+        // Without any consumer, everything but the current segment can be purged
+        journal.purge( null, Long.MAX_VALUE );
+        assertEquals( 1, journal.getSegmentCount() );
+    }
+
+
+    /**
+     * Test that the journal is read again when reopened, without the partially written record
+     */
+    @Test
+    public void testReopen() throws Exception
+    {
+        List<String> csns = appendChanges();
+        journal.close();
+
+        // Simulate a crash while writing a record
+        File last = null;
+        long lastSequence = -1L;
+
+        for ( File segment : journalDir.listFiles() )
+        {
+            long sequence = Long.parseLong( segment.getName().substring(
+                ReplicaJournal.REPLICA_JOURNAL_NAME_PREFIX.length() ) );
+
+            if ( sequence > lastSequence )
+            {
+                last = segment;
+                lastSequence = sequence;
+            }
+        }
+
+        try ( OutputStream out = new FileOutputStream( last, true ) )
+        {
+            out.write( new byte[]
+                { 0, 0, 1, 0, 1, 2, 3, 4, 5 } );
+        }
+
+        journal = new ReplicaJournal( schemaManager, journalDir, 4096 );
+
+        assertEquals( 1000, journal.count() );
+
+        List<Integer> remaining = read( 2, csns.get( 900 ) );
+        assertEquals( 49, remaining.size() );
+        assertEquals( 902, remaining.get( 0 ).intValue() );
+    }
+}
@@ -1227,4 +1227,114 @@ public class PagedSearchApiIT extends AbstractLdapTestUnit
             checkResults( results, 10 );
         }
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Reads all the pages of a search on dc=users,ou=system, sending each page
+     * request on the next connection.
+     *
+     * @return The result code of the last page
+     */
+    private ResultCodeEnum readPages( LdapConnection[] connections, long sizeLimit, int pagedSizeLimit,
+        List<Entry> results ) throws Exception
+    {
+        SearchRequest searchRequest = new SearchRequestImpl();
+        searchRequest.setBase( new Dn( "dc=users,ou=system" ) );
+        searchRequest.setFilter( "(cn=*)" );
+        searchRequest.setScope( SearchScope.SUBTREE );
+        searchRequest.setSizeLimit( sizeLimit );
+
+        PagedResults pagedControl = new PagedResultsImpl();
+        pagedControl.setSize( pagedSizeLimit );
+        int loop = 0;
+
+        while ( true )
+        {
+            searchRequest.addControl( pagedControl );
+
+            try ( SearchCursor cursor = connections[loop++ % connections.length].search( searchRequest ) )
+            {
+                while ( cursor.next() )
+                {
+                    results.add( cursor.getEntry() );
+                }
+
+                SearchResultDone done = cursor.getSearchResultDone();
+
+                if ( done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS )
+                {
+                    return done.getLdapResult().getResultCode();
+                }
+
+                byte[] cookie = ( ( PagedResults ) done.getControls().get( PagedResults.OID ) ).getCookie();
+
+                if ( Strings.isEmpty( cookie ) )
+                {
+                    return ResultCodeEnum.SUCCESS;
+                }
+
+                pagedControl.setCookie( cookie );
+            }
+        }
+    }
+
+
+    /**
+     * Do a resumable paged search : the position is stored in the cookie, which can
+     * be sent on another connection, and no cursor is kept opened between the pages
+     */
+    @Test
+    public void testResumablePagedSearch() throws Exception
+    {
+        getLdapServer().setMaxSizeLimit( LdapServer.NO_SIZE_LIMIT );
+        getLdapServer().setResumablePagedSearch( true );
+
+        try ( LdapConnection connection1 = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, getLdapServer().getPort() );
+            LdapConnection connection2 = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, getLdapServer().getPort() ) )
+        {
+            connection1.bind( "uid=admin,ou=system", "secret" );
+            connection2.bind( "uid=admin,ou=system", "secret" );
+            LdapConnection[] connections = new LdapConnection[] { connection1, connection2 };
+
+            List<Entry> results = new ArrayList<>();
+            assertEquals( ResultCodeEnum.SUCCESS, readPages( connections, LdapServer.NO_SIZE_LIMIT, 3, results ) );
+            checkResults( results, 10 );
+
+            // The size limit applies to the whole search
+            results.clear();
+            assertEquals( ResultCodeEnum.SIZE_LIMIT_EXCEEDED, readPages( connections, 5L, 3, results ) );
+            checkResults( results, 5 );
+        }
+        finally
+        {
+            getLdapServer().setResumablePagedSearch( false );
+        }
+    }
+
+
+    /**
+     * Do a paged search when the server can't keep any more cursor opened : the
+     * search is resumed from its cookie instead
+     */
+    @Test
+    public void testPagedSearchOverOpenedCursorsBudget() throws Exception
+    {
+        getLdapServer().setMaxSizeLimit( LdapServer.NO_SIZE_LIMIT );
+        int maxOpenPagedSearches = getLdapServer().getMaxOpenPagedSearches();
+        getLdapServer().setMaxOpenPagedSearches( 0 );
+
+        try ( LdapConnection connection = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, getLdapServer().getPort() ) )
+        {
+            connection.bind( "uid=admin,ou=system", "secret" );
+
+            List<Entry> results = new ArrayList<>();
+            assertEquals( ResultCodeEnum.SUCCESS,
+                readPages( new LdapConnection[] { connection }, LdapServer.NO_SIZE_LIMIT, 4, results ) );
+            checkResults( results, 10 );
+        }
+        finally
+        {
+            getLdapServer().setMaxOpenPagedSearches( maxOpenPagedSearches );
+        }
+    }
+}
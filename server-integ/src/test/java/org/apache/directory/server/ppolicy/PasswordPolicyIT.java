@@ -50,7 +50,9 @@ import org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstan
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.AddRequest;
@@ -1168,6 +1170,120 @@ public class PasswordPolicyIT extends AbstractLdapTestUnit
     }
 
 
+    /**
+     * Check that the lockout is decided on the failures kept in memory, and that they
+     * are written in the entry when flushed.
+     */
+    @Test
+    public void testPwdLockoutWithDeferredState() throws Exception
+    {
+        policyConfig.setPwdMaxFailure( 3 );
+        policyConfig.setPwdLockout( true );
+
+        AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+
+        // Never flushed during the test
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 3600000L );
+
+        try
+        {
+            Dn userDn = new Dn( getService().getSchemaManager(), "cn=userDeferred,ou=system" );
+            LdapConnection adminConnection = getAdminNetworkConnection( getLdapServer() );
+
+            addUser( adminConnection, "userDeferred", "12345" );
+
+            LdapConnection userConnection = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, ldapServer.getPort() );
+
+            checkBind( userConnection, userDn, "badPassword", 3,
+                "INVALID_CREDENTIALS: Bind failed: ERR_229 Cannot authenticate user cn=userDeferred,ou=system" );
+
+            checkBind( userConnection, userDn, "12345", 1,
+                "INVALID_CREDENTIALS: Bind failed: account was permanently locked" );
+
+            userConnection.close();
+
+            // Not written yet
+            Entry userEntry = adminConnection.lookup( userDn, "+" );
+            assertNull( userEntry.get( PWD_FAILURE_TIME_AT ) );
+            assertNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+
+            assertEquals( 1, authenticationInterceptor.flushPwdPolicyStates() );
+
+            userEntry = adminConnection.lookup( userDn, "+" );
+            assertEquals( 3, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+            assertNotNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+
+            // Nothing left to write
+            assertEquals( 0, authenticationInterceptor.flushPwdPolicyStates() );
+            adminConnection.close();
+        }
+        finally
+        {
+            authenticationInterceptor.setPwdPolicyStateFlushInterval( 0L );
+        }
+    }
+
+
+    /**
+     * Check that the failures kept in memory survive a modification of the other attributes
+     * of the entry and a rename, and are written in the renamed entry.
+     */
+    @Test
+    public void testPwdLockoutWithDeferredStateModifiedAndRenamed() throws Exception
+    {
+        policyConfig.setPwdMaxFailure( 3 );
+        policyConfig.setPwdLockout( true );
+
+        AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+
+        // Never flushed during the test
+        authenticationInterceptor.setPwdPolicyStateFlushInterval( 3600000L );
+
+        try
+        {
+            Dn userDn = new Dn( getService().getSchemaManager(), "cn=userKept,ou=system" );
+            Dn renamedDn = new Dn( getService().getSchemaManager(), "cn=userKeptRenamed,ou=system" );
+            LdapConnection adminConnection = getAdminNetworkConnection( getLdapServer() );
+
+            addUser( adminConnection, "userKept", "12345" );
+
+            LdapConnection userConnection = new LdapNetworkConnection( Network.LOOPBACK_HOSTNAME, ldapServer.getPort() );
+
+            checkBind( userConnection, userDn, "badPassword", 3,
+                "INVALID_CREDENTIALS: Bind failed: ERR_229 Cannot authenticate user cn=userKept,ou=system" );
+
+            // An unrelated modification keeps the lockout
+            adminConnection.modify( userDn,
+                new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "description", "modified" ) );
+
+            checkBind( userConnection, userDn, "12345", 1,
+                "INVALID_CREDENTIALS: Bind failed: account was permanently locked" );
+
+            // So does a rename
+            adminConnection.rename( userDn, renamedDn.getRdn() );
+
+            checkBind( userConnection, renamedDn, "12345", 1,
+                "INVALID_CREDENTIALS: Bind failed: account was permanently locked" );
+
+            userConnection.close();
+
+            assertEquals( 1, authenticationInterceptor.flushPwdPolicyStates() );
+
+            Entry userEntry = adminConnection.lookup( renamedDn, "*", "+" );
+            assertEquals( "modified", userEntry.get( "description" ).getString() );
+            assertEquals( 3, userEntry.get( PWD_FAILURE_TIME_AT ).size() );
+            assertNotNull( userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT ) );
+            adminConnection.close();
+        }
+        finally
+        {
+            authenticationInterceptor.setPwdPolicyStateFlushInterval( 0L );
+        }
+    }
+
+
     /**
      * Check that we can't try more than N times to login with a wrong password before
      * being locked. Also check that we have a delay before we can log again.
@@ -57,6 +57,7 @@ import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
 import org.apache.directory.server.ldap.replication.provider.ReplicaEventLog;
+import org.apache.directory.server.ldap.replication.provider.ReplicaJournal;
 import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -313,17 +314,17 @@ public class StaleEventLogDetectionIT
         syncreplHandler.getLogJanitor().setSleepTime( 1000 ); // every second
         syncreplHandler.getLogJanitor().interrupt();
 
-        File replDir = providerServer.getDirectoryService().getInstanceLayout().getReplDirectory();
-        File logFile = new File( replDir, log.getName() + ".db" );
+        ReplicaJournal journal = log.getJournal();
 
-        // there should be only one log file
-        assertTrue( logFile.exists() );
+        // the changes are logged for the consumer in the shared journal
+        assertTrue( journal.getConsumers().contains( log ) );
 
         // let it sleep for 10 seconds + 5 seconds (above)
         Thread.sleep( 10 * 1000 );
 
-        // there should be only one log file
-        assertFalse( logFile.exists() );
+        // the stale log is removed, and the changes are not logged for it anymore
+        assertFalse( syncreplHandler.getReplicaLogMap().containsKey( log.getId() ) );
+        assertFalse( journal.getConsumers().contains( log ) );
 
         //System.out.println( "\n<-- Done" );
     }
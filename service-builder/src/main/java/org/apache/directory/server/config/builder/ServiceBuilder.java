@@ -74,6 +74,7 @@ import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.DefaultDirectoryService;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.PasswordHashingExecutor;
 import org.apache.directory.server.core.api.authn.ppolicy.CheckQualityEnum;
 import org.apache.directory.server.core.api.authn.ppolicy.DefaultPasswordValidator;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
@@ -131,6 +132,12 @@ public final class ServiceBuilder
     /** The logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( ServiceBuilder.class );
 
+    /** The system property giving the number of threads hashing the passwords */
+    public static final String PASSWORD_HASHING_THREADS = "apacheds.password.hashing.threads";
+
+    /** The system property giving the number of passwords waiting to be hashed */
+    public static final String PASSWORD_HASHING_QUEUE_SIZE = "apacheds.password.hashing.queue.size";
+
     /** LDIF file filter */
     private static FilenameFilter ldifFilter = new FilenameFilter()
     {
@@ -356,6 +363,51 @@ public final class ServiceBuilder
     }
 
 
+    /**
+     * Instantiate the executor hashing and checking the passwords, when the
+     * {@link #PASSWORD_HASHING_THREADS} system property is set. Its number of threads
+     * bounds the cores used by the binds and the password changes, and the
+     * {@link #PASSWORD_HASHING_QUEUE_SIZE} property the number of passwords waiting
+     * for a thread. They are read from system properties, as the configuration schema
+     * is defined by the LDAP API.
+     *
+     * @return An instance of PasswordHashingExecutor, or null if the passwords are
+     * hashed on the threads handling the requests
+     */
+    public static PasswordHashingExecutor createPasswordHashingExecutor()
+    {
+        String nbThreads = System.getProperty( PASSWORD_HASHING_THREADS );
+
+        if ( nbThreads == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            int threads = Integer.parseInt( nbThreads.trim() );
+            int queueSize = Integer.parseInt( System.getProperty( PASSWORD_HASHING_QUEUE_SIZE,
+                Integer.toString( PasswordHashingExecutor.DEFAULT_MAX_QUEUED_TASKS ) ).trim() );
+
+            if ( threads <= 0 )
+            {
+                return null;
+            }
+
+            LOG.info( "Hashing the passwords on {} threads, with {} waiting passwords", threads, queueSize );
+
+            return new PasswordHashingExecutor( "password-hashing", threads, queueSize );
+        }
+        catch ( NumberFormatException nfe )
+        {
+            LOG.warn( "Invalid password hashing configuration, the passwords are hashed on the request threads",
+                nfe );
+
+            return null;
+        }
+    }
+
+
     /**
      * Load the Test entries
      * 
@@ -1344,6 +1396,9 @@ public final class ServiceBuilder
         // SyncPeriodMillis
         directoryService.setSyncPeriodMillis( directoryServiceBean.getDsSyncPeriodMillis() );
 
+        // PasswordHashingExecutor
+        directoryService.setPasswordHashingExecutor( createPasswordHashingExecutor() );
+
         // testEntries
         String entryFilePath = directoryServiceBean.getDsTestEntries();
 
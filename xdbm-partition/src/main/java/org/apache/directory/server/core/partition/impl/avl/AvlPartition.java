@@ -20,6 +20,7 @@
 package org.apache.directory.server.core.partition.impl.avl;
 
 
+import java.io.File;
 import java.net.URI;
 
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -120,10 +121,24 @@ public class AvlPartition extends AbstractBTreePartition
             master = new AvlMasterTable( id, UuidComparator.INSTANCE, null, false );
 
             super.doInit();
+
+            loadIndexStatistics();
         }
     }
 
 
+    /**
+     * {@inheritDoc}
+     * 
+     * The index statistics are not stored, as the indexes are in memory.
+     */
+    @Override
+    protected File getIndexStatisticsFile()
+    {
+        return null;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -20,10 +20,18 @@
 package org.apache.directory.server.core.partition.impl.btree;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,12 +41,14 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
@@ -84,6 +94,8 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.api.partition.AbstractPartition;
 import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionLockException;
+import org.apache.directory.server.core.api.partition.PartitionReadWriteLock;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.api.partition.PartitionWriteTxn;
 import org.apache.directory.server.core.api.partition.Subordinates;
@@ -91,6 +103,7 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.MasterTable;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.Store;
@@ -123,12 +136,33 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** Tells if the Optimizer is enabled */
     protected boolean optimizerEnabled = true;
 
+    /** The name of the file storing the user indexes statistics, in the partition directory */
+    public static final String INDEX_STATISTICS_FILE = "index.statistics";
+
+    /** The minimal delay between two saves of the index statistics when syncing, in ms */
+    private static final long INDEX_STATISTICS_SAVE_INTERVAL = 60000L;
+
+    /** The last time the index statistics were saved */
+    private volatile long indexStatisticsSaveTime;
+
     /** The default cache size is set to 10 000 objects */
     public static final int DEFAULT_CACHE_SIZE = 10000;
 
     /** The Entry cache size for this partition */
     protected int cacheSize = DEFAULT_CACHE_SIZE;
 
+    /** The maximum size of the entry cache in bytes. If 0, the cache is bounded by cacheSize entries */
+    protected long entryCacheMaxBytes;
+
+    /** Tells if the coldest entries of the entry cache are kept serialized */
+    protected boolean entryCacheSerialization;
+
+    /** The maximum size of the off-heap second level entry cache in bytes. If 0, there is none */
+    protected long entryCacheOffHeapBytes;
+
+    /** The entry cache, if the partition uses one */
+    protected EntryCache entryCache;
+
     /** The alias cache */
     protected Cache<String, Dn> aliasCache;
 
@@ -138,6 +172,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** true if we sync disks on every write operation */
     protected AtomicBoolean isSyncOnWrite = new AtomicBoolean( true );
 
+    /** true if the user indices are not updated when an entry is added, but built later */
+    private volatile boolean userIndicesDeferred;
+
+    /** true if some entries are missing from the user indices : the searches don't use them */
+    private volatile boolean userIndicesIncomplete;
+
     /** The suffix UUID */
     private volatile String suffixId;
 
@@ -212,6 +252,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
+
+    /** Incremented each time an entry is added or deleted */
+    private final AtomicLong countSequence = new AtomicLong();
+
+    /** The last count of entries, with the count sequence it was read at */
+    private volatile long[] cachedCount;
     
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -308,6 +354,110 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * @return The maximum size of the entry cache in bytes, or 0 if it is bounded by the cache size
+     */
+    public long getEntryCacheMaxBytes()
+    {
+        return entryCacheMaxBytes;
+    }
+
+
+    /**
+     * Bounds the entry cache by a number of bytes instead of a number of entries. The size
+     * of each entry is estimated, so entries with large values (photos, certificates...)
+     * don't take as much room as small entries. This has to be set before the partition
+     * is initialized.
+     *
+     * @param entryCacheMaxBytes The maximum size of the entry cache in bytes, or 0 to bound it by the cache size
+     */
+    public void setEntryCacheMaxBytes( long entryCacheMaxBytes )
+    {
+        this.entryCacheMaxBytes = entryCacheMaxBytes;
+    }
+
+
+    /**
+     * @return <code>true</code> if the coldest entries of the entry cache are kept serialized
+     */
+    public boolean isEntryCacheSerialization()
+    {
+        return entryCacheSerialization;
+    }
+
+
+    /**
+     * Keeps the coldest entries of the entry cache serialized, which takes less memory than
+     * the Entry objects but requires to deserialize them when they are read. This is only
+     * used when the entry cache is bounded by a number of bytes, and has to be set before
+     * the partition is initialized.
+     *
+     * @param entryCacheSerialization <code>true</code> to serialize the coldest entries
+     */
+    public void setEntryCacheSerialization( boolean entryCacheSerialization )
+    {
+        this.entryCacheSerialization = entryCacheSerialization;
+    }
+
+
+    /**
+     * @return The maximum size of the off-heap second level entry cache in bytes, or 0 if there is none
+     */
+    public long getEntryCacheOffHeapBytes()
+    {
+        return entryCacheOffHeapBytes;
+    }
+
+
+    /**
+     * Adds an off-heap second level to the entry cache : the entries evicted from the entry
+     * cache are kept serialized outside of the Java heap, and are deserialized when they are
+     * read again. The JVM -XX:MaxDirectMemorySize option must allow this amount of memory.
+     * This has to be set before the partition is initialized.
+     *
+     * @param entryCacheOffHeapBytes The maximum size of the off-heap cache in bytes, or 0 for no off-heap cache
+     */
+    public void setEntryCacheOffHeapBytes( long entryCacheOffHeapBytes )
+    {
+        this.entryCacheOffHeapBytes = entryCacheOffHeapBytes;
+    }
+
+
+    /**
+     * @return The entry cache, or null if the partition doesn't use one
+     */
+    public EntryCache getEntryCache()
+    {
+        return entryCache;
+    }
+
+
+    /**
+     * Creates the entry cache, bounded by a number of bytes if the entryCacheMaxBytes
+     * parameter is set, by the cache size otherwise, with an off-heap second level if
+     * the entryCacheOffHeapBytes parameter is set. The partitions storing their entries
+     * on disk call this method when they are initialized.
+     */
+    protected void initEntryCache()
+    {
+        OffHeapEntryCache secondLevel = null;
+
+        if ( entryCacheOffHeapBytes > 0L )
+        {
+            secondLevel = new OffHeapEntryCache( entryCacheOffHeapBytes );
+        }
+
+        if ( entryCacheMaxBytes > 0L )
+        {
+            entryCache = new EntryCache( schemaManager, entryCacheMaxBytes, entryCacheSerialization, secondLevel );
+        }
+        else
+        {
+            entryCache = new EntryCache( schemaManager, cacheSize, secondLevel );
+        }
+    }
+
+
     /**
      * Tells if the Optimizer is enabled or not
      * @return true if the optimizer is enabled
@@ -363,6 +513,161 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * @return true if the user indices are not updated when an entry is added
+     */
+    public boolean isUserIndicesDeferred()
+    {
+        return userIndicesDeferred;
+    }
+
+
+    /**
+     * Tells the partition to stop updating the user indices when an entry is added, which
+     * speeds up a bulk load. The other operations still update them. The user indices must
+     * be built with {@link #buildUserIndices(int)} once the load is done. Until then, the
+     * searches don't use the user indices at all : the filters on the user indexed attributes
+     * are evaluated against the entries, so that the added entries are not missed.
+     * <p>
+     * Stopping the deferral makes the added entries indexed again, but the searches keep
+     * ignoring the user indices until they have been built.
+     *
+     * @param userIndicesDeferred true to defer the user indices update
+     */
+    public void setUserIndicesDeferred( boolean userIndicesDeferred )
+    {
+        if ( userIndicesDeferred )
+        {
+            userIndicesIncomplete = true;
+        }
+
+        this.userIndicesDeferred = userIndicesDeferred;
+    }
+
+
+    /**
+     * Adds all the entries of the master table to the user indices, and to the presence
+     * index, after a bulk load done with deferred user indices. The entries already
+     * indexed are left untouched. The entries added from now on are indexed as usual.
+     * <p>
+     * The entries are indexed by batches, each one in its own write transaction, so that
+     * the partition is not locked while the whole master table is read. The searches use
+     * the user indices again once the last batch has been committed.
+     *
+     * @param batchSize The number of entries indexed in a single transaction
+     * @throws LdapException If the indices can't be updated
+     */
+    public void buildUserIndices( int batchSize ) throws LdapException
+    {
+        userIndicesDeferred = false;
+
+        if ( !userIndices.isEmpty() )
+        {
+            LOG.info( "Building the user indices {} of the partition {}", userIndices.keySet(), getId() );
+
+            List<Tuple<String, Entry>> batch = new ArrayList<>();
+            String lastId = null;
+
+            do
+            {
+                batch.clear();
+                lastId = buildUserIndicesBatch( lastId, Math.max( batchSize, 1 ), batch );
+            }
+            while ( lastId != null );
+        }
+
+        userIndicesIncomplete = false;
+    }
+
+
+    /**
+     * Indexes the entries following a given ID in the master table.
+     *
+     * @return The ID of the last indexed entry, or null if the end of the master table is reached
+     */
+    @SuppressWarnings("unchecked")
+    private String buildUserIndicesBatch( String afterId, int batchSize, List<Tuple<String, Entry>> batch )
+        throws LdapException
+    {
+        boolean completed = false;
+
+        // The lock prevents the entries of the batch from being removed before they are indexed
+        lockWrite();
+
+        try
+        {
+            try ( Cursor<Tuple<String, Entry>> cursor = master.cursor() )
+            {
+                if ( afterId == null )
+                {
+                    cursor.beforeFirst();
+                }
+                else
+                {
+                    cursor.after( new Tuple<String, Entry>( afterId, null ) );
+                }
+
+                while ( ( batch.size() < batchSize ) && cursor.next() )
+                {
+                    batch.add( cursor.get() );
+                }
+            }
+
+            if ( batch.isEmpty() )
+            {
+                return null;
+            }
+
+            PartitionTxn partitionTxn = beginWriteTransaction();
+
+            try
+            {
+                for ( Tuple<String, Entry> tuple : batch )
+                {
+                    String id = tuple.getKey();
+
+                    for ( Attribute attribute : tuple.getValue() )
+                    {
+                        AttributeType attributeType = attribute.getAttributeType();
+
+                        if ( isUserIndexed( attributeType ) )
+                        {
+                            Index<Object, String> userIndex = ( Index<Object, String> ) getUserIndex( attributeType );
+
+                            for ( Value value : attribute )
+                            {
+                                userIndex.add( partitionTxn, value.getNormalized(), id );
+                            }
+
+                            presenceIdx.add( partitionTxn, attributeType.getOid(), id );
+                        }
+                    }
+                }
+
+                partitionTxn.commit();
+                completed = true;
+            }
+            finally
+            {
+                if ( !completed )
+                {
+                    partitionTxn.abort();
+                }
+            }
+
+            return ( batch.size() < batchSize ) ? null : batch.get( batch.size() - 1 ).getKey();
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            unlockWrite();
+        }
+    }
+
+
     /**
      * Sets up the system indices.
      * 
@@ -487,6 +792,198 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Loads the statistics of the user indexes, used by the optimizer. The statistics
+     * which have not been stored, or which don't match the index anymore, are rebuilt
+     * from the index content. Must be called once the indexes and the master table
+     * have been initialized.
+     *
+     * @throws LdapException If the statistics can't be built
+     */
+    @SuppressWarnings("unchecked")
+    protected void loadIndexStatistics() throws LdapException
+    {
+        if ( !optimizerEnabled )
+        {
+            return;
+        }
+
+        Map<String, byte[]> stored = readIndexStatistics();
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction() )
+        {
+            for ( Index<?, String> index : userIndices.values() )
+            {
+                AttributeType attributeType = index.getAttribute();
+                byte[] data = stored.get( attributeType.getOid() );
+                IndexStatistics statistics = null;
+
+                if ( data != null )
+                {
+                    try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) ) )
+                    {
+                        statistics = IndexStatistics.read( in, IndexStatistics.getComparator( attributeType ) );
+                    }
+                    catch ( IOException ioe )
+                    {
+                        LOG.warn( "Cannot read the {} index statistics, they will be rebuilt", attributeType.getName() );
+                    }
+                }
+
+                if ( ( statistics == null ) || statistics.isStale( index.count( partitionTxn ) ) )
+                {
+                    statistics = IndexStatistics.build( partitionTxn, ( Index<Object, String> ) index,
+                        IndexStatistics.DEFAULT_NB_BUCKETS );
+                }
+
+                LOG.debug( "{} index statistics for {} partition : {}", attributeType.getName(), id, statistics );
+                index.setStatistics( statistics );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Saves the statistics of the user indexes in the partition directory, rebuilding
+     * the ones which have drifted too much from the index content first. This is a
+     * no-op for the partitions which are not stored on disk.
+     * <p>
+     * As the partitions are synced after each write when syncOnWrite is set, the
+     * statistics are only saved once per minute unless a save is forced.
+     *
+     * @param force If the statistics must be saved even if they have been saved recently
+     * @throws LdapException If the statistics can't be saved
+     */
+    @SuppressWarnings("unchecked")
+    protected void saveIndexStatistics( boolean force ) throws LdapException
+    {
+        File file = getIndexStatisticsFile();
+
+        if ( !optimizerEnabled || ( file == null ) )
+        {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if ( !force && ( now - indexStatisticsSaveTime < INDEX_STATISTICS_SAVE_INTERVAL ) )
+        {
+            return;
+        }
+
+        indexStatisticsSaveTime = now;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( PartitionTxn partitionTxn = beginReadTransaction();
+            DataOutputStream out = new DataOutputStream( baos ) )
+        {
+            List<Index<?, String>> indexes = new ArrayList<>();
+
+            for ( Index<?, String> index : userIndices.values() )
+            {
+                IndexStatistics statistics = index.getStatistics();
+
+                if ( statistics != null )
+                {
+                    if ( statistics.isStale( index.count( partitionTxn ) ) )
+                    {
+                        index.setStatistics( IndexStatistics.build( partitionTxn, ( Index<Object, String> ) index,
+                            IndexStatistics.DEFAULT_NB_BUCKETS ) );
+                    }
+
+                    indexes.add( index );
+                }
+            }
+
+            out.writeInt( indexes.size() );
+
+            for ( Index<?, String> index : indexes )
+            {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                index.getStatistics().write( new DataOutputStream( data ) );
+
+                out.writeUTF( index.getAttribute().getOid() );
+                out.writeInt( data.size() );
+                data.writeTo( out );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+
+        // Write in a temporary file first, so that we never leave a truncated file behind
+        File tmpFile = new File( file.getPath() + ".tmp" );
+
+        try
+        {
+            Files.write( tmpFile.toPath(), baos.toByteArray() );
+            Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * Gets the file in which the user indexes statistics are stored.
+     *
+     * @return The statistics file, or null if the partition is not stored on disk
+     */
+    protected File getIndexStatisticsFile()
+    {
+        if ( partitionPath == null )
+        {
+            return null;
+        }
+
+        return new File( new File( partitionPath ), INDEX_STATISTICS_FILE );
+    }
+
+
+    /**
+     * Reads the stored user indexes statistics, by attributeType OID.
+     */
+    private Map<String, byte[]> readIndexStatistics()
+    {
+        Map<String, byte[]> stored = new HashMap<>();
+        File file = getIndexStatisticsFile();
+
+        if ( ( file == null ) || !file.exists() )
+        {
+            return stored;
+        }
+
+        try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( Files.readAllBytes( file.toPath() ) ) ) )
+        {
+            int nbIndexes = in.readInt();
+
+            for ( int i = 0; i < nbIndexes; i++ )
+            {
+                String oid = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully( data );
+                stored.put( oid, data );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            // The statistics will be rebuilt
+            LOG.warn( "Cannot read the index statistics file {} : {}", file, ioe.getMessage() );
+            stored.clear();
+        }
+
+        return stored;
+    }
+
+
     /**
      * Gets the DefaultSearchEngine used by this ContextPartition to search the
      * Database.
@@ -549,6 +1046,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
+        try
+        {
+            saveIndexStatistics( true );
+        }
+        catch ( Throwable t )
+        {
+            LOG.error( "Cannot save the index statistics for {} partition", suffixDn, t );
+        }
+
         for ( Index<?, String> index : userIndices.values() )
         {
             try
@@ -878,13 +1384,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 presenceIdx.add( partitionTxn, administrativeRoleAT.getOid(), id );
             }
 
-            // Now work on the user defined userIndices
+            // Now work on the user defined userIndices, unless they are built after a bulk load
             for ( Attribute attribute : entry )
             {
                 AttributeType attributeType = attribute.getAttributeType();
                 String attributeOid = attributeType.getOid();
 
-                if ( hasUserIndexOn( attributeType ) )
+                if ( !userIndicesDeferred && isUserIndexed( attributeType ) )
                 {
                     Index<Object, String> userIndex = ( Index<Object, String> ) getUserIndex( attributeType );
 
@@ -913,7 +1419,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 rdnIdx.add( partitionTxn, parentIdAndRdn, id );
                 
                 // Update the PIAR cache at the same time
-                updatePiarCache( parentIdAndRdn, id, ADD_CACHE );
+                updatePiarCache( partitionTxn, parentIdAndRdn, id, ADD_CACHE );
 
                 // Update the parent's nbChildren and nbDescendants values
                 if ( parentId != Partition.ROOT_ID )
@@ -929,6 +1435,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
                 // And finally add the entry into the master table
                 master.put( partitionTxn, id, entry );
+                countSequence.incrementAndGet();
             }
             finally
             {
@@ -1127,7 +1634,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 AttributeType attributeType = attribute.getAttributeType();
                 String attributeOid = attributeType.getOid();
 
-                if ( hasUserIndexOn( attributeType ) )
+                if ( isUserIndexed( attributeType ) )
                 {
                     Index<?, String> userIndex = getUserIndex( attributeType );
 
@@ -1149,9 +1656,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 rdnIdx.drop( partitionTxn, id );
 
-                updatePiarCache( parent, id, DEL_CACHE );
+                updatePiarCache( partitionTxn, parent, id, DEL_CACHE );
 
-                entryDnCache.invalidate( id );
+                invalidateEntryDn( partitionTxn, id );
                 
                 Attribute csn = entry.get( entryCsnAT );
                 // can be null while doing subentry deletion
@@ -1161,6 +1668,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
 
                 master.remove( partitionTxn, id );
+                countSequence.incrementAndGet();
             }
             finally
             {
@@ -1174,6 +1682,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             return entry;
         }
+        catch ( PartitionLockException ple )
+        {
+            throw ple;
+        }
         catch ( Exception e )
         {
             throw new LdapOperationErrorException( e.getMessage(), e );
@@ -1294,9 +1806,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     @Override
     public Entry fetch( PartitionTxn partitionTxn, String id ) throws LdapException
     {
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
 
             if ( id == null )
             {
@@ -1307,13 +1820,17 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             return fetch( partitionTxn, id, dn );
         }
+        catch ( PartitionLockException ple )
+        {
+            throw ple;
+        }
         catch ( Exception e )
         {
             throw new LdapOperationErrorException( e.getMessage(), e );
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -1331,7 +1848,39 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         try
         {
-            Entry entry = lookupCache( id );
+            boolean cacheable = isCacheable( partitionTxn );
+            Entry entry = null;
+
+            if ( cacheable )
+            {
+                entry = lookupCache( id, dn );
+
+                if ( ( entry != null ) && !isCacheable( partitionTxn ) )
+                {
+                    // A write has been committed in the meantime : the cached entry may
+                    // be newer than the transaction's snapshot
+                    entry = null;
+                    cacheable = false;
+                }
+                else if ( ( entry != null ) && entryCache.isPromotable( id, entry ) )
+                {
+                    // Read from the off-heap cache : it's promoted back, unless a write
+                    // has been committed since, which may have made the copy we read stale
+                    lockCacheFill();
+
+                    try
+                    {
+                        if ( isCacheable( partitionTxn ) )
+                        {
+                            entryCache.promote( id, entry );
+                        }
+                    }
+                    finally
+                    {
+                        unlockCacheFill();
+                    }
+                }
+            }
 
             if ( entry != null )
             {
@@ -1356,14 +1905,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 return entry;
             }
 
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 entry = master.get( partitionTxn, id );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
 
             if ( entry != null )
@@ -1371,8 +1921,23 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 // We have to store the DN in this entry
                 entry.setDn( dn );
 
-                // always store original entry in the cache
-                addToCache( id, entry );
+                // always store original entry in the cache, unless it has been read from an outdated snapshot
+                if ( cacheable )
+                {
+                    lockCacheFill();
+
+                    try
+                    {
+                        if ( isCacheable( partitionTxn ) )
+                        {
+                            addToCache( id, entry );
+                        }
+                    }
+                    finally
+                    {
+                        unlockCacheFill();
+                    }
+                }
 
                 entry = new ClonedServerEntry( entry );
 
@@ -1386,6 +1951,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             return null;
         }
+        catch ( PartitionLockException ple )
+        {
+            throw ple;
+        }
         catch ( Exception e )
         {
             throw new LdapOperationErrorException( e.getMessage(), e );
@@ -1522,7 +2091,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 objectClassIdx.add( partitionTxn, normalizedOc, id );
             }
         }
-        else if ( hasUserIndexOn( attributeType ) )
+        else if ( isUserIndexed( attributeType ) )
         {
             Index<?, String> userIndex = getUserIndex( attributeType );
 
@@ -1645,7 +2214,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 objectClassIdx.add( partitionTxn, normalizedOc, id );
             }
         }
-        else if ( hasUserIndexOn( attributeType ) )
+        else if ( isUserIndexed( attributeType ) )
         {
             Index<?, String> userIndex = getUserIndex( attributeType );
 
@@ -1787,7 +2356,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 objectClassIdx.add( partitionTxn, normalizedOc, id );
             }
         }
-        else if ( hasUserIndexOn( attributeType ) )
+        else if ( isUserIndexed( attributeType ) )
         {
             Index<?, String> userIndex = getUserIndex( attributeType );
 
@@ -1954,7 +2523,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
         }
-        else if ( hasUserIndexOn( attributeType ) )
+        else if ( isUserIndexed( attributeType ) )
         {
             Index<?, String> userIndex = getUserIndex( attributeType );
 
@@ -2144,12 +2713,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         updateRdnIdx( partitionTxn, oldParentId, REMOVE_CHILD, movedEntry.getNbDescendants() );
 
         rdnIdx.drop( partitionTxn, entryId );
-        updatePiarCache( movedEntry, entryId, DEL_CACHE );
+        updatePiarCache( partitionTxn, movedEntry, entryId, DEL_CACHE );
 
         // Now, add the new entry at the right position
         movedEntry.setParentId( newParentId );
         rdnIdx.add( partitionTxn, movedEntry, entryId );
-        updatePiarCache( movedEntry, entryId, ADD_CACHE );
+        updatePiarCache( partitionTxn, movedEntry, entryId, ADD_CACHE );
 
         updateRdnIdx( partitionTxn, newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
 
@@ -2190,7 +2759,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // Remove the EntryDN
         modifiedEntry.removeAttributes( entryDnAT );
 
-        entryDnCache.invalidateAll();
+        invalidateEntryDns( partitionTxn );
         
         setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
@@ -2300,7 +2869,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         
         // First drop the moved entry from the rdn index
         rdnIdx.drop( partitionTxn, entryId );
-        updatePiarCache( movedEntry, entryId, DEL_CACHE );
+        updatePiarCache( partitionTxn, movedEntry, entryId, DEL_CACHE );
 
         //
         // The update the Rdn index. We will remove the ParentIdAndRdn associated with the
@@ -2326,7 +2895,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         movedEntry.setRdns( new Rdn[]
             { newRdn } );
         rdnIdx.add( partitionTxn, movedEntry, entryId );
-        updatePiarCache( movedEntry, entryId, ADD_CACHE );
+        updatePiarCache( partitionTxn, movedEntry, entryId, ADD_CACHE );
 
         updateRdnIdx( partitionTxn, newParentId, ADD_CHILD, movedEntry.getNbDescendants() );
 
@@ -2370,7 +2939,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         modifiedEntry.add( ApacheSchemaConstants.ENTRY_PARENT_ID_OID, newParentId );
         
         // Doom the DN cache now
-        entryDnCache.invalidateAll();
+        invalidateEntryDns( partitionTxn );
 
         setContextCsn( modifiedEntry.get( entryCsnAT ).getString() );
 
@@ -2397,7 +2966,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 AttributeType attributeType = modDnAva.getAva().getAttributeType();
                 
-                if ( !hasIndexOn( attributeType ) )
+                if ( !isUserIndexed( attributeType ) && !hasSystemIndexOn( attributeType ) )
                 {
                     break;
                 }
@@ -2532,7 +3101,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 entry.removeAttributes( newRdnAttrType );
                 
                 // Deal with the index
-                if ( hasUserIndexOn( newRdnAttrType ) )
+                if ( isUserIndexed( newRdnAttrType ) )
                 {
                     Index<?, String> userIndex = getUserIndex( newRdnAttrType );
 
@@ -2559,7 +3128,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 entry.add( newRdnAttrType, newAtav.getValue().getBytes() );
             }
 
-            if ( hasUserIndexOn( newRdnAttrType ) )
+            if ( isUserIndexed( newRdnAttrType ) )
             {
                 Index<?, String> userIndex = getUserIndex( newRdnAttrType );
                 
@@ -2619,7 +3188,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                     AttributeType oldRdnAttrType = schemaManager.lookupAttributeTypeRegistry( oldNormType );
                     entry.remove( oldRdnAttrType, oldNormValue );
 
-                    if ( hasUserIndexOn( oldRdnAttrType ) )
+                    if ( isUserIndexed( oldRdnAttrType ) )
                     {
                         Index<?, String> userIndex = getUserIndex( oldRdnAttrType );
                         
@@ -2683,7 +3252,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // Now we can drop it
         rdnIdx.drop( partitionTxn, oldId );
         
-        updatePiarCache( parentIdAndRdn, oldId, DEL_CACHE );
+        updatePiarCache( partitionTxn, parentIdAndRdn, oldId, DEL_CACHE );
 
         // Update the descendants
         parentIdAndRdn.setParentId( parentId );
@@ -2691,9 +3260,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         rdnIdx.add( partitionTxn, parentIdAndRdn, oldId );
 
-        updatePiarCache( parentIdAndRdn, oldId, ADD_CACHE );
+        updatePiarCache( partitionTxn, parentIdAndRdn, oldId, ADD_CACHE );
 
-        entryDnCache.invalidateAll();
+        invalidateEntryDns( partitionTxn );
         
         if ( isSyncOnWrite.get() )
         {
@@ -2737,6 +3306,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             return entry != null;
         }
+        catch ( PartitionLockException ple )
+        {
+            // We don't know if the entry exists
+            throw ple;
+        }
         catch ( LdapException e )
         {
             return false;
@@ -2744,37 +3318,80 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
-    //---------------------------------------------------------------------------------------------
-    // Helper methods
-    //---------------------------------------------------------------------------------------------
-    /**
-     * updates the CSN index
-     *
-     * @param partitionTxn The transaction to use
-     * @param entry the entry having entryCSN attribute
-     * @param id UUID of the entry
-     * @throws Exception
-     */
-    private void updateCsnIndex( PartitionTxn partitionTxn, Entry entry, String id ) throws LdapException
-    {
-        String entryCsn = entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
-        entryCsnIdx.drop( partitionTxn, id );
-        entryCsnIdx.add( partitionTxn, entryCsn, id );
-    }
-    
-    
+    //---------------------------------------------------------------------------------------------
+    // Helper methods
+    //---------------------------------------------------------------------------------------------
+    /**
+     * updates the CSN index
+     *
+     * @param partitionTxn The transaction to use
+     * @param entry the entry having entryCSN attribute
+     * @param id UUID of the entry
+     * @throws Exception
+     */
+    private void updateCsnIndex( PartitionTxn partitionTxn, Entry entry, String id ) throws LdapException
+    {
+        String entryCsn = entry.get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        entryCsnIdx.drop( partitionTxn, id );
+        entryCsnIdx.add( partitionTxn, entryCsn, id );
+    }
+    
+    
+    /**
+     * Update the ParentIdAndRdn cache, by adding or removing an element
+     */
+    private void updatePiarCache( PartitionTxn partitionTxn, ParentIdAndRdn piar, String id, boolean add )
+    {
+        CacheInvalidations invalidations = getCacheInvalidations( partitionTxn );
+
+        if ( invalidations != null )
+        {
+            invalidations.invalidate( id );
+        }
+        else if ( add == ADD_CACHE )
+        {
+            piarCache.put( id, piar );
+        }
+        else
+        {
+            piarCache.invalidate( id );
+        }
+    }
+
+
+    /**
+     * Removes the DN of a deleted entry from the cache
+     */
+    private void invalidateEntryDn( PartitionTxn partitionTxn, String id )
+    {
+        CacheInvalidations invalidations = getCacheInvalidations( partitionTxn );
+
+        if ( invalidations != null )
+        {
+            invalidations.invalidate( id );
+        }
+        else
+        {
+            entryDnCache.invalidate( id );
+        }
+    }
+
+
     /**
-     * Update the ParentIdAndRdn cache, by adding or removing an element
+     * Clears the DN cache, when an entry has been moved or renamed : the DNs of all
+     * its descendants have changed
      */
-    private void updatePiarCache( ParentIdAndRdn piar, String id, boolean add )
+    private void invalidateEntryDns( PartitionTxn partitionTxn )
     {
-        if ( add == ADD_CACHE )
+        CacheInvalidations invalidations = getCacheInvalidations( partitionTxn );
+
+        if ( invalidations != null )
         {
-            piarCache.put( id, piar );
+            invalidations.invalidateDns();
         }
         else
         {
-            piarCache.invalidate( id );
+            entryDnCache.invalidateAll();
         }
     }
 
@@ -2791,6 +3408,30 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      * @throws LdapException If we can't build the entry Dn
      */
     protected Dn buildEntryDn( PartitionTxn partitionTxn, String id ) throws LdapException
+    {
+        if ( !isCacheable( partitionTxn ) )
+        {
+            return buildEntryDn( partitionTxn, id, false );
+        }
+
+        Dn dn = buildEntryDn( partitionTxn, id, true );
+
+        if ( !isCacheable( partitionTxn ) )
+        {
+            // A write has been committed in the meantime : what we read from the caches
+            // may be newer than the transaction's snapshot
+            return buildEntryDn( partitionTxn, id, false );
+        }
+
+        return dn;
+    }
+
+
+    /**
+     * builds the Dn of the entry identified by the given id, reading the RDNs from the
+     * caches or not.
+     */
+    private Dn buildEntryDn( PartitionTxn partitionTxn, String id, boolean cacheable ) throws LdapException
     {
         String parentId = id;
         String rootId = Partition.ROOT_ID;
@@ -2801,11 +3442,12 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         Dn dn = null;
         
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
 
-            if ( entryDnCache != null )
+            if ( cacheable && ( entryDnCache != null ) )
             {
                 Dn cachedDn = entryDnCache.getIfPresent( id );
                 
@@ -2819,7 +3461,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             {
                 ParentIdAndRdn cur;
             
-                if ( piarCache != null )
+                if ( cacheable && ( piarCache != null ) )
                 {
                     cur = piarCache.getIfPresent( parentId );
                     
@@ -2832,7 +3474,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                             return null;
                         }
                         
-                        piarCache.put( parentId, cur );
+                        fillCache( partitionTxn, piarCache, parentId, cur );
                     }
                 }
                 else
@@ -2866,12 +3508,38 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             
             dn = new Dn( schemaManager, Arrays.copyOf( rdnArray, pos ) );
             
-            entryDnCache.put( id, dn );
+            if ( cacheable )
+            {
+                fillCache( partitionTxn, entryDnCache, id, dn );
+            }
+
             return dn;
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
+        }
+    }
+
+
+    /**
+     * Stores a value read by a transaction in a cache, unless a write has been committed
+     * since the transaction started : the value may be outdated.
+     */
+    private <V> void fillCache( PartitionTxn partitionTxn, Cache<String, V> cache, String id, V value )
+    {
+        lockCacheFill();
+
+        try
+        {
+            if ( isCacheable( partitionTxn ) )
+            {
+                cache.put( id, value );
+            }
+        }
+        finally
+        {
+            unlockCacheFill();
         }
     }
 
@@ -2886,6 +3554,86 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCachedCount( PartitionTxn partitionTxn ) throws LdapException
+    {
+        long sequence = getCountSequence( partitionTxn );
+        long[] cached = cachedCount;
+
+        if ( ( sequence >= 0L ) && ( cached != null ) && ( cached[0] == sequence ) )
+        {
+            return cached[1];
+        }
+
+        long count = count( partitionTxn );
+
+        // Don't cache the count if an entry has been added or deleted meanwhile
+        if ( ( sequence >= 0L ) && ( getCountSequence( partitionTxn ) == sequence ) )
+        {
+            cachedCount = new long[] { sequence, count };
+        }
+
+        return count;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getIdsAfter( PartitionTxn partitionTxn, String afterId, int count ) throws LdapException
+    {
+        List<String> ids = new ArrayList<>();
+
+        lockRead();
+
+        try ( Cursor<Tuple<String, Entry>> cursor = master.cursor() )
+        {
+            if ( afterId == null )
+            {
+                cursor.beforeFirst();
+            }
+            else
+            {
+                cursor.after( new Tuple<String, Entry>( afterId, null ) );
+            }
+
+            while ( ( ids.size() < count ) && cursor.next() )
+            {
+                ids.add( cursor.get().getKey() );
+            }
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+        finally
+        {
+            unlockRead();
+        }
+
+        return ids;
+    }
+
+
+    /**
+     * Gets a number which changes each time an entry is added or deleted, as seen by the
+     * given transaction : two transactions getting the same number see the same number of
+     * entries.
+     *
+     * @param partitionTxn The transaction in use
+     * @return The count sequence, or -1 if the number of entries the transaction sees
+     * must not be cached
+     */
+    protected long getCountSequence( PartitionTxn partitionTxn )
+    {
+        return countSequence.get();
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -2931,9 +3679,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             ParentIdAndRdn suffixKey = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
 
             // Check into the Rdn index, starting with the partition Suffix
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 String currentId = rdnIdx.forwardLookup( partitionTxn, suffixKey );
 
                 for ( int i = dn.size() - suffixDn.size(); i > 0; i-- )
@@ -2953,9 +3702,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
+        catch ( PartitionLockException ple )
+        {
+            throw ple;
+        }
         catch ( Exception e )
         {
             throw new LdapException( e.getMessage(), e );
@@ -2969,9 +3722,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     @Override
     public String getParentId( PartitionTxn partitionTxn, String childId ) throws LdapException
     {
+        lockRead();
+
         try
         {
-            rwLock.readLock().lock();
             ParentIdAndRdn key = rdnIdx.reverseLookup( partitionTxn, childId );
 
             if ( key == null )
@@ -2983,7 +3737,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         }
         finally
         {
-            rwLock.readLock().unlock();
+            unlockRead();
         }
     }
 
@@ -3001,14 +3755,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         {
             ParentIdAndRdn key = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
 
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 suffixId = rdnIdx.forwardLookup( partitionTxn, key );
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
 
@@ -3271,6 +4026,17 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     @Override
     public boolean hasUserIndexOn( AttributeType attributeType ) throws LdapException
+    {
+        // The searches can't use the user indices while some entries are missing from them
+        return !userIndicesIncomplete && isUserIndexed( attributeType );
+    }
+
+
+    /**
+     * Tells if a user index exists for an attribute, even if it's not complete. The
+     * updates must use this method, while the searches use {@link #hasUserIndexOn(AttributeType)}.
+     */
+    private boolean isUserIndexed( AttributeType attributeType )
     {
         if ( attributeType == null )
         {
@@ -3637,11 +4403,26 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
 
     /**
-     * Acquire a Read lock
+     * Acquire a Read lock. Nothing is done if the partition reads from a stable snapshot,
+     * as the writes can't be seen by the readers until they are committed. The lock of
+     * the OperationManager is taken in the order of the partition suffixes, as this read
+     * may be nested in an operation holding the lock of another partition.
+     * 
+     * @throws PartitionLockException If the lock can't be acquired without risking a deadlock
      */
-    private void lockRead()
+    private void lockRead() throws PartitionLockException
     {
-        rwLock.readLock().lock();
+        if ( !isSnapshotReadSupported() )
+        {
+            if ( rwLock instanceof PartitionReadWriteLock )
+            {
+                ( ( PartitionReadWriteLock ) rwLock ).lockRead();
+            }
+            else
+            {
+                rwLock.readLock().lock();
+            }
+        }
     }
 
 
@@ -3650,16 +4431,29 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     private void unlockRead()
     {
-        rwLock.readLock().unlock();
+        if ( !isSnapshotReadSupported() )
+        {
+            rwLock.readLock().unlock();
+        }
     }
 
 
     /**
-     * Acquire a Write lock
+     * Acquire a Write lock, in the order of the partition suffixes if the lock comes from
+     * the OperationManager
+     * 
+     * @throws PartitionLockException If the lock can't be acquired without risking a deadlock
      */
-    private void lockWrite()
+    private void lockWrite() throws PartitionLockException
     {
-        rwLock.writeLock().lock();
+        if ( rwLock instanceof PartitionReadWriteLock )
+        {
+            ( ( PartitionReadWriteLock ) rwLock ).lockWrite();
+        }
+        else
+        {
+            rwLock.writeLock().lock();
+        }
     }
 
 
@@ -3679,7 +4473,65 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public void updateCache( OperationContext opCtx )
     {
-        // partition implementations should override this if they want to use cache
+        if ( entryCache == null )
+        {
+            return;
+        }
+
+        // The changes are applied when the transaction is committed, if it's needed
+        CacheInvalidations invalidations = getCacheInvalidations( opCtx.getTransaction() );
+
+        try
+        {
+            if ( opCtx instanceof ModifyOperationContext )
+            {
+                // replace the entry
+                ModifyOperationContext modCtx = ( ModifyOperationContext ) opCtx;
+                Entry entry = modCtx.getAlteredEntry();
+                String id = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+
+                if ( invalidations != null )
+                {
+                    invalidations.invalidate( id );
+                }
+                else
+                {
+                    entryCache.put( id, entry );
+                }
+            }
+            else if ( ( opCtx instanceof MoveOperationContext ) || ( opCtx instanceof MoveAndRenameOperationContext )
+                || ( opCtx instanceof RenameOperationContext ) )
+            {
+                // clear the cache it is not worth updating all the children
+                if ( invalidations != null )
+                {
+                    invalidations.invalidateDns();
+                }
+                else
+                {
+                    entryCache.clear();
+                }
+            }
+            else if ( opCtx instanceof DeleteOperationContext )
+            {
+                // delete the entry
+                DeleteOperationContext delCtx = ( DeleteOperationContext ) opCtx;
+                String id = delCtx.getEntry().get( SchemaConstants.ENTRY_UUID_AT ).getString();
+
+                if ( invalidations != null )
+                {
+                    invalidations.invalidate( id );
+                }
+                else
+                {
+                    entryCache.invalidate( id );
+                }
+            }
+        }
+        catch ( LdapException e )
+        {
+            LOG.warn( "Failed to update entry cache", e );
+        }
     }
 
 
@@ -3691,7 +4543,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public Entry lookupCache( String id )
     {
-        return null;
+        return ( entryCache != null ) ? entryCache.get( id ) : null;
+    }
+
+
+    /**
+     * looks up for the entry with the given ID in the cache
+     *
+     * @param id the ID of the entry
+     * @param dn the DN of the entry, set on the entry if it is read from the off-heap cache
+     * @return the Entry if exists, null otherwise
+     */
+    public Entry lookupCache( String id, Dn dn )
+    {
+        return ( entryCache != null ) ? entryCache.get( id, dn ) : null;
     }
 
 
@@ -3706,6 +4571,108 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     public void addToCache( String id, Entry entry )
     {
+        if ( entryCache != null )
+        {
+            entryCache.put( id, entry );
+        }
+    }
+
+
+    /**
+     * removes the entry with the given ID from the cache
+     *
+     * @param id ID of the entry
+     */
+    public void evictFromCache( String id )
+    {
+        if ( entryCache != null )
+        {
+            entryCache.invalidate( id );
+        }
+    }
+
+
+    /**
+     * Tells if the caches can be used by the given transaction. The caches always reflect
+     * the latest state of the partition, so a transaction which reads from an older
+     * snapshot should neither read them nor feed them.
+     *
+     * @param partitionTxn The transaction to check
+     * @return <code>true</code> if the transaction can use the caches
+     */
+    protected boolean isCacheable( PartitionTxn partitionTxn )
+    {
+        // When the reads are protected by a lock, they always see the latest state
+        return true;
+    }
+
+
+    /**
+     * Gets the changes to make to the caches when the given write transaction is committed.
+     * A backend whose readers keep on seeing the previous state of the partition while a
+     * write is in progress must not change the caches before the commit, and must discard
+     * the changes if the transaction is aborted.
+     *
+     * @param partitionTxn The write transaction
+     * @return The changes to apply on commit, or <code>null</code> if the caches are updated
+     * at once, as the writes are serialized with the reads by the partition lock
+     */
+    protected CacheInvalidations getCacheInvalidations( PartitionTxn partitionTxn )
+    {
+        return null;
+    }
+
+
+    /**
+     * Acquires the lock preventing a write transaction from being committed while a value
+     * read by another transaction is stored in a cache. This default implementation does
+     * nothing, the reads being serialized with the writes by the partition lock.
+     */
+    protected void lockCacheFill()
+    {
+        // Nothing to do
+    }
+
+
+    /**
+     * Releases the lock acquired by {@link #lockCacheFill()}
+     */
+    protected void unlockCacheFill()
+    {
+        // Nothing to do
+    }
+
+
+    /**
+     * Invalidates the cached data of some entries, once the write transaction which has
+     * modified them is committed.
+     *
+     * @param ids The UUIDs of the modified entries
+     * @param dnsChanged If some entries have been moved or renamed
+     */
+    void invalidateCaches( Set<String> ids, boolean dnsChanged )
+    {
+        for ( String id : ids )
+        {
+            if ( entryCache != null )
+            {
+                entryCache.invalidate( id );
+            }
+
+            piarCache.invalidate( id );
+            entryDnCache.invalidate( id );
+        }
+
+        if ( dnsChanged )
+        {
+            // The DNs of the descendants of the moved entries have changed
+            if ( entryCache != null )
+            {
+                entryCache.clear();
+            }
+
+            entryDnCache.invalidateAll();
+        }
     }
 
 
@@ -3745,7 +4712,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         if ( operationContext.getSession() != null )
         {
-            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock();
+            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock( this );
         }
         else
         {
@@ -3898,9 +4865,10 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         try
         {
             // Check into the Rdn index, starting with the partition Suffix
+            lockRead();
+
             try
             {
-                rwLock.readLock().lock();
                 ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( partitionTxn, entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
 
                 subordinates.setNbChildren( parentIdAndRdn.getNbChildren() );
@@ -3908,9 +4876,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             finally
             {
-                rwLock.readLock().unlock();
+                unlockRead();
             }
         }
+        catch ( PartitionLockException ple )
+        {
+            throw ple;
+        }
         catch ( Exception e )
         {
             throw new LdapException( e.getMessage(), e );
@@ -0,0 +1,87 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * The changes a write transaction has to make to the caches of a partition, kept
+ * until the transaction is committed. Until then, the other transactions still see
+ * the previous state of the partition, which is the one the caches reflect. If the
+ * transaction is aborted, the caches are left untouched.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CacheInvalidations
+{
+    /** The partition owning the caches */
+    private final AbstractBTreePartition partition;
+
+    /** The UUIDs of the entries which have been modified */
+    private final Set<String> ids = new HashSet<>();
+
+    /** Tells if some DNs have changed, so that the entry and DN caches must be cleared */
+    private boolean dnsChanged;
+
+
+    /**
+     * Creates a new CacheInvalidations instance
+     *
+     * @param partition The partition owning the caches
+     */
+    public CacheInvalidations( AbstractBTreePartition partition )
+    {
+        this.partition = partition;
+    }
+
+
+    /**
+     * Records that an entry has been added, modified or deleted
+     *
+     * @param id The entry UUID
+     */
+    public void invalidate( String id )
+    {
+        ids.add( id );
+    }
+
+
+    /**
+     * Records that an entry has been moved or renamed : the DNs of all its descendants
+     * have changed.
+     */
+    public void invalidateDns()
+    {
+        dnsChanged = true;
+    }
+
+
+    /**
+     * Invalidates the cached data of the modified entries. This must be called once the
+     * transaction is committed, before a new transaction can use the caches.
+     */
+    public void apply()
+    {
+        partition.invalidateCaches( ids, dnsChanged );
+    }
+}
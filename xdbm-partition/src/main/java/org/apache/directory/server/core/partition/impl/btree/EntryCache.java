@@ -0,0 +1,729 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+
+/**
+ * The cache of the entries read from the master table of a partition, by entryUUID.
+ * <p>
+ * The cache is bounded either by a number of entries, or by a number of bytes, the
+ * size of each entry being estimated from the size of its values : entries with large
+ * values (photos, certificates) then take the room of many small entries.
+ * <p>
+ * With a byte budget, the cache can also keep the coldest entries serialized, which
+ * is several times smaller than the Entry objects, so more entries fit in the budget.
+ * When the cache is more than half full, the least recently used entries are
+ * serialized. They are deserialized when they are read again, and become hot.
+ * <p>
+ * The cache can have a second level, an {@link OffHeapEntryCache} : the entries
+ * evicted from the cache are then serialized outside of the Java heap. The partition
+ * promotes them back into the cache when they are read again, see
+ * {@link #promote(String, Entry)}.
+ * <p>
+ * The cache is concurrent : it is backed by a Caffeine cache, and all the changes
+ * of an entry are atomic. The evictions are done by the threads adding entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryCache
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( EntryCache.class );
+
+    /** The estimated size of an Entry, without its attributes */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /** The estimated size of an Attribute, without its values */
+    private static final int ATTRIBUTE_OVERHEAD = 112;
+
+    /** The estimated size of a Value, without its content */
+    private static final int VALUE_OVERHEAD = 64;
+
+    /** The estimated size of a serialized entry holder, without its bytes */
+    private static final int SERIALIZED_OVERHEAD = 48;
+
+    /** The number of additions between two serializations of the coldest entries */
+    private static final int SERIALIZATION_PERIOD = 64;
+
+    /** The maximum number of entries serialized at once */
+    private static final int SERIALIZATION_BATCH = 256;
+
+    /** The SchemaManager, needed to deserialize the entries */
+    private final SchemaManager schemaManager;
+
+    /** The cached entries, either Entry or SerializedEntry instances */
+    private final Cache<String, Object> entries;
+
+    /** The maximum size of the cache in bytes, or 0 if it is bounded by a number of entries */
+    private final long maxBytes;
+
+    /** Tells if the coldest entries are serialized */
+    private final boolean serializeColdEntries;
+
+    /** The off-heap cache storing the evicted entries, if any */
+    private final OffHeapEntryCache secondLevel;
+
+    /** The number of additions since the coldest entries were last serialized */
+    private final LongAdder additions = new LongAdder();
+
+    /** The number of entries found in the cache */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of entries found serialized in the cache */
+    private final LongAdder serializedHits = new LongAdder();
+
+    /** The number of entries found in the second level cache */
+    private final LongAdder secondLevelHits = new LongAdder();
+
+    /** The number of entries not found in the cache */
+    private final LongAdder misses = new LongAdder();
+
+    /** The number of entries evicted because the cache was full */
+    private final LongAdder evictions = new LongAdder();
+
+    /** The number of entries serialized */
+    private final LongAdder serializations = new LongAdder();
+
+
+    /**
+     * A serialized entry. The Dn is not serialized, as it is already
+     * normalized, and shared with the other caches.
+     */
+    private static final class SerializedEntry
+    {
+        private final Dn dn;
+        private final byte[] bytes;
+
+
+        private SerializedEntry( Dn dn, byte[] bytes )
+        {
+            this.dn = dn;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of EntryCache, bounded by a number of entries.
+     *
+     * @param schemaManager The SchemaManager
+     * @param maxEntries The maximum number of entries
+     */
+    public EntryCache( SchemaManager schemaManager, int maxEntries )
+    {
+        this( schemaManager, maxEntries, null );
+    }
+
+
+    /**
+     * Creates a new instance of EntryCache, bounded by a number of entries.
+     *
+     * @param schemaManager The SchemaManager
+     * @param maxEntries The maximum number of entries
+     * @param secondLevel The off-heap cache storing the evicted entries, or null
+     */
+    public EntryCache( SchemaManager schemaManager, int maxEntries, OffHeapEntryCache secondLevel )
+    {
+        this.schemaManager = schemaManager;
+        this.maxBytes = 0L;
+        this.serializeColdEntries = false;
+        this.secondLevel = secondLevel;
+
+        entries = build( Caffeine.newBuilder()
+            .maximumSize( maxEntries )
+            .removalListener( ( String id, Object value, RemovalCause cause ) -> countEviction( cause ) ) );
+    }
+
+
+    /**
+     * Creates a new instance of EntryCache, bounded by a number of bytes.
+     *
+     * @param schemaManager The SchemaManager
+     * @param maxBytes The maximum size of the cache, in bytes
+     * @param serializeColdEntries If the coldest entries are kept serialized
+     */
+    public EntryCache( SchemaManager schemaManager, long maxBytes, boolean serializeColdEntries )
+    {
+        this( schemaManager, maxBytes, serializeColdEntries, null );
+    }
+
+
+    /**
+     * Creates a new instance of EntryCache, bounded by a number of bytes.
+     *
+     * @param schemaManager The SchemaManager
+     * @param maxBytes The maximum size of the cache, in bytes
+     * @param serializeColdEntries If the coldest entries are kept serialized
+     * @param secondLevel The off-heap cache storing the evicted entries, or null
+     */
+    public EntryCache( SchemaManager schemaManager, long maxBytes, boolean serializeColdEntries,
+        OffHeapEntryCache secondLevel )
+    {
+        this.schemaManager = schemaManager;
+        this.maxBytes = maxBytes;
+        this.serializeColdEntries = serializeColdEntries;
+        this.secondLevel = secondLevel;
+
+        entries = build( Caffeine.newBuilder()
+            .maximumWeight( maxBytes )
+            .weigher( ( String id, Object value ) -> weigh( value ) )
+            .removalListener( ( String id, Object value, RemovalCause cause ) -> countEviction( cause ) ) );
+    }
+
+
+    private Cache<String, Object> build( Caffeine<String, Object> builder )
+    {
+        builder.executor( Runnable::run );
+
+        if ( secondLevel != null )
+        {
+            // The eviction listener is called atomically with the eviction, so an entry
+            // can't be moved to the second level after it has been modified or deleted
+            builder.evictionListener( ( String id, Object value, RemovalCause cause ) ->
+            {
+                if ( ( value != null ) && cause.wasEvicted() )
+                {
+                    moveToSecondLevel( id, value );
+                }
+            } );
+        }
+
+        return builder.build();
+    }
+
+
+    private void moveToSecondLevel( String id, Object value )
+    {
+        // The second level copy, if any, is up to date : it is removed when the entry is modified
+        if ( secondLevel.contains( id ) )
+        {
+            return;
+        }
+
+        try
+        {
+            byte[] bytes;
+
+            if ( value instanceof SerializedEntry )
+            {
+                bytes = ( ( SerializedEntry ) value ).bytes;
+            }
+            else
+            {
+                bytes = serialize( ( Entry ) value ).bytes;
+            }
+
+            secondLevel.put( id, bytes );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            LOG.warn( "Failed to move the entry {} to the off-heap cache", id, e );
+        }
+    }
+
+
+    private void countEviction( RemovalCause cause )
+    {
+        if ( cause.wasEvicted() )
+        {
+            evictions.increment();
+        }
+    }
+
+
+    private static int weigh( Object value )
+    {
+        if ( value instanceof SerializedEntry )
+        {
+            return SERIALIZED_OVERHEAD + ( ( SerializedEntry ) value ).bytes.length;
+        }
+
+        return ( int ) Math.min( Integer.MAX_VALUE, estimateSize( ( Entry ) value ) );
+    }
+
+
+    /**
+     * Estimates the memory used by an Entry. The human readable values are stored
+     * as user provided and normalized Strings, and as bytes.
+     *
+     * @param entry The entry
+     * @return The estimated size of the entry, in bytes
+     */
+    public static long estimateSize( Entry entry )
+    {
+        long size = ENTRY_OVERHEAD;
+
+        for ( Attribute attribute : entry )
+        {
+            size += ATTRIBUTE_OVERHEAD;
+
+            for ( Value value : attribute )
+            {
+                if ( value.isHumanReadable() )
+                {
+                    size += VALUE_OVERHEAD + 5L * value.length();
+                }
+                else
+                {
+                    size += VALUE_OVERHEAD + value.length();
+                }
+            }
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Gets an entry from the cache. If the entry was serialized, it is deserialized
+     * and stored back as an Entry, unless it has been modified in the meantime. An
+     * entry read from the second level is returned without its Dn, see
+     * {@link #get(String, Dn)}.
+     *
+     * @param id The entry UUID
+     * @return The cached entry, or null if it's not in the cache
+     */
+    public Entry get( String id )
+    {
+        return get( id, null );
+    }
+
+
+    /**
+     * Gets an entry from the cache. If the entry was serialized, it is deserialized
+     * and stored back as an Entry, unless it has been modified in the meantime. The
+     * second level doesn't store the Dn of the entries : an entry read from it gets
+     * the given Dn. It is not promoted back into the cache, as the caller may have
+     * to check that it's still up to date first, see {@link #promote(String, Entry)}.
+     *
+     * @param id The entry UUID
+     * @param dn The entry Dn, or null if unknown
+     * @return The cached entry, or null if it's not in the cache
+     */
+    public Entry get( String id, Dn dn )
+    {
+        Object value = entries.getIfPresent( id );
+
+        if ( value == null )
+        {
+            return getFromSecondLevel( id, dn );
+        }
+
+        if ( value instanceof Entry )
+        {
+            hits.increment();
+
+            return ( Entry ) value;
+        }
+
+        try
+        {
+            SerializedEntry serializedEntry = ( SerializedEntry ) value;
+            Entry entry = deserialize( serializedEntry.dn, serializedEntry.bytes );
+            serializedHits.increment();
+
+            // The entry is hot again
+            entries.asMap().replace( id, value, entry );
+
+            return entry;
+        }
+        catch ( IOException | LdapException e )
+        {
+            LOG.warn( "Failed to deserialize the cached entry {}", id, e );
+            entries.asMap().remove( id, value );
+            misses.increment();
+
+            return null;
+        }
+    }
+
+
+    private Entry getFromSecondLevel( String id, Dn dn )
+    {
+        byte[] bytes = ( secondLevel != null ) ? secondLevel.get( id ) : null;
+
+        if ( bytes == null )
+        {
+            misses.increment();
+
+            return null;
+        }
+
+        try
+        {
+            // The Dn isn't stored, it's provided by the partition
+            Entry entry = deserialize( dn, bytes );
+            secondLevelHits.increment();
+
+            return entry;
+        }
+        catch ( IOException | LdapException e )
+        {
+            LOG.warn( "Failed to deserialize the off-heap cached entry {}", id, e );
+            secondLevel.remove( id );
+            misses.increment();
+
+            return null;
+        }
+    }
+
+
+    /**
+     * Tells if an entry returned by {@link #get(String, Dn)} has been read from the second
+     * level, and can be promoted back into the cache. An entry without Dn must not be shared.
+     *
+     * @param id The entry UUID
+     * @param entry The entry returned by the cache
+     * @return true if the entry can be promoted
+     */
+    public boolean isPromotable( String id, Entry entry )
+    {
+        return ( secondLevel != null ) && ( entry != null ) && !Dn.isNullOrEmpty( entry.getDn() )
+            && ( entries.asMap().get( id ) != entry );
+    }
+
+
+    /**
+     * Promotes back into the cache an entry read from the second level, unless it has been
+     * modified or removed since, or cached again. The caller must make sure that the entry
+     * it has read is still the latest version : the partitions which commit their writes
+     * without holding the partition lock check it while holding the cache fill lock.
+     *
+     * @param id The entry UUID
+     * @param entry The entry read from the second level, with its Dn
+     * @return true if the entry has been promoted
+     */
+    public boolean promote( String id, Entry entry )
+    {
+        // The second level copy is removed when the entry is modified or deleted
+        if ( !isPromotable( id, entry ) || !secondLevel.contains( id ) )
+        {
+            return false;
+        }
+
+        return entries.asMap().putIfAbsent( id, entry ) == null;
+    }
+
+
+    /**
+     * Stores an entry in the cache.
+     *
+     * @param id The entry UUID
+     * @param entry The entry
+     */
+    public void put( String id, Entry entry )
+    {
+        if ( entry instanceof ClonedServerEntry )
+        {
+            entry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+        }
+
+        entries.put( id, entry );
+
+        if ( secondLevel != null )
+        {
+            // The second level copy is outdated
+            secondLevel.remove( id );
+        }
+
+        if ( serializeColdEntries )
+        {
+            additions.increment();
+
+            if ( additions.sum() >= SERIALIZATION_PERIOD )
+            {
+                additions.reset();
+                serializeColdest();
+            }
+        }
+    }
+
+
+    /**
+     * Serializes the coldest entries, as long as the cache is more than half full.
+     */
+    private void serializeColdest()
+    {
+        Policy.Eviction<String, Object> eviction = entries.policy().eviction().orElse( null );
+
+        if ( ( eviction == null ) || ( eviction.weightedSize().orElse( 0L ) <= maxBytes / 2 ) )
+        {
+            return;
+        }
+
+        ConcurrentMap<String, Object> map = entries.asMap();
+
+        for ( Map.Entry<String, Object> coldest : eviction.coldest( SERIALIZATION_BATCH ).entrySet() )
+        {
+            Object value = coldest.getValue();
+
+            if ( value instanceof Entry )
+            {
+                try
+                {
+                    // Don't overwrite an entry which has been modified in the meantime
+                    if ( map.replace( coldest.getKey(), value, serialize( ( Entry ) value ) ) )
+                    {
+                        serializations.increment();
+                    }
+                }
+                catch ( IOException e )
+                {
+                    LOG.warn( "Failed to serialize the cached entry {}", coldest.getKey(), e );
+                }
+            }
+
+            if ( eviction.weightedSize().orElse( 0L ) <= maxBytes / 2 )
+            {
+                return;
+            }
+        }
+    }
+
+
+    private static SerializedEntry serialize( Entry entry ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        try ( ObjectOutputStream out = new ObjectOutputStream( baos ) )
+        {
+            out.writeInt( entry.size() );
+
+            for ( Attribute attribute : entry )
+            {
+                // The OID is needed to get back the AttributeType
+                out.writeUTF( attribute.getAttributeType().getOid() );
+                attribute.writeExternal( out );
+            }
+        }
+
+        return new SerializedEntry( entry.getDn(), baos.toByteArray() );
+    }
+
+
+    private Entry deserialize( Dn dn, byte[] bytes ) throws IOException, LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager );
+
+        if ( dn != null )
+        {
+            entry.setDn( dn );
+        }
+
+        try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            int nbAttributes = in.readInt();
+
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( in.readUTF() );
+                Attribute attribute = new DefaultAttribute( attributeType );
+                attribute.readExternal( in );
+                entry.add( attribute );
+            }
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new IOException( cnfe.getMessage(), cnfe );
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param id The entry UUID
+     */
+    public void invalidate( String id )
+    {
+        entries.invalidate( id );
+
+        if ( secondLevel != null )
+        {
+            secondLevel.remove( id );
+        }
+    }
+
+
+    /**
+     * Removes all the entries from the cache.
+     */
+    public void clear()
+    {
+        entries.invalidateAll();
+
+        if ( secondLevel != null )
+        {
+            secondLevel.clear();
+        }
+    }
+
+
+    /**
+     * @return The number of entries in the cache
+     */
+    public long size()
+    {
+        return entries.estimatedSize();
+    }
+
+
+    /**
+     * @return The estimated size of the cached entries in bytes, or -1 if the cache is bounded by a number of entries
+     */
+    public long getWeightedSize()
+    {
+        if ( maxBytes == 0L )
+        {
+            return -1L;
+        }
+
+        Policy.Eviction<String, Object> eviction = entries.policy().eviction().orElse( null );
+
+        return ( eviction == null ) ? 0L : eviction.weightedSize().orElse( 0L );
+    }
+
+
+    /**
+     * @return The maximum size of the cache in bytes, or 0 if it is bounded by a number of entries
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+
+    /**
+     * @return The off-heap cache storing the evicted entries, or null
+     */
+    public OffHeapEntryCache getSecondLevel()
+    {
+        return secondLevel;
+    }
+
+
+    /**
+     * @return The number of entries found in the cache, serialized, on heap or off heap
+     */
+    public long getHits()
+    {
+        return hits.sum() + serializedHits.sum() + secondLevelHits.sum();
+    }
+
+
+    /**
+     * @return The number of entries found serialized in the cache
+     */
+    public long getSerializedHits()
+    {
+        return serializedHits.sum();
+    }
+
+
+    /**
+     * @return The number of entries found in the second level cache
+     */
+    public long getSecondLevelHits()
+    {
+        return secondLevelHits.sum();
+    }
+
+
+    /**
+     * @return The number of entries not found in the cache
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+
+    /**
+     * @return The number of entries evicted because the cache was full
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+
+    /**
+     * @return The number of entries which have been serialized
+     */
+    public long getSerializations()
+    {
+        return serializations.sum();
+    }
+
+
+    /**
+     * @return The ratio of lookups which found the entry in the cache, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long nbHits = getHits();
+        long total = nbHits + misses.sum();
+
+        return ( total == 0L ) ? 0d : ( double ) nbHits / total;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "EntryCache[size=" + size() + ", bytes=" + getWeightedSize() + ", hits=" + getHits()
+            + ", serializedHits=" + getSerializedHits() + ", secondLevelHits=" + getSecondLevelHits()
+            + ", misses=" + getMisses() + ", evictions="
+            + getEvictions() + "]";
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * The second level of the {@link EntryCache} : serialized entries stored outside of
+ * the Java heap, in direct buffers, so that a large part of a directory can be cached
+ * without growing the heap, and without any cost for the garbage collector.
+ * <p>
+ * The memory is split in segments of equal size, allocated when needed. The entries
+ * are appended to the current segment. When all the segments are allocated and the
+ * current one is full, a segment is reclaimed using the clock algorithm : a segment
+ * from which an entry has been read since the clock hand last passed over it gets a
+ * second chance, otherwise all its entries are dropped and it is reused. A replaced
+ * or removed entry keeps its room until its segment is reclaimed.
+ * <p>
+ * The direct memory used by the cache is limited by the -XX:MaxDirectMemorySize JVM
+ * option, which must be set accordingly.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OffHeapEntryCache
+{
+    /** The default size of a segment */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The maximum number of segments */
+    private final int maxSegments;
+
+    /** The size of a segment */
+    private final int segmentSize;
+
+    /** The location of each cached entry */
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<>();
+
+    /** The allocated segments */
+    private final List<Segment> segments = new ArrayList<>();
+
+    /** The segment the entries are appended to, guarded by the cache lock */
+    private Segment current;
+
+    /** The position of the clock hand in the segments list, guarded by the cache lock */
+    private int clockHand;
+
+    /** The number of entries found in the cache */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of entries not found in the cache */
+    private final LongAdder misses = new LongAdder();
+
+    /** The number of entries dropped when their segment was reclaimed */
+    private final LongAdder evictions = new LongAdder();
+
+
+    /**
+     * A segment of off-heap memory. The entries are written with the cache lock held,
+     * past the position, where nobody reads. The read lock is held while an entry
+     * is read, and the write lock while the segment is reclaimed : the generation
+     * is then incremented, so the locations of the dropped entries become invalid.
+     */
+    private static final class Segment
+    {
+        private final ByteBuffer buffer;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** The entries written in this segment, guarded by the cache lock */
+        private final List<String> ids = new ArrayList<>();
+
+        /** The position of the next entry, guarded by the cache lock */
+        private int position;
+
+        /** The generation of the segment, guarded by the segment lock */
+        private int generation;
+
+        /** Tells if an entry has been read since the clock hand last passed */
+        private volatile boolean referenced;
+
+
+        private Segment( int size )
+        {
+            buffer = ByteBuffer.allocateDirect( size );
+        }
+    }
+
+
+    /**
+     * The location of an entry in a segment.
+     */
+    private static final class Location
+    {
+        private final Segment segment;
+        private final int generation;
+        private final int offset;
+        private final int length;
+
+
+        private Location( Segment segment, int generation, int offset, int length )
+        {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of OffHeapEntryCache, using segments of the default size.
+     *
+     * @param maxBytes The maximum off-heap memory used by the cache, in bytes
+     */
+    public OffHeapEntryCache( long maxBytes )
+    {
+        this( maxBytes, ( int ) Math.min( maxBytes, DEFAULT_SEGMENT_SIZE ) );
+    }
+
+
+    /**
+     * Creates a new instance of OffHeapEntryCache.
+     *
+     * @param maxBytes The maximum off-heap memory used by the cache, in bytes
+     * @param segmentSize The size of a segment, in bytes
+     */
+    public OffHeapEntryCache( long maxBytes, int segmentSize )
+    {
+        if ( ( segmentSize <= 0 ) || ( maxBytes < segmentSize ) )
+        {
+            throw new IllegalArgumentException( "Invalid off-heap cache size " + maxBytes + " / segment size "
+                + segmentSize );
+        }
+
+        this.segmentSize = segmentSize;
+        this.maxSegments = ( int ) Math.min( Integer.MAX_VALUE, maxBytes / segmentSize );
+    }
+
+
+    /**
+     * Gets a serialized entry from the cache.
+     *
+     * @param id The entry UUID
+     * @return A copy of the serialized entry, or null if it's not in the cache
+     */
+    public byte[] get( String id )
+    {
+        Location location = locations.get( id );
+
+        if ( location != null )
+        {
+            Segment segment = location.segment;
+            Lock readLock = segment.lock.readLock();
+            readLock.lock();
+
+            try
+            {
+                if ( segment.generation == location.generation )
+                {
+                    byte[] bytes = new byte[location.length];
+                    ByteBuffer buffer = segment.buffer.duplicate();
+                    buffer.position( location.offset );
+                    buffer.get( bytes );
+                    segment.referenced = true;
+                    hits.increment();
+
+                    return bytes;
+                }
+            }
+            finally
+            {
+                readLock.unlock();
+            }
+        }
+
+        misses.increment();
+
+        return null;
+    }
+
+
+    /**
+     * Tells if an entry is in the cache.
+     *
+     * @param id The entry UUID
+     * @return <code>true</code> if the entry is in the cache
+     */
+    public boolean contains( String id )
+    {
+        return locations.containsKey( id );
+    }
+
+
+    /**
+     * Stores a serialized entry in the cache, replacing the previous one if any.
+     *
+     * @param id The entry UUID
+     * @param bytes The serialized entry
+     * @return <code>false</code> if the entry is too large to be cached
+     */
+    public boolean put( String id, byte[] bytes )
+    {
+        if ( bytes.length > segmentSize )
+        {
+            locations.remove( id );
+
+            return false;
+        }
+
+        synchronized ( this )
+        {
+            if ( ( current == null ) || ( current.position + bytes.length > segmentSize ) )
+            {
+                current = nextSegment();
+            }
+
+            int offset = current.position;
+            ByteBuffer buffer = current.buffer.duplicate();
+            buffer.position( offset );
+            buffer.put( bytes );
+            current.position += bytes.length;
+            current.ids.add( id );
+
+            // No need to take the segment lock : only the cache lock changes the generation
+            locations.put( id, new Location( current, current.generation, offset, bytes.length ) );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Gets a segment to append the entries to : a new one if the limit is not reached,
+     * otherwise a reclaimed one.
+     */
+    private Segment nextSegment()
+    {
+        if ( segments.size() < maxSegments )
+        {
+            Segment segment = new Segment( segmentSize );
+            segments.add( segment );
+
+            return segment;
+        }
+
+        // The clock hand passes at most twice over each segment, as it clears the references
+        while ( true )
+        {
+            Segment segment = segments.get( clockHand );
+            clockHand = ( clockHand + 1 ) % segments.size();
+
+            if ( ( segment != current ) && segment.referenced )
+            {
+                segment.referenced = false;
+            }
+            else if ( ( segment != current ) || ( segments.size() == 1 ) )
+            {
+                reclaim( segment );
+
+                return segment;
+            }
+        }
+    }
+
+
+    /**
+     * Drops all the entries of a segment.
+     */
+    private void reclaim( Segment segment )
+    {
+        Lock writeLock = segment.lock.writeLock();
+        writeLock.lock();
+
+        try
+        {
+            segment.generation++;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+
+        for ( String id : segment.ids )
+        {
+            // The entry may have been written again in another segment
+            Location location = locations.get( id );
+
+            if ( ( location != null ) && ( location.segment == segment ) && locations.remove( id, location ) )
+            {
+                evictions.increment();
+            }
+        }
+
+        segment.ids.clear();
+        segment.position = 0;
+        segment.referenced = false;
+    }
+
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param id The entry UUID
+     */
+    public void remove( String id )
+    {
+        locations.remove( id );
+    }
+
+
+    /**
+     * Removes all the entries from the cache, and releases the segments.
+     */
+    public synchronized void clear()
+    {
+        for ( Segment segment : segments )
+        {
+            Lock writeLock = segment.lock.writeLock();
+            writeLock.lock();
+
+            try
+            {
+                segment.generation++;
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        locations.clear();
+        segments.clear();
+        current = null;
+        clockHand = 0;
+    }
+
+
+    /**
+     * @return The number of entries in the cache
+     */
+    public int size()
+    {
+        return locations.size();
+    }
+
+
+    /**
+     * @return The off-heap memory allocated by the cache, in bytes
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return ( long ) segments.size() * segmentSize;
+    }
+
+
+    /**
+     * @return The maximum off-heap memory used by the cache, in bytes
+     */
+    public long getMaxBytes()
+    {
+        return ( long ) maxSegments * segmentSize;
+    }
+
+
+    /**
+     * @return The number of entries found in the cache
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+
+    /**
+     * @return The number of entries not found in the cache
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+
+    /**
+     * @return The number of entries dropped when their segment was reclaimed
+     */
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "OffHeapEntryCache[size=" + size() + ", allocated=" + getAllocatedBytes() + ", hits=" + getHits()
+            + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+}
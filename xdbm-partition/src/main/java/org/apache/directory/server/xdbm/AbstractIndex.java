@@ -22,7 +22,9 @@ package org.apache.directory.server.xdbm;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 
 
@@ -52,6 +54,9 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     /** A counter used to differ the commit on disk after N operations */
     protected AtomicInteger commitNumber;
 
+    /** The statistics maintained on this index, if any */
+    protected volatile IndexStatistics statistics;
+
 
     /**
      * Creates a new instance of AbstractIndex.
@@ -162,4 +167,73 @@ public abstract class AbstractIndex<K, E> implements Index<K, E>
     {
         return withReverse;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setStatistics( IndexStatistics statistics )
+    {
+        this.statistics = statistics;
+    }
+
+
+    /**
+     * Gets the number of tuples in the index before it is updated, so that the statistics
+     * can tell if the update has added or removed a tuple. This does not read the index
+     * content, the tables keep their number of tuples.
+     *
+     * @param partitionTxn The transaction in use
+     * @return The number of tuples in the index, or -1 if the index has no statistics
+     * @throws LdapException If the index can't be read
+     */
+    protected long countForStatistics( PartitionTxn partitionTxn ) throws LdapException
+    {
+        if ( statistics == null )
+        {
+            return -1L;
+        }
+
+        return count( partitionTxn );
+    }
+
+
+    /**
+     * Updates the statistics after a tuple has been added to or removed from the index.
+     *
+     * @param partitionTxn The transaction in use
+     * @param attrVal The added or removed key
+     * @param countBefore The number of tuples before the update, as returned by
+     * {@link #countForStatistics(PartitionTxn)}
+     * @throws LdapException If the index can't be read
+     */
+    protected void updateStatistics( PartitionTxn partitionTxn, K attrVal, long countBefore ) throws LdapException
+    {
+        IndexStatistics stats = statistics;
+
+        if ( ( stats == null ) || ( countBefore < 0L ) || ( attrVal == null ) )
+        {
+            return;
+        }
+
+        long countAfter = count( partitionTxn );
+
+        if ( countAfter > countBefore )
+        {
+            stats.added( attrVal );
+        }
+        else if ( countAfter < countBefore )
+        {
+            stats.dropped( attrVal );
+        }
+    }
 }
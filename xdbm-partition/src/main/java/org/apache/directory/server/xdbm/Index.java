@@ -345,4 +345,22 @@ public interface Index<K, E>
      * @return true if the index has a reverse table
      */
     boolean hasReverse();
+
+
+    /**
+     * Gets the statistics maintained on this index, used to estimate the number of
+     * candidates of a filter without reading the index.
+     *
+     * @return The index statistics, or null if they are not maintained
+     */
+    IndexStatistics getStatistics();
+
+
+    /**
+     * Sets the statistics to maintain on this index. They will be updated on each
+     * add and drop.
+     *
+     * @param statistics The index statistics, or null to stop maintaining them
+     */
+    void setStatistics( IndexStatistics statistics );
 }
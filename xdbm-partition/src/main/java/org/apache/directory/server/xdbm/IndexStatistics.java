@@ -0,0 +1,603 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+
+
+/**
+ * The statistics gathered on a user index, used by the optimizer to estimate the
+ * number of candidates a filter will return without reading the index.
+ * <p>
+ * We keep the number of tuples (key, entry ID) and the number of distinct keys
+ * stored in the index. When the indexed AttributeType has an ORDERING matching
+ * rule, we also keep an equi-depth histogram : the keys are split in buckets
+ * holding about the same number of tuples when the statistics are built, and
+ * each bucket counts its tuples and distinct keys. The bucket boundaries do not
+ * move when the index is modified, only the counters are updated, so the
+ * statistics have to be rebuilt when the index has changed too much since they
+ * were built (see {@link #isStale(long)}).
+ * <p>
+ * The tuple counters are updated by the index on each add and drop, under the
+ * partition write lock, and may be read concurrently by the searches. Knowing if
+ * a key is added or removed would cost two more index lookups for each update, so
+ * the number of distinct keys is not maintained : it is estimated assuming that the
+ * number of tuples per key does not change until the statistics are rebuilt.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatistics
+{
+    /** The default number of buckets in a histogram */
+    public static final int DEFAULT_NB_BUCKETS = 64;
+
+    /** The serialization format version */
+    private static final int VERSION = 1;
+
+    /** The statistics are rebuilt when the index size has changed by this percentage since the last build */
+    private static final long MAX_DRIFT_PERCENT = 10L;
+
+    /** Under this number of tuples, a drift is never considered as significant */
+    private static final long MIN_DRIFT = 100L;
+
+    /** The number of tuples in the index */
+    private final AtomicLong count;
+
+    /** The number of distinct keys in the index when the statistics were built or read */
+    private final long distinct;
+
+    /** The number of tuples in the index when the statistics were built or read */
+    private final long baseCount;
+
+    /** The number of tuples when the statistics were built */
+    private final long builtCount;
+
+    /** The inclusive upper bounds of the buckets. The last bucket has no upper bound. Null if there is no histogram */
+    private final String[] bounds;
+
+    /** The number of tuples in each bucket */
+    private final AtomicLongArray bucketCounts;
+
+    /** The number of distinct keys in each bucket when the statistics were built or read */
+    private final long[] bucketDistincts;
+
+    /** The number of tuples in each bucket when the statistics were built or read */
+    private final long[] bucketBaseCounts;
+
+    /** The comparator used to order the keys */
+    private final Comparator<String> comparator;
+
+
+    /**
+     * Creates a new instance of IndexStatistics.
+     */
+    private IndexStatistics( long count, long distinct, long builtCount, String[] bounds, long[] bucketCounts,
+        long[] bucketDistincts, Comparator<String> comparator )
+    {
+        this.count = new AtomicLong( count );
+        this.distinct = distinct;
+        this.baseCount = count;
+        this.builtCount = builtCount;
+        this.comparator = comparator;
+
+        if ( ( bounds != null ) && ( comparator != null ) )
+        {
+            this.bounds = bounds;
+            this.bucketCounts = new AtomicLongArray( bucketCounts );
+            this.bucketDistincts = bucketDistincts;
+            this.bucketBaseCounts = bucketCounts.clone();
+        }
+        else
+        {
+            this.bounds = null;
+            this.bucketCounts = null;
+            this.bucketDistincts = null;
+            this.bucketBaseCounts = null;
+        }
+    }
+
+
+    /**
+     * Gets the comparator used to order the keys of an index, if a histogram can be
+     * built for the index AttributeType. This is the comparator the index uses, so
+     * that the histogram bounds are ordered the same way as the index keys.
+     *
+     * @param attributeType The indexed AttributeType
+     * @return The comparator, or null if the AttributeType is not ordered
+     */
+    @SuppressWarnings("unchecked")
+    public static Comparator<String> getComparator( AttributeType attributeType )
+    {
+        if ( ( attributeType == null ) || ( attributeType.getOrdering() == null ) )
+        {
+            return null;
+        }
+
+        MatchingRule mr = attributeType.getEquality();
+
+        if ( mr == null )
+        {
+            mr = attributeType.getOrdering();
+        }
+
+        if ( ( mr == null ) || ( mr.getLdapComparator() == null ) )
+        {
+            return null;
+        }
+
+        return ( Comparator<String> ) ( Comparator<?> ) mr.getLdapComparator();
+    }
+
+
+    /**
+     * Builds the statistics of an index by browsing all its tuples.
+     *
+     * @param partitionTxn The transaction to use
+     * @param index The index to analyze
+     * @param nbBuckets The number of buckets of the histogram
+     * @return The index statistics
+     * @throws LdapException If the index can't be read
+     */
+    public static <K> IndexStatistics build( PartitionTxn partitionTxn, Index<K, String> index, int nbBuckets )
+        throws LdapException
+    {
+        Comparator<String> comparator = getComparator( index.getAttribute() );
+        long total = index.count( partitionTxn );
+        long bucketTarget = Math.max( 1L, ( total + nbBuckets - 1 ) / nbBuckets );
+
+        List<String> bounds = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        List<Long> distincts = new ArrayList<>();
+        boolean withHistogram = comparator != null;
+
+        long nbTuples = 0L;
+        long nbKeys = 0L;
+        long bucketCount = 0L;
+        long bucketDistinct = 0L;
+        K previous = null;
+
+        try ( Cursor<IndexEntry<K, String>> cursor = index.forwardCursor( partitionTxn ) )
+        {
+            while ( cursor.next() )
+            {
+                K key = cursor.get().getKey();
+                boolean newKey = ( previous == null ) || !previous.equals( key );
+
+                if ( newKey && withHistogram )
+                {
+                    if ( !( key instanceof String )
+                        || ( ( previous != null ) && ( comparator.compare( ( String ) previous, ( String ) key ) > 0 ) ) )
+                    {
+                        // The keys are not ordered the way we expect : no histogram
+                        withHistogram = false;
+                    }
+                    else if ( bucketCount >= bucketTarget )
+                    {
+                        // Close the current bucket on the previous key
+                        bounds.add( ( String ) previous );
+                        counts.add( bucketCount );
+                        distincts.add( bucketDistinct );
+                        bucketCount = 0L;
+                        bucketDistinct = 0L;
+                    }
+                }
+
+                if ( newKey )
+                {
+                    nbKeys++;
+                    bucketDistinct++;
+                }
+
+                nbTuples++;
+                bucketCount++;
+                previous = key;
+            }
+        }
+        catch ( CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+
+        if ( !withHistogram )
+        {
+            return new IndexStatistics( nbTuples, nbKeys, nbTuples, null, null, null, null );
+        }
+
+        // The last bucket
+        counts.add( bucketCount );
+        distincts.add( bucketDistinct );
+
+        return new IndexStatistics( nbTuples, nbKeys, nbTuples, bounds.toArray( new String[bounds.size()] ),
+            toArray( counts ), toArray( distincts ), comparator );
+    }
+
+
+    private static long[] toArray( List<Long> values )
+    {
+        long[] array = new long[values.size()];
+
+        for ( int i = 0; i < array.length; i++ )
+        {
+            array[i] = values.get( i );
+        }
+
+        return array;
+    }
+
+
+    /**
+     * Reads some statistics written by {@link #write(DataOutput)}.
+     *
+     * @param in The input to read
+     * @param comparator The comparator to use for the histogram, or null if the index has none
+     * @return The read statistics
+     * @throws IOException If the statistics can't be read
+     */
+    public static IndexStatistics read( DataInput in, Comparator<String> comparator ) throws IOException
+    {
+        int version = in.readInt();
+
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unsupported index statistics version " + version );
+        }
+
+        long count = in.readLong();
+        long distinct = in.readLong();
+        long builtCount = in.readLong();
+        int nbBounds = in.readInt();
+
+        if ( nbBounds < 0 )
+        {
+            return new IndexStatistics( count, distinct, builtCount, null, null, null, null );
+        }
+
+        String[] bounds = new String[nbBounds];
+        long[] counts = new long[nbBounds + 1];
+        long[] distincts = new long[nbBounds + 1];
+
+        for ( int i = 0; i < nbBounds; i++ )
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully( bytes );
+            bounds[i] = Strings.utf8ToString( bytes );
+        }
+
+        for ( int i = 0; i <= nbBounds; i++ )
+        {
+            counts[i] = in.readLong();
+            distincts[i] = in.readLong();
+        }
+
+        // A histogram is useless without a comparator
+        return new IndexStatistics( count, distinct, builtCount, bounds, counts, distincts, comparator );
+    }
+
+
+    /**
+     * Writes the statistics.
+     *
+     * @param out The output to write into
+     * @throws IOException If the statistics can't be written
+     */
+    public void write( DataOutput out ) throws IOException
+    {
+        out.writeInt( VERSION );
+        out.writeLong( count.get() );
+        out.writeLong( getDistinct() );
+        out.writeLong( builtCount );
+
+        if ( bounds == null )
+        {
+            out.writeInt( -1 );
+
+            return;
+        }
+
+        out.writeInt( bounds.length );
+
+        for ( String bound : bounds )
+        {
+            byte[] bytes = Strings.getBytesUtf8( bound );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+
+        for ( int i = 0; i <= bounds.length; i++ )
+        {
+            long bucketCount = bucketCounts.get( i );
+            out.writeLong( bucketCount );
+            out.writeLong( estimateDistinct( bucketDistincts[i], bucketBaseCounts[i], bucketCount ) );
+        }
+    }
+
+
+    /**
+     * Finds the bucket a key belongs to
+     */
+    private int bucketOf( String key )
+    {
+        int low = 0;
+        int high = bounds.length;
+
+        // The first bucket which upper bound is above or equal to the key
+        while ( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+
+            if ( comparator.compare( bounds[mid], key ) < 0 )
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * Tells if the histogram can be used for the given key
+     */
+    private boolean useHistogram( Object key )
+    {
+        return ( bounds != null ) && ( key instanceof String );
+    }
+
+
+    /**
+     * Updates the statistics when a tuple has been added to the index.
+     *
+     * @param key The added key
+     */
+    public void added( Object key )
+    {
+        count.incrementAndGet();
+
+        if ( useHistogram( key ) )
+        {
+            bucketCounts.incrementAndGet( bucketOf( ( String ) key ) );
+        }
+    }
+
+
+    /**
+     * Updates the statistics when a tuple has been removed from the index.
+     *
+     * @param key The removed key
+     */
+    public void dropped( Object key )
+    {
+        decrement( count );
+
+        if ( useHistogram( key ) )
+        {
+            decrement( bucketCounts, bucketOf( ( String ) key ) );
+        }
+    }
+
+
+    private static void decrement( AtomicLong counter )
+    {
+        counter.updateAndGet( value -> value > 0L ? value - 1L : 0L );
+    }
+
+
+    private static void decrement( AtomicLongArray counters, int i )
+    {
+        counters.updateAndGet( i, value -> value > 0L ? value - 1L : 0L );
+    }
+
+
+    /**
+     * @return The number of tuples in the index
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+
+    /**
+     * @return The estimated number of distinct keys in the index
+     */
+    public long getDistinct()
+    {
+        return estimateDistinct( distinct, baseCount, count.get() );
+    }
+
+
+    /**
+     * Estimates the number of distinct keys of a set of tuples, keeping the number of
+     * tuples per key it had when the statistics were built or read. When there was no
+     * tuple, each key is supposed to be unique.
+     *
+     * @param baseDistinct The number of distinct keys when the statistics were built
+     * @param baseCount The number of tuples when the statistics were built
+     * @param currentCount The current number of tuples
+     * @return The estimated number of distinct keys
+     */
+    private static long estimateDistinct( long baseDistinct, long baseCount, long currentCount )
+    {
+        if ( baseCount == 0L )
+        {
+            return currentCount;
+        }
+
+        return ( baseDistinct * currentCount + baseCount - 1L ) / baseCount;
+    }
+
+
+    /**
+     * @return <code>true</code> if the statistics have a histogram
+     */
+    public boolean hasHistogram()
+    {
+        return bounds != null;
+    }
+
+
+    /**
+     * Tells if the statistics must be rebuilt : either they don't match the index
+     * size anymore, or the index has changed so much since they were built that the
+     * number of distinct keys and the histogram buckets are not representative anymore.
+     *
+     * @param indexCount The current number of tuples in the index
+     * @return <code>true</code> if the statistics have to be rebuilt
+     */
+    public boolean isStale( long indexCount )
+    {
+        long current = count.get();
+
+        if ( isDrifted( current, indexCount ) )
+        {
+            return true;
+        }
+
+        return isDrifted( builtCount, current );
+    }
+
+
+    /**
+     * Tells if a count has changed significantly compared to a reference count.
+     *
+     * @param reference The reference count
+     * @param value The current count
+     * @return <code>true</code> if the difference is above 10% and above 100
+     */
+    public static boolean isDrifted( long reference, long value )
+    {
+        long drift = Math.abs( reference - value );
+
+        return ( drift > MIN_DRIFT ) && ( drift * 100L > Math.max( reference, value ) * MAX_DRIFT_PERCENT );
+    }
+
+
+    /**
+     * Estimates the number of tuples which key is equal to the given key.
+     *
+     * @param key The key
+     * @return The estimated number of tuples, never 0 as the statistics can't tell if a key is absent
+     */
+    public long equalityCount( Object key )
+    {
+        long tuples;
+        long keys;
+
+        if ( useHistogram( key ) )
+        {
+            int bucket = bucketOf( ( String ) key );
+            tuples = bucketCounts.get( bucket );
+            keys = estimateDistinct( bucketDistincts[bucket], bucketBaseCounts[bucket], tuples );
+        }
+        else
+        {
+            tuples = count.get();
+            keys = getDistinct();
+        }
+
+        return atLeastOne( ( tuples + keys - 1 ) / Math.max( 1L, keys ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples which key is between the two given keys, both included.
+     * When the statistics have no histogram, the number of tuples in the index is returned.
+     *
+     * @param lower The lower key, or null if there is no lower limit
+     * @param upper The upper key, or null if there is no upper limit
+     * @return The estimated number of tuples, never 0
+     */
+    public long rangeCount( String lower, String upper )
+    {
+        if ( bounds == null )
+        {
+            return atLeastOne( count.get() );
+        }
+
+        int first = ( lower == null ) ? 0 : bucketOf( lower );
+        int last = ( upper == null ) ? bounds.length : bucketOf( upper );
+        long total = 0L;
+
+        for ( int i = first; i <= last; i++ )
+        {
+            long bucketCount = bucketCounts.get( i );
+
+            // The bounding buckets are only partially covered by the range
+            if ( ( ( i == first ) && ( lower != null ) ) || ( ( i == last ) && ( upper != null ) ) )
+            {
+                bucketCount = ( bucketCount + 1L ) / 2L;
+            }
+
+            total += bucketCount;
+        }
+
+        return atLeastOne( total );
+    }
+
+
+    private static long atLeastOne( long value )
+    {
+        return Math.max( 1L, value );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "IndexStatistics[count=" ).append( count.get() );
+        sb.append( ", distinct=" ).append( getDistinct() );
+
+        if ( bounds != null )
+        {
+            sb.append( ", buckets=" ).append( bounds.length + 1 );
+            sb.append( ", bounds=" ).append( Arrays.toString( bounds ) );
+        }
+
+        sb.append( ']' );
+
+        return sb.toString();
+    }
+}
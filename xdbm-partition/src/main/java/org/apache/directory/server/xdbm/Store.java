@@ -340,6 +340,32 @@ public interface Store
     long count( PartitionTxn partitionTxn ) throws LdapException;
 
 
+    /**
+     * Gets the total count of entries within this store, like {@link #count(PartitionTxn)},
+     * but the count read by a previous call is reused when no entry has been added or
+     * deleted since.
+     *
+     * @param partitionTxn The transaction to use
+     * @return the total count of entries within this store
+     * @throws LdapException on failures to access the underlying store
+     */
+    long getCachedCount( PartitionTxn partitionTxn ) throws LdapException;
+
+
+    /**
+     * Reads the IDs following a given ID in the MasterTable, in the order of its keys. The
+     * store is only locked while the IDs are read, so that the MasterTable can be read by
+     * chunks, between the writes.
+     *
+     * @param partitionTxn The transaction to use
+     * @param afterId The ID the returned IDs follow, or null to start from the first one
+     * @param count The maximum number of IDs to read
+     * @return The IDs, less than count if the end of the MasterTable has been reached
+     * @throws LdapException on failures to access the underlying store
+     */
+    List<String> getIdsAfter( PartitionTxn partitionTxn, String afterId, int count ) throws LdapException;
+
+
     /**
      * Delete an entry from the store
      *
@@ -0,0 +1,552 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+
+/**
+ * A compact Set of entry IDs, used to gather the candidates of a search.
+ * <p>
+ * The entry IDs are UUIDs. Instead of storing one String per candidate in a
+ * HashSet, the canonical UUIDs are packed in two long arrays used as an open
+ * addressing hash table (linear probing), which costs 16 bytes per slot and
+ * creates no object per added ID. The IDs which are not in the canonical
+ * lower case form (they may have been provided by the user with the
+ * entryUUID attribute) are kept as is in a secondary HashSet, so that the
+ * Strings returned by the Set are always the ones that were added.
+ * <p>
+ * The elements can be read by position, which is what the {@link UuidSetCursor}
+ * uses to browse the Set in both directions. The positions are stable as long
+ * as the Set is not modified.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class UuidSet extends AbstractSet<String>
+{
+    /** The default number of slots. Must be a power of 2 */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** The table is grown when it is filled above this percentage */
+    private static final int MAX_LOAD_PERCENT = 60;
+
+    /** The most significant bits of the stored UUIDs. (0, 0) is an empty slot */
+    private long[] msbs;
+
+    /** The least significant bits of the stored UUIDs */
+    private long[] lsbs;
+
+    /** The number of UUIDs stored in the table */
+    private int packedSize;
+
+    /** The IDs which can't be packed, created on demand */
+    private Set<String> others;
+
+    /** A snapshot of the others set, used for positional access */
+    private String[] othersArray;
+
+
+    /**
+     * Creates a new instance of UuidSet.
+     */
+    public UuidSet()
+    {
+        msbs = new long[DEFAULT_CAPACITY];
+        lsbs = new long[DEFAULT_CAPACITY];
+    }
+
+
+    /**
+     * Tells if the given ID is a canonical UUID : 36 lower case hexadecimal chars
+     * with dashes at the expected positions, and not the nil UUID.
+     */
+    private static boolean isPackable( String id )
+    {
+        if ( id.length() != 36 )
+        {
+            return false;
+        }
+
+        boolean nil = true;
+
+        for ( int i = 0; i < 36; i++ )
+        {
+            char c = id.charAt( i );
+
+            if ( ( i == 8 ) || ( i == 13 ) || ( i == 18 ) || ( i == 23 ) )
+            {
+                if ( c != '-' )
+                {
+                    return false;
+                }
+            }
+            else if ( ( c >= '0' ) && ( c <= '9' ) )
+            {
+                nil &= c == '0';
+            }
+            else if ( ( c >= 'a' ) && ( c <= 'f' ) )
+            {
+                nil = false;
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+        return !nil;
+    }
+
+
+    /**
+     * Parses the hexadecimal chars of a canonical UUID between start and end, skipping the dashes
+     */
+    private static long parseBits( String id, int start, int end )
+    {
+        long bits = 0L;
+
+        for ( int i = start; i < end; i++ )
+        {
+            char c = id.charAt( i );
+
+            if ( c != '-' )
+            {
+                bits = ( bits << 4 ) | Character.digit( c, 16 );
+            }
+        }
+
+        return bits;
+    }
+
+
+    /**
+     * Computes the slot in which the search for a UUID must start
+     */
+    private static int slot( long msb, long lsb, int mask )
+    {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return ( int ) h & mask;
+    }
+
+
+    /**
+     * Finds the slot containing the given UUID, or the empty slot where it should be stored
+     */
+    private int find( long msb, long lsb )
+    {
+        int mask = msbs.length - 1;
+        int pos = slot( msb, lsb, mask );
+
+        while ( ( msbs[pos] != 0L ) || ( lsbs[pos] != 0L ) )
+        {
+            if ( ( msbs[pos] == msb ) && ( lsbs[pos] == lsb ) )
+            {
+                return pos;
+            }
+
+            pos = ( pos + 1 ) & mask;
+        }
+
+        return pos;
+    }
+
+
+    /**
+     * Doubles the table size, rehashing all the stored UUIDs
+     */
+    private void grow()
+    {
+        long[] oldMsbs = msbs;
+        long[] oldLsbs = lsbs;
+
+        msbs = new long[oldMsbs.length << 1];
+        lsbs = new long[oldLsbs.length << 1];
+
+        for ( int i = 0; i < oldMsbs.length; i++ )
+        {
+            if ( ( oldMsbs[i] != 0L ) || ( oldLsbs[i] != 0L ) )
+            {
+                int pos = find( oldMsbs[i], oldLsbs[i] );
+                msbs[pos] = oldMsbs[i];
+                lsbs[pos] = oldLsbs[i];
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean add( String id )
+    {
+        if ( !isPackable( id ) )
+        {
+            if ( others == null )
+            {
+                others = new HashSet<>();
+            }
+
+            boolean added = others.add( id );
+
+            if ( added )
+            {
+                othersArray = null;
+            }
+
+            return added;
+        }
+
+        long msb = parseBits( id, 0, 18 );
+        long lsb = parseBits( id, 19, 36 );
+        int pos = find( msb, lsb );
+
+        if ( ( msbs[pos] != 0L ) || ( lsbs[pos] != 0L ) )
+        {
+            // Already present
+            return false;
+        }
+
+        msbs[pos] = msb;
+        lsbs[pos] = lsb;
+        packedSize++;
+
+        if ( packedSize * 100L > msbs.length * ( long ) MAX_LOAD_PERCENT )
+        {
+            grow();
+        }
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains( Object o )
+    {
+        if ( !( o instanceof String ) )
+        {
+            return false;
+        }
+
+        String id = ( String ) o;
+
+        if ( !isPackable( id ) )
+        {
+            return ( others != null ) && others.contains( id );
+        }
+
+        return containsBits( parseBits( id, 0, 18 ), parseBits( id, 19, 36 ) );
+    }
+
+
+    /**
+     * Tells if a packed UUID is present, without creating its String
+     */
+    private boolean containsBits( long msb, long lsb )
+    {
+        int pos = find( msb, lsb );
+
+        return ( msbs[pos] != 0L ) || ( lsbs[pos] != 0L );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove( Object o )
+    {
+        if ( !( o instanceof String ) )
+        {
+            return false;
+        }
+
+        String id = ( String ) o;
+
+        if ( !isPackable( id ) )
+        {
+            boolean removed = ( others != null ) && others.remove( id );
+
+            if ( removed )
+            {
+                othersArray = null;
+            }
+
+            return removed;
+        }
+
+        long msb = parseBits( id, 0, 18 );
+        long lsb = parseBits( id, 19, 36 );
+        int pos = find( msb, lsb );
+
+        if ( ( msbs[pos] == 0L ) && ( lsbs[pos] == 0L ) )
+        {
+            return false;
+        }
+
+        // Backward shift deletion : move back the following UUIDs of the
+        // cluster which would not be found anymore once this slot is emptied
+        int mask = msbs.length - 1;
+        int hole = pos;
+        int next = pos;
+
+        while ( true )
+        {
+            next = ( next + 1 ) & mask;
+
+            if ( ( msbs[next] == 0L ) && ( lsbs[next] == 0L ) )
+            {
+                break;
+            }
+
+            int home = slot( msbs[next], lsbs[next], mask );
+            boolean inPlace = ( hole <= next ) ? ( ( hole < home ) && ( home <= next ) )
+                : ( ( hole < home ) || ( home <= next ) );
+
+            if ( !inPlace )
+            {
+                msbs[hole] = msbs[next];
+                lsbs[hole] = lsbs[next];
+                hole = next;
+            }
+        }
+
+        msbs[hole] = 0L;
+        lsbs[hole] = 0L;
+        packedSize--;
+
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean removeAll( Collection<?> c )
+    {
+        boolean modified = false;
+
+        for ( Object o : c )
+        {
+            modified |= remove( o );
+        }
+
+        return modified;
+    }
+
+
+    /**
+     * Keeps only the IDs which are also present in the given collection. This
+     * is how the candidates of the branches of an AND filter are intersected.
+     *
+     * @param c The collection of IDs to retain
+     * @return <code>true</code> if the Set was modified
+     */
+    @Override
+    public boolean retainAll( Collection<?> c )
+    {
+        long[] oldMsbs = msbs;
+        long[] oldLsbs = lsbs;
+        int oldSize = size();
+
+        msbs = new long[oldMsbs.length];
+        lsbs = new long[oldLsbs.length];
+        packedSize = 0;
+
+        for ( int i = 0; i < oldMsbs.length; i++ )
+        {
+            if ( ( oldMsbs[i] != 0L ) || ( oldLsbs[i] != 0L ) )
+            {
+                boolean keep;
+
+                if ( c instanceof UuidSet )
+                {
+                    keep = ( ( UuidSet ) c ).containsBits( oldMsbs[i], oldLsbs[i] );
+                }
+                else
+                {
+                    keep = c.contains( new UUID( oldMsbs[i], oldLsbs[i] ).toString() );
+                }
+
+                if ( keep )
+                {
+                    int pos = find( oldMsbs[i], oldLsbs[i] );
+                    msbs[pos] = oldMsbs[i];
+                    lsbs[pos] = oldLsbs[i];
+                    packedSize++;
+                }
+            }
+        }
+
+        if ( others != null )
+        {
+            others.retainAll( c );
+            othersArray = null;
+        }
+
+        return size() != oldSize;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear()
+    {
+        Arrays.fill( msbs, 0L );
+        Arrays.fill( lsbs, 0L );
+        packedSize = 0;
+        others = null;
+        othersArray = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return packedSize + ( others == null ? 0 : others.size() );
+    }
+
+
+    /**
+     * @return The number of positions which can be read with {@link #isSet(int)} and {@link #get(int)}
+     */
+    public int positions()
+    {
+        return msbs.length + ( others == null ? 0 : others.size() );
+    }
+
+
+    /**
+     * Tells if there is an ID at the given position
+     *
+     * @param pos The position, between 0 and {@link #positions()} excluded
+     * @return <code>true</code> if the position holds an ID
+     */
+    public boolean isSet( int pos )
+    {
+        if ( pos < msbs.length )
+        {
+            return ( msbs[pos] != 0L ) || ( lsbs[pos] != 0L );
+        }
+
+        return pos < positions();
+    }
+
+
+    /**
+     * Gets the ID stored at the given position. The returned String is created on demand
+     * if the ID was packed.
+     *
+     * @param pos The position, between 0 and {@link #positions()} excluded
+     * @return The ID, or null if the position is empty
+     */
+    public String get( int pos )
+    {
+        if ( pos < msbs.length )
+        {
+            if ( ( msbs[pos] == 0L ) && ( lsbs[pos] == 0L ) )
+            {
+                return null;
+            }
+
+            return new UUID( msbs[pos], lsbs[pos] ).toString();
+        }
+
+        if ( othersArray == null )
+        {
+            othersArray = others.toArray( new String[others.size()] );
+        }
+
+        return othersArray[pos - msbs.length];
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<String> iterator()
+    {
+        return new Iterator<String>()
+        {
+            private int pos = nextSet( 0 );
+
+
+            private int nextSet( int from )
+            {
+                int end = positions();
+
+                for ( int i = from; i < end; i++ )
+                {
+                    if ( isSet( i ) )
+                    {
+                        return i;
+                    }
+                }
+
+                return end;
+            }
+
+
+            @Override
+            public boolean hasNext()
+            {
+                return pos < positions();
+            }
+
+
+            @Override
+            public String next()
+            {
+                if ( !hasNext() )
+                {
+                    throw new NoSuchElementException();
+                }
+
+                String id = get( pos );
+                pos = nextSet( pos + 1 );
+
+                return id;
+            }
+        };
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor over the IDs stored in a {@link UuidSet}. The IndexEntry returned
+ * for an ID is only created when the cursor reaches it, so browsing a large
+ * set of candidates does not allocate them all upfront.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class UuidSetCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The browsed set */
+    private final UuidSet uuidSet;
+
+    /** The current position in the set, -1 when before the first element */
+    private int pos = -1;
+
+    /** The element at the current position */
+    private IndexEntry<String, String> current;
+
+
+    /**
+     * Creates a new instance of UuidSetCursor.
+     *
+     * @param partitionTxn The transaction in use
+     * @param uuidSet The set to browse. It must not be modified while it is browsed
+     */
+    public UuidSetCursor( PartitionTxn partitionTxn, UuidSet uuidSet )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating UuidSetCursor {}", this );
+        }
+
+        this.uuidSet = uuidSet;
+        this.partitionTxn = partitionTxn;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * Sets the cursor on the given position, which must hold an ID
+     */
+    private boolean moveTo( int newPos )
+    {
+        pos = newPos;
+        current = new IndexEntry<>();
+        current.setId( uuidSet.get( newPos ) );
+
+        return setAvailable( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        pos = -1;
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        pos = uuidSet.positions();
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        for ( int i = Math.min( pos, uuidSet.positions() ) - 1; i >= 0; i-- )
+        {
+            if ( uuidSet.isSet( i ) )
+            {
+                return moveTo( i );
+            }
+        }
+
+        pos = -1;
+        current = null;
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        int end = uuidSet.positions();
+
+        for ( int i = pos + 1; i < end; i++ )
+        {
+            if ( uuidSet.isSet( i ) )
+            {
+                return moveTo( i );
+            }
+        }
+
+        pos = end;
+        current = null;
+
+        return setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( available() )
+        {
+            return current;
+        }
+
+        if ( pos < 0 )
+        {
+            throw new InvalidCursorPositionException( I18n.err( I18n.ERR_705 ) );
+        }
+        else
+        {
+            throw new InvalidCursorPositionException( I18n.err( I18n.ERR_706 ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing UuidSetCursor {}", this );
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing UuidSetCursor {}", this );
+        }
+
+        super.close( cause );
+    }
+}
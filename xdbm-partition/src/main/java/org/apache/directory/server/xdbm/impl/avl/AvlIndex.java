@@ -126,7 +126,9 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
 
     public void add( PartitionTxn partitionTxn, K attrVal, String id ) throws LdapException
     {
+        long countBefore = countForStatistics( partitionTxn );
         forward.put( partitionTxn, attrVal, id );
+        updateStatistics( partitionTxn, attrVal, countBefore );
 
         if ( withReverse )
         {
@@ -187,7 +189,9 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
                     while ( cursor.next() )
                     {
                         Tuple<String, K> tuple = cursor.get();
+                        long countBefore = countForStatistics( partitionTxn );
                         forward.remove( partitionTxn, tuple.getValue(), id );
+                        updateStatistics( partitionTxn, tuple.getValue(), countBefore );
                     }
     
                     cursor.close();
@@ -200,7 +204,9 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
             else
             {
                 K key = reverse.get( partitionTxn, id );
+                long countBefore = countForStatistics( partitionTxn );
                 forward.remove( partitionTxn, key );
+                updateStatistics( partitionTxn, key, countBefore );
             }
 
             reverse.remove( partitionTxn, id );
@@ -214,7 +220,9 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
     @Override
     public void drop( PartitionTxn partitionTxn, K attrVal, String id ) throws LdapException
     {
+        long countBefore = countForStatistics( partitionTxn );
         forward.remove( partitionTxn, attrVal, id );
+        updateStatistics( partitionTxn, attrVal, countBefore );
 
         if ( withReverse )
         {
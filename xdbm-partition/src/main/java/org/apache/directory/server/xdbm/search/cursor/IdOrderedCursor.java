@@ -0,0 +1,482 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.cursor;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor returning the candidates of a search in the order of their IDs, starting
+ * after a given ID. The IDs are ordered by the comparator of the MasterTable keys, so
+ * that a search can be resumed after the last entry it returned, by a new request
+ * using a new cursor.
+ * <p>
+ * The candidates are either read from the MasterTable, positioned after the given ID,
+ * or from a set of candidates which is sorted. When the partition does not read from a
+ * snapshot, the MasterTable can't be read by a cursor kept open while the entries are
+ * returned : its IDs are then read by chunks, each chunk starting after the last ID of
+ * the previous one.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IdOrderedCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The cursor on the MasterTable, null when the candidates are given */
+    private final Cursor<Tuple<String, Entry>> wrapped;
+
+    /** The sorted candidates, null when the MasterTable is read */
+    private final String[] ids;
+
+    /** The Store the IDs are read from by chunks, null otherwise */
+    private final Store store;
+
+    /** The IDs read so far from the Store, when they are read by chunks */
+    private final List<String> loadedIds;
+
+    /** The number of IDs read from the Store at once */
+    private final int chunkSize;
+
+    /** Tells if the last ID of the MasterTable has been read */
+    private boolean allLoaded;
+
+    /** The comparator for the IDs */
+    private final Comparator<String> comparator;
+
+    /** The ID the candidates are returned after, null to start from the first one */
+    private final String resumeAfter;
+
+    /** The current position in the sorted candidates */
+    private int pos = -1;
+
+    /** The element at the current position */
+    private IndexEntry<String, String> current;
+
+
+    /**
+     * Creates a new instance of IdOrderedCursor reading all the entries of the
+     * MasterTable after a given ID.
+     *
+     * @param partitionTxn The transaction to use
+     * @param store The Store instance
+     * @param resumeAfter The ID the entries are returned after, null to start from the first one
+     * @throws LdapException If the MasterTable can't be read
+     */
+    public IdOrderedCursor( PartitionTxn partitionTxn, Store store, String resumeAfter ) throws LdapException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating IdOrderedCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.wrapped = store.getMasterTable().cursor();
+        this.ids = null;
+        this.store = null;
+        this.loadedIds = null;
+        this.chunkSize = 0;
+        this.comparator = store.getMasterTable().getKeyComparator();
+        this.resumeAfter = resumeAfter;
+    }
+
+
+    /**
+     * Creates a new instance of IdOrderedCursor reading all the IDs of the MasterTable
+     * after a given ID, by chunks. The Store is not read while the IDs of a chunk are
+     * returned.
+     *
+     * @param partitionTxn The transaction to use
+     * @param store The Store instance
+     * @param resumeAfter The ID the entries are returned after, null to start from the first one
+     * @param chunkSize The number of IDs read at once
+     */
+    public IdOrderedCursor( PartitionTxn partitionTxn, Store store, String resumeAfter, int chunkSize )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating IdOrderedCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.wrapped = null;
+        this.ids = null;
+        this.store = store;
+        this.loadedIds = new ArrayList<>();
+        this.chunkSize = Math.max( chunkSize, 1 );
+        this.comparator = store.getMasterTable().getKeyComparator();
+        this.resumeAfter = resumeAfter;
+    }
+
+
+    /**
+     * Creates a new instance of IdOrderedCursor returning some candidates, in the
+     * order of the MasterTable keys.
+     *
+     * @param partitionTxn The transaction to use
+     * @param store The Store instance
+     * @param candidates The IDs of the candidates
+     * @param resumeAfter The ID the candidates are returned after, null to start from the first one
+     */
+    public IdOrderedCursor( PartitionTxn partitionTxn, Store store, Collection<String> candidates, String resumeAfter )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating IdOrderedCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.wrapped = null;
+        this.store = null;
+        this.loadedIds = null;
+        this.chunkSize = 0;
+        this.comparator = store.getMasterTable().getKeyComparator();
+        this.resumeAfter = resumeAfter;
+
+        // Only keep the candidates after the given ID
+        String[] selected = new String[candidates.size()];
+        int nbSelected = 0;
+
+        for ( String id : candidates )
+        {
+            if ( ( resumeAfter == null ) || ( comparator.compare( id, resumeAfter ) > 0 ) )
+            {
+                selected[nbSelected++] = id;
+            }
+        }
+
+        ids = Arrays.copyOf( selected, nbSelected );
+        Arrays.sort( ids, comparator );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * Reads the next chunk of IDs from the Store
+     *
+     * @return false if there was no more ID to read
+     */
+    private boolean loadChunk() throws LdapException
+    {
+        if ( allLoaded )
+        {
+            return false;
+        }
+
+        String afterId = loadedIds.isEmpty() ? resumeAfter : loadedIds.get( loadedIds.size() - 1 );
+        List<String> chunk = store.getIdsAfter( partitionTxn, afterId, chunkSize );
+        loadedIds.addAll( chunk );
+        allLoaded = chunk.size() < chunkSize;
+
+        return !chunk.isEmpty();
+    }
+
+
+    /**
+     * Sets the current element, or clears it if there is none
+     */
+    private boolean setCurrent( String id )
+    {
+        if ( id == null )
+        {
+            current = null;
+
+            return setAvailable( false );
+        }
+
+        current = new IndexEntry<>();
+        current.setId( id );
+        current.setKey( id );
+
+        return setAvailable( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        setCurrent( null );
+
+        if ( wrapped == null )
+        {
+            pos = -1;
+        }
+        else if ( resumeAfter == null )
+        {
+            wrapped.beforeFirst();
+        }
+        else
+        {
+            wrapped.after( new Tuple<String, Entry>( resumeAfter, null ) );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+        setCurrent( null );
+
+        if ( loadedIds != null )
+        {
+            while ( loadChunk() )
+            {
+                // Read all the remaining IDs
+            }
+
+            pos = loadedIds.size();
+        }
+        else if ( wrapped == null )
+        {
+            pos = ids.length;
+        }
+        else
+        {
+            wrapped.afterLast();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        if ( loadedIds != null )
+        {
+            pos = Math.max( Math.min( pos, loadedIds.size() ) - 1, -1 );
+
+            return setCurrent( pos >= 0 ? loadedIds.get( pos ) : null );
+        }
+
+        if ( wrapped == null )
+        {
+            pos = Math.max( Math.min( pos, ids.length ) - 1, -1 );
+
+            return setCurrent( pos >= 0 ? ids[pos] : null );
+        }
+
+        // Don't go back before the ID we have been resumed after
+        if ( wrapped.previous() )
+        {
+            String id = wrapped.get().getKey();
+
+            if ( ( resumeAfter == null ) || ( comparator.compare( id, resumeAfter ) > 0 ) )
+            {
+                return setCurrent( id );
+            }
+        }
+
+        beforeFirst();
+
+        return false;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        if ( loadedIds != null )
+        {
+            if ( ( pos + 1 >= loadedIds.size() ) && !loadChunk() )
+            {
+                pos = loadedIds.size();
+
+                return setCurrent( null );
+            }
+
+            pos++;
+
+            return setCurrent( loadedIds.get( pos ) );
+        }
+
+        if ( wrapped == null )
+        {
+            pos = Math.min( pos + 1, ids.length );
+
+            return setCurrent( pos < ids.length ? ids[pos] : null );
+        }
+
+        return setCurrent( wrapped.next() ? wrapped.get().getKey() : null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( available() )
+        {
+            return current;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing IdOrderedCursor {}", this );
+        }
+
+        if ( wrapped != null )
+        {
+            wrapped.close();
+        }
+
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing IdOrderedCursor {}", this );
+        }
+
+        if ( wrapped != null )
+        {
+            wrapped.close( cause );
+        }
+
+        super.close( cause );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "IdOrderedCursor (" );
+
+        if ( available() )
+        {
+            sb.append( "available)" );
+        }
+        else
+        {
+            sb.append( "absent)" );
+        }
+
+        sb.append( " after " ).append( resumeAfter );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
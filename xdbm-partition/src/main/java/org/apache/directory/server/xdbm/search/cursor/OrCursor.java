@@ -21,10 +21,7 @@ package org.apache.directory.server.xdbm.search.cursor;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
@@ -57,7 +54,6 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
     private static final String UNSUPPORTED_MSG = I18n.err( I18n.ERR_722 );
     private final List<Cursor<IndexEntry<V, String>>> cursors;
     private final List<Evaluator<? extends ExprNode>> evaluators;
-    private final List<Set<String>> blacklists;
     private int cursorIndex = -1;
 
     /** The candidate we have fetched in the next/previous call */
@@ -87,14 +83,8 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
 
         this.cursors = cursors;
         this.evaluators = evaluators;
-        this.blacklists = new ArrayList<>();
         this.partitionTxn = partitionTxn;
 
-        for ( int i = 0; i < cursors.size(); i++ )
-        {
-            this.blacklists.add( new HashSet<String>() );
-        }
-
         this.cursorIndex = 0;
     }
 
@@ -156,33 +146,26 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
     }
 
 
-    private boolean isBlackListed( String id )
-    {
-        return blacklists.get( cursorIndex ).contains( id );
-    }
-
-
     /**
-     * The first sub-expression Cursor to advance to an entry adds the entry
-     * to the blacklists of other Cursors that might return that entry.
+     * A candidate returned by a sub-expression Cursor has already been returned, or will
+     * be, if one of the previous sub-expressions accepts it. Checking this with the
+     * evaluators does not need to remember the returned candidates, and gives the same
+     * answer whatever the direction the Cursor is moving in.
      *
-     * @param indexEntry the index entry to blacklist
-     * @throws Exception if there are problems accessing underlying db
+     * @param indexEntry the candidate to check
+     * @throws LdapException if there are problems accessing underlying db
      */
-    private void blackListIfDuplicate( PartitionTxn partitionTxn, IndexEntry<?, String> indexEntry ) throws LdapException
+    private boolean isDuplicate( IndexEntry<?, String> indexEntry ) throws LdapException
     {
-        for ( int ii = 0; ii < evaluators.size(); ii++ )
+        for ( int ii = 0; ii < cursorIndex; ii++ )
         {
-            if ( ii == cursorIndex )
-            {
-                continue;
-            }
-
             if ( evaluators.get( ii ).evaluate( partitionTxn, indexEntry ) )
             {
-                blacklists.get( ii ).add( indexEntry.getId() );
+                return true;
             }
         }
+
+        return false;
     }
 
 
@@ -197,10 +180,8 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
             checkNotClosed();
             IndexEntry<V, String> candidate = cursors.get( cursorIndex ).get();
 
-            if ( !isBlackListed( candidate.getId() ) )
+            if ( !isDuplicate( candidate ) )
             {
-                blackListIfDuplicate( partitionTxn, candidate );
-
                 prefetched = candidate;
                 return setAvailable( true );
             }
@@ -217,10 +198,8 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
                 checkNotClosed();
                 IndexEntry<V, String> candidate = cursors.get( cursorIndex ).get();
 
-                if ( !isBlackListed( candidate.getId() ) )
+                if ( !isDuplicate( candidate ) )
                 {
-                    blackListIfDuplicate( partitionTxn, candidate );
-
                     prefetched = candidate;
                     return setAvailable( true );
                 }
@@ -244,10 +223,8 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
             checkNotClosed();
             IndexEntry<V, String> candidate = cursors.get( cursorIndex ).get();
 
-            if ( !isBlackListed( candidate.getId() ) )
+            if ( !isDuplicate( candidate ) )
             {
-                blackListIfDuplicate( partitionTxn, candidate );
-
                 prefetched = candidate;
 
                 return setAvailable( true );
@@ -265,10 +242,8 @@ public class OrCursor<V> extends AbstractIndexCursor<V>
                 checkNotClosed();
                 IndexEntry<V, String> candidate = cursors.get( cursorIndex ).get();
 
-                if ( !isBlackListed( candidate.getId() ) )
+                if ( !isDuplicate( candidate ) )
                 {
-                    blackListIfDuplicate( partitionTxn, candidate );
-
                     prefetched = candidate;
 
                     return setAvailable( true );
@@ -0,0 +1,472 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.cursor;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor returning the candidates of a search in the order of a server side sort
+ * control, read from the index on the sort attribute. The filter is not checked : the
+ * evaluator of the search validates each candidate.
+ * <p>
+ * The candidates are returned in two parts :
+ * <ul>
+ * <li>the entries having the sort attribute, in the order of its index. An entry with
+ * many values is only returned for its least value, as the sort control requires</li>
+ * <li>the entries not having the sort attribute, read from a Cursor over the candidates
+ * of the filter. They come last, or first if the order is reversed</li>
+ * </ul>
+ * The index is ordered by the equality matching rule of the attribute, which must be
+ * the ordering requested by the sort control.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SortedIndexCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    private static final String UNSUPPORTED_MSG = "SortedIndexCursors do not support positioning by element.";
+
+    /** The partition */
+    private final Store store;
+
+    /** The sort attribute */
+    private final AttributeType attributeType;
+
+    /** The comparator of the index */
+    private final LdapComparator<Object> comparator;
+
+    /** Tells if the order is reversed */
+    private final boolean reverse;
+
+    /** The Cursor over the index on the sort attribute */
+    private final Cursor<IndexEntry<Object, String>> indexCursor;
+
+    /** The Cursor over the candidates not having the sort attribute, null if there is none */
+    private final Cursor<IndexEntry<String, String>> missingCursor;
+
+    /** Tells if the cursor is in the second part of the candidates */
+    private boolean secondPart;
+
+    /** The current candidate */
+    private IndexEntry<String, String> candidate;
+
+
+    /**
+     * Creates a new instance of SortedIndexCursor
+     * 
+     * @param partitionTxn The transaction to use
+     * @param store The partition
+     * @param attributeType The sort attribute, which must be indexed
+     * @param reverse Tells if the order is reversed
+     * @param missingCursor A Cursor over candidates which may not have the sort attribute,
+     * or null if the filter can't select the entries not having it
+     * @throws LdapException If the index can't be read
+     */
+    @SuppressWarnings("unchecked")
+    public SortedIndexCursor( PartitionTxn partitionTxn, Store store, AttributeType attributeType, boolean reverse,
+        Cursor<IndexEntry<String, String>> missingCursor ) throws LdapException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating SortedIndexCursor {}", this );
+        }
+
+        this.partitionTxn = partitionTxn;
+        this.store = store;
+        this.attributeType = attributeType;
+        this.reverse = reverse;
+        this.missingCursor = missingCursor;
+        comparator = ( LdapComparator<Object> ) attributeType.getEquality().getLdapComparator();
+
+        try
+        {
+            indexCursor = ( ( Index<Object, String> ) store.getIndex( attributeType ) ).forwardCursor( partitionTxn );
+        }
+        catch ( IndexNotFoundException infe )
+        {
+            throw new LdapOtherException( infe.getMessage(), infe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        secondPart = false;
+        toStart( indexCursor );
+        toStart( missingCursor );
+        candidate = null;
+
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        secondPart = true;
+        toEnd( indexCursor );
+        toEnd( missingCursor );
+        candidate = null;
+
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        if ( !secondPart )
+        {
+            if ( move( reverse, true ) )
+            {
+                return setAvailable( true );
+            }
+
+            secondPart = true;
+        }
+
+        return setAvailable( move( !reverse, true ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed();
+
+        if ( secondPart )
+        {
+            if ( move( !reverse, false ) )
+            {
+                return setAvailable( true );
+            }
+
+            secondPart = false;
+        }
+
+        return setAvailable( move( reverse, false ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed();
+
+        if ( available() )
+        {
+            return candidate;
+        }
+
+        throw new InvalidCursorPositionException( I18n.err( I18n.ERR_708 ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexCursor {}", this );
+        }
+
+        super.close();
+        indexCursor.close();
+
+        if ( missingCursor != null )
+        {
+            missingCursor.close();
+        }
+
+        candidate = null;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close( Exception cause ) throws IOException
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexCursor {}", this );
+        }
+
+        super.close( cause );
+        indexCursor.close( cause );
+
+        if ( missingCursor != null )
+        {
+            missingCursor.close( cause );
+        }
+
+        candidate = null;
+    }
+
+
+    /**
+     * Moves to the next or previous candidate of a part, in the sort order.
+     *
+     * @param missing true to move in the candidates not having the sort attribute
+     * @param forward true to move forward in the sort order
+     * @return true if a candidate has been found
+     */
+    private boolean move( boolean missing, boolean forward ) throws LdapException, CursorException
+    {
+        if ( missing )
+        {
+            if ( missingCursor == null )
+            {
+                return false;
+            }
+
+            while ( forward ? missingCursor.next() : missingCursor.previous() )
+            {
+                checkNotClosed();
+                String id = missingCursor.get().getId();
+                Entry entry = store.fetch( partitionTxn, id );
+
+                if ( ( entry != null ) && ( entry.get( attributeType ) == null ) )
+                {
+                    return setCandidate( id, null, entry );
+                }
+            }
+
+            return false;
+        }
+
+        // The index is browsed backward when the order is reversed
+        while ( ( forward != reverse ) ? indexCursor.next() : indexCursor.previous() )
+        {
+            checkNotClosed();
+            IndexEntry<Object, String> indexEntry = indexCursor.get();
+
+            if ( attributeType.isSingleValued() )
+            {
+                return setCandidate( indexEntry.getId(), indexEntry.getKey(), null );
+            }
+
+            // An entry is returned for its least value only
+            Entry entry = store.fetch( partitionTxn, indexEntry.getId() );
+
+            if ( ( entry != null ) && isLeast( indexEntry.getKey(), entry.get( attributeType ) ) )
+            {
+                return setCandidate( indexEntry.getId(), indexEntry.getKey(), entry );
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Tells if an index key is the least value of an attribute.
+     */
+    private boolean isLeast( Object key, Attribute attribute )
+    {
+        if ( attribute == null )
+        {
+            return false;
+        }
+
+        for ( Value value : attribute )
+        {
+            if ( comparator.compare( value.getNormalized(), key ) < 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    private boolean setCandidate( String id, Object key, Entry entry )
+    {
+        // The evaluator will use the entry, if we already have fetched it
+        candidate = new IndexEntry<>();
+        candidate.setId( id );
+        candidate.setKey( ( String ) key );
+        candidate.setEntry( entry );
+
+        return true;
+    }
+
+
+    /**
+     * Moves the cursor of a part before its first candidate in the sort order.
+     */
+    private void toStart( Cursor<?> cursor ) throws LdapException, CursorException
+    {
+        if ( cursor == null )
+        {
+            return;
+        }
+
+        if ( ( cursor == indexCursor ) && reverse )
+        {
+            cursor.afterLast();
+        }
+        else
+        {
+            cursor.beforeFirst();
+        }
+    }
+
+
+    /**
+     * Moves the cursor of a part after its last candidate in the sort order.
+     */
+    private void toEnd( Cursor<?> cursor ) throws LdapException, CursorException
+    {
+        if ( cursor == null )
+        {
+            return;
+        }
+
+        if ( ( cursor == indexCursor ) && reverse )
+        {
+            cursor.beforeFirst();
+        }
+        else
+        {
+            cursor.afterLast();
+        }
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "SortedIndexCursor (" );
+        sb.append( attributeType.getName() );
+
+        if ( reverse )
+        {
+            sb.append( ", reverse" );
+        }
+
+        sb.append( ")\n" );
+
+        if ( missingCursor != null )
+        {
+            sb.append( tabs ).append( "    " ).append( "Missing : \n" );
+            sb.append( missingCursor.toString( tabs + "        " ) );
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
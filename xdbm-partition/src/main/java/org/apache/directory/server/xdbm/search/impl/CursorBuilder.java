@@ -21,6 +21,7 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -53,17 +54,33 @@ import org.apache.directory.api.util.exception.NotImplementedException;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EmptyIndexCursor;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.UuidSet;
+import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
+import org.apache.directory.server.xdbm.search.cursor.AndCursor;
 import org.apache.directory.server.xdbm.search.cursor.ApproximateCursor;
 import org.apache.directory.server.xdbm.search.cursor.ChildrenCursor;
 import org.apache.directory.server.xdbm.search.cursor.DescendantCursor;
+import org.apache.directory.server.xdbm.search.cursor.EqualityCursor;
+import org.apache.directory.server.xdbm.search.cursor.GreaterEqCursor;
+import org.apache.directory.server.xdbm.search.cursor.LessEqCursor;
+import org.apache.directory.server.xdbm.search.cursor.OrCursor;
+import org.apache.directory.server.xdbm.search.cursor.PresenceCursor;
+import org.apache.directory.server.xdbm.search.cursor.SubstringCursor;
 import org.apache.directory.server.xdbm.search.evaluator.ApproximateEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.EqualityEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.GreaterEqEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.LessEqEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.PresenceEvaluator;
+import org.apache.directory.server.xdbm.search.evaluator.SubstringEvaluator;
 
 
 /**
@@ -79,6 +96,9 @@ public class CursorBuilder
     /** Evaluator dependency on a EvaluatorBuilder */
     private EvaluatorBuilder evaluatorBuilder;
 
+    /** The maximum ratio between the count of an AND child and the smallest one for their candidates to be intersected */
+    private static final long MAX_INTERSECTION_RATIO = 10L;
+
 
     /**
      * Creates an expression tree enumerator.
@@ -167,6 +187,248 @@ public class CursorBuilder
     }
 
 
+    /**
+     * Builds a Cursor browsing lazily the candidates selected by a filter, instead of
+     * gathering them all in the candidate set before the first one is returned.
+     * <p>
+     * The filter can only be streamed if its candidates come without duplicates, with
+     * a bounded amount of memory : AND nodes iterate over their smallest child, OR nodes
+     * return a candidate of a child only if no previous child accepts it, and the leaf
+     * nodes must be indexed equality or presence assertions, scopes, or range and
+     * substring assertions on single valued attributes. Aliases must not be dereferenced
+     * while searching either.
+     *
+     * @param partitionTxn The transaction to use
+     * @param node The annotated filter
+     * @param searchResult The search result, used to know how aliases are dereferenced
+     * @return The Cursor, or null if the filter can't be streamed
+     * @throws LdapException If the Cursor can't be created
+     */
+    @SuppressWarnings("unchecked")
+    public Cursor<IndexEntry<String, String>> buildCursor( PartitionTxn partitionTxn, ExprNode node,
+        PartitionSearchResult searchResult ) throws LdapException
+    {
+        if ( !searchResult.isNeverDeref() && !searchResult.isDerefFinding() )
+        {
+            return null;
+        }
+
+        Object count = node.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+        try
+        {
+            if ( ( count != null ) && ( ( Long ) count == Long.MAX_VALUE ) )
+            {
+                // Full scan : the evaluator will select the entries
+                return new AllEntriesCursor( partitionTxn, db );
+            }
+
+            return ( Cursor<IndexEntry<String, String>> ) ( Cursor<?> ) streamNode( partitionTxn, node );
+        }
+        catch ( IndexNotFoundException | CursorException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private <T> Cursor<IndexEntry<T, String>> streamNode( PartitionTxn partitionTxn, ExprNode node )
+        throws LdapException, IndexNotFoundException, CursorException, IOException
+    {
+        Object count = node.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+        if ( ( count != null ) && ( ( Long ) count == 0L ) )
+        {
+            return new EmptyIndexCursor<>( partitionTxn );
+        }
+
+        switch ( node.getAssertionType() )
+        {
+            case EQUALITY:
+                if ( !db.hasIndexOn( ( ( EqualityNode<T> ) node ).getAttributeType() ) )
+                {
+                    return null;
+                }
+
+                return new EqualityCursor<>( partitionTxn, db,
+                    ( EqualityEvaluator<T> ) evaluatorBuilder.build( partitionTxn, node ) );
+
+            case PRESENCE:
+                if ( !db.hasUserIndexOn( ( ( PresenceNode ) node ).getAttributeType() ) )
+                {
+                    return null;
+                }
+
+                return ( Cursor ) new PresenceCursor( partitionTxn, db,
+                    ( PresenceEvaluator ) evaluatorBuilder.build( partitionTxn, node ) );
+
+            case GREATEREQ:
+                if ( !isStreamableRange( ( ( GreaterEqNode<T> ) node ).getAttributeType() ) )
+                {
+                    return null;
+                }
+
+                return new GreaterEqCursor<>( partitionTxn, db,
+                    ( GreaterEqEvaluator<T> ) evaluatorBuilder.build( partitionTxn, node ) );
+
+            case LESSEQ:
+                if ( !isStreamableRange( ( ( LessEqNode<T> ) node ).getAttributeType() ) )
+                {
+                    return null;
+                }
+
+                return new LessEqCursor<>( partitionTxn, db,
+                    ( LessEqEvaluator<T> ) evaluatorBuilder.build( partitionTxn, node ) );
+
+            case SUBSTRING:
+                if ( !isStreamableRange( ( ( SubstringNode ) node ).getAttributeType() ) )
+                {
+                    return null;
+                }
+
+                return ( Cursor ) new SubstringCursor( partitionTxn, db,
+                    ( SubstringEvaluator ) evaluatorBuilder.build( partitionTxn, node ) );
+
+            case SCOPE:
+                return ( Cursor ) streamScope( partitionTxn, ( ScopeNode ) node );
+
+            case AND:
+                return streamAnd( partitionTxn, ( AndNode ) node );
+
+            case OR:
+                return streamOr( partitionTxn, ( OrNode ) node );
+
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * A range or a substring index cursor returns an entry once per matching value,
+     * so only single valued attributes can be streamed.
+     */
+    private boolean isStreamableRange( AttributeType attributeType ) throws LdapException
+    {
+        return attributeType.isSingleValued() && db.hasIndexOn( attributeType );
+    }
+
+
+    private Cursor<IndexEntry<String, String>> streamScope( PartitionTxn partitionTxn, ScopeNode node )
+        throws LdapException, CursorException
+    {
+        String baseId = node.getBaseId();
+
+        if ( node.getScope() == SearchScope.ONELEVEL )
+        {
+            Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = db.getRdnIndex().forwardCursor( partitionTxn );
+
+            IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<>();
+            startingPos.setKey( new ParentIdAndRdn( baseId, ( Rdn[] ) null ) );
+            rdnCursor.before( startingPos );
+
+            return new ChildrenCursor( partitionTxn, db, baseId, rdnCursor );
+        }
+
+        String contextEntryId = db.getEntryId( partitionTxn, ( ( Partition ) db ).getSuffixDn() );
+
+        if ( baseId.equals( contextEntryId ) )
+        {
+            // The whole partition is selected
+            return new AllEntriesCursor( partitionTxn, db );
+        }
+
+        ParentIdAndRdn parentIdAndRdn = db.getRdnIndex().reverseLookup( partitionTxn, baseId );
+        IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<>();
+
+        startingPos.setKey( parentIdAndRdn );
+        startingPos.setId( baseId );
+
+        Cursor<IndexEntry<ParentIdAndRdn, String>> rdnCursor = new SingletonIndexCursor<>( partitionTxn,
+            startingPos );
+
+        return new DescendantCursor( partitionTxn, db, baseId, parentIdAndRdn.getParentId(), rdnCursor );
+    }
+
+
+    private <T> Cursor<IndexEntry<T, String>> streamAnd( PartitionTxn partitionTxn, AndNode node )
+        throws LdapException, IndexNotFoundException, CursorException, IOException
+    {
+        List<ExprNode> children = node.getChildren();
+        int minIndex = -1;
+        long minValue = Long.MAX_VALUE;
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            Object count = children.get( i ).get( DefaultOptimizer.COUNT_ANNOTATION );
+
+            if ( ( count != null ) && ( ( Long ) count < minValue ) )
+            {
+                minValue = ( Long ) count;
+                minIndex = i;
+            }
+        }
+
+        if ( minIndex == -1 )
+        {
+            return null;
+        }
+
+        Cursor<IndexEntry<T, String>> wrapped = streamNode( partitionTxn, children.get( minIndex ) );
+
+        if ( wrapped == null )
+        {
+            return null;
+        }
+
+        List<Evaluator<? extends ExprNode>> evaluators = new ArrayList<>();
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            if ( i != minIndex )
+            {
+                evaluators.add( evaluatorBuilder.build( partitionTxn, children.get( i ) ) );
+            }
+        }
+
+        return new AndCursor<>( partitionTxn, wrapped, evaluators );
+    }
+
+
+    private <T> Cursor<IndexEntry<T, String>> streamOr( PartitionTxn partitionTxn, OrNode node )
+        throws LdapException, IndexNotFoundException, CursorException, IOException
+    {
+        List<Cursor<IndexEntry<T, String>>> cursors = new ArrayList<>();
+        List<Evaluator<? extends ExprNode>> evaluators = new ArrayList<>();
+
+        for ( ExprNode child : node.getChildren() )
+        {
+            Cursor<IndexEntry<T, String>> cursor = streamNode( partitionTxn, child );
+
+            if ( cursor == null )
+            {
+                for ( Cursor<IndexEntry<T, String>> opened : cursors )
+                {
+                    opened.close();
+                }
+
+                return null;
+            }
+
+            cursors.add( cursor );
+            evaluators.add( evaluatorBuilder.build( partitionTxn, child ) );
+        }
+
+        if ( cursors.size() == 1 )
+        {
+            return cursors.get( 0 );
+        }
+
+        return new OrCursor<>( partitionTxn, cursors, evaluators );
+    }
+
+
     /**
      * Computes the set of candidates for an Approximate filter. We will feed the set only if
      * we have an index for the AT.
@@ -822,8 +1084,101 @@ public class CursorBuilder
 
         // Once found we return the number of candidates for this child
         ExprNode minChild = children.get( minIndex );
+        List<ExprNode> intersected = getIntersectedChildren( children, minIndex, minValue, searchResult );
+
+        if ( intersected.isEmpty() )
+        {
+            return build( partitionTxn, minChild, searchResult );
+        }
+
+        // Some other children are selective enough : their candidates are intersected
+        // with the smallest child ones, which spares the fetch and evaluation of the entries
+        // that can't match. The intersection is done aside, as the candidate set may already
+        // contain the candidates of other branches of an enclosing OR.
+        Set<String> candidates = searchResult.getCandidateSet();
+        UuidSet andCandidates = new UuidSet();
+
+        try
+        {
+            searchResult.setCandidateSet( andCandidates );
+            long nbResults = build( partitionTxn, minChild, searchResult );
+
+            if ( nbResults == Long.MAX_VALUE )
+            {
+                return nbResults;
+            }
+
+            for ( ExprNode child : intersected )
+            {
+                if ( andCandidates.isEmpty() )
+                {
+                    break;
+                }
+
+                UuidSet childCandidates = new UuidSet();
+                searchResult.setCandidateSet( childCandidates );
+
+                if ( build( partitionTxn, child, searchResult ) != Long.MAX_VALUE )
+                {
+                    andCandidates.retainAll( childCandidates );
+                }
+            }
+        }
+        finally
+        {
+            searchResult.setCandidateSet( candidates );
+        }
+
+        long nbAndResults = 0;
+
+        for ( String uuid : andCandidates )
+        {
+            if ( candidates.add( uuid ) )
+            {
+                nbAndResults++;
+            }
+        }
+
+        return nbAndResults;
+    }
+
+
+    /**
+     * Selects the children of an AND node, other than the smallest one, whose candidates are
+     * worth being intersected with the smallest child candidates : their count must not exceed
+     * MAX_INTERSECTION_RATIO times the smallest count. Nothing is intersected when aliases are
+     * dereferenced while searching, as the scope candidates then include the aliased entries.
+     */
+    private List<ExprNode> getIntersectedChildren( List<ExprNode> children, int minIndex, long minValue,
+        PartitionSearchResult searchResult )
+    {
+        List<ExprNode> intersected = new ArrayList<>();
+
+        if ( ( minValue == Long.MAX_VALUE ) || searchResult.isDerefAlways() || searchResult.isDerefInSearching() )
+        {
+            return intersected;
+        }
+
+        long maxValue = minValue > Long.MAX_VALUE / MAX_INTERSECTION_RATIO ? Long.MAX_VALUE - 1
+            : Math.max( minValue, 1L ) * MAX_INTERSECTION_RATIO;
+
+        for ( int i = 0; i < children.size(); i++ )
+        {
+            ExprNode child = children.get( i );
+            Object count = child.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+            if ( ( i == minIndex ) || ( count == null ) || ( child instanceof NotNode ) )
+            {
+                continue;
+            }
+
+            if ( ( Long ) count <= maxValue )
+            {
+                intersected.add( child );
+            }
+        }
 
-        return build( partitionTxn, minChild, searchResult );
+        return intersected;
     }
 
 
@@ -21,6 +21,7 @@ package org.apache.directory.server.xdbm.search.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -45,18 +46,24 @@ import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.filter.ScopeNode;
 import org.apache.directory.api.ldap.model.filter.SimpleNode;
 import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Optimizer;
 
 
 /**
- * Optimizer that annotates the filter using scan counts.
+ * Optimizer that annotates the filter using scan counts. When an index maintains
+ * some {@link IndexStatistics}, the counts are estimated from them without reading
+ * the index, otherwise the index is probed. The counts computed for a filter are
+ * kept in a {@link PlanCache}, and reused for the following filters with the same
+ * shape.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -70,6 +77,9 @@ public class DefaultOptimizer implements Optimizer
     private final Store db;
     private String contextEntryId;
 
+    /** The cache of the computed plans, null if disabled */
+    private final PlanCache planCache;
+
 
     /**
      * Creates an optimizer on a database.
@@ -77,8 +87,38 @@ public class DefaultOptimizer implements Optimizer
      * @param db the database this optimizer works for.
      */
     public DefaultOptimizer( Store db )
+    {
+        this( db, PlanCache.DEFAULT_SIZE );
+    }
+
+
+    /**
+     * Creates an optimizer on a database.
+     *
+     * @param db the database this optimizer works for.
+     * @param planCacheSize the number of plans to keep in the plan cache, 0 to disable it
+     */
+    public DefaultOptimizer( Store db, int planCacheSize )
     {
         this.db = db;
+
+        if ( planCacheSize > 0 )
+        {
+            planCache = new PlanCache( planCacheSize );
+        }
+        else
+        {
+            planCache = null;
+        }
+    }
+
+
+    /**
+     * @return The plan cache, with its hit rate metrics, or null if it is disabled
+     */
+    public PlanCache getPlanCache()
+    {
+        return planCache;
     }
 
 
@@ -112,12 +152,85 @@ public class DefaultOptimizer implements Optimizer
      * on the scan count for indices that exist for each expression node.  If an
      * index on the attribute does not exist an IndexNotFoundException will be
      * thrown.
+     * <p>
+     * If a plan has been computed for a filter with the same shape, and if the
+     * partition has not changed too much since then, the leaves are annotated
+     * with the counts of this plan. The plan is checked against the statistics
+     * of the indexes gathered while annotating the filter, and against the number
+     * of entries in the partition, which is only read again when entries have been
+     * added or deleted.
      *
      * {@inheritDoc}
      */
     @Override
-    @SuppressWarnings("unchecked")
     public Long annotate( PartitionTxn partitionTxn, ExprNode node ) throws LdapException
+    {
+        String shape = ( planCache == null ) ? null : PlanCache.getShape( node );
+
+        if ( shape == null )
+        {
+            return annotate( partitionTxn, node, null );
+        }
+
+        long masterCount = db.getCachedCount( partitionTxn );
+        PlanCache.Plan plan = planCache.get( shape );
+
+        if ( plan != null )
+        {
+            PlanTrace replay = new PlanTrace( plan );
+            Long count = annotate( partitionTxn, node, replay );
+
+            if ( replay.isConsistent() && plan.isValid( masterCount, replay.getStatistics() ) )
+            {
+                planCache.hit();
+
+                return count;
+            }
+
+            planCache.invalidate( shape );
+        }
+
+        planCache.miss();
+        PlanTrace recorder = new PlanTrace( null );
+        Long count = annotate( partitionTxn, node, recorder );
+
+        if ( recorder.isCacheable() )
+        {
+            planCache.put( shape, recorder.toPlan( masterCount ) );
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Gets the statistics of the index used by a leaf, if any
+     */
+    private IndexStatistics getStatistics( LeafNode leaf ) throws LdapException
+    {
+        AttributeType attributeType = leaf.getAttributeType();
+
+        try
+        {
+            if ( ( attributeType != null ) && db.hasUserIndexOn( attributeType ) )
+            {
+                return db.getIndex( attributeType ).getStatistics();
+            }
+        }
+        catch ( IndexNotFoundException infe )
+        {
+            throw new LdapOtherException( infe.getMessage(), infe );
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Annotates a node, using or feeding a plan if a trace is provided.
+     */
+    @SuppressWarnings("unchecked")
+    private Long annotate( PartitionTxn partitionTxn, ExprNode node, PlanTrace trace ) throws LdapException
     {
         // Start off with the worst case unless scan count says otherwise.
         Long count = Long.MAX_VALUE;
@@ -149,49 +262,28 @@ public class DefaultOptimizer implements Optimizer
         }
         else if ( node.isLeaf() )
         {
-            LeafNode leaf = ( LeafNode ) node;
+            Long planned = null;
 
-            try
-            {  
-                if ( node instanceof PresenceNode )
-                {
-                    count = getPresenceScan( partitionTxn, ( PresenceNode ) leaf );
-                }
-                else if ( node instanceof EqualityNode )
-                {
-                    count = getEqualityScan( partitionTxn, ( EqualityNode ) leaf );
-                }
-                else if ( node instanceof GreaterEqNode )
-                {
-                    count = getGreaterLessScan( partitionTxn, ( GreaterEqNode ) leaf, SimpleNode.EVAL_GREATER );
-                }
-                else if ( node instanceof LessEqNode )
-                {
-                    count = getGreaterLessScan( partitionTxn, ( SimpleNode ) leaf, SimpleNode.EVAL_LESSER );
-                }
-                else if ( node instanceof SubstringNode )
-                {
-                    /** Cannot really say so we presume the total index count */
-                    count = getSubstringScan( partitionTxn, ( SubstringNode ) leaf );
-                }
-                else if ( node instanceof ExtensibleNode )
-                {
-                    /** Cannot really say so we presume the total index count */
-                    count = getFullScan( partitionTxn, leaf );
-                }
-                else if ( node instanceof ApproximateNode )
-                {
-                    /** Feature not implemented so we just use equality matching */
-                    count = getEqualityScan( partitionTxn, ( ApproximateNode ) leaf );
-                }
-                else
-                {
-                    throw new IllegalArgumentException( I18n.err( I18n.ERR_711 ) );
-                }
+            if ( trace != null )
+            {
+                trace.addStatistics( getStatistics( ( LeafNode ) node ) );
+                planned = trace.next();
+            }
+
+            if ( planned != null )
+            {
+                // The candidates will be read when building the cursor
+                node.set( CANDIDATES_ANNOTATION_KEY, null );
+                count = planned;
             }
-            catch ( IndexNotFoundException | IOException e )
+            else
             {
-                throw new LdapOtherException( e.getMessage(), e );
+                count = getLeafScan( partitionTxn, ( LeafNode ) node );
+
+                if ( trace != null )
+                {
+                    trace.record( count );
+                }
             }
         }
         // --------------------------------------------------------------------
@@ -201,15 +293,15 @@ public class DefaultOptimizer implements Optimizer
         {
             if ( node instanceof AndNode )
             {
-                count = getConjunctionScan( partitionTxn, ( AndNode ) node );
+                count = getConjunctionScan( partitionTxn, ( AndNode ) node, trace );
             }
             else if ( node instanceof OrNode )
             {
-                count = getDisjunctionScan( partitionTxn, ( OrNode ) node );
+                count = getDisjunctionScan( partitionTxn, ( OrNode ) node, trace );
             }
             else if ( node instanceof NotNode )
             {
-                annotate( partitionTxn, ( ( NotNode ) node ).getFirstChild() );
+                annotate( partitionTxn, ( ( NotNode ) node ).getFirstChild(), trace );
 
                 /*
                  * A negation filter is always worst case since we will have
@@ -231,12 +323,69 @@ public class DefaultOptimizer implements Optimizer
             count = Long.MAX_VALUE;
         }
 
+        if ( ( trace != null ) && ( count == 0L ) )
+        {
+            // A zero count depends on the assertion values, it can't be reused
+            trace.setNotCacheable();
+        }
+
         node.set( COUNT_ANNOTATION, count );
 
         return count;
     }
 
 
+    /**
+     * Gets the scan count of a leaf node
+     */
+    @SuppressWarnings("unchecked")
+    private long getLeafScan( PartitionTxn partitionTxn, LeafNode leaf ) throws LdapException
+    {
+        try
+        {
+            if ( leaf instanceof PresenceNode )
+            {
+                return getPresenceScan( partitionTxn, ( PresenceNode ) leaf );
+            }
+            else if ( leaf instanceof EqualityNode )
+            {
+                return getEqualityScan( partitionTxn, ( EqualityNode ) leaf );
+            }
+            else if ( leaf instanceof GreaterEqNode )
+            {
+                return getGreaterLessScan( partitionTxn, ( GreaterEqNode ) leaf, SimpleNode.EVAL_GREATER );
+            }
+            else if ( leaf instanceof LessEqNode )
+            {
+                return getGreaterLessScan( partitionTxn, ( SimpleNode ) leaf, SimpleNode.EVAL_LESSER );
+            }
+            else if ( leaf instanceof SubstringNode )
+            {
+                /** Cannot really say so we presume the total index count */
+                return getSubstringScan( partitionTxn, ( SubstringNode ) leaf );
+            }
+            else if ( leaf instanceof ExtensibleNode )
+            {
+                /** Cannot really say so we presume the total index count */
+                return getFullScan( partitionTxn, leaf );
+            }
+            else if ( leaf instanceof ApproximateNode )
+            {
+                /** Feature not implemented so we just use equality matching */
+                return getEqualityScan( partitionTxn, ( ApproximateNode ) leaf );
+            }
+            else
+            {
+                throw new IllegalArgumentException( I18n.err( I18n.ERR_711 ) );
+            }
+        }
+        catch ( IndexNotFoundException | IOException e )
+        {
+            throw new LdapOtherException( e.getMessage(), e );
+        }
+    }
+
+
     /**
      * ANDs or Conjunctions take the count of the smallest child as their count.
      * This is the best that a conjunction can do and should be used rather than
@@ -245,10 +394,11 @@ public class DefaultOptimizer implements Optimizer
      * depth first.
      *
      * @param node a AND (Conjunction) BranchNode
+     * @param trace the plan being used or computed, if any
      * @return the calculated scan count
      * @throws Exception if there is an error
      */
-    private long getConjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    private long getConjunctionScan( PartitionTxn partitionTxn, BranchNode node, PlanTrace trace ) throws LdapException
     {
         long count = Long.MAX_VALUE;
         List<ExprNode> children = node.getChildren();
@@ -261,7 +411,7 @@ public class DefaultOptimizer implements Optimizer
                 break;
             }
 
-            annotate( partitionTxn, child );
+            annotate( partitionTxn, child, trace );
             count = Math.min( ( ( Long ) child.get( COUNT_ANNOTATION ) ), count );
 
             if ( count == 0 )
@@ -281,17 +431,18 @@ public class DefaultOptimizer implements Optimizer
      * child node with a recursive call.
      *
      * @param node the OR branch node
+     * @param trace the plan being used or computed, if any
      * @return the scan count on the OR node
      * @throws Exception if there is an error
      */
-    private long getDisjunctionScan( PartitionTxn partitionTxn, BranchNode node ) throws LdapException
+    private long getDisjunctionScan( PartitionTxn partitionTxn, BranchNode node, PlanTrace trace ) throws LdapException
     {
         List<ExprNode> children = node.getChildren();
         long total = 0L;
 
         for ( ExprNode child : children )
         {
-            annotate( partitionTxn, child );
+            annotate( partitionTxn, child, trace );
             total += ( Long ) child.get( COUNT_ANNOTATION );
 
             if ( total == Long.MAX_VALUE )
@@ -319,18 +470,17 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            String normalizedKey = getNormalizedKey( node );
+            IndexStatistics statistics = idx.getStatistics();
 
-            String normalizedKey;
-            
-            if ( node.getValue().isSchemaAware() )
-            {
-                normalizedKey = node.getValue().getNormalized();
-            }
-            else
+            if ( statistics != null )
             {
-                normalizedKey = node.getAttributeType().getEquality().getNormalizer().normalize( node.getValue().getString() );
+                // The candidates will be read when building the cursor
+                node.set( CANDIDATES_ANNOTATION_KEY, null );
+
+                return statistics.equalityCount( normalizedKey );
             }
-            
+
             Cursor<String> result = idx.forwardValueCursor( partitionTxn, ( V ) normalizedKey );
             Set<String> values = new HashSet<>();
             int nbFound = 0;
@@ -370,6 +520,22 @@ public class DefaultOptimizer implements Optimizer
     }
 
 
+    /**
+     * Normalizes the value of an assertion the way it is stored in the index
+     */
+    private <V> String getNormalizedKey( SimpleNode<V> node ) throws LdapException
+    {
+        if ( node.getValue().isSchemaAware() )
+        {
+            return node.getValue().getNormalized();
+        }
+        else
+        {
+            return node.getAttributeType().getEquality().getNormalizer().normalize( node.getValue().getString() );
+        }
+    }
+
+
     /**
      * Gets a scan count of the nodes that satisfy the greater or less than test
      * specified by the node.
@@ -385,6 +551,21 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = idx.getStatistics();
+
+            if ( ( statistics != null ) && statistics.hasHistogram() )
+            {
+                String normalizedKey = getNormalizedKey( node );
+
+                if ( isGreaterThan )
+                {
+                    return statistics.rangeCount( normalizedKey, null );
+                }
+                else
+                {
+                    return statistics.rangeCount( null, normalizedKey );
+                }
+            }
 
             if ( isGreaterThan )
             {
@@ -416,9 +597,21 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<String, String> idx = ( Index<String, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = idx.getStatistics();
 
             String initial = node.getInitial();
 
+            if ( statistics != null )
+            {
+                if ( Strings.isEmpty( initial ) || !statistics.hasHistogram() )
+                {
+                    return statistics.rangeCount( null, null );
+                }
+
+                // All the keys starting with the initial string
+                return statistics.rangeCount( initial, initial + Character.MAX_VALUE );
+            }
+
             if ( Strings.isEmpty( initial ) )
             {
                 // Not a (attr=ABC*) filter : full index scan
@@ -451,6 +644,13 @@ public class DefaultOptimizer implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<?, ?> idx = db.getIndex( node.getAttributeType() );
+            IndexStatistics statistics = idx.getStatistics();
+
+            if ( statistics != null )
+            {
+                return statistics.rangeCount( null, null );
+            }
+
             return idx.count( partitionTxn );
         }
 
@@ -466,8 +666,19 @@ public class DefaultOptimizer implements Optimizer
      * @return the number of entries matched for the presence of an attribute
      * @throws Exception if errors result
      */
-    private long getPresenceScan( PartitionTxn partitionTxn, PresenceNode node ) throws LdapException
+    private long getPresenceScan( PartitionTxn partitionTxn, PresenceNode node ) throws LdapException, IndexNotFoundException
     {
+        if ( db.hasUserIndexOn( node.getAttributeType() ) )
+        {
+            IndexStatistics statistics = db.getIndex( node.getAttributeType() ).getStatistics();
+
+            if ( statistics != null )
+            {
+                // Each entry holding the attribute has at least one value in the index
+                return Math.max( 1L, Math.min( statistics.getCount(), db.getCachedCount( partitionTxn ) ) );
+            }
+        }
+
         if ( db.hasUserIndexOn( node.getAttributeType() )
              || node.getAttributeType().getOid().equals( SchemaConstants.ADMINISTRATIVE_ROLE_AT_OID ) )
         {
@@ -480,7 +691,7 @@ public class DefaultOptimizer implements Optimizer
         {
             // the system indices (objectClass, entryUUID and entryCSN) are maintained for
             // each entry, so we could just return the database count
-            return db.count( partitionTxn );
+            return db.getCachedCount( partitionTxn );
         }
 
         return Long.MAX_VALUE;
@@ -509,7 +720,7 @@ public class DefaultOptimizer implements Optimizer
             case SUBTREE:
                 if ( id == getContextEntryId( partitionTxn ) )
                 {
-                    return db.count( partitionTxn );
+                    return db.getCachedCount( partitionTxn );
                 }
                 else
                 {
@@ -520,4 +731,110 @@ public class DefaultOptimizer implements Optimizer
                 throw new IllegalArgumentException( I18n.err( I18n.ERR_713 ) );
         }
     }
+
+
+    /**
+     * Follows the leaves counts while a filter is annotated : either the counts
+     * of a cached plan are replayed, or the computed counts are recorded to
+     * create a new plan.
+     */
+    private static class PlanTrace
+    {
+        /** The replayed plan, null when recording */
+        private final PlanCache.Plan plan;
+
+        /** The position of the next replayed count */
+        private int position;
+
+        /** The recorded counts */
+        private final List<Long> counts = new ArrayList<>();
+
+        /** The statistics of the indexes used by the leaves, in the order they are visited */
+        private final List<IndexStatistics> statistics = new ArrayList<>();
+
+        /** Tells if the recorded counts can be reused */
+        private boolean cacheable = true;
+
+        /** Tells if the replayed plan matched the filter */
+        private boolean consistent = true;
+
+
+        PlanTrace( PlanCache.Plan plan )
+        {
+            this.plan = plan;
+        }
+
+
+        /**
+         * @return The next replayed count, or null if we are recording or if the plan is exhausted
+         */
+        Long next()
+        {
+            if ( plan == null )
+            {
+                return null;
+            }
+
+            if ( position < plan.counts.length )
+            {
+                return plan.counts[position++];
+            }
+
+            consistent = false;
+
+            return null;
+        }
+
+
+        void record( long count )
+        {
+            if ( plan == null )
+            {
+                counts.add( count );
+            }
+        }
+
+
+        void addStatistics( IndexStatistics leafStatistics )
+        {
+            statistics.add( leafStatistics );
+        }
+
+
+        IndexStatistics[] getStatistics()
+        {
+            return statistics.toArray( new IndexStatistics[statistics.size()] );
+        }
+
+
+        void setNotCacheable()
+        {
+            cacheable = false;
+        }
+
+
+        boolean isCacheable()
+        {
+            return cacheable;
+        }
+
+
+        boolean isConsistent()
+        {
+            return consistent;
+        }
+
+
+        PlanCache.Plan toPlan( long masterCount )
+        {
+            long[] array = new long[counts.size()];
+
+            for ( int i = 0; i < array.length; i++ )
+            {
+                array[i] = counts.get( i );
+            }
+
+            return new PlanCache.Plan( array, getStatistics(), masterCount );
+        }
+    }
 }
@@ -20,6 +20,7 @@
 package org.apache.directory.server.xdbm.search.impl;
 
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -31,11 +32,19 @@ import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
 import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.filter.ScopeNode;
+import org.apache.directory.api.ldap.model.filter.SimpleNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
@@ -43,11 +52,17 @@ import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.IndexEntry;
+import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.UuidSet;
+import org.apache.directory.server.xdbm.UuidSetCursor;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.cursor.AllEntriesCursor;
+import org.apache.directory.server.xdbm.search.cursor.IdOrderedCursor;
+import org.apache.directory.server.xdbm.search.cursor.SortedIndexCursor;
 import org.apache.directory.server.xdbm.search.evaluator.BaseLevelScopeEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,6 +91,19 @@ public class DefaultSearchEngine implements SearchEngine
     /** creates evaluators which check to see if candidates satisfy a filter expression */
     private final EvaluatorBuilder evaluatorBuilder;
 
+    /**
+     * The index on the sort key is not used when it contains more than this number of
+     * values per entry selected by the filter. The MasterTable is not read for a
+     * resumable search when it contains more than this number of entries per candidate.
+     */
+    private static final long SORTED_SCAN_RATIO = 10L;
+
+    /**
+     * The number of IDs read at once from the MasterTable of a partition which does not
+     * read from a snapshot, for a resumable search.
+     */
+    private static final int ID_CHUNK_SIZE = 1000;
+
 
     // ------------------------------------------------------------------------
     // C O N S T R U C T O R S
@@ -189,6 +217,19 @@ public class DefaultSearchEngine implements SearchEngine
         // --------------------------------------------------------------------
         if ( scope == SearchScope.OBJECT )
         {
+            if ( searchContext.isResumable() )
+            {
+                // The base entry has already been returned when the search is resumed
+                searchContext.setIdOrdered( true );
+
+                if ( searchContext.getResumeAfter() != null )
+                {
+                    searchResult.setResultSet( resultSet );
+
+                    return searchResult;
+                }
+            }
+
             IndexEntry<String, String> indexEntry = new IndexEntry<>();
             indexEntry.setId( effectiveBaseId );
 
@@ -245,53 +286,280 @@ public class DefaultSearchEngine implements SearchEngine
         optimizer.annotate( partitionTxn, root );
         Evaluator<? extends ExprNode> evaluator = evaluatorBuilder.build( partitionTxn, root );
 
-        Set<String> uuidSet = new HashSet<>();
         searchResult.setAliasDerefMode( aliasDerefMode );
+
+        // A resumable search returns the candidates in the order of their IDs, so that it
+        // can be resumed after the last returned entry. The entries found through aliases
+        // can't be ordered this way.
+        if ( searchContext.isResumable() && ( searchResult.isNeverDeref() || searchResult.isDerefFinding() ) )
+        {
+            Cursor<IndexEntry<String, String>> cursor = buildIdOrderedCursor( partitionTxn, searchContext, root,
+                searchResult );
+
+            LOG.debug( "Reading the candidates in the order of their IDs for filter : {}", root );
+
+            searchContext.setIdOrdered( true );
+            searchResult.setEvaluator( evaluator );
+            searchResult.setResultSet( cursor );
+
+            return searchResult;
+        }
+
+        // When the partition reads from a snapshot, the cursors stay consistent while the
+        // result is consumed : the candidates are then streamed if the filter allows it
+        if ( ( ( Partition ) db ).isSnapshotReadSupported() )
+        {
+            Cursor<IndexEntry<String, String>> cursor = buildSortedCursor( partitionTxn, schemaManager, searchContext,
+                filter, root, searchResult );
+
+            if ( cursor != null )
+            {
+                LOG.debug( "Reading the candidates in the order of the sort key for filter : {}", root );
+
+                searchContext.setSorted( true );
+                searchResult.setEvaluator( evaluator );
+                searchResult.setResultSet( cursor );
+
+                return searchResult;
+            }
+
+            cursor = cursorBuilder.buildCursor( partitionTxn, root, searchResult );
+
+            if ( cursor != null )
+            {
+                LOG.debug( "Streaming the candidates for filter : {}", root );
+
+                searchResult.setEvaluator( evaluator );
+                searchResult.setResultSet( cursor );
+
+                return searchResult;
+            }
+        }
+
+        // The candidates are gathered in a compact set, and the IndexEntries
+        // are only created when the result cursor reaches them
+        UuidSet uuidSet = new UuidSet();
         searchResult.setCandidateSet( uuidSet );
 
         long nbResults = cursorBuilder.build( partitionTxn, root, searchResult );
 
         LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
 
-        if ( nbResults < Long.MAX_VALUE )
+        if ( nbResults == Long.MAX_VALUE )
+        {
+            // Full scan : use the MasterTable
+            scanMasterTable( partitionTxn, uuidSet );
+        }
+
+        searchResult.setEvaluator( evaluator );
+        searchResult.setResultSet( new UuidSetCursor( partitionTxn, uuidSet ) );
+
+        return searchResult;
+    }
+
+
+    /**
+     * Gathers the IDs of all the entries of the MasterTable in a set.
+     */
+    private void scanMasterTable( PartitionTxn partitionTxn, UuidSet uuidSet ) throws LdapException
+    {
+        uuidSet.clear();
+        Cursor<IndexEntry<String, String>> cursor = new IndexCursorAdaptor( partitionTxn, db.getMasterTable().cursor(), true );
+
+        try
         {
-            for ( String uuid : uuidSet )
+            while ( cursor.next() )
             {
-                IndexEntry<String, String> indexEntry = new IndexEntry<>();
-                indexEntry.setId( uuid );
-                resultSet.add( indexEntry );
+                // Here, the indexEntry contains a <UUID, Entry> tuple. We only keep the UUID
+                uuidSet.add( cursor.get().getKey() );
             }
         }
-        else
+        catch ( CursorException ce )
         {
-            // Full scan : use the MasterTable
-            Cursor<IndexEntry<String, String>> cursor = new IndexCursorAdaptor( partitionTxn, db.getMasterTable().cursor(), true );
+            throw new LdapOtherException( ce.getMessage(), ce );
+        }
+        finally
+        {
+            closeQuietly( cursor );
+        }
+    }
 
-            try
+
+    /**
+     * Builds a Cursor reading the candidates in the order of their IDs, after the ID
+     * of the last entry returned by the previous page of a resumable search. Nothing
+     * is kept between the pages : the position is given by the ID only.
+     * <p>
+     * When the filter selects a large part of the partition, the MasterTable is directly
+     * read from the position : with a cursor if the partition reads from a snapshot, by
+     * chunks of IDs otherwise. Each page then only reads the entries it returns, and the
+     * ones the filter rejects. Otherwise the candidates are gathered, and those after the
+     * position are sorted.
+     *
+     * @return The Cursor
+     */
+    private Cursor<IndexEntry<String, String>> buildIdOrderedCursor( PartitionTxn partitionTxn,
+        SearchOperationContext searchContext, ExprNode root, PartitionSearchResult searchResult )
+        throws LdapException
+    {
+        String resumeAfter = searchContext.getResumeAfter();
+        Long count = ( Long ) root.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+        if ( ( count == null ) || ( count == Long.MAX_VALUE )
+            || ( count * SORTED_SCAN_RATIO >= db.getCachedCount( partitionTxn ) ) )
+        {
+            if ( ( ( Partition ) db ).isSnapshotReadSupported() )
             {
-                while ( cursor.next() )
+                return new IdOrderedCursor( partitionTxn, db, resumeAfter );
+            }
+
+            // The MasterTable can't be read by a cursor while the entries are returned
+            return new IdOrderedCursor( partitionTxn, db, resumeAfter, ID_CHUNK_SIZE );
+        }
+
+        UuidSet uuidSet = new UuidSet();
+        searchResult.setCandidateSet( uuidSet );
+
+        if ( cursorBuilder.build( partitionTxn, root, searchResult ) == Long.MAX_VALUE )
+        {
+            scanMasterTable( partitionTxn, uuidSet );
+        }
+
+        return new IdOrderedCursor( partitionTxn, db, uuidSet, resumeAfter );
+    }
+
+
+    /**
+     * Builds a Cursor reading the candidates in the order requested by the server side
+     * sort control, from the index on the sort attribute, so that the entries don't have
+     * to be sorted once they have all been read. The first sort key is used, with the
+     * same ordering as the one the CoreSession sorts the entries with.
+     * <p>
+     * The index is not used if the filter selects much less entries than it contains :
+     * it's then cheaper to sort the selected entries.
+     *
+     * @return The Cursor, or null if the candidates can't be read from an index
+     */
+    private Cursor<IndexEntry<String, String>> buildSortedCursor( PartitionTxn partitionTxn,
+        SchemaManager schemaManager, SearchOperationContext searchContext, ExprNode filter, ExprNode root,
+        PartitionSearchResult searchResult ) throws LdapException
+    {
+        SortRequest sortControl = ( SortRequest ) searchContext.getRequestControl( SortRequest.OID );
+
+        if ( ( sortControl == null ) || sortControl.getSortKeys().isEmpty()
+            || ( !searchResult.isNeverDeref() && !searchResult.isDerefFinding() ) )
+        {
+            return null;
+        }
+
+        SortKey sortKey = sortControl.getSortKeys().get( 0 );
+        AttributeType attributeType = schemaManager.getAttributeType( sortKey.getAttributeTypeDesc() );
+
+        if ( ( attributeType == null ) || !attributeType.getSyntax().isHumanReadable()
+            || ( attributeType.getEquality() == null ) || !db.hasUserIndexOn( attributeType ) )
+        {
+            return null;
+        }
+
+        // The index is ordered by the equality matching rule of the attribute
+        String sortRule = sortKey.getMatchingRuleId();
+
+        if ( sortRule == null )
+        {
+            sortRule = ( attributeType.getOrdering() != null ) ? attributeType.getOrdering().getOid()
+                : attributeType.getEquality().getOid();
+        }
+
+        try
+        {
+            if ( schemaManager.lookupComparatorRegistry( sortRule ).getClass() != schemaManager
+                .lookupComparatorRegistry( attributeType.getEquality().getOid() ).getClass() )
+            {
+                return null;
+            }
+
+            Long count = ( Long ) root.get( DefaultOptimizer.COUNT_ANNOTATION );
+
+            if ( ( count != null ) && ( count < Long.MAX_VALUE )
+                && ( count * SORTED_SCAN_RATIO < db.getIndex( attributeType ).count( partitionTxn ) ) )
+            {
+                return null;
+            }
+        }
+        catch ( LdapException | IndexNotFoundException e )
+        {
+            LOG.debug( "Can't use the index on {} to sort the entries", attributeType.getName(), e );
+
+            return null;
+        }
+
+        // The entries not having the sort attribute are only read if the filter may select them
+        Cursor<IndexEntry<String, String>> missingCursor = null;
+
+        if ( !isRequired( filter, attributeType ) )
+        {
+            missingCursor = cursorBuilder.buildCursor( partitionTxn, root, searchResult );
+
+            if ( missingCursor == null )
+            {
+                missingCursor = new AllEntriesCursor( partitionTxn, db );
+            }
+        }
+
+        return new SortedIndexCursor( partitionTxn, db, attributeType, sortKey.isReverseOrder(), missingCursor );
+    }
+
+
+    /**
+     * Tells if a filter can only select the entries having a given attribute.
+     */
+    private static boolean isRequired( ExprNode node, AttributeType attributeType )
+    {
+        if ( node instanceof AndNode )
+        {
+            for ( ExprNode child : ( ( AndNode ) node ).getChildren() )
+            {
+                if ( isRequired( child, attributeType ) )
                 {
-                    IndexEntry<String, String> indexEntry = cursor.get();
-    
-                    // Here, the indexEntry contains a <UUID, Entry> tuple. Convert it to <UUID, UUID>
-                    IndexEntry<String, String> forwardIndexEntry = new IndexEntry<>();
-                    forwardIndexEntry.setKey( indexEntry.getKey() );
-                    forwardIndexEntry.setId( indexEntry.getKey() );
-                    forwardIndexEntry.setEntry( null );
-    
-                    resultSet.add( forwardIndexEntry );
+                    return true;
                 }
             }
-            catch ( CursorException ce )
+
+            return false;
+        }
+
+        if ( node instanceof OrNode )
+        {
+            for ( ExprNode child : ( ( OrNode ) node ).getChildren() )
             {
-                throw new LdapOtherException( ce.getMessage(), ce );
+                if ( !isRequired( child, attributeType ) )
+                {
+                    return false;
+                }
             }
+
+            return !( ( OrNode ) node ).getChildren().isEmpty();
         }
 
-        searchResult.setEvaluator( evaluator );
-        searchResult.setResultSet( resultSet );
+        if ( ( node instanceof SimpleNode ) || ( node instanceof PresenceNode ) || ( node instanceof SubstringNode ) )
+        {
+            return attributeType.equals( ( ( LeafNode ) node ).getAttributeType() );
+        }
 
-        return searchResult;
+        return false;
+    }
+
+
+    private static void closeQuietly( Cursor<?> cursor )
+    {
+        try
+        {
+            cursor.close();
+        }
+        catch ( IOException ioe )
+        {
+            LOG.warn( "Failed to close the master table cursor", ioe );
+        }
     }
 
 
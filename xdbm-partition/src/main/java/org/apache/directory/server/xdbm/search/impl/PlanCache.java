@@ -0,0 +1,384 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ApproximateNode;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ExtensibleNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.LessEqNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.filter.ScopeNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.server.xdbm.IndexStatistics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+
+/**
+ * A cache of the scan counts computed by the {@link DefaultOptimizer}, keyed by the
+ * shape of the filter : the filter structure and the attributes it uses, without the
+ * assertion values. Applications tend to use the same filter templates over and over,
+ * with different values, so the counts computed for a filter are reused for the
+ * following filters with the same shape instead of reading the indexes again. As the
+ * counts drive the order in which the AND filters are evaluated and the cursor which
+ * is used to fetch the candidates, the plan chosen for the first filter is reused.
+ * <p>
+ * A plan is dropped when the number of entries in the partition, or the statistics of
+ * one of the indexes it used, have changed significantly since it was computed.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PlanCache
+{
+    /** The default number of plans kept in the cache */
+    public static final int DEFAULT_SIZE = 1000;
+
+    /** The cached plans, by filter shape */
+    private final Cache<String, Plan> plans;
+
+    /** The number of filters for which a plan was reused */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of filters for which no plan was found */
+    private final LongAdder misses = new LongAdder();
+
+    /** The number of plans dropped because they were obsolete */
+    private final LongAdder invalidations = new LongAdder();
+
+
+    /**
+     * Creates a new instance of PlanCache.
+     *
+     * @param size The maximum number of plans to keep
+     */
+    public PlanCache( int size )
+    {
+        plans = Caffeine.newBuilder().maximumSize( size ).build();
+    }
+
+
+    /**
+     * Computes the shape of a filter, which is the filter with the assertion values
+     * removed. The scope is kept, but not the search base.
+     *
+     * @param node The filter
+     * @return The filter shape, or null if the filter contains nodes which counts can't be reused
+     */
+    static String getShape( ExprNode node )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        if ( appendShape( sb, node ) )
+        {
+            return sb.toString();
+        }
+
+        return null;
+    }
+
+
+    private static boolean appendShape( StringBuilder sb, ExprNode node )
+    {
+        if ( node instanceof BranchNode )
+        {
+            if ( node instanceof AndNode )
+            {
+                sb.append( "(&" );
+            }
+            else if ( node instanceof OrNode )
+            {
+                sb.append( "(|" );
+            }
+            else if ( node instanceof NotNode )
+            {
+                sb.append( "(!" );
+            }
+            else
+            {
+                return false;
+            }
+
+            List<ExprNode> children = ( ( BranchNode ) node ).getChildren();
+
+            for ( ExprNode child : children )
+            {
+                if ( !appendShape( sb, child ) )
+                {
+                    return false;
+                }
+            }
+
+            sb.append( ')' );
+
+            return true;
+        }
+
+        if ( node instanceof ScopeNode )
+        {
+            sb.append( "(scope=" ).append( ( ( ScopeNode ) node ).getScope() ).append( ')' );
+
+            return true;
+        }
+
+        if ( !( node instanceof EqualityNode ) && !( node instanceof ApproximateNode )
+            && !( node instanceof GreaterEqNode ) && !( node instanceof LessEqNode )
+            && !( node instanceof PresenceNode ) && !( node instanceof SubstringNode )
+            && !( node instanceof ExtensibleNode ) )
+        {
+            // Assertion nodes and unknown nodes
+            return false;
+        }
+
+        LeafNode leaf = ( LeafNode ) node;
+
+        sb.append( '(' );
+
+        if ( leaf.getAttributeType() != null )
+        {
+            sb.append( leaf.getAttributeType().getOid() );
+        }
+        else
+        {
+            sb.append( leaf.getAttribute() );
+        }
+
+        sb.append( ':' ).append( node.getAssertionType() );
+
+        if ( node instanceof SubstringNode )
+        {
+            // The counts depend on the presence of the initial part
+            SubstringNode substringNode = ( SubstringNode ) node;
+            sb.append( ':' ).append( substringNode.getInitial() != null );
+        }
+        else if ( node instanceof ExtensibleNode )
+        {
+            sb.append( ':' ).append( ( ( ExtensibleNode ) node ).getMatchingRuleId() );
+        }
+
+        sb.append( ')' );
+
+        return true;
+    }
+
+
+    /**
+     * Gets the plan stored for a filter shape.
+     *
+     * @param shape The filter shape
+     * @return The plan, or null if there is none
+     */
+    Plan get( String shape )
+    {
+        return plans.getIfPresent( shape );
+    }
+
+
+    /**
+     * Stores the plan of a filter shape.
+     *
+     * @param shape The filter shape
+     * @param plan The plan
+     */
+    void put( String shape, Plan plan )
+    {
+        plans.put( shape, plan );
+    }
+
+
+    /**
+     * Drops an obsolete plan.
+     *
+     * @param shape The filter shape
+     */
+    void invalidate( String shape )
+    {
+        plans.invalidate( shape );
+        invalidations.increment();
+    }
+
+
+    /**
+     * Records that a plan has been reused
+     */
+    void hit()
+    {
+        hits.increment();
+    }
+
+
+    /**
+     * Records that a plan had to be computed
+     */
+    void miss()
+    {
+        misses.increment();
+    }
+
+
+    /**
+     * Removes all the plans from the cache
+     */
+    public void clear()
+    {
+        plans.invalidateAll();
+    }
+
+
+    /**
+     * @return The number of plans in the cache
+     */
+    public long size()
+    {
+        return plans.estimatedSize();
+    }
+
+
+    /**
+     * @return The number of filters for which a plan was reused
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+
+    /**
+     * @return The number of filters for which a plan had to be computed
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+
+    /**
+     * @return The number of plans dropped because the partition had changed too much
+     */
+    public long getInvalidations()
+    {
+        return invalidations.sum();
+    }
+
+
+    /**
+     * @return The ratio of filters for which a plan was reused, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        long nbHits = hits.sum();
+        long total = nbHits + misses.sum();
+
+        return ( total == 0L ) ? 0d : ( double ) nbHits / total;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "PlanCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+            + ", invalidations=" + getInvalidations() + "]";
+    }
+
+
+    /**
+     * The counts computed for the leaves of a filter, in the order the optimizer
+     * visited them, with what is needed to tell when they are obsolete.
+     */
+    static class Plan
+    {
+        /** The leaves counts */
+        final long[] counts;
+
+        /** The statistics of the index used for each leaf, if any */
+        private final IndexStatistics[] statistics;
+
+        /** The statistics counts when the plan was computed */
+        private final long[] statisticsCounts;
+
+        /** The number of entries in the partition when the plan was computed */
+        private final long masterCount;
+
+
+        Plan( long[] counts, IndexStatistics[] statistics, long masterCount )
+        {
+            this.counts = counts;
+            this.statistics = statistics;
+            this.masterCount = masterCount;
+            statisticsCounts = new long[statistics.length];
+
+            for ( int i = 0; i < statistics.length; i++ )
+            {
+                if ( statistics[i] != null )
+                {
+                    statisticsCounts[i] = statistics[i].getCount();
+                }
+            }
+        }
+
+
+        /**
+         * Tells if the plan can still be used.
+         *
+         * @param currentMasterCount The current number of entries in the partition
+         * @param currentStatistics The statistics currently used by the indexes of the leaves
+         * @return <code>true</code> if the partition has not changed too much since the plan was computed
+         */
+        boolean isValid( long currentMasterCount, IndexStatistics[] currentStatistics )
+        {
+            if ( IndexStatistics.isDrifted( masterCount, currentMasterCount )
+                || ( currentStatistics.length != statistics.length ) )
+            {
+                return false;
+            }
+
+            for ( int i = 0; i < statistics.length; i++ )
+            {
+                // The statistics may have been rebuilt
+                if ( currentStatistics[i] != statistics[i] )
+                {
+                    return false;
+                }
+
+                if ( ( statistics[i] != null )
+                    && IndexStatistics.isDrifted( statisticsCounts[i], statistics[i].getCount() ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
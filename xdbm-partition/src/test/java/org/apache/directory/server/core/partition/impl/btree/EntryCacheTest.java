@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the EntryCache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class EntryCacheTest
+{
+    private static SchemaManager schemaManager;
+
+
+    @BeforeAll
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = EntryCacheTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    private static Entry createEntry( int number ) throws Exception
+    {
+        return new DefaultEntry( schemaManager, "cn=user" + number + ",ou=people,dc=example,dc=com",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: user" + number,
+            "sn: User number " + number,
+            "description: A user stored in the entry cache" );
+    }
+
+
+    @Test
+    public void testCountBounded() throws Exception
+    {
+        EntryCache cache = new EntryCache( schemaManager, 10 );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            cache.put( Integer.toString( i ), createEntry( i ) );
+        }
+
+        cache.get( "99" );
+
+        assertTrue( cache.size() <= 10 );
+        assertEquals( -1L, cache.getWeightedSize() );
+        assertTrue( cache.getEvictions() >= 90 );
+    }
+
+
+    @Test
+    public void testHitsAndMisses() throws Exception
+    {
+        EntryCache cache = new EntryCache( schemaManager, 10 );
+        Entry entry = createEntry( 1 );
+        cache.put( "1", entry );
+
+        assertSame( entry, cache.get( "1" ) );
+        assertNull( cache.get( "2" ) );
+        assertEquals( 1L, cache.getHits() );
+        assertEquals( 1L, cache.getMisses() );
+        assertEquals( 0.5d, cache.getHitRate() );
+
+        cache.invalidate( "1" );
+        assertNull( cache.get( "1" ) );
+
+        cache.put( "1", entry );
+        cache.clear();
+        assertNull( cache.get( "1" ) );
+    }
+
+
+    @Test
+    public void testByteBudget() throws Exception
+    {
+        long entrySize = EntryCache.estimateSize( createEntry( 0 ) );
+        EntryCache cache = new EntryCache( schemaManager, entrySize * 20, false );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            cache.put( Integer.toString( i ), createEntry( i ) );
+        }
+
+        cache.get( "199" );
+
+        assertTrue( cache.getWeightedSize() <= entrySize * 20 );
+        assertTrue( cache.size() <= 21 );
+        assertTrue( cache.getEvictions() > 0 );
+        assertEquals( 0L, cache.getSerializations() );
+    }
+
+
+    @Test
+    public void testLargeEntriesTakeMoreRoom() throws Exception
+    {
+        Entry small = createEntry( 0 );
+        Entry large = createEntry( 1 );
+        large.add( "jpegPhoto", new byte[100_000] );
+
+        assertTrue( EntryCache.estimateSize( large ) > 100_000 );
+        assertTrue( EntryCache.estimateSize( large ) > 50 * EntryCache.estimateSize( small ) );
+    }
+
+
+    @Test
+    public void testSerializeColdEntries() throws Exception
+    {
+        long entrySize = EntryCache.estimateSize( createEntry( 0 ) );
+        EntryCache cache = new EntryCache( schemaManager, entrySize * 1500, true );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            cache.put( Integer.toString( i ), createEntry( i ) );
+        }
+
+        assertTrue( cache.getSerializations() > 0 );
+        assertTrue( cache.getWeightedSize() < entrySize * 1000 );
+
+        // All the entries are still there, some of them serialized
+        for ( int i = 0; i < 1000; i++ )
+        {
+            Entry entry = cache.get( Integer.toString( i ) );
+            assertNotNull( entry );
+            assertEquals( createEntry( i ), entry );
+        }
+
+        assertTrue( cache.getSerializedHits() > 0 );
+        assertEquals( 1000L, cache.getHits() );
+        assertEquals( 0L, cache.getEvictions() );
+    }
+
+
+    @Test
+    public void testSecondLevel() throws Exception
+    {
+        OffHeapEntryCache secondLevel = new OffHeapEntryCache( 1024 * 1024, 64 * 1024 );
+        EntryCache cache = new EntryCache( schemaManager, 10, secondLevel );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            cache.put( Integer.toString( i ), createEntry( i ) );
+        }
+
+        cache.get( "99" );
+
+        // The evicted entries have been moved off heap
+        assertTrue( cache.size() <= 10 );
+        assertTrue( secondLevel.size() >= 90 );
+
+        // An entry read from the second level without its Dn is not promoted
+        String evicted = null;
+
+        for ( int i = 0; ( evicted == null ) && ( i < 100 ); i++ )
+        {
+            if ( secondLevel.contains( Integer.toString( i ) ) )
+            {
+                evicted = Integer.toString( i );
+            }
+        }
+
+        Entry withoutDn = cache.get( evicted );
+        assertNotNull( withoutDn );
+        assertTrue( Dn.isNullOrEmpty( withoutDn.getDn() ) );
+        assertTrue( secondLevel.contains( evicted ) );
+
+        // The entries read from the second level get their Dn
+        for ( int i = 0; i < 100; i++ )
+        {
+            Entry expected = createEntry( i );
+            Entry entry = cache.get( Integer.toString( i ), expected.getDn() );
+            assertNotNull( entry );
+            assertEquals( expected.get( "sn" ), entry.get( "sn" ) );
+            assertEquals( expected.getDn(), entry.getDn() );
+        }
+
+        assertTrue( cache.getSecondLevelHits() >= 90 );
+        assertEquals( 0L, cache.getMisses() );
+
+        // They are only promoted on demand
+        Entry read = cache.get( evicted, createEntry( Integer.parseInt( evicted ) ).getDn() );
+        assertFalse( cache.isPromotable( evicted, withoutDn ) );
+        assertTrue( cache.isPromotable( evicted, read ) );
+        assertTrue( cache.promote( evicted, read ) );
+
+        // An entry removed after it has been read is not promoted back
+        String removed = null;
+
+        for ( int i = 99; ( removed == null ) && ( i >= 0 ); i-- )
+        {
+            String id = Integer.toString( i );
+
+            if ( !id.equals( evicted ) && secondLevel.contains( id ) )
+            {
+                removed = id;
+            }
+        }
+
+        read = cache.get( removed, createEntry( Integer.parseInt( removed ) ).getDn() );
+        cache.invalidate( removed );
+        assertFalse( cache.promote( removed, read ) );
+        assertNull( cache.get( removed ) );
+
+        // A modified entry is not read from the off-heap cache
+        Entry modified = createEntry( 0 );
+        modified.put( "sn", "Modified" );
+        cache.put( "0", modified );
+        assertFalse( secondLevel.contains( "0" ) );
+
+        // A removed entry is removed from both levels
+        cache.invalidate( "1" );
+        assertFalse( secondLevel.contains( "1" ) );
+        assertNull( cache.get( "1" ) );
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the OffHeapEntryCache.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.CONCURRENT)
+public class OffHeapEntryCacheTest
+{
+    private static byte[] bytes( int value, int length )
+    {
+        byte[] bytes = new byte[length];
+        Arrays.fill( bytes, ( byte ) value );
+
+        return bytes;
+    }
+
+
+    @Test
+    public void testPutGetRemove()
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 4096, 1024 );
+
+        assertNull( cache.get( "1" ) );
+        assertTrue( cache.put( "1", bytes( 1, 100 ) ) );
+        assertTrue( cache.put( "2", bytes( 2, 200 ) ) );
+
+        assertArrayEquals( bytes( 1, 100 ), cache.get( "1" ) );
+        assertArrayEquals( bytes( 2, 200 ), cache.get( "2" ) );
+        assertEquals( 2, cache.size() );
+        assertEquals( 1024L, cache.getAllocatedBytes() );
+
+        // Replace an entry
+        assertTrue( cache.put( "1", bytes( 3, 50 ) ) );
+        assertArrayEquals( bytes( 3, 50 ), cache.get( "1" ) );
+
+        cache.remove( "1" );
+        assertNull( cache.get( "1" ) );
+        assertEquals( 3L, cache.getHits() );
+        assertEquals( 2L, cache.getMisses() );
+    }
+
+
+    @Test
+    public void testTooLarge()
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 4096, 1024 );
+
+        assertTrue( cache.put( "1", bytes( 1, 100 ) ) );
+        assertFalse( cache.put( "1", bytes( 1, 2000 ) ) );
+        assertNull( cache.get( "1" ) );
+    }
+
+
+    @Test
+    public void testInvalidSizes()
+    {
+        assertThrows( IllegalArgumentException.class, () -> new OffHeapEntryCache( 100, 1024 ) );
+        assertThrows( IllegalArgumentException.class, () -> new OffHeapEntryCache( 4096, 0 ) );
+    }
+
+
+    @Test
+    public void testClockEviction()
+    {
+        // 4 segments of 10 entries
+        OffHeapEntryCache cache = new OffHeapEntryCache( 4000, 1000 );
+
+        for ( int i = 0; i < 40; i++ )
+        {
+            cache.put( Integer.toString( i ), bytes( i, 100 ) );
+        }
+
+        assertEquals( 40, cache.size() );
+        assertEquals( 4000L, cache.getAllocatedBytes() );
+
+        // Read an entry of the first segment, which then gets a second chance
+        assertNotNull( cache.get( "0" ) );
+
+        // The second segment is reclaimed
+        cache.put( "40", bytes( 40, 100 ) );
+
+        assertEquals( 4000L, cache.getAllocatedBytes() );
+        assertEquals( 10L, cache.getEvictions() );
+        assertNotNull( cache.get( "0" ) );
+        assertNotNull( cache.get( "9" ) );
+        assertNull( cache.get( "10" ) );
+        assertNull( cache.get( "19" ) );
+        assertArrayEquals( bytes( 20, 100 ), cache.get( "20" ) );
+        assertArrayEquals( bytes( 40, 100 ), cache.get( "40" ) );
+    }
+
+
+    @Test
+    public void testClear()
+    {
+        OffHeapEntryCache cache = new OffHeapEntryCache( 4096, 1024 );
+
+        cache.put( "1", bytes( 1, 100 ) );
+        cache.clear();
+
+        assertNull( cache.get( "1" ) );
+        assertEquals( 0, cache.size() );
+        assertEquals( 0L, cache.getAllocatedBytes() );
+
+        cache.put( "1", bytes( 1, 100 ) );
+        assertArrayEquals( bytes( 1, 100 ), cache.get( "1" ) );
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link IndexStatistics} class, and their maintenance by the indexes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class IndexStatisticsTest
+{
+    private static SchemaManager schemaManager;
+    private MockPartitionReadTxn mockTxn;
+
+
+    @BeforeAll
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = IndexStatisticsTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+    }
+
+
+    @BeforeEach
+    public void setup()
+    {
+        mockTxn = new MockPartitionReadTxn();
+    }
+
+
+    private AvlIndex<String> createIndex( String attributeId ) throws Exception
+    {
+        AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry( attributeId );
+        AvlIndex<String> index = new AvlIndex<>( attributeType.getOid() );
+        index.init( schemaManager, attributeType );
+
+        return index;
+    }
+
+
+    @Test
+    public void testUnorderedIndex() throws Exception
+    {
+        AvlIndex<String> index = createIndex( SchemaConstants.CN_AT );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            index.add( mockTxn, "value" + ( i % 10 ), UUID.randomUUID().toString() );
+        }
+
+        IndexStatistics statistics = IndexStatistics.build( mockTxn, index, 8 );
+
+        // cn has no ORDERING matching rule
+        assertFalse( statistics.hasHistogram() );
+        assertEquals( 100L, statistics.getCount() );
+        assertEquals( 10L, statistics.getDistinct() );
+        assertEquals( 10L, statistics.equalityCount( "value1" ) );
+        assertEquals( 100L, statistics.rangeCount( null, null ) );
+    }
+
+
+    @Test
+    public void testIncrementalUpdates() throws Exception
+    {
+        AvlIndex<String> index = createIndex( SchemaConstants.CN_AT );
+        index.setStatistics( IndexStatistics.build( mockTxn, index, 8 ) );
+
+        String id1 = UUID.randomUUID().toString();
+        String id2 = UUID.randomUUID().toString();
+
+        index.add( mockTxn, "a", id1 );
+        index.add( mockTxn, "a", id2 );
+        index.add( mockTxn, "b", id1 );
+
+        // Adding an existing tuple does not change anything
+        index.add( mockTxn, "b", id1 );
+
+        // The statistics were built on an empty index : each key is supposed to be unique
+        IndexStatistics statistics = index.getStatistics();
+        assertEquals( 3L, statistics.getCount() );
+        assertEquals( 3L, statistics.getDistinct() );
+
+        index.drop( mockTxn, "a", id1 );
+        assertEquals( 2L, statistics.getCount() );
+        assertEquals( 2L, statistics.getDistinct() );
+
+        // Dropping a missing tuple does not change anything
+        index.drop( mockTxn, "a", id1 );
+        assertEquals( 2L, statistics.getCount() );
+
+        index.drop( mockTxn, id1 );
+        assertEquals( 1L, statistics.getCount() );
+        assertEquals( 1L, statistics.getDistinct() );
+
+        index.drop( mockTxn, "a", id2 );
+        assertEquals( 0L, statistics.getCount() );
+        assertEquals( 0L, statistics.getDistinct() );
+
+        // The estimates are never 0, as the statistics may be slightly off
+        assertEquals( 1L, statistics.equalityCount( "a" ) );
+    }
+
+
+    /**
+     * createTimestamp has an ORDERING matching rule, so we get a histogram
+     */
+    @Test
+    public void testHistogram() throws Exception
+    {
+        AvlIndex<String> index = createIndex( SchemaConstants.CREATE_TIMESTAMP_AT );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            index.add( mockTxn, time( i ), UUID.randomUUID().toString() );
+        }
+
+        IndexStatistics statistics = IndexStatistics.build( mockTxn, index, 10 );
+
+        assertTrue( statistics.hasHistogram() );
+        assertEquals( 1000L, statistics.getCount() );
+        assertEquals( 1000L, statistics.getDistinct() );
+        assertEquals( 1L, statistics.equalityCount( time( 42 ) ) );
+
+        // The estimates are accurate up to half a bucket on each side of the range
+        assertEstimate( 500L, statistics.rangeCount( time( 500 ), null ), 100L );
+        assertEstimate( 100L, statistics.rangeCount( null, time( 99 ) ), 100L );
+        assertEstimate( 200L, statistics.rangeCount( time( 400 ), time( 599 ) ), 100L );
+        assertEquals( 1000L, statistics.rangeCount( null, null ) );
+
+        // Now, add some values in a bucket
+        index.setStatistics( statistics );
+
+        for ( int i = 0; i < 500; i++ )
+        {
+            index.add( mockTxn, time( 950 ), UUID.randomUUID().toString() );
+        }
+
+        // All the added tuples are in the last bucket. The number of distinct keys is
+        // estimated with the number of tuples per key the index had when it was built
+        assertEquals( 1500L, statistics.getCount() );
+        assertEquals( 1500L, statistics.getDistinct() );
+        assertEquals( 1L, statistics.equalityCount( time( 950 ) ) );
+        assertEquals( 1500L, statistics.rangeCount( null, null ) );
+        assertEquals( 300L, statistics.rangeCount( time( 900 ), null ) );
+
+        // The histogram is not representative anymore
+        assertTrue( statistics.isStale( index.count( mockTxn ) ) );
+    }
+
+
+    @Test
+    public void testSerialization() throws Exception
+    {
+        AvlIndex<String> index = createIndex( SchemaConstants.CREATE_TIMESTAMP_AT );
+
+        for ( int i = 0; i < 200; i++ )
+        {
+            index.add( mockTxn, time( i / 2 ), UUID.randomUUID().toString() );
+        }
+
+        IndexStatistics statistics = IndexStatistics.build( mockTxn, index, 4 );
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        statistics.write( new DataOutputStream( baos ) );
+
+        IndexStatistics read = IndexStatistics.read( new DataInputStream( new ByteArrayInputStream(
+            baos.toByteArray() ) ), IndexStatistics.getComparator( index.getAttribute() ) );
+
+        assertTrue( read.hasHistogram() );
+        assertEquals( statistics.getCount(), read.getCount() );
+        assertEquals( statistics.getDistinct(), read.getDistinct() );
+        assertEquals( statistics.equalityCount( time( 10 ) ), read.equalityCount( time( 10 ) ) );
+        assertEquals( statistics.rangeCount( time( 50 ), null ), read.rangeCount( time( 50 ), null ) );
+        assertFalse( read.isStale( index.count( mockTxn ) ) );
+        assertTrue( read.isStale( 1000L ) );
+    }
+
+
+    /**
+     * Creates a generalized time, ordered as the given number of seconds
+     */
+    private static String time( int seconds )
+    {
+        return String.format( "20200101%02d%02d%02dZ", seconds / 3600, ( seconds / 60 ) % 60, seconds % 60 );
+    }
+
+
+    private static void assertEstimate( long expected, long estimate, long delta )
+    {
+        assertTrue( Math.abs( expected - estimate ) <= delta, "Expected about " + expected + " but got " + estimate );
+    }
+}
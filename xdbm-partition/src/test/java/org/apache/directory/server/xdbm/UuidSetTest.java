@@ -0,0 +1,232 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the {@link UuidSet} and {@link UuidSetCursor} classes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.CONCURRENT)
+public class UuidSetTest
+{
+    private static List<String> randomUuids( int nb )
+    {
+        List<String> uuids = new ArrayList<>( nb );
+
+        for ( int i = 0; i < nb; i++ )
+        {
+            uuids.add( UUID.randomUUID().toString() );
+        }
+
+        return uuids;
+    }
+
+
+    @Test
+    public void testAddContains()
+    {
+        UuidSet set = new UuidSet();
+        List<String> uuids = randomUuids( 10000 );
+
+        for ( String uuid : uuids )
+        {
+            assertTrue( set.add( uuid ) );
+        }
+
+        for ( String uuid : uuids )
+        {
+            assertFalse( set.add( uuid ) );
+            assertTrue( set.contains( uuid ) );
+        }
+
+        assertEquals( 10000, set.size() );
+        assertFalse( set.contains( UUID.randomUUID().toString() ) );
+        assertEquals( new HashSet<>( uuids ), new HashSet<>( set ) );
+    }
+
+
+    @Test
+    public void testNonCanonicalIds()
+    {
+        UuidSet set = new UuidSet();
+        String upper = UUID.randomUUID().toString().toUpperCase();
+        String nil = Partition.ROOT_ID;
+
+        assertTrue( set.add( upper ) );
+        assertTrue( set.add( nil ) );
+        assertTrue( set.add( Partition.DEFAULT_ID ) );
+        assertTrue( set.add( "1" ) );
+        assertFalse( set.add( "1" ) );
+
+        assertEquals( 4, set.size() );
+        assertTrue( set.contains( upper ) );
+        assertFalse( set.contains( upper.toLowerCase() ) );
+        assertTrue( set.contains( nil ) );
+
+        // The strings are returned as they were added
+        Set<String> expected = new HashSet<>();
+        expected.add( upper );
+        expected.add( nil );
+        expected.add( Partition.DEFAULT_ID );
+        expected.add( "1" );
+        assertEquals( expected, new HashSet<>( set ) );
+    }
+
+
+    @Test
+    public void testRemove()
+    {
+        UuidSet set = new UuidSet();
+        List<String> uuids = randomUuids( 5000 );
+        set.addAll( uuids );
+        set.add( "1" );
+
+        for ( int i = 0; i < uuids.size(); i += 2 )
+        {
+            assertTrue( set.remove( uuids.get( i ) ) );
+            assertFalse( set.remove( uuids.get( i ) ) );
+        }
+
+        assertTrue( set.remove( "1" ) );
+        assertEquals( 2500, set.size() );
+
+        // The removals must not break the probe sequences of the remaining UUIDs
+        for ( int i = 0; i < uuids.size(); i++ )
+        {
+            assertEquals( i % 2 == 1, set.contains( uuids.get( i ) ) );
+        }
+    }
+
+
+    @Test
+    public void testRetainAll()
+    {
+        List<String> uuids = randomUuids( 1000 );
+        UuidSet set = new UuidSet();
+        set.addAll( uuids );
+        set.add( "a" );
+        set.add( "b" );
+
+        UuidSet other = new UuidSet();
+        other.addAll( uuids.subList( 100, 200 ) );
+        other.add( "b" );
+        other.add( UUID.randomUUID().toString() );
+
+        assertTrue( set.retainAll( other ) );
+        assertEquals( 101, set.size() );
+
+        Set<String> expected = new HashSet<>( uuids.subList( 100, 200 ) );
+        expected.add( "b" );
+        assertEquals( expected, new HashSet<>( set ) );
+
+        // Retaining with a standard collection
+        assertTrue( set.retainAll( new HashSet<>( uuids.subList( 150, 300 ) ) ) );
+        assertEquals( new HashSet<>( uuids.subList( 150, 200 ) ), new HashSet<>( set ) );
+        assertFalse( set.retainAll( new HashSet<>( uuids ) ) );
+    }
+
+
+    @Test
+    public void testClear()
+    {
+        UuidSet set = new UuidSet();
+        set.addAll( randomUuids( 100 ) );
+        set.add( "1" );
+        set.clear();
+
+        assertTrue( set.isEmpty() );
+        assertFalse( set.iterator().hasNext() );
+    }
+
+
+    @Test
+    public void testCursor() throws Exception
+    {
+        UuidSet set = new UuidSet();
+        List<String> uuids = randomUuids( 500 );
+        set.addAll( uuids );
+        set.add( "1" );
+
+        try ( UuidSetCursor cursor = new UuidSetCursor( new MockPartitionReadTxn(), set ) )
+        {
+            assertFalse( cursor.available() );
+            assertThrows( InvalidCursorPositionException.class, () -> cursor.get() );
+
+            List<String> forward = new ArrayList<>();
+
+            while ( cursor.next() )
+            {
+                forward.add( cursor.get().getId() );
+            }
+
+            assertEquals( 501, forward.size() );
+            assertEquals( set, new HashSet<>( forward ) );
+            assertThrows( InvalidCursorPositionException.class, () -> cursor.get() );
+
+            // Browse backward, we should get the same IDs in the reverse order
+            List<String> backward = new ArrayList<>();
+
+            while ( cursor.previous() )
+            {
+                backward.add( 0, cursor.get().getId() );
+            }
+
+            assertEquals( forward, backward );
+
+            assertTrue( cursor.first() );
+            assertEquals( forward.get( 0 ), cursor.get().getId() );
+            assertTrue( cursor.last() );
+            assertEquals( forward.get( 500 ), cursor.get().getId() );
+        }
+    }
+
+
+    @Test
+    public void testEmptyCursor() throws Exception
+    {
+        try ( UuidSetCursor cursor = new UuidSetCursor( new MockPartitionReadTxn(), new UuidSet() ) )
+        {
+            assertFalse( cursor.next() );
+            assertFalse( cursor.previous() );
+            assertFalse( cursor.first() );
+            assertFalse( cursor.last() );
+        }
+    }
+}
@@ -65,8 +65,10 @@ import org.apache.directory.server.core.api.interceptor.context.ModDnAva;
 import org.apache.directory.server.core.api.partition.PartitionTxn;
 import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
 import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.search.cursor.IdOrderedCursor;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -655,4 +657,127 @@ public class AvlPartitionTest
         lookedup = partition.modify( txn, dn, add );
         assertEquals( attribVal, lookedup.get( "ou" ).get().getString() );
     }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAddWithDeferredUserIndices() throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=Tim C,ou=Sales,o=Good Times Co." );
+        DefaultEntry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "organizationalPerson" );
+        entry.add( "ou", "Research" );
+        entry.add( "cn", "Tim C" );
+        entry.add( "entryCSN", new CsnFactory( 1 ).newInstance().toString() );
+        entry.add( "entryUUID", UUID.randomUUID().toString() );
+
+        partition.setUserIndicesDeferred( true );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addContext );
+
+        Index<String, String> ouIndex = ( Index<String, String> ) partition.getUserIndex( OU_AT );
+        String id = partition.getEntryId( txn, dn );
+
+        // The entry is stored, but not indexed, and the searches don't use the user indices
+        assertNotNull( partition.fetch( txn, id ) );
+        assertFalse( ouIndex.forward( txn, "research", id ) );
+        assertFalse( partition.hasUserIndexOn( OU_AT ) );
+        assertTrue( partition.hasIndexOn( partition.getObjectClassIndex().getAttribute() ) );
+
+        // The entries added after the deferral are indexed, but the index is still incomplete
+        partition.setUserIndicesDeferred( false );
+        assertFalse( partition.hasUserIndexOn( OU_AT ) );
+
+        // Build the indices by batches of 2 entries
+        partition.buildUserIndices( 2 );
+
+        assertTrue( partition.hasUserIndexOn( OU_AT ) );
+        assertTrue( ouIndex.forward( txn, "research", id ) );
+        assertTrue( ouIndex.forward( txn, "sales", partition.getEntryId( txn,
+            new Dn( schemaManager, "ou=Sales,o=Good Times Co." ) ) ) );
+    }
+
+
+    @Test
+    public void testCachedCount() throws Exception
+    {
+        assertEquals( 11, partition.getCachedCount( txn ) );
+        assertEquals( 11, partition.getCachedCount( txn ) );
+
+        Dn dn = new Dn( schemaManager, "cn=Tim C,ou=Sales,o=Good Times Co." );
+        DefaultEntry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( "objectClass", "top", "person", "organizationalPerson" );
+        entry.add( "ou", "Sales" );
+        entry.add( "cn", "Tim C" );
+        entry.add( "entryCSN", new CsnFactory( 1 ).newInstance().toString() );
+        entry.add( "entryUUID", UUID.randomUUID().toString() );
+
+        AddOperationContext addContext = new AddOperationContext( null, entry );
+        addContext.setPartition( partition );
+        addContext.setTransaction( partition.beginWriteTransaction() );
+
+        partition.add( addContext );
+
+        // The cached count follows the added and deleted entries
+        assertEquals( 12, partition.getCachedCount( txn ) );
+
+        partition.delete( txn, partition.getEntryId( txn, dn ) );
+
+        assertEquals( 11, partition.getCachedCount( txn ) );
+        assertEquals( partition.count( txn ), partition.getCachedCount( txn ) );
+    }
+
+
+    /**
+     * Reads the IDs returned by a cursor reading the MasterTable by chunks
+     */
+    private List<String> readIdsByChunks( String resumeAfter, int chunkSize ) throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+
+        try ( IdOrderedCursor cursor = new IdOrderedCursor( txn, partition, resumeAfter, chunkSize ) )
+        {
+            while ( cursor.next() )
+            {
+                ids.add( cursor.get().getId() );
+            }
+
+            // We can go back, but not before the ID we have been resumed after
+            for ( int i = ids.size() - 1; i >= 0; i-- )
+            {
+                assertTrue( cursor.previous() );
+                assertEquals( ids.get( i ), cursor.get().getId() );
+            }
+
+            assertFalse( cursor.previous() );
+        }
+
+        return ids;
+    }
+
+
+    @Test
+    public void testIdsByChunks() throws Exception
+    {
+        List<String> all = partition.getIdsAfter( txn, null, Integer.MAX_VALUE );
+        assertEquals( 11, all.size() );
+
+        for ( int i = 1; i < all.size(); i++ )
+        {
+            assertTrue( all.get( i - 1 ).compareTo( all.get( i ) ) < 0 );
+        }
+
+        assertEquals( all.subList( 3, 5 ), partition.getIdsAfter( txn, all.get( 2 ), 2 ) );
+        assertTrue( partition.getIdsAfter( txn, all.get( 10 ), 2 ).isEmpty() );
+
+        // The chunks are read one after the other, whatever their size
+        assertEquals( all, readIdsByChunks( null, 2 ) );
+        assertEquals( all, readIdsByChunks( null, 11 ) );
+        assertEquals( all.subList( 3, 11 ), readIdsByChunks( all.get( 2 ), 3 ) );
+        assertTrue( readIdsByChunks( all.get( 10 ), 3 ).isEmpty() );
+    }
 }
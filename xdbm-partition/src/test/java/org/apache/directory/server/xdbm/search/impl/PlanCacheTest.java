@@ -0,0 +1,244 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search.impl;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
+import org.apache.directory.api.ldap.schema.extractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schema.loader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.FileUtils;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.MockCoreSession;
+import org.apache.directory.server.core.api.MockDirectoryService;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.apache.directory.server.xdbm.search.Optimizer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.parallel.Execution;
+import org.junit.jupiter.api.parallel.ExecutionMode;
+
+
+/**
+ * Tests the plan cache used by the DefaultOptimizer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@Execution(ExecutionMode.SAME_THREAD)
+public class PlanCacheTest extends AbstractCursorTest
+{
+    File wkdir;
+    static FilterNormalizingVisitor visitor;
+
+
+    @BeforeAll
+    static public void setup() throws Exception
+    {
+        // setup the standard registries
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = PlanCacheTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        LdifSchemaLoader loader = new LdifSchemaLoader( schemaRepository );
+        schemaManager = new DefaultSchemaManager( loader );
+
+        boolean loaded = schemaManager.loadAllEnabled();
+
+        if ( !loaded )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
+        visitor = new FilterNormalizingVisitor( ncn, schemaManager );
+    }
+
+
+    @BeforeEach
+    public void createStore() throws Exception
+    {
+        directoryService = new MockDirectoryService();
+
+        // setup the working directory for the store
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        wkdir.mkdirs();
+
+        StoreUtils.createdExtraAttributes( schemaManager );
+
+        // initialize the store
+        store = new AvlPartition( schemaManager, directoryService.getDnFactory() );
+        ( ( Partition ) store ).setId( "example" );
+        store.setCacheSize( 10 );
+        store.setPartitionPath( wkdir.toURI() );
+        store.setSyncOnWrite( false );
+
+        store.addIndex( new AvlIndex<String>( SchemaConstants.OU_AT_OID ) );
+        store.addIndex( new AvlIndex<String>( SchemaConstants.CN_AT_OID ) );
+        ( ( Partition ) store ).setSuffixDn( new Dn( schemaManager, "o=Good Times Co." ) );
+        ( ( Partition ) store ).initialize();
+
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        evaluatorBuilder = new EvaluatorBuilder( store, schemaManager );
+        cursorBuilder = new CursorBuilder( store, evaluatorBuilder );
+
+        directoryService.setSchemaManager( schemaManager );
+        session = new MockCoreSession( new LdapPrincipal(), directoryService );
+    }
+
+
+    @AfterEach
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            ( ( Partition ) store ).destroy( null );
+        }
+
+        store = null;
+
+        if ( wkdir != null )
+        {
+            FileUtils.deleteDirectory( wkdir );
+        }
+
+        wkdir = null;
+    }
+
+
+    private ExprNode parse( String filter ) throws Exception
+    {
+        ExprNode exprNode = FilterParser.parse( schemaManager, filter );
+
+        return ( ExprNode ) exprNode.accept( visitor );
+    }
+
+
+    /**
+     * Searches the store, returning the found entryUUIDs
+     */
+    private Set<String> search( Optimizer optimizer, String filter ) throws Exception
+    {
+        Set<String> uuids = new HashSet<>();
+
+        try ( PartitionTxn txn = ( ( Partition ) store ).beginReadTransaction() )
+        {
+            ExprNode exprNode = parse( filter );
+            optimizer.annotate( txn, exprNode );
+
+            try ( Cursor<Entry> cursor = buildCursor( txn, exprNode ) )
+            {
+                while ( cursor.next() )
+                {
+                    uuids.add( cursor.get().get( "entryUUID" ).getString() );
+                }
+            }
+        }
+
+        return uuids;
+    }
+
+
+    @Test
+    public void testShape() throws Exception
+    {
+        String shape = PlanCache.getShape( parse( "(&(cn=JOhnny WAlkeR)(ou=Sales))" ) );
+
+        assertEquals( shape, PlanCache.getShape( parse( "(&(cn=Jim Bean)(ou=apache))" ) ) );
+        assertNotEquals( shape, PlanCache.getShape( parse( "(&(ou=Sales)(cn=JOhnny WAlkeR))" ) ) );
+        assertNotEquals( shape, PlanCache.getShape( parse( "(|(cn=JOhnny WAlkeR)(ou=Sales))" ) ) );
+        assertNotEquals( shape, PlanCache.getShape( parse( "(&(cn=J*)(ou=Sales))" ) ) );
+        assertNotEquals( PlanCache.getShape( parse( "(cn=J*)" ) ), PlanCache.getShape( parse( "(cn=*J)" ) ) );
+    }
+
+
+    @Test
+    public void testPlanReuse() throws Exception
+    {
+        DefaultOptimizer optimizer = new DefaultOptimizer( store );
+        DefaultOptimizer noCacheOptimizer = new DefaultOptimizer( store, 0 );
+        PlanCache planCache = optimizer.getPlanCache();
+
+        assertNull( noCacheOptimizer.getPlanCache() );
+
+        String[] filters = new String[]
+            {
+                "(|(&(cn=J*)(sn=w*))(ou=apache))",
+                "(|(&(cn=T*)(sn=b*))(ou=sales))",
+                "(|(&(cn=Jim*)(sn=b*))(ou=board of directors))",
+                "(|(&(cn=unknown*)(sn=b*))(ou=unknown))"
+            };
+
+        assertEquals( search( noCacheOptimizer, filters[0] ), search( optimizer, filters[0] ) );
+        assertEquals( 0L, planCache.getHits() );
+        assertEquals( 1L, planCache.getMisses() );
+
+        // The following filters have the same shape : the plan is reused, and we must get the same results
+        for ( int i = 1; i < filters.length; i++ )
+        {
+            assertEquals( search( noCacheOptimizer, filters[i] ), search( optimizer, filters[i] ) );
+        }
+
+        assertEquals( 1L, planCache.getMisses() );
+        assertEquals( filters.length - 1L, planCache.getHits() );
+        assertEquals( 0.75d, planCache.getHitRate(), 0.001d );
+        assertEquals( 1L, planCache.size() );
+
+        // A plan for another shape
+        assertFalse( search( optimizer, "(cn=JOhnny WAlkeR)" ).isEmpty() );
+        assertEquals( 2L, planCache.getMisses() );
+        assertEquals( 2L, planCache.size() );
+    }
+}